@@ -4,23 +4,34 @@
  */
 package com.productionpilot.api;
 
+import com.productionpilot.api.serializers.WideCsvWriter;
 import com.productionpilot.db.timescale.entities.Batch;
+import com.productionpilot.db.timescale.entities.BatchMachineStatistics;
 import com.productionpilot.db.timescale.service.BatchService;
+import com.productionpilot.db.timescale.service.BatchStatisticsService;
+import com.productionpilot.service.metadata.MetadataSnapshot;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
 import com.productionpilot.ui.util.UIFormatters;
 import com.productionpilot.util.Util;
 import java.io.*;
+import java.time.Duration;
+import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.Optional;
 import javax.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
-import org.springframework.transaction.annotation.Transactional;
+import org.springframework.web.bind.annotation.DeleteMapping;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.server.ResponseStatusException;
 
@@ -28,9 +39,16 @@ import org.springframework.web.server.ResponseStatusException;
 @RequestMapping("/api/v1/batches")
 @RequiredArgsConstructor
 public class BatchApi {
+    private static final String PARQUET_MEDIA_TYPE = "application/vnd.apache.parquet";
+    private static final String DEFAULT_CONSUMER = "default";
 
     private final BatchService batchService;
     private final BatchCSVExporter batchCSVExporter;
+    private final BatchParquetExporter batchParquetExporter;
+    private final BatchDeltaExporter batchDeltaExporter;
+    private final BatchExportPlanner batchExportPlanner;
+    private final BatchStatisticsService batchStatisticsService;
+    private final MetadataSnapshotService metadataSnapshotService;
 
     @GetMapping(produces = MediaType.APPLICATION_JSON_VALUE)
     List<Batch> getBatches() {
@@ -39,24 +57,172 @@ public class BatchApi {
 
     @GetMapping(value = "id/{id}/export/csv-zip", produces = "application/zip")
     @SneakyThrows(IOException.class)
-    @Transactional(readOnly = true)
     public void getBatchZip(@PathVariable long id, HttpServletResponse response) {
+        writeBatchZip(id, null, response);
+    }
+
+    /**
+     * Exports one CSV file per batch machine range, with a column for each parameter of the machine. The rows are
+     * aligned by the exact client times of the measurements (EXACT), or on a grid with the given interval, with the
+     * last value carried forward (LOCF) or numeric values interpolated (LINEAR).
+     */
+    @GetMapping(value = "id/{id}/export/wide-csv-zip", produces = "application/zip")
+    @SneakyThrows(IOException.class)
+    public void getBatchWideZip(
+            @PathVariable long id,
+            @RequestParam(defaultValue = "EXACT") WideCsvWriter.Alignment alignment,
+            @RequestParam(defaultValue = "1000") long intervalMs,
+            HttpServletResponse response) {
+        if (intervalMs <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "intervalMs must be positive");
+        }
+        writeBatchZip(id, new BatchCSVExporter.WideFormat(alignment, Duration.ofMillis(intervalMs)), response);
+    }
+
+    /**
+     * Exports the measurements of the batch and its child batches as one Parquet file, see
+     * {@link BatchParquetExporter}.
+     */
+    @GetMapping(value = "id/{id}/export/parquet", produces = PARQUET_MEDIA_TYPE)
+    @SneakyThrows(IOException.class)
+    public void getBatchParquet(@PathVariable long id, HttpServletResponse response) {
+        var batch = findBatchForExport(id, ".parquet", response);
+        batchParquetExporter.writeBatchToParquet(response.getOutputStream(), batch);
+    }
+
+    /**
+     * Exports the measurements that were added since the previous incremental export of the batch for the same
+     * consumer, see {@link BatchDeltaExporter}. A POST request, as it records how far the consumer has exported.
+     */
+    @PostMapping(value = "id/{id}/export/delta-csv-zip", produces = "application/zip")
+    @SneakyThrows(IOException.class)
+    public void postBatchDeltaZip(
+            @PathVariable long id,
+            @RequestParam(defaultValue = DEFAULT_CONSUMER) String consumer,
+            HttpServletResponse response) {
+        validateConsumer(consumer);
+        var batch = findBatchForExport(id, ".zip", response);
+        batchDeltaExporter.writeBatchDeltaToZip(response.getOutputStream(), batch, consumer);
+    }
+
+    /**
+     * Forgets how far the consumer has exported the batch, so that the next incremental export contains all
+     * measurements again.
+     */
+    @DeleteMapping("id/{id}/export/delta-manifest")
+    public void deleteBatchDeltaManifest(
+            @PathVariable long id, @RequestParam(defaultValue = DEFAULT_CONSUMER) String consumer) {
+        validateConsumer(consumer);
+        var batch = Optional.ofNullable(batchService.findById(id))
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Batch not found"));
+        batchDeltaExporter.resetManifests(batch, consumer);
+    }
+
+    /**
+     * Returns the count, minimum, maximum, mean and standard deviation of each parameter within each batch machine
+     * range of the batch and its child batches. Stored statistics are returned as they are, outdated ones are computed
+     * first, see {@link BatchStatisticsService}.
+     */
+    @GetMapping(value = "id/{id}/statistics", produces = MediaType.APPLICATION_JSON_VALUE)
+    @SneakyThrows(IOException.class)
+    public List<RangeStatistics> getBatchStatistics(@PathVariable long id) {
+        var tree = batchExportPlanner.loadTree(id);
+        if (tree == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Batch not found");
+        }
+        var ranges = batchExportPlanner.listRanges(tree);
+        var statistics = batchStatisticsService.getStatistics(ranges.stream()
+                .map(range -> BatchStatisticsService.Range.of(range.range()))
+                .toList());
+        var metadata = metadataSnapshotService.get();
+        var result = new ArrayList<RangeStatistics>();
+        for (int i = 0; i < ranges.size(); i++) {
+            var range = ranges.get(i).range();
+            result.add(new RangeStatistics(
+                    range.id(),
+                    ranges.get(i).batch().id(),
+                    range.machineId(),
+                    range.machineName(),
+                    range.startTime(),
+                    range.endTime(),
+                    statistics.get(i).parameters().stream()
+                            .map(parameterStatistics -> ParameterStatistics.of(parameterStatistics, metadata))
+                            .toList()));
+        }
+        return result;
+    }
+
+    private static void validateConsumer(String consumer) {
+        if (consumer.isBlank() || consumer.length() > 255) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "consumer must have 1 to 255 characters");
+        }
+    }
+
+    private void writeBatchZip(long id, BatchCSVExporter.WideFormat wideFormat, HttpServletResponse response)
+            throws IOException {
+        var batch = findBatchForExport(id, ".zip", response);
+        batchCSVExporter.writeBatchToZip(response.getOutputStream(), batch, wideFormat);
+    }
+
+    private Batch findBatchForExport(long id, String extension, HttpServletResponse response) {
         Batch batch = batchService.findById(id);
         if (batch == null) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Machine not found");
         }
-        var filename = batch.getName() + " - Exported on "
-                + UIFormatters.DATE_TIME_FORMATTER
-                        .format(LocalDateTime.now(ZoneId.systemDefault()))
-                        .replace(":", ".") + ".zip";
         // setting headers
         response.setStatus(HttpServletResponse.SC_OK);
-        response.addHeader("Content-Disposition", "attachment; filename=\"" + Util.filterFilename(filename) + "\"");
+        response.addHeader(
+                "Content-Disposition", "attachment; filename=\"" + getExportFilename(batch, extension) + "\"");
+        return batch;
+    }
 
-        batchCSVExporter.writeBatchToZip(response.getOutputStream(), batch);
+    static String getExportFilename(Batch batch, String extension) {
+        return Util.filterFilename(batch.getName() + " - Exported on "
+                + UIFormatters.DATE_TIME_FORMATTER
+                        .format(LocalDateTime.now(ZoneId.systemDefault()))
+                        .replace(":", ".") + extension);
     }
 
     public static String getLinkToBatchExport(Batch batch) {
         return "/api/v1/batches/id/" + batch.getId() + "/export/csv-zip";
     }
+
+    public record RangeStatistics(
+            long batchMachineId,
+            long batchId,
+            long machineId,
+            String machineName,
+            Instant start,
+            Instant end,
+            List<ParameterStatistics> parameters) {}
+
+    public record ParameterStatistics(
+            long parameterId,
+            String identifier,
+            String name,
+            String unitOfMeasurement,
+            long count,
+            long numericCount,
+            Double min,
+            Double max,
+            Double mean,
+            Double standardDeviation,
+            Instant computationTime) {
+        static ParameterStatistics of(BatchMachineStatistics statistics, MetadataSnapshot metadata) {
+            var parameter = metadata.getParameter(statistics.getParameterId());
+            var unitOfMeasurement = parameter != null ? metadata.getUnitOfMeasurementOf(parameter) : null;
+            return new ParameterStatistics(
+                    statistics.getParameterId(),
+                    parameter != null ? parameter.identifier() : null,
+                    parameter != null ? parameter.name() : null,
+                    unitOfMeasurement != null ? unitOfMeasurement.abbreviation() : null,
+                    statistics.getMeasurementCount(),
+                    statistics.getNumericCount(),
+                    statistics.getMinValue(),
+                    statistics.getMaxValue(),
+                    statistics.getMeanValue(),
+                    statistics.getStandardDeviation(),
+                    statistics.getComputationTime());
+        }
+    }
 }
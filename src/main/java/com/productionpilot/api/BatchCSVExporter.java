@@ -5,130 +5,452 @@
 package com.productionpilot.api;
 
 import com.productionpilot.api.serializers.ApiFormatters;
+import com.productionpilot.api.serializers.MeasurementCsvWriter;
+import com.productionpilot.api.serializers.WideCsvWriter;
 import com.productionpilot.db.timescale.entities.Batch;
-import com.productionpilot.db.timescale.entities.Parameter;
-import com.productionpilot.db.timescale.service.BatchMachineService;
-import com.productionpilot.db.timescale.service.BatchService;
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository.BatchNode;
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository.RangeNode;
 import com.productionpilot.db.timescale.service.MeasurementService;
+import com.productionpilot.service.metadata.MetadataSnapshot;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import com.productionpilot.service.metadata.ParameterMetadata;
+import com.productionpilot.util.SpillingOutputStream;
 import com.productionpilot.util.Util;
 import java.io.*;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZoneId;
 import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
 import java.util.zip.ZipEntry;
-import java.util.zip.ZipOutputStream;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import lombok.Cleanup;
 import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
 import org.apache.commons.csv.CSVFormat;
 import org.apache.commons.csv.CSVPrinter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 
+/**
+ * Exports batches as ZIP files with one CSV file per parameter and batch machine range, or, in the wide format, one CSV
+ * file per batch machine range with a column for each parameter (see {@link WideCsvWriter}).
+ *
+ * The CSV files are written and deflated in parallel on a bounded thread pool, each in its own read-only transaction.
+ * The finished entries are then appended to the ZIP file in a fixed order, so the result does not depend on timing. At
+ * most {@code 2 * threads} entries are in flight at a time, and each of them keeps at most its share of
+ * {@code memory-budget-mb} in memory, the rest goes to a temporary file.
+ */
+@Slf4j
 @Service
 @RequiredArgsConstructor
 public class BatchCSVExporter {
-    private static final String[] CSV_HEADER = {
+    static final String[] CSV_HEADER = {
         "ID", "Value", "OPC_Status_Code", "Source_Time", "Server_Time", "Client_Time"
     };
-    private static final CSVFormat CSV_FORMAT = CSVFormat.EXCEL;
+    static final CSVFormat CSV_FORMAT = CSVFormat.EXCEL;
     private static final String CSV_FORMAT_NAME = "Excel";
-    private static final Charset CSV_CHARSET = StandardCharsets.UTF_8;
+    static final Charset CSV_CHARSET = StandardCharsets.UTF_8;
     private static final DateTimeFormatter SHORT_FORMATTER = DateTimeFormatter.ofPattern("yy-MM-dd HH.mm")
             .withLocale(Locale.ENGLISH)
             .withZone(ZoneId.systemDefault());
 
     private static final int ZIP_BUFSIZE = 10 * 1000 * 1000; // 10 MB
 
-    private final BatchService batchService;
-    private final MeasurementService measurementService;
-    private final BatchMachineService batchMachineService;
+    private final BatchExportPlanner batchExportPlanner;
+    private final MetadataSnapshotService metadataSnapshotService;
+    private final BatchCSVExporterTransactional transactional;
+
+    @Value("${com.productionpilot.export.threads:4}")
+    private int threads;
+
+    @Value("${com.productionpilot.export.memory-budget-mb:64}")
+    private int memoryBudgetMb;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        var threadNumber = new AtomicLong();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "BatchExport-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
 
     public void writeBatchToZip(OutputStream outputStream, Batch batch) throws IOException {
+        writeBatchToZip(outputStream, batch, null);
+    }
+
+    public void writeBatchToZip(OutputStream outputStream, Batch batch, WideFormat wideFormat) throws IOException {
+        writeBatchToZip(outputStream, batch, wideFormat, new ExportProgress());
+    }
+
+    /**
+     * Writes the batch as a ZIP file. Should not be called within a transaction: the entries are read by the export
+     * threads, each in its own transaction, and a transaction of the caller would hold a further connection while it
+     * waits for them.
+     *
+     * @param wideFormat the alignment of the wide format, or null for one CSV file per parameter
+     * @param progress counts the exported measurements; cancelling it stops the export with an exception
+     */
+    public void writeBatchToZip(OutputStream outputStream, Batch batch, WideFormat wideFormat, ExportProgress progress)
+            throws IOException {
+        var metadata = metadataSnapshotService.get();
+        var tree = batchExportPlanner.loadTree(batch.getId());
+        if (tree == null) {
+            throw new IllegalArgumentException("Batch " + batch.getId() + " does not exist");
+        }
+        var entries = new ArrayList<PlannedEntry>();
+        planBatch(entries, "", tree, metadata, wideFormat != null);
+
         @Cleanup var bufferedOutputStream = new BufferedOutputStream(outputStream, ZIP_BUFSIZE);
-        @Cleanup var zipOutputStream = new ZipOutputStream(bufferedOutputStream);
-        writeBatchToZipCSVImpl(zipOutputStream, "", batch);
-        zipOutputStream.flush();
+        @Cleanup var zipOutputStream = new ZipArchiveOutputStream(bufferedOutputStream);
+        int maxInFlight = threads * 2;
+        int memoryPerEntry = (int) Math.min(Integer.MAX_VALUE - 8, (long) memoryBudgetMb * 1024 * 1024 / maxInFlight);
+        var inFlight = new ArrayDeque<Future<CompressedEntry>>();
+        try {
+            for (var entry : entries) {
+                if (inFlight.size() >= maxInFlight) {
+                    appendEntry(zipOutputStream, inFlight.poll());
+                }
+                inFlight.add(
+                        entry.parameters() == null
+                                ? CompletableFuture.completedFuture(new CompressedEntry(entry.path(), 0, 0, null))
+                                : executor.submit(() -> transactional.compressEntry(
+                                        entry, metadata, wideFormat, memoryPerEntry, progress)));
+            }
+            while (!inFlight.isEmpty()) {
+                appendEntry(zipOutputStream, inFlight.poll());
+            }
+        } finally {
+            for (var remaining : inFlight) {
+                discard(remaining);
+            }
+        }
+        zipOutputStream.finish();
         bufferedOutputStream.flush();
     }
 
-    private void writeBatchToZipCSVImpl(ZipOutputStream zipOutputStream, String prefix, Batch batch)
+    /**
+     * Collects the entries of the batch and its child batches, in the order in which they appear in the ZIP file. The
+     * entries stay in tree order rather than in the scan order of {@link BatchExportPlanner#planScans}: they are
+     * appended as they finish, and only a few are in flight at a time.
+     */
+    private void planBatch(
+            List<PlannedEntry> entries, String prefix, BatchNode batch, MetadataSnapshot metadata, boolean wide) {
+        for (var range : batch.ranges()) {
+            var rangeName = getRangeName(range);
+            var parameters = metadata.getParametersOfMachine(range.machineId());
+            if (wide) {
+                entries.add(
+                        new PlannedEntry(prefix + rangeName + ".csv", parameters, range.startTime(), range.endTime()));
+                continue;
+            }
+            var machinePath = prefix + rangeName + "/";
+            entries.add(new PlannedEntry(machinePath, null, null, null));
+            for (var parameter : parameters) {
+                entries.add(new PlannedEntry(
+                        machinePath + Util.filterFilename(getParameterLabel(parameter) + ".csv"),
+                        List.of(parameter),
+                        range.startTime(),
+                        range.endTime()));
+            }
+        }
+        for (var childBatch : batch.children()) {
+            var newPrefix = prefix + Util.filterFilename(childBatch.name()) + "/";
+            entries.add(new PlannedEntry(newPrefix, null, null, null));
+            planBatch(entries, newPrefix, childBatch, metadata, wide);
+        }
+    }
+
+    /**
+     * Returns the name of the directory (or, in the wide format, the file) of a batch machine range.
+     */
+    static String getRangeName(RangeNode range) {
+        return Util.filterFilename(range.machineName() + " from "
+                + SHORT_FORMATTER.format(range.startTime())
+                + " to " + SHORT_FORMATTER.format(range.endTime()));
+    }
+
+    static String getParameterLabel(ParameterMetadata parameter) {
+        return (parameter.identifier() != null ? parameter.identifier() : "Parameter " + parameter.id()) + " - "
+                + parameter.name();
+    }
+
+    private static void appendEntry(ZipArchiveOutputStream zipOutputStream, Future<CompressedEntry> future)
             throws IOException {
-        for (var range : batchMachineService.findAllByBatch(batch)) {
-            var machine = range.getMachine();
-            var machineName = machine.getName();
-            var machinePath = prefix
-                    + Util.filterFilename(machineName + " from "
-                            + SHORT_FORMATTER.format(range.getStartTime())
-                            + " to " + SHORT_FORMATTER.format(range.getEndTime()))
-                    + "/";
-            zipOutputStream.putNextEntry(new ZipEntry(machinePath));
-            for (var paramteter : range.getMachine().getParameters()) {
-                var parameterCsvName = (paramteter.getIdentifier() != null
-                                ? paramteter.getIdentifier()
-                                : "Parameter " + paramteter.getId())
-                        + " - " + paramteter.getName() + ".csv";
-                zipOutputStream.putNextEntry(new ZipEntry(machinePath + Util.filterFilename(parameterCsvName)));
-                writeParameterMeasurementsCSV(zipOutputStream, paramteter, range.getStartTime(), range.getEndTime());
-                zipOutputStream.flush();
+        CompressedEntry entry;
+        try {
+            entry = future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while exporting");
+        } catch (ExecutionException e) {
+            throw new IOException("Could not export parameter", e.getCause());
+        }
+        var zipEntry = new ZipArchiveEntry(entry.path());
+        if (entry.data() == null) {
+            zipOutputStream.putArchiveEntry(zipEntry);
+            zipOutputStream.closeArchiveEntry();
+            return;
+        }
+        try {
+            zipEntry.setMethod(ZipEntry.DEFLATED);
+            zipEntry.setCrc(entry.crc());
+            zipEntry.setSize(entry.size());
+            zipEntry.setCompressedSize(entry.data().size());
+            try (var rawData = entry.data().openInputStream()) {
+                zipOutputStream.addRawArchiveEntry(zipEntry, rawData);
             }
+        } finally {
+            entry.data().delete();
         }
-        for (var childBatch : batchService.findAllByParentBatch(batch)) {
-            var newPrefix = prefix + Util.filterFilename(childBatch.getName()) + "/";
-            zipOutputStream.putNextEntry(new ZipEntry(newPrefix));
-            writeBatchToZipCSVImpl(zipOutputStream, newPrefix, childBatch);
+    }
+
+    private static void discard(Future<CompressedEntry> future) {
+        if (!future.cancel(true) && future.isDone()) {
+            try {
+                var entry = future.get();
+                if (entry.data() != null) {
+                    entry.data().delete();
+                }
+            } catch (Exception e) {
+                log.trace("Discarded failed export entry", e);
+            }
         }
     }
 
-    public void writeParameterMeasurementsCSV(OutputStream out, Parameter parameter, Instant start, Instant end)
+    /**
+     * Writes the rows of a wide table of the given parameters, without the header. With the exact and LOCF
+     * alignments, the measurements of all parameters are read with a single query, merged by client time. Linear
+     * interpolation needs the next measurement of each parameter, so it reads a stream per parameter, each fetching
+     * only a few rows at a time. Must be called within a transaction.
+     *
+     * @param onRow called for every measurement that is read
+     */
+    static void writeWideRows(
+            MeasurementService measurementService,
+            Writer out,
+            WideFormat wideFormat,
+            List<ParameterMetadata> parameters,
+            Instant start,
+            Instant end,
+            Runnable onRow)
             throws IOException {
-        var outputStreamWriter = new OutputStreamWriter(out, CSV_CHARSET);
-        BufferedWriter bufferedWriter = new BufferedWriter(outputStreamWriter);
-        final CSVPrinter csvPrinter = new CSVPrinter(
-                bufferedWriter, CSV_FORMAT.builder().setHeader(CSV_HEADER).build());
-
-        csvPrinter.printComment("CSV Format: " + CSV_FORMAT_NAME);
-        csvPrinter.printComment("CSV Charset: " + CSV_CHARSET.name());
-        csvPrinter.printComment("Parameter Name: " + parameter.getName());
-        csvPrinter.printComment("Parameter ID: " + parameter.getId());
-        if (parameter.getIdentifier() != null) {
-            csvPrinter.printComment("Parameter Identifier: " + parameter.getIdentifier());
-        } else {
-            csvPrinter.printComment("Parameter Identifier not configured.");
+        var writer = new WideCsvWriter(out, wideFormat.alignment(), wideFormat.interval());
+        var parameterIds = parameters.stream().map(ParameterMetadata::id).toList();
+        if (wideFormat.alignment() != WideCsvWriter.Alignment.LINEAR) {
+            var merged = writer.merged(parameterIds, start, end);
+            measurementService.forEachByParametersAndTimeRangeOrderedByTime(parameterIds, start, end, row -> {
+                onRow.run();
+                merged.accept(row);
+            });
+            merged.finish();
+            return;
         }
-        if (parameter.getUnitOfMeasurement() != null) {
-            csvPrinter.printComment("Parameter Unit of Measurement Name: "
-                    + parameter.getUnitOfMeasurement().getName());
-            csvPrinter.printComment("Parameter Unit of Measurement Abbreviation: "
-                    + parameter.getUnitOfMeasurement().getAbbreviation());
-            csvPrinter.printComment("Parameter Unit of Measurement ID: "
-                    + parameter.getUnitOfMeasurement().getId());
-        } else {
-            csvPrinter.printComment("Parameter Unit of Measurement not configured.");
+        var streams = measurementService.streamByParametersAndTimeRange(parameterIds, start, end);
+        try {
+            writer.write(
+                    streams.stream()
+                            .map(stream -> stream.peek(measurement -> onRow.run()).iterator())
+                            .toList(),
+                    start,
+                    end);
+        } finally {
+            streams.forEach(Stream::close);
         }
-        csvPrinter.printComment(
-                "Parameter Machine Name: " + parameter.getMachine().getName());
-        csvPrinter.printComment(
-                "Parameter Machine ID: " + parameter.getMachine().getId());
-        csvPrinter.printComment("Start: " + ApiFormatters.API_DATETIME_FORMATTER.format(start));
-        csvPrinter.printComment("End: " + ApiFormatters.API_DATETIME_FORMATTER.format(end));
-        csvPrinter.printComment("Exported on: " + ApiFormatters.API_DATETIME_FORMATTER.format(Instant.now()));
-        var measurementIterator = measurementService
-                .streamByParameterAndTimeRange(parameter, start, end)
-                .iterator();
-        while (measurementIterator.hasNext()) {
-            var measurement = measurementIterator.next();
-            csvPrinter.printRecord(
-                    measurement.getId(),
-                    measurement.getValue(),
-                    measurement.getOpcStatusCode(),
-                    ApiFormatters.API_DATETIME_FORMATTER.format(measurement.getSourceTime()),
-                    ApiFormatters.API_DATETIME_FORMATTER.format(measurement.getServerTime()),
-                    ApiFormatters.API_DATETIME_FORMATTER.format(measurement.getClientTime()));
+    }
+
+    public void writeParameterMeasurementsCSV(
+            OutputStream out, MetadataSnapshot metadata, ParameterMetadata parameter, Instant start, Instant end)
+            throws IOException {
+        transactional.writeParameterMeasurementsCSV(out, metadata, parameter, start, end, new ExportProgress());
+    }
+
+    /**
+     * Selects the wide format, see {@link WideCsvWriter}.
+     *
+     * @param interval the distance between rows, for {@link WideCsvWriter.Alignment#LOCF} and
+     *     {@link WideCsvWriter.Alignment#LINEAR}
+     */
+    public record WideFormat(WideCsvWriter.Alignment alignment, Duration interval) {}
+
+    /**
+     * A directory (if parameters is null) or CSV file in the ZIP file. In the default format, a CSV file has one
+     * parameter, in the wide format all parameters of the machine.
+     */
+    record PlannedEntry(String path, List<ParameterMetadata> parameters, Instant start, Instant end) {}
+
+    /**
+     * @param data the raw deflated data, or null for directories
+     */
+    record CompressedEntry(String path, long crc, long size, SpillingOutputStream data) {}
+
+    @Service
+    @RequiredArgsConstructor
+    public static class BatchCSVExporterTransactional {
+        private final MeasurementService measurementService;
+
+        /**
+         * Writes the CSV file of the entry into a raw deflate stream, in a transaction of its own.
+         *
+         * @param wideFormat the alignment of the wide format, or null for a CSV file of a single parameter
+         */
+        @Transactional(readOnly = true)
+        public CompressedEntry compressEntry(
+                PlannedEntry entry,
+                MetadataSnapshot metadata,
+                WideFormat wideFormat,
+                int memoryLimit,
+                ExportProgress progress)
+                throws IOException {
+            progress.checkCancelled();
+            var data = new SpillingOutputStream(memoryLimit);
+            var crc = new CRC32();
+            var deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+            try {
+                try (var deflaterOutputStream = new DeflaterOutputStream(data, deflater, 64 * 1024);
+                        var checkedOutputStream = new CheckedOutputStream(deflaterOutputStream, crc)) {
+                    if (wideFormat == null) {
+                        writeParameterMeasurementsCSV(
+                                checkedOutputStream,
+                                metadata,
+                                entry.parameters().get(0),
+                                entry.start(),
+                                entry.end(),
+                                progress);
+                    } else {
+                        writeWideMeasurementsCSV(checkedOutputStream, metadata, entry, wideFormat, progress);
+                    }
+                }
+                // The export may have been abandoned while this entry was written, in which case the future was
+                // cancelled and nobody would ever read (and delete) the data
+                if (progress.isCancelled() || Thread.currentThread().isInterrupted()) {
+                    throw new CancellationException("The export was cancelled");
+                }
+                return new CompressedEntry(entry.path(), crc.getValue(), deflater.getBytesRead(), data);
+            } catch (IOException | RuntimeException e) {
+                data.delete();
+                throw e;
+            } finally {
+                deflater.end();
+            }
+        }
+
+        public void writeParameterMeasurementsCSV(
+                OutputStream out,
+                MetadataSnapshot metadata,
+                ParameterMetadata parameter,
+                Instant start,
+                Instant end,
+                ExportProgress progress)
+                throws IOException {
+            var outputStreamWriter = new OutputStreamWriter(out, CSV_CHARSET);
+            BufferedWriter bufferedWriter = new BufferedWriter(outputStreamWriter);
+            final CSVPrinter csvPrinter = new CSVPrinter(
+                    bufferedWriter, CSV_FORMAT.builder().setHeader(CSV_HEADER).build());
+
+            csvPrinter.printComment("CSV Format: " + CSV_FORMAT_NAME);
+            csvPrinter.printComment("CSV Charset: " + CSV_CHARSET.name());
+            csvPrinter.printComment("Parameter Name: " + parameter.name());
+            csvPrinter.printComment("Parameter ID: " + parameter.id());
+            if (parameter.identifier() != null) {
+                csvPrinter.printComment("Parameter Identifier: " + parameter.identifier());
+            } else {
+                csvPrinter.printComment("Parameter Identifier not configured.");
+            }
+            var unitOfMeasurement = metadata.getUnitOfMeasurementOf(parameter);
+            if (unitOfMeasurement != null) {
+                csvPrinter.printComment("Parameter Unit of Measurement Name: " + unitOfMeasurement.name());
+                csvPrinter.printComment(
+                        "Parameter Unit of Measurement Abbreviation: " + unitOfMeasurement.abbreviation());
+                csvPrinter.printComment("Parameter Unit of Measurement ID: " + unitOfMeasurement.id());
+            } else {
+                csvPrinter.printComment("Parameter Unit of Measurement not configured.");
+            }
+            var machine = metadata.getMachineOf(parameter);
+            csvPrinter.printComment("Parameter Machine Name: " + (machine != null ? machine.name() : ""));
+            csvPrinter.printComment("Parameter Machine ID: " + parameter.machineId());
+            csvPrinter.printComment("Start: " + ApiFormatters.API_DATETIME_FORMATTER.format(start));
+            csvPrinter.printComment("End: " + ApiFormatters.API_DATETIME_FORMATTER.format(end));
+            csvPrinter.printComment("Exported on: " + ApiFormatters.API_DATETIME_FORMATTER.format(Instant.now()));
+            // The CSVPrinter writes straight through to the BufferedWriter, so the records can be appended directly
+            var csvWriter = new MeasurementCsvWriter(bufferedWriter);
+            measurementService.forEachByParameterAndTimeRange(parameter.id(), start, end, row -> {
+                csvWriter.write(row);
+                progress.addRow();
+            });
+            csvPrinter.flush();
+            bufferedWriter.flush();
+            outputStreamWriter.flush();
+        }
+
+        /**
+         * Writes the measurements of all parameters of the entry as one table, merged by client time.
+         */
+        public void writeWideMeasurementsCSV(
+                OutputStream out,
+                MetadataSnapshot metadata,
+                PlannedEntry entry,
+                WideFormat wideFormat,
+                ExportProgress progress)
+                throws IOException {
+            var outputStreamWriter = new OutputStreamWriter(out, CSV_CHARSET);
+            var bufferedWriter = new BufferedWriter(outputStreamWriter);
+            var header = new ArrayList<String>();
+            header.add("Client_Time");
+            entry.parameters().forEach(parameter -> header.add(getParameterLabel(parameter)));
+            var csvPrinter = new CSVPrinter(
+                    bufferedWriter, CSV_FORMAT.builder().setHeader(header.toArray(String[]::new)).build());
+
+            csvPrinter.printComment("CSV Format: " + CSV_FORMAT_NAME);
+            csvPrinter.printComment("CSV Charset: " + CSV_CHARSET.name());
+            if (!entry.parameters().isEmpty()) {
+                var machine = metadata.getMachineOf(entry.parameters().get(0));
+                csvPrinter.printComment("Machine Name: " + (machine != null ? machine.name() : ""));
+            }
+            csvPrinter.printComment("Alignment: " + wideFormat.alignment());
+            if (wideFormat.alignment() != WideCsvWriter.Alignment.EXACT) {
+                csvPrinter.printComment("Interval: " + wideFormat.interval());
+            }
+            csvPrinter.printComment("Start: " + ApiFormatters.API_DATETIME_FORMATTER.format(entry.start()));
+            csvPrinter.printComment("End: " + ApiFormatters.API_DATETIME_FORMATTER.format(entry.end()));
+            csvPrinter.printComment("Exported on: " + ApiFormatters.API_DATETIME_FORMATTER.format(Instant.now()));
+
+            writeWideRows(
+                    measurementService,
+                    bufferedWriter,
+                    wideFormat,
+                    entry.parameters(),
+                    entry.start(),
+                    entry.end(),
+                    progress::addRow);
+            csvPrinter.flush();
+            bufferedWriter.flush();
+            outputStreamWriter.flush();
         }
-        csvPrinter.flush();
-        bufferedWriter.flush();
-        outputStreamWriter.flush();
     }
 }
@@ -0,0 +1,248 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api;
+
+import com.productionpilot.api.BatchExportPlanner.PlannedRange;
+import com.productionpilot.api.serializers.MeasurementCsvWriter;
+import com.productionpilot.db.timescale.entities.Batch;
+import com.productionpilot.db.timescale.entities.ExportManifest;
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository.BatchNode;
+import com.productionpilot.db.timescale.repository.ExportManifestRepository;
+import com.productionpilot.db.timescale.service.MeasurementService;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import com.productionpilot.service.metadata.ParameterMetadata;
+import com.productionpilot.util.SpillingOutputStream;
+import com.productionpilot.util.Util;
+import java.io.BufferedOutputStream;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.stream.Collectors;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveOutputStream;
+import org.apache.commons.csv.CSVPrinter;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Exports only the measurements that were added since the previous incremental export of a batch, as a ZIP file with
+ * the same directories as {@link BatchCSVExporter}. Each CSV file is a part that continues the parameter's file from
+ * the previous export; parameters without new measurements are left out.
+ *
+ * How far each parameter was exported is recorded per consumer and batch machine range as an {@link ExportManifest}.
+ * New measurements are found by id, so measurements that arrive late, with an earlier client time, are still exported.
+ * Ids are assigned before the commit, though, so concurrent recordings can commit a lower id after a higher one was
+ * exported. A manifest therefore only treats the ids as complete up to the last measurement that was recorded more
+ * than twice {@code commit-window-seconds} ago (by client time), and remembers the exported ids above it; those are
+ * read again by the next export, which skips the ones it has already exported. The manifests are only advanced once
+ * the ZIP file was written completely; if the export fails, the next one contains the same measurements again.
+ *
+ * The parts are written in the scan order of {@link BatchExportPlanner#planScans}, so their order in the ZIP file
+ * differs from the full export.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BatchDeltaExporter {
+    private static final int ZIP_BUFSIZE = 1024 * 1024;
+    // Parts are buffered until it is known whether they contain any measurements
+    private static final int PART_MEMORY_LIMIT = 4 * 1024 * 1024;
+
+    private final BatchExportPlanner batchExportPlanner;
+    private final MetadataSnapshotService metadataSnapshotService;
+    private final MeasurementService measurementService;
+    private final ExportManifestRepository exportManifestRepository;
+
+    /**
+     * Upper bound for the time from the client time of a measurement until it is committed.
+     */
+    @Value("${com.productionpilot.export.delta.commit-window-seconds:60}")
+    private long commitWindowSeconds;
+
+    /**
+     * Writes the measurements since the previous export for the consumer, and advances its manifests.
+     */
+    @Transactional
+    public void writeBatchDeltaToZip(OutputStream outputStream, Batch batch, String consumer) throws IOException {
+        var metadata = metadataSnapshotService.get();
+        var tree = loadTree(batch);
+        var manifests = new HashMap<ManifestKey, ExportManifest>();
+        for (var manifest : exportManifestRepository.findByConsumerAndBatchMachineIdIn(consumer, getRangeIds(tree))) {
+            manifests.put(new ManifestKey(manifest.getBatchMachineId(), manifest.getParameterId()), manifest);
+        }
+
+        // Measurements recorded before this were committed before any measurement that is not yet committed was
+        // recorded: the latter has a higher id
+        long completeBeforeMicros = Util.toEpochMicros(Instant.now().minusSeconds(2 * commitWindowSeconds));
+        var advanced = new ArrayList<ExportManifest>();
+        long rows = 0;
+        int parts = 0;
+        var bufferedOutputStream = new BufferedOutputStream(outputStream, ZIP_BUFSIZE);
+        var zipOutputStream = new ZipArchiveOutputStream(bufferedOutputStream);
+        for (var scan : batchExportPlanner.planScans(tree, metadata)) {
+            var rangeId = scan.range().range().id();
+            var parameter = scan.parameter();
+            var manifest = manifests.get(new ManifestKey(rangeId, parameter.id()));
+            if (manifest == null) {
+                manifest = new ExportManifest();
+                manifest.setConsumer(consumer);
+                manifest.setBatchMachineId(rangeId);
+                manifest.setParameterId(parameter.id());
+            }
+            long completeUpToId = manifest.getCompleteUpToId();
+            long partRows = writePart(zipOutputStream, scan.range(), parameter, manifest, completeBeforeMicros);
+            if (partRows > 0) {
+                rows += partRows;
+                parts++;
+            }
+            if (partRows > 0 || manifest.getId() != null && manifest.getCompleteUpToId() != completeUpToId) {
+                advanced.add(manifest);
+            }
+        }
+        zipOutputStream.finish();
+        bufferedOutputStream.flush();
+        exportManifestRepository.saveAll(advanced);
+        log.debug(
+                "Incremental export of batch {} for {}: {} rows in {} parts",
+                batch.getId(),
+                consumer,
+                rows,
+                parts);
+    }
+
+    /**
+     * Deletes the manifests of the consumer for the batch, so that the next incremental export contains all
+     * measurements again.
+     */
+    @Transactional
+    public void resetManifests(Batch batch, String consumer) {
+        exportManifestRepository.deleteByConsumerAndBatchMachineIdIn(consumer, getRangeIds(loadTree(batch)));
+    }
+
+    private BatchNode loadTree(Batch batch) {
+        var tree = batchExportPlanner.loadTree(batch.getId());
+        if (tree == null) {
+            throw new IllegalArgumentException("Batch " + batch.getId() + " does not exist");
+        }
+        return tree;
+    }
+
+    private List<Long> getRangeIds(BatchNode tree) {
+        return batchExportPlanner.listRanges(tree).stream()
+                .map(planned -> planned.range().id())
+                .toList();
+    }
+
+    /**
+     * Returns the directory of the range in the ZIP file, the same as in {@link BatchCSVExporter}.
+     */
+    private static String getPath(PlannedRange planned) {
+        var path = new StringBuilder();
+        // The exported batch itself is the root of the ZIP file
+        for (var batch : planned.path().subList(1, planned.path().size())) {
+            path.append(Util.filterFilename(batch.name())).append('/');
+        }
+        return path.append(BatchCSVExporter.getRangeName(planned.range())).append('/').toString();
+    }
+
+    /**
+     * Writes the measurements that the manifest does not contain yet as a CSV file, if there are any, and updates the
+     * manifest (without saving it).
+     *
+     * @param completeBeforeMicros measurements with a lower client time, and all with lower ids, are committed
+     * @return the number of measurements written
+     */
+    private long writePart(
+            ZipArchiveOutputStream zipOutputStream,
+            PlannedRange planned,
+            ParameterMetadata parameter,
+            ExportManifest manifest,
+            long completeBeforeMicros)
+            throws IOException {
+        var range = planned.range();
+        var part = new SpillingOutputStream(PART_MEMORY_LIMIT);
+        try {
+            long afterId = manifest.getCompleteUpToId();
+            var exportedIds = parseIds(manifest.getPendingIds());
+            var progress = new PartProgress();
+            progress.completeUpToId = afterId;
+            try (var writer = new BufferedWriter(new OutputStreamWriter(part, BatchCSVExporter.CSV_CHARSET))) {
+                var csvPrinter = new CSVPrinter(
+                        writer,
+                        BatchCSVExporter.CSV_FORMAT
+                                .builder()
+                                .setHeader(BatchCSVExporter.CSV_HEADER)
+                                .build());
+                csvPrinter.flush();
+                var csvWriter = new MeasurementCsvWriter(writer);
+                measurementService.forEachByParameterAndTimeRangeAfterId(
+                        parameter.id(), range.startTime(), range.endTime(), afterId, row -> {
+                            if (row.getClientTimeMicros() < completeBeforeMicros
+                                    && row.getId() > progress.completeUpToId) {
+                                progress.completeUpToId = row.getId();
+                            }
+                            if (!exportedIds.add(row.getId())) {
+                                return;
+                            }
+                            csvWriter.write(row);
+                            if (progress.rows++ == 0) {
+                                progress.firstId = row.getId();
+                            }
+                            if (row.getId() > progress.lastId) {
+                                progress.lastId = row.getId();
+                                progress.lastClientTimeMicros = row.getClientTimeMicros();
+                            }
+                        });
+            }
+            manifest.setCompleteUpToId(progress.completeUpToId);
+            manifest.setPendingIds(exportedIds.stream()
+                    .filter(id -> id > progress.completeUpToId)
+                    .sorted()
+                    .map(String::valueOf)
+                    .collect(Collectors.joining(",")));
+            if (progress.rows == 0) {
+                return 0;
+            }
+            var fileName = BatchCSVExporter.getParameterLabel(parameter) + " - from id " + progress.firstId + ".csv";
+            zipOutputStream.putArchiveEntry(new ZipArchiveEntry(getPath(planned) + Util.filterFilename(fileName)));
+            try (var in = part.openInputStream()) {
+                in.transferTo(zipOutputStream);
+            }
+            zipOutputStream.closeArchiveEntry();
+
+            if (progress.lastId > manifest.getLastMeasurementId()) {
+                manifest.setLastMeasurementId(progress.lastId);
+                manifest.setLastClientTime(Util.fromEpochMicros(progress.lastClientTimeMicros));
+            }
+            manifest.setRowCount(manifest.getRowCount() + progress.rows);
+            return progress.rows;
+        } finally {
+            part.delete();
+        }
+    }
+
+    private static HashSet<Long> parseIds(String ids) {
+        return Arrays.stream(ids.split(","))
+                .filter(id -> !id.isEmpty())
+                .map(Long::valueOf)
+                .collect(Collectors.toCollection(HashSet::new));
+    }
+
+    private record ManifestKey(long batchMachineId, long parameterId) {}
+
+    private static class PartProgress {
+        private long rows, firstId, lastId, lastClientTimeMicros, completeUpToId;
+    }
+}
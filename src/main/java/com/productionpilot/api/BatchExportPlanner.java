@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api;
+
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository;
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository.BatchNode;
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository.RangeNode;
+import com.productionpilot.service.metadata.MetadataSnapshot;
+import com.productionpilot.service.metadata.ParameterMetadata;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import lombok.RequiredArgsConstructor;
+import org.springframework.stereotype.Service;
+
+/**
+ * Plans batch exports without a query per batch: the batch tree with all ranges is loaded in a single query (see
+ * {@link BatchTreeJdbcRepository}), and the parameters of the machines come from the {@link MetadataSnapshot}. The
+ * exporters then only query the database for the measurements themselves.
+ */
+@Service
+@RequiredArgsConstructor
+public class BatchExportPlanner {
+    private final BatchTreeJdbcRepository batchTreeJdbcRepository;
+
+    /**
+     * @return the batch with all of its descendants and ranges, or null if the batch does not exist
+     */
+    public BatchNode loadTree(long batchId) {
+        return batchTreeJdbcRepository.findSubtree(batchId);
+    }
+
+    /**
+     * Returns the ranges of the tree in export order: the ranges of a batch, followed by those of its child batches,
+     * depth first.
+     */
+    public List<PlannedRange> listRanges(BatchNode tree) {
+        var ranges = new ArrayList<PlannedRange>();
+        listRanges(ranges, new ArrayList<>(), tree);
+        return ranges;
+    }
+
+    private void listRanges(List<PlannedRange> ranges, List<BatchNode> path, BatchNode batch) {
+        path.add(batch);
+        for (var range : batch.ranges()) {
+            ranges.add(new PlannedRange(List.copyOf(path), range));
+        }
+        for (var child : batch.children()) {
+            listRanges(ranges, path, child);
+        }
+        path.remove(path.size() - 1);
+    }
+
+    /**
+     * Returns one measurement scan per range and parameter of its machine, ordered by parameter and start time. The
+     * scans of a parameter then read neighbouring parts of the (Parameter_Id, Client_Time) index one after the other,
+     * instead of alternating between parameters. For exporters whose output order does not follow the batch tree.
+     */
+    public List<Scan> planScans(BatchNode tree, MetadataSnapshot metadata) {
+        var scans = new ArrayList<Scan>();
+        for (var range : listRanges(tree)) {
+            for (var parameter : metadata.getParametersOfMachine(range.range().machineId())) {
+                scans.add(new Scan(range, parameter));
+            }
+        }
+        scans.sort(Comparator.<Scan>comparingLong(scan -> scan.parameter().id())
+                .thenComparing(scan -> scan.range().range().startTime())
+                .thenComparingLong(scan -> scan.range().range().id()));
+        return scans;
+    }
+
+    /**
+     * A range of the tree.
+     *
+     * @param path the batches from the root of the tree down to the batch of the range
+     */
+    public record PlannedRange(List<BatchNode> path, RangeNode range) {
+        public BatchNode batch() {
+            return path.get(path.size() - 1);
+        }
+    }
+
+    public record Scan(PlannedRange range, ParameterMetadata parameter) {}
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.productionpilot.api.serializers.MeasurementParquetWriter;
+import com.productionpilot.db.timescale.entities.Batch;
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository.BatchNode;
+import com.productionpilot.db.timescale.service.MeasurementService;
+import com.productionpilot.service.metadata.MetadataSnapshot;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import com.productionpilot.service.metadata.ParameterMetadata;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.stream.Collectors;
+import lombok.RequiredArgsConstructor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Exports batches as a single Parquet file (see {@link MeasurementParquetWriter}) with one row per measurement, for
+ * analysis tools that read columnar data. The rows of all batch machine ranges of the batch and its child batches are
+ * written in the scan order of {@link BatchExportPlanner#planScans}, that is grouped by parameter; readers that need
+ * them per range can filter on the batch_machine_id column. The batches, ranges and parameters are described as JSON in
+ * the key-value metadata of the file.
+ */
+@Service
+@RequiredArgsConstructor
+public class BatchParquetExporter {
+    static final String METADATA_PREFIX = "productionpilot.";
+    private static final int BUFSIZE = 1024 * 1024;
+
+    private final BatchExportPlanner batchExportPlanner;
+    private final MeasurementService measurementService;
+    private final MetadataSnapshotService metadataSnapshotService;
+    private final ObjectMapper objectMapper;
+
+    @Value("${com.productionpilot.export.parquet.row-group-size-mb:16}")
+    private int rowGroupSizeMb;
+
+    @Transactional(readOnly = true)
+    public void writeBatchToParquet(OutputStream outputStream, Batch batch) throws IOException {
+        writeBatchToParquet(outputStream, batch, new ExportProgress());
+    }
+
+    /**
+     * Writes the batch as a Parquet file. All measurements are read in a single read-only transaction.
+     *
+     * @param progress counts the exported measurements; cancelling it stops the export with an exception
+     */
+    @Transactional(readOnly = true)
+    public void writeBatchToParquet(OutputStream outputStream, Batch batch, ExportProgress progress)
+            throws IOException {
+        var metadata = metadataSnapshotService.get();
+        var tree = batchExportPlanner.loadTree(batch.getId());
+        if (tree == null) {
+            throw new IllegalArgumentException("Batch " + batch.getId() + " does not exist");
+        }
+        var ranges = describeRanges(tree, metadata);
+
+        var keyValueMetadata = new LinkedHashMap<String, String>();
+        keyValueMetadata.put(METADATA_PREFIX + "batch_id", Long.toString(batch.getId()));
+        keyValueMetadata.put(METADATA_PREFIX + "ranges", objectMapper.writeValueAsString(ranges));
+        keyValueMetadata.put(
+                METADATA_PREFIX + "parameters", objectMapper.writeValueAsString(describeParameters(ranges, metadata)));
+        keyValueMetadata.put(METADATA_PREFIX + "exported_on", Instant.now().toString());
+
+        var bufferedOutputStream = new BufferedOutputStream(outputStream, BUFSIZE);
+        try (var writer = new MeasurementParquetWriter(
+                bufferedOutputStream, keyValueMetadata, (long) rowGroupSizeMb * 1024 * 1024)) {
+            for (var scan : batchExportPlanner.planScans(tree, metadata)) {
+                var range = scan.range().range();
+                writer.setRange(scan.range().batch().id(), range.id());
+                measurementService.forEachByParameterAndTimeRange(
+                        scan.parameter().id(), range.startTime(), range.endTime(), row -> {
+                            writer.write(row);
+                            progress.addRow();
+                        });
+            }
+        }
+        bufferedOutputStream.flush();
+    }
+
+    private List<ExportedRange> describeRanges(BatchNode tree, MetadataSnapshot metadata) {
+        var ranges = new ArrayList<ExportedRange>();
+        for (var planned : batchExportPlanner.listRanges(tree)) {
+            var range = planned.range();
+            var parameterIds = metadata.getParametersOfMachine(range.machineId()).stream()
+                    .map(ParameterMetadata::id)
+                    .toList();
+            ranges.add(new ExportedRange(
+                    range.id(),
+                    planned.batch().id(),
+                    planned.path().stream().map(BatchNode::name).collect(Collectors.joining("/")),
+                    range.machineId(),
+                    range.machineName(),
+                    range.startTime(),
+                    range.endTime(),
+                    parameterIds));
+        }
+        return ranges;
+    }
+
+    private static List<ExportedParameter> describeParameters(List<ExportedRange> ranges, MetadataSnapshot metadata) {
+        var parameters = new LinkedHashMap<Long, ExportedParameter>();
+        for (var range : ranges) {
+            for (var parameterId : range.parameterIds()) {
+                parameters.computeIfAbsent(parameterId, id -> {
+                    var parameter = metadata.getParameter(id);
+                    var unitOfMeasurement = metadata.getUnitOfMeasurementOf(parameter);
+                    return new ExportedParameter(
+                            parameter.id(),
+                            parameter.identifier(),
+                            parameter.name(),
+                            parameter.description(),
+                            parameter.machineId(),
+                            unitOfMeasurement != null ? unitOfMeasurement.name() : null,
+                            unitOfMeasurement != null ? unitOfMeasurement.abbreviation() : null);
+                });
+            }
+        }
+        return List.copyOf(parameters.values());
+    }
+
+    /**
+     * A batch machine range in the file metadata. The batch path has the names of the batches from the exported batch
+     * down to the batch of the range, separated by slashes.
+     */
+    record ExportedRange(
+            long batchMachineId,
+            long batchId,
+            String batchPath,
+            long machineId,
+            String machineName,
+            Instant start,
+            Instant end,
+            List<Long> parameterIds) {}
+
+    record ExportedParameter(
+            long id,
+            String identifier,
+            String name,
+            String description,
+            long machineId,
+            String unitOfMeasurementName,
+            String unitOfMeasurementAbbreviation) {}
+}
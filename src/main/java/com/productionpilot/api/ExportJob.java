@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api;
+
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Set;
+import java.util.concurrent.Future;
+import lombok.AccessLevel;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * An export that runs in the background, see {@link ExportJobService}. The state and progress can be read from any
+ * thread; they are only changed by the service.
+ */
+@Getter
+public class ExportJob {
+    public enum State {
+        QUEUED,
+        RUNNING,
+        DONE,
+        FAILED,
+        CANCELLED,
+        /**
+         * The job was done, but its result was deleted because the batch was modified or to free space in the cache.
+         */
+        EXPIRED;
+
+        public boolean isFinished() {
+            return this != QUEUED && this != RUNNING;
+        }
+    }
+
+    private final String id;
+    private final ExportJobService.Request request;
+    private final String filename;
+    private final Instant createdAt = Instant.now();
+    private final ExportProgress progress = new ExportProgress();
+
+    /**
+     * Identifies the exported content, see {@link ExportJobService.Description}.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final String contentKey;
+
+    /**
+     * The exported batch and all of its child batches.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private final Set<Long> batchIds;
+
+    @Getter(AccessLevel.PACKAGE)
+    private final boolean cacheable;
+
+    private volatile State state = State.QUEUED;
+    private volatile Instant finishedAt;
+    private volatile String error;
+
+    /**
+     * The exported file, once the job is done.
+     */
+    @Getter(AccessLevel.PACKAGE)
+    private volatile Path file;
+
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.PACKAGE)
+    private volatile long lastAccess = System.currentTimeMillis();
+
+    @Getter(AccessLevel.PACKAGE)
+    @Setter(AccessLevel.PACKAGE)
+    private volatile Future<?> future;
+
+    ExportJob(String id, ExportJobService.Request request, ExportJobService.Description description) {
+        this.id = id;
+        this.request = request;
+        this.filename = description.filename();
+        this.contentKey = description.contentKey();
+        this.batchIds = description.batchIds();
+        this.cacheable = description.cacheable();
+    }
+
+    void setRunning() {
+        state = State.RUNNING;
+    }
+
+    void setDone(Path file) {
+        this.file = file;
+        finish(State.DONE);
+    }
+
+    void setFailed(String error) {
+        this.error = error;
+        finish(State.FAILED);
+    }
+
+    void setCancelled() {
+        finish(State.CANCELLED);
+    }
+
+    void setExpired() {
+        file = null;
+        state = State.EXPIRED;
+    }
+
+    private void finish(State state) {
+        finishedAt = Instant.now();
+        this.state = state;
+    }
+}
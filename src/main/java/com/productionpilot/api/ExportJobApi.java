@@ -0,0 +1,136 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api;
+
+import com.productionpilot.api.serializers.WideCsvWriter;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.NoSuchFileException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.RejectedExecutionException;
+import javax.servlet.http.HttpServletResponse;
+import lombok.RequiredArgsConstructor;
+import lombok.SneakyThrows;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.DeleteMapping;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+/**
+ * Exports batches in the background, see {@link ExportJobService}. A job is submitted with a POST request, then its
+ * status is polled until it is DONE, and the result is downloaded.
+ */
+@RestController
+@RequestMapping("/api/v1/export-jobs")
+@RequiredArgsConstructor
+public class ExportJobApi {
+    private final ExportJobService exportJobService;
+
+    /**
+     * Submits an export of the batch. If the same content is already being exported or was exported before, the
+     * existing job is returned.
+     *
+     * @param alignment the alignment of {@link ExportJobService.Format#WIDE_CSV_ZIP}, see {@link BatchApi}
+     */
+    @PostMapping(produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<JobStatus> submitJob(
+            @RequestParam long batchId,
+            @RequestParam(defaultValue = "CSV_ZIP") ExportJobService.Format format,
+            @RequestParam(defaultValue = "EXACT") WideCsvWriter.Alignment alignment,
+            @RequestParam(defaultValue = "1000") long intervalMs) {
+        if (intervalMs <= 0) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "intervalMs must be positive");
+        }
+        var wideFormat = format == ExportJobService.Format.WIDE_CSV_ZIP
+                ? new BatchCSVExporter.WideFormat(alignment, Duration.ofMillis(intervalMs))
+                : null;
+        ExportJob job;
+        try {
+            job = exportJobService.submit(new ExportJobService.Request(batchId, format, wideFormat));
+        } catch (RejectedExecutionException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, "Too many exports are queued");
+        }
+        if (job == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Batch not found");
+        }
+        return ResponseEntity.accepted()
+                .location(URI.create("/api/v1/export-jobs/" + job.getId()))
+                .body(JobStatus.of(job));
+    }
+
+    @GetMapping(value = "{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public JobStatus getJob(@PathVariable String id) {
+        return JobStatus.of(findJob(id));
+    }
+
+    /**
+     * Cancels the job. Jobs are shared between requests for the same content, so this cancels it for everyone.
+     */
+    @DeleteMapping(value = "{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public JobStatus cancelJob(@PathVariable String id) {
+        var job = findJob(id);
+        exportJobService.cancel(job);
+        return JobStatus.of(job);
+    }
+
+    @GetMapping("{id}/result")
+    @SneakyThrows(IOException.class)
+    public void getJobResult(@PathVariable String id, HttpServletResponse response) {
+        var job = findJob(id);
+        if (job.getState() == ExportJob.State.EXPIRED) {
+            throw new ResponseStatusException(HttpStatus.GONE, "The export was deleted, please submit it again");
+        }
+        if (job.getState() != ExportJob.State.DONE) {
+            throw new ResponseStatusException(HttpStatus.CONFLICT, "The export is " + job.getState());
+        }
+        try (var in = exportJobService.openResult(job)) {
+            response.setStatus(HttpServletResponse.SC_OK);
+            response.setContentType(job.getRequest().format().getMediaType());
+            response.setContentLengthLong(job.getProgress().getBytes());
+            response.addHeader("Content-Disposition", "attachment; filename=\"" + job.getFilename() + "\"");
+            in.transferTo(response.getOutputStream());
+        } catch (NoSuchFileException e) {
+            throw new ResponseStatusException(HttpStatus.GONE, "The export was deleted, please submit it again");
+        }
+    }
+
+    private ExportJob findJob(String id) {
+        return Optional.ofNullable(exportJobService.get(id))
+                .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Export job not found"));
+    }
+
+    public record JobStatus(
+            String id,
+            long batchId,
+            ExportJobService.Format format,
+            ExportJob.State state,
+            long rows,
+            long bytes,
+            String error,
+            Instant createdAt,
+            Instant finishedAt) {
+        static JobStatus of(ExportJob job) {
+            return new JobStatus(
+                    job.getId(),
+                    job.getRequest().batchId(),
+                    job.getRequest().format(),
+                    job.getState(),
+                    job.getProgress().getRows(),
+                    job.getProgress().getBytes(),
+                    job.getError(),
+                    job.getCreatedAt(),
+                    job.getFinishedAt());
+        }
+    }
+}
@@ -0,0 +1,443 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api;
+
+import com.productionpilot.db.timescale.entities.Batch;
+import com.productionpilot.db.timescale.entities.BatchMachine;
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository.BatchNode;
+import com.productionpilot.db.timescale.service.BatchService;
+import com.productionpilot.db.timescale.service.event.EntityModifiedEvent;
+import com.productionpilot.service.metadata.MetadataSnapshot;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.Synchronized;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Runs batch exports in the background, so that they survive a disconnected client and can be polled, cancelled and
+ * downloaded later. The jobs run on a bounded thread pool with a bounded queue; finished files are kept in a directory
+ * on disk.
+ *
+ * Finished exports are also a cache: a job for the same content as a queued, running or finished job returns that job
+ * instead of exporting the batch again. The content is identified by a hash over the request, the batch tree with the
+ * modification times of its batches and batch machine ranges, and the metadata of the exported parameters. Exports
+ * that contain a range that has not ended yet are not cached, as measurements may still be added. When a batch or batch
+ * machine range is modified, the finished exports that contain it are deleted. The cache is limited in size and
+ * evicts the least recently used exports first; finished jobs are forgotten after the retention time.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ExportJobService {
+    private final ExportJobServiceTransactional transactional;
+
+    @Value("${com.productionpilot.export.jobs.threads:2}")
+    private int threads;
+
+    @Value("${com.productionpilot.export.jobs.queue-size:16}")
+    private int queueSize;
+
+    @Value("${com.productionpilot.export.jobs.directory:export-cache}")
+    private String directory;
+
+    @Value("${com.productionpilot.export.jobs.cache-size-mb:1024}")
+    private long cacheSizeMb;
+
+    @Value("${com.productionpilot.export.jobs.retention-minutes:60}")
+    private long retentionMinutes;
+
+    private final Map<String, ExportJob> jobs = new ConcurrentHashMap<>();
+    // Jobs that are queued, running or done and cached, by content key
+    private final Map<String, ExportJob> jobsByContentKey = new HashMap<>();
+    private ThreadPoolExecutor executor;
+    private Path directoryPath;
+
+    @PostConstruct
+    public void init() throws IOException {
+        directoryPath = Path.of(directory);
+        Files.createDirectories(directoryPath);
+        // The jobs are only kept in memory, so files from a previous run can not be downloaded anymore
+        try (var files = Files.list(directoryPath)) {
+            for (var file : (Iterable<Path>) files::iterator) {
+                Files.deleteIfExists(file);
+            }
+        }
+        var threadNumber = new AtomicLong();
+        executor = new ThreadPoolExecutor(
+                threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize), runnable -> {
+                    var thread = new Thread(runnable, "ExportJob-" + threadNumber.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Submits an export, or returns an existing job for the same content.
+     *
+     * @return the job, or null if the batch does not exist
+     * @throws RejectedExecutionException if the queue is full
+     */
+    public ExportJob submit(Request request) {
+        var description = transactional.describe(request);
+        return description != null ? submit(request, description) : null;
+    }
+
+    @Synchronized
+    private ExportJob submit(Request request, Description description) {
+        prune();
+        var existing = jobsByContentKey.get(description.contentKey());
+        if (existing != null) {
+            existing.setLastAccess(System.currentTimeMillis());
+            return existing;
+        }
+        var job = new ExportJob(UUID.randomUUID().toString(), request, description);
+        job.setFuture(executor.submit(() -> run(job)));
+        jobs.put(job.getId(), job);
+        jobsByContentKey.put(description.contentKey(), job);
+        return job;
+    }
+
+    /**
+     * @return the job, or null if it does not exist or was forgotten
+     */
+    public ExportJob get(String id) {
+        var job = jobs.get(id);
+        if (job != null) {
+            job.setLastAccess(System.currentTimeMillis());
+        }
+        return job;
+    }
+
+    /**
+     * Cancels the job, if it is not finished yet. Jobs are shared between all requests for the same content, so this
+     * also cancels it for the others.
+     */
+    @Synchronized
+    public void cancel(ExportJob job) {
+        if (job.getState().isFinished()) {
+            return;
+        }
+        job.getProgress().cancel();
+        jobsByContentKey.remove(job.getContentKey(), job);
+        if (job.getFuture().cancel(true) && job.getState() == ExportJob.State.QUEUED) {
+            job.setCancelled();
+        }
+    }
+
+    /**
+     * Opens the exported file of a job that is done.
+     *
+     * @throws NoSuchFileException if the job is not done, or its file was deleted in the meantime
+     */
+    @Synchronized
+    public InputStream openResult(ExportJob job) throws IOException {
+        var file = job.getFile();
+        if (job.getState() != ExportJob.State.DONE || file == null) {
+            throw new NoSuchFileException(job.getId());
+        }
+        job.setLastAccess(System.currentTimeMillis());
+        // On POSIX systems, the stream stays readable even if the file is deleted while it is being downloaded
+        return Files.newInputStream(file);
+    }
+
+    @EventListener
+    public void onBatchModified(EntityModifiedEvent<Batch> event) {
+        var batch = event.getEntity();
+        invalidate(batch.getId());
+        // A child batch that is added, moved or deleted changes the exports of its parent
+        if (batch.getParentBatch() != null) {
+            invalidate(batch.getParentBatch().getId());
+        }
+    }
+
+    @EventListener
+    public void onBatchMachineModified(EntityModifiedEvent<BatchMachine> event) {
+        invalidate(event.getEntity().getBatch().getId());
+    }
+
+    @Synchronized
+    private void invalidate(long batchId) {
+        for (var job : new ArrayList<>(jobsByContentKey.values())) {
+            if (job.getState() == ExportJob.State.DONE && job.getBatchIds().contains(batchId)) {
+                log.debug("Deleting export {} because batch {} was modified", job.getId(), batchId);
+                expire(job);
+            }
+        }
+    }
+
+    private void run(ExportJob job) {
+        if (job.getProgress().isCancelled()) {
+            job.setCancelled();
+            return;
+        }
+        job.setRunning();
+        var file = directoryPath.resolve(job.getId() + job.getRequest().format().getExtension());
+        try {
+            try (var out = job.getProgress().countBytes(new BufferedOutputStream(Files.newOutputStream(file)))) {
+                transactional.export(job.getRequest(), out, job.getProgress());
+            }
+        } catch (Exception e) {
+            deleteFile(file);
+            finishFailed(job, e);
+            return;
+        }
+        finishDone(job, file);
+    }
+
+    @Synchronized
+    private void finishDone(ExportJob job, Path file) {
+        if (job.getProgress().isCancelled()) {
+            // Cancelled after the last row was written
+            deleteFile(file);
+            job.setCancelled();
+            return;
+        }
+        job.setDone(file);
+        log.debug(
+                "Export {} done: {} rows, {} bytes",
+                job.getId(),
+                job.getProgress().getRows(),
+                job.getProgress().getBytes());
+        if (!job.isCacheable()) {
+            jobsByContentKey.remove(job.getContentKey(), job);
+        }
+        prune();
+    }
+
+    @Synchronized
+    private void finishFailed(ExportJob job, Exception e) {
+        jobsByContentKey.remove(job.getContentKey(), job);
+        if (job.getProgress().isCancelled()
+                || e instanceof CancellationException
+                || e instanceof InterruptedIOException) {
+            job.setCancelled();
+        } else {
+            log.warn("Export {} of batch {} failed", job.getId(), job.getRequest().batchId(), e);
+            job.setFailed(e.getMessage() != null ? e.getMessage() : e.getClass().getSimpleName());
+        }
+    }
+
+    /**
+     * Forgets finished jobs after the retention time and evicts the least recently used files while the cache is too
+     * large.
+     */
+    private void prune() {
+        long forgetBefore = System.currentTimeMillis() - TimeUnit.MINUTES.toMillis(retentionMinutes);
+        for (var job : new ArrayList<>(jobs.values())) {
+            if (job.getState().isFinished() && job.getLastAccess() < forgetBefore) {
+                expire(job);
+                jobs.remove(job.getId());
+            }
+        }
+        var done = new ArrayList<ExportJob>();
+        long size = 0;
+        for (var job : jobs.values()) {
+            if (job.getState() == ExportJob.State.DONE) {
+                done.add(job);
+                size += job.getProgress().getBytes();
+            }
+        }
+        done.sort(Comparator.comparingLong(ExportJob::getLastAccess));
+        long maxSize = cacheSizeMb * 1024 * 1024;
+        for (int i = 0; i < done.size() && size > maxSize; i++) {
+            size -= done.get(i).getProgress().getBytes();
+            log.debug("Evicting export {} from the cache", done.get(i).getId());
+            expire(done.get(i));
+        }
+    }
+
+    private void expire(ExportJob job) {
+        jobsByContentKey.remove(job.getContentKey(), job);
+        var file = job.getFile();
+        if (job.getState() == ExportJob.State.DONE) {
+            job.setExpired();
+        }
+        if (file != null) {
+            deleteFile(file);
+        }
+    }
+
+    private static void deleteFile(Path file) {
+        try {
+            Files.deleteIfExists(file);
+        } catch (IOException e) {
+            log.warn("Could not delete export file {}", file, e);
+        }
+    }
+
+    public enum Format {
+        CSV_ZIP(".zip", "application/zip"),
+        WIDE_CSV_ZIP(".zip", "application/zip"),
+        PARQUET(".parquet", "application/vnd.apache.parquet");
+
+        private final String extension;
+        private final String mediaType;
+
+        Format(String extension, String mediaType) {
+            this.extension = extension;
+            this.mediaType = mediaType;
+        }
+
+        public String getExtension() {
+            return extension;
+        }
+
+        public String getMediaType() {
+            return mediaType;
+        }
+    }
+
+    /**
+     * @param wideFormat the alignment for {@link Format#WIDE_CSV_ZIP}, ignored for the other formats
+     */
+    public record Request(long batchId, Format format, BatchCSVExporter.WideFormat wideFormat) {}
+
+    /**
+     * @param contentKey a hash that changes whenever the exported file would change, except for new measurements in
+     *     ranges that have not ended yet
+     * @param cacheable whether all ranges have ended, i.e. the file can be reused for later requests
+     */
+    record Description(String filename, String contentKey, Set<Long> batchIds, boolean cacheable) {}
+
+    @Service
+    @RequiredArgsConstructor
+    public static class ExportJobServiceTransactional {
+        private final BatchService batchService;
+        private final BatchExportPlanner batchExportPlanner;
+        private final MetadataSnapshotService metadataSnapshotService;
+        private final BatchCSVExporter batchCSVExporter;
+        private final BatchParquetExporter batchParquetExporter;
+
+        /**
+         * @return the description, or null if the batch does not exist
+         */
+        @Transactional(readOnly = true)
+        public Description describe(Request request) {
+            var batch = batchService.findById(request.batchId());
+            var tree = batch != null ? batchExportPlanner.loadTree(batch.getId()) : null;
+            if (tree == null) {
+                return null;
+            }
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            var content = new StringBuilder();
+            content.append(request.format());
+            if (request.format() == Format.WIDE_CSV_ZIP) {
+                content.append(' ').append(request.wideFormat());
+            }
+            content.append('\n');
+            var batchIds = new HashSet<Long>();
+            boolean ended = describeBatch(content, batchIds, tree, metadataSnapshotService.get(), Instant.now());
+            var contentKey =
+                    HexFormat.of().formatHex(digest.digest(content.toString().getBytes(StandardCharsets.UTF_8)));
+            return new Description(
+                    BatchApi.getExportFilename(batch, request.format().getExtension()),
+                    contentKey,
+                    Set.copyOf(batchIds),
+                    ended);
+        }
+
+        /**
+         * Appends everything that the export of the batch depends on, apart from the measurements.
+         *
+         * @return whether all ranges of the batch and its child batches have ended
+         */
+        private boolean describeBatch(
+                StringBuilder content, Set<Long> batchIds, BatchNode batch, MetadataSnapshot metadata, Instant now) {
+            batchIds.add(batch.id());
+            content.append("batch ")
+                    .append(batch.id())
+                    .append(' ')
+                    .append(batch.modificationTime())
+                    .append(' ')
+                    .append(batch.name())
+                    .append('\n');
+            boolean ended = true;
+            for (var range : batch.ranges()) {
+                var machineId = range.machineId();
+                content.append("range ")
+                        .append(range.id())
+                        .append(' ')
+                        .append(range.modificationTime())
+                        .append(' ')
+                        .append(range.startTime())
+                        .append(' ')
+                        .append(range.endTime())
+                        .append(' ')
+                        .append(metadata.getMachine(machineId))
+                        .append('\n');
+                for (var parameter : metadata.getParametersOfMachine(machineId)) {
+                    content.append(parameter)
+                            .append(' ')
+                            .append(metadata.getUnitOfMeasurementOf(parameter))
+                            .append('\n');
+                }
+                ended &= range.endTime().isBefore(now);
+            }
+            for (var childBatch : batch.children()) {
+                ended &= describeBatch(content, batchIds, childBatch, metadata, now);
+            }
+            return ended;
+        }
+
+        /**
+         * Not transactional, as the CSV exports read their entries in transactions of the export threads and the
+         * Parquet export reads in a transaction of its own.
+         */
+        public void export(Request request, OutputStream out, ExportProgress progress) throws IOException {
+            var batch = batchService.findById(request.batchId());
+            if (batch == null) {
+                throw new IllegalStateException("The batch was deleted");
+            }
+            switch (request.format()) {
+                case CSV_ZIP -> batchCSVExporter.writeBatchToZip(out, batch, null, progress);
+                case WIDE_CSV_ZIP -> batchCSVExporter.writeBatchToZip(out, batch, request.wideFormat(), progress);
+                case PARQUET -> batchParquetExporter.writeBatchToParquet(out, batch, progress);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counts the rows and bytes written by an export, and lets it be cancelled from another thread. The exporters count
+ * every measurement with {@link #addRow()}, which fails with a {@link CancellationException} once the export was
+ * cancelled, so that the export stops at the next row, even on the worker threads of {@link BatchCSVExporter}.
+ */
+public class ExportProgress {
+    private final LongAdder rows = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+    private volatile boolean cancelled = false;
+
+    public void addRow() {
+        checkCancelled();
+        rows.increment();
+    }
+
+    public long getRows() {
+        return rows.sum();
+    }
+
+    public long getBytes() {
+        return bytes.sum();
+    }
+
+    public void cancel() {
+        cancelled = true;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    public void checkCancelled() {
+        if (cancelled) {
+            throw new CancellationException("The export was cancelled");
+        }
+    }
+
+    /**
+     * Returns a stream that counts the bytes written to the given stream.
+     */
+    public OutputStream countBytes(OutputStream out) {
+        return new FilterOutputStream(out) {
+            @Override
+            public void write(int b) throws IOException {
+                out.write(b);
+                bytes.increment();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                out.write(b, off, len);
+                bytes.add(len);
+            }
+        };
+    }
+}
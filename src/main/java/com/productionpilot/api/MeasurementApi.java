@@ -4,57 +4,556 @@
  */
 package com.productionpilot.api;
 
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
 import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.productionpilot.api.serializers.AggregateJsonWriter;
+import com.productionpilot.api.serializers.MeasurementCborWriter;
+import com.productionpilot.api.serializers.MeasurementJsonWriter;
+import com.productionpilot.api.serializers.WideCsvWriter;
+import com.productionpilot.db.store.MeasurementRow;
 import com.productionpilot.db.timescale.service.MeasurementService;
-import com.productionpilot.db.timescale.service.ParameterService;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import com.productionpilot.service.metadata.ParameterMetadata;
+import com.productionpilot.util.SpillingOutputStream;
+import java.io.BufferedWriter;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
 import javax.servlet.http.HttpServletResponse;
 import lombok.RequiredArgsConstructor;
 import lombok.SneakyThrows;
+import org.apache.commons.csv.CSVPrinter;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.InvalidMediaTypeException;
 import org.springframework.http.MediaType;
 import org.springframework.transaction.annotation.Transactional;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
+/**
+ * Returns the measurements of a parameter ordered by id, as a JSON array, or as newline-delimited JSON with one
+ * measurement per line (Accept: application/x-ndjson). JSON is the default, also for wildcard Accept headers. NDJSON
+ * responses are flushed to the client every {@value #NDJSON_FLUSH_ROWS} measurements, so that it can process them
+ * while the rest is still being read. Clients that read many measurements should request CBOR (Accept:
+ * application/cbor) instead, see {@link MeasurementCborWriter}.
+ *
+ * Large ranges can be fetched in pages with the limit parameter: if a response contains limit measurements, the
+ * X-Next-Cursor header holds the id to pass as after_id to get the next page. Pages are buffered before they are sent,
+ * because the header has to be known before the body.
+ *
+ * The measurements of many parameters are better requested at once with a bulk query (POST query), which reads them
+ * in one transaction and, in the grouped format, with one query.
+ */
 @RestController
 @RequestMapping("/api/v1/measurements")
 @RequiredArgsConstructor
 public class MeasurementApi {
+    static final String NEXT_CURSOR_HEADER = "X-Next-Cursor";
+    private static final int NDJSON_FLUSH_ROWS = 1000;
+    private static final int PAGE_MEMORY_LIMIT = 4 * 1024 * 1024;
+    private static final int BUFSIZE = 1024 * 1024;
+    private static final CBORFactory CBOR_FACTORY = new CBORFactory();
+
     private final MeasurementService measurementService;
-    private final ParameterService parameterService;
+    private final MetadataSnapshotService metadataSnapshotService;
 
     private final ObjectMapper mapper;
 
-    @SneakyThrows(IOException.class)
-    @GetMapping(value = "parameter_id/{parameterId}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @Value("${com.productionpilot.api.measurements.max-page-size:100000}")
+    private int maxPageSize;
+
+    @Value("${com.productionpilot.api.measurements.max-buckets:100000}")
+    private int maxBuckets;
+
+    @Value("${com.productionpilot.api.measurements.max-bulk-parameters:1000}")
+    private int maxBulkParameters;
+
+    @GetMapping("parameter_id/{parameterId}")
     @Transactional(readOnly = true)
     public void getMeasurements(
             HttpServletResponse response,
+            @RequestHeader(name = HttpHeaders.ACCEPT, required = false) String accept,
             @PathVariable long parameterId,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime start,
-            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime end) {
-        var startInstant = start == null ? Instant.EPOCH : start.toInstant();
-        var endInstant = end == null ? Instant.now().plusSeconds(60 * 60 * 24) : end.toInstant();
-        mapper.writeValue(
-                response.getWriter(),
-                measurementService.streamByParameterAndTimeRange(parameterId, startInstant, endInstant));
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime end,
+            @RequestParam(name = "after_id", defaultValue = "0") long afterId,
+            @RequestParam(required = false) Integer limit) {
+        writeMeasurements(response, parameterId, start, end, afterId, limit, Format.of(accept));
     }
 
-    @GetMapping(value = "parameter_identifier/{parameterIdentifier}", produces = MediaType.APPLICATION_JSON_VALUE)
+    @GetMapping("parameter_identifier/{parameterIdentifier}")
     @Transactional(readOnly = true)
     public void getMeasurements(
             HttpServletResponse response,
+            @RequestHeader(name = HttpHeaders.ACCEPT, required = false) String accept,
             @PathVariable String parameterIdentifier,
             @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime start,
-            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime end) {
-        var parameter = parameterService.findByIdentifier(parameterIdentifier);
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime end,
+            @RequestParam(name = "after_id", defaultValue = "0") long afterId,
+            @RequestParam(required = false) Integer limit) {
+        var format = Format.of(accept);
+        writeMeasurements(response, getParameterId(parameterIdentifier), start, end, afterId, limit, format);
+    }
+
+    /**
+     * Aggregates the measurements of the parameter in time buckets of the given size (an ISO-8601 duration such as
+     * PT1M), or downsamples them to at most maxPoints measurements with the Largest-Triangle-Three-Buckets algorithm.
+     * Exactly one of bucket and maxPoints must be given. The aggregates are those in the aggregates parameter, by
+     * default all of them; buckets without measurements are left out.
+     */
+    @GetMapping(value = "parameter_id/{parameterId}/aggregate", produces = MediaType.APPLICATION_JSON_VALUE)
+    @Transactional(readOnly = true)
+    public void getAggregates(
+            HttpServletResponse response,
+            @PathVariable long parameterId,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime start,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime end,
+            @RequestParam(required = false) String bucket,
+            @RequestParam(defaultValue = "min,max,avg,first,last,count") List<String> aggregates,
+            @RequestParam(required = false) Integer maxPoints) {
+        writeAggregates(response, parameterId, start, end, bucket, aggregates, maxPoints);
+    }
+
+    @GetMapping(
+            value = "parameter_identifier/{parameterIdentifier}/aggregate",
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    @Transactional(readOnly = true)
+    public void getAggregates(
+            HttpServletResponse response,
+            @PathVariable String parameterIdentifier,
+            @RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime start,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) ZonedDateTime end,
+            @RequestParam(required = false) String bucket,
+            @RequestParam(defaultValue = "min,max,avg,first,last,count") List<String> aggregates,
+            @RequestParam(required = false) Integer maxPoints) {
+        writeAggregates(response, getParameterId(parameterIdentifier), start, end, bucket, aggregates, maxPoints);
+    }
+
+    /**
+     * Returns the measurements of several parameters in the same time range. In the GROUPED format (default), the
+     * response is a JSON array with an object per parameter, ordered by parameter id, each with its measurements
+     * ordered by id; they are read with a single query. In the WIDE format, the response is a CSV table with a column
+     * per parameter, in the order in which they were requested, aligned as in the wide batch export.
+     */
+    @PostMapping(value = "query", consumes = MediaType.APPLICATION_JSON_VALUE)
+    @SneakyThrows(IOException.class)
+    @Transactional(readOnly = true)
+    public void queryMeasurements(HttpServletResponse response, @RequestBody BulkQuery query) {
+        if (query.start() == null) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "start is required");
+        }
+        var startInstant = query.start().toInstant();
+        var endInstant = query.end() == null ? Instant.now().plusSeconds(60 * 60 * 24) : query.end().toInstant();
+        var parameters = resolveParameters(query);
+        if (query.format() == BulkFormat.WIDE) {
+            var alignment = query.alignment() == null ? WideCsvWriter.Alignment.EXACT : query.alignment();
+            long intervalMs = query.intervalMs() == null ? 1000 : query.intervalMs();
+            if (intervalMs <= 0) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "intervalMs must be positive");
+            }
+            writeWide(response, parameters, startInstant, endInstant, alignment, Duration.ofMillis(intervalMs));
+            return;
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+        var sorted = parameters.stream()
+                .distinct()
+                .sorted(Comparator.comparingLong(ParameterMetadata::id))
+                .toList();
+        try (var generator = mapper.createGenerator(response.getOutputStream(), JsonEncoding.UTF8)) {
+            var groupWriter = new GroupedJsonWriter(generator, sorted);
+            generator.writeStartArray();
+            measurementService.forEachByParametersAndTimeRange(
+                    sorted.stream().map(ParameterMetadata::id).toList(), startInstant, endInstant, groupWriter);
+            groupWriter.finish();
+            generator.writeEndArray();
+        }
+    }
+
+    /**
+     * Looks up the parameters of the query in the metadata snapshot, ids first, then identifiers.
+     */
+    private List<ParameterMetadata> resolveParameters(BulkQuery query) {
+        var metadata = metadataSnapshotService.get();
+        var parameters = new ArrayList<ParameterMetadata>();
+        var missing = new ArrayList<String>();
+        if (query.parameterIds() != null) {
+            for (var parameterId : query.parameterIds()) {
+                var parameter = parameterId == null ? null : metadata.getParameter(parameterId);
+                if (parameter == null) {
+                    missing.add(String.valueOf(parameterId));
+                } else {
+                    parameters.add(parameter);
+                }
+            }
+        }
+        if (query.parameterIdentifiers() != null) {
+            for (var identifier : query.parameterIdentifiers()) {
+                var parameter = metadata.getParameterByIdentifier(identifier);
+                if (parameter == null) {
+                    missing.add(identifier);
+                } else {
+                    parameters.add(parameter);
+                }
+            }
+        }
+        if (!missing.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Parameters not found: " + missing);
+        }
+        if (parameters.isEmpty() || parameters.size() > maxBulkParameters) {
+            throw new ResponseStatusException(
+                    HttpStatus.BAD_REQUEST, "Between 1 and " + maxBulkParameters + " parameters must be given");
+        }
+        return parameters;
+    }
+
+    private void writeWide(
+            HttpServletResponse response,
+            List<ParameterMetadata> parameters,
+            Instant start,
+            Instant end,
+            WideCsvWriter.Alignment alignment,
+            Duration interval)
+            throws IOException {
+        response.setContentType("text/csv");
+        response.setCharacterEncoding(BatchCSVExporter.CSV_CHARSET.name());
+        var writer = new BufferedWriter(
+                new OutputStreamWriter(response.getOutputStream(), BatchCSVExporter.CSV_CHARSET), BUFSIZE);
+        var header = new ArrayList<String>();
+        header.add("Client_Time");
+        parameters.forEach(parameter -> header.add(BatchCSVExporter.getParameterLabel(parameter)));
+        var csvPrinter = new CSVPrinter(
+                writer,
+                BatchCSVExporter.CSV_FORMAT
+                        .builder()
+                        .setHeader(header.toArray(String[]::new))
+                        .build());
+        csvPrinter.flush();
+        BatchCSVExporter.writeWideRows(
+                measurementService,
+                writer,
+                new BatchCSVExporter.WideFormat(alignment, interval),
+                parameters,
+                start,
+                end,
+                () -> {});
+        writer.flush();
+    }
+
+    private long getParameterId(String parameterIdentifier) {
+        var parameter = metadataSnapshotService.get().getParameterByIdentifier(parameterIdentifier);
         if (parameter == null) {
             throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Parameter not found");
         }
-        getMeasurements(response, parameter.getId(), start, end);
+        return parameter.id();
+    }
+
+    @SneakyThrows(IOException.class)
+    private void writeMeasurements(
+            HttpServletResponse response,
+            long parameterId,
+            ZonedDateTime start,
+            ZonedDateTime end,
+            long afterId,
+            Integer limit,
+            Format format) {
+        if (limit != null && (limit < 1 || limit > maxPageSize)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "limit must be between 1 and " + maxPageSize);
+        }
+        var query = new Query(
+                parameterId,
+                start == null ? Instant.EPOCH : start.toInstant(),
+                end == null ? Instant.now().plusSeconds(60 * 60 * 24) : end.toInstant(),
+                afterId,
+                limit);
+        response.setContentType(format.mediaType);
+        if (format != Format.CBOR) {
+            response.setCharacterEncoding("UTF-8");
+        }
+        if (limit == null) {
+            write(response.getOutputStream(), query, format);
+            return;
+        }
+        var page = new SpillingOutputStream(PAGE_MEMORY_LIMIT);
+        try {
+            var progress = write(page, query, format);
+            if (progress.rows == limit) {
+                response.setHeader(NEXT_CURSOR_HEADER, Long.toString(progress.lastId));
+            }
+            response.setContentLengthLong(page.size());
+            try (var in = page.openInputStream()) {
+                in.transferTo(response.getOutputStream());
+            }
+        } finally {
+            page.delete();
+        }
+    }
+
+    @SneakyThrows(IOException.class)
+    private void writeAggregates(
+            HttpServletResponse response,
+            long parameterId,
+            ZonedDateTime start,
+            ZonedDateTime end,
+            String bucket,
+            List<String> aggregates,
+            Integer maxPoints) {
+        var startInstant = start.toInstant();
+        var endInstant = end == null ? Instant.now() : end.toInstant();
+        if (!endInstant.isAfter(startInstant)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "end must be after start");
+        }
+        if ((bucket == null) == (maxPoints == null)) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Either bucket or maxPoints must be given");
+        }
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding("UTF-8");
+        if (maxPoints != null) {
+            if (maxPoints < 3 || maxPoints > maxBuckets) {
+                throw new ResponseStatusException(
+                        HttpStatus.BAD_REQUEST, "maxPoints must be between 3 and " + maxBuckets);
+            }
+            var points = measurementService.downsampleByParameterAndTimeRange(
+                    parameterId, startInstant, endInstant, maxPoints);
+            try (var generator = mapper.createGenerator(response.getOutputStream(), JsonEncoding.UTF8)) {
+                var writer = new AggregateJsonWriter(generator);
+                generator.writeStartArray();
+                for (var point : points) {
+                    writer.writePoint(point);
+                }
+                generator.writeEndArray();
+            }
+            return;
+        }
+        var bucketSize = parseBucketSize(bucket);
+        long bucketSizeMicros = bucketSize.toNanos() / 1000;
+        long startMicros = toEpochMicros(startInstant);
+        if ((toEpochMicros(endInstant) - startMicros) / bucketSizeMicros >= maxBuckets) {
+            throw new ResponseStatusException(
+                    HttpStatus.BAD_REQUEST, "The range must not contain more than " + maxBuckets + " buckets");
+        }
+        var selected = EnumSet.noneOf(AggregateJsonWriter.Aggregate.class);
+        for (var aggregate : aggregates) {
+            try {
+                selected.add(AggregateJsonWriter.Aggregate.valueOf(aggregate.trim().toUpperCase(Locale.ROOT)));
+            } catch (IllegalArgumentException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown aggregate: " + aggregate);
+            }
+        }
+        var buckets = measurementService.aggregateByParameterAndTimeBuckets(
+                parameterId, startInstant, endInstant, bucketSize);
+        try (var generator = mapper.createGenerator(response.getOutputStream(), JsonEncoding.UTF8)) {
+            var writer = new AggregateJsonWriter(generator);
+            generator.writeStartArray();
+            for (var measurementBucket : buckets) {
+                writer.writeBucket(
+                        measurementBucket, startMicros + measurementBucket.index() * bucketSizeMicros, selected);
+            }
+            generator.writeEndArray();
+        }
+    }
+
+    private static Duration parseBucketSize(String bucket) {
+        Duration bucketSize;
+        try {
+            bucketSize = Duration.parse(bucket);
+        } catch (DateTimeParseException e) {
+            throw new ResponseStatusException(
+                    HttpStatus.BAD_REQUEST, "bucket must be an ISO-8601 duration such as PT1M");
+        }
+        if (bucketSize.toNanos() < 1000) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "bucket must be at least a microsecond");
+        }
+        return bucketSize;
+    }
+
+    private Progress write(OutputStream outputStream, Query query, Format format) throws IOException {
+        var progress = new Progress();
+        try (var generator = format == Format.CBOR
+                ? CBOR_FACTORY.createGenerator(outputStream)
+                : mapper.createGenerator(outputStream, JsonEncoding.UTF8)) {
+            MeasurementRow.Handler handler;
+            switch (format) {
+                case NDJSON -> {
+                    var measurementWriter = new MeasurementJsonWriter(generator);
+                    // One object per line instead of the default space between root values
+                    generator.setRootValueSeparator(null);
+                    handler = row -> {
+                        measurementWriter.write(row);
+                        generator.writeRaw('\n');
+                        progress.lastId = row.getId();
+                        if (++progress.rows % NDJSON_FLUSH_ROWS == 0) {
+                            generator.flush();
+                        }
+                    };
+                }
+                case CBOR -> {
+                    var measurementWriter = new MeasurementCborWriter((CBORGenerator) generator);
+                    // An array of indefinite length, as the number of measurements is not known in advance
+                    generator.writeStartArray();
+                    handler = row -> {
+                        measurementWriter.write(row);
+                        progress.lastId = row.getId();
+                        progress.rows++;
+                    };
+                }
+                default -> {
+                    var measurementWriter = new MeasurementJsonWriter(generator);
+                    generator.writeStartArray();
+                    handler = row -> {
+                        measurementWriter.write(row);
+                        progress.lastId = row.getId();
+                        progress.rows++;
+                    };
+                }
+            }
+            if (query.limit() != null) {
+                measurementService.forEachByParameterAndTimeRangeAfterId(
+                        query.parameterId(), query.start(), query.end(), query.afterId(), query.limit(), handler);
+            } else if (query.afterId() > 0) {
+                measurementService.forEachByParameterAndTimeRangeAfterId(
+                        query.parameterId(), query.start(), query.end(), query.afterId(), handler);
+            } else {
+                measurementService.forEachByParameterAndTimeRange(
+                        query.parameterId(), query.start(), query.end(), handler);
+            }
+            if (format != Format.NDJSON) {
+                generator.writeEndArray();
+            }
+        }
+        return progress;
+    }
+
+    private enum Format {
+        JSON(MediaType.APPLICATION_JSON_VALUE),
+        NDJSON(MediaType.APPLICATION_NDJSON_VALUE),
+        CBOR(MediaType.APPLICATION_CBOR_VALUE);
+
+        private final String mediaType;
+
+        Format(String mediaType) {
+            this.mediaType = mediaType;
+        }
+
+        /**
+         * Returns the format preferred by the Accept header. JSON is the default, also for wildcards, so that clients
+         * that do not ask for a format keep getting JSON.
+         */
+        private static Format of(String accept) {
+            if (accept == null || accept.isBlank()) {
+                return JSON;
+            }
+            List<MediaType> mediaTypes;
+            try {
+                mediaTypes = MediaType.parseMediaTypes(accept);
+            } catch (InvalidMediaTypeException e) {
+                throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Invalid Accept header");
+            }
+            MediaType.sortBySpecificityAndQuality(mediaTypes);
+            for (var mediaType : mediaTypes) {
+                if (mediaType.getQualityValue() == 0) {
+                    continue;
+                }
+                // Checked in this order, so that JSON wins for wildcards
+                for (var format : values()) {
+                    if (mediaType.includes(MediaType.valueOf(format.mediaType))) {
+                        return format;
+                    }
+                }
+            }
+            throw new ResponseStatusException(HttpStatus.NOT_ACCEPTABLE, "Supported are JSON, NDJSON and CBOR");
+        }
+    }
+
+    public enum BulkFormat {
+        GROUPED,
+        WIDE
+    }
+
+    /**
+     * The body of a bulk query. Parameters can be given by id, by identifier or both. The alignment and interval only
+     * apply to the WIDE format.
+     */
+    public record BulkQuery(
+            List<Long> parameterIds,
+            List<String> parameterIdentifiers,
+            ZonedDateTime start,
+            ZonedDateTime end,
+            BulkFormat format,
+            WideCsvWriter.Alignment alignment,
+            Long intervalMs) {}
+
+    /**
+     * Writes the measurements as they are passed, grouped by parameter, and an empty group for each parameter without
+     * measurements.
+     */
+    private static class GroupedJsonWriter implements MeasurementRow.Handler {
+        private final JsonGenerator generator;
+        private final MeasurementJsonWriter measurementWriter;
+        private final Iterator<ParameterMetadata> parameters;
+        private ParameterMetadata current;
+
+        private GroupedJsonWriter(JsonGenerator generator, List<ParameterMetadata> parameters) {
+            this.generator = generator;
+            this.measurementWriter = new MeasurementJsonWriter(generator);
+            this.parameters = parameters.iterator();
+        }
+
+        @Override
+        public void accept(MeasurementRow row) throws IOException {
+            while (current == null || current.id() != row.getParameterId()) {
+                nextGroup();
+            }
+            measurementWriter.write(row);
+        }
+
+        private void finish() throws IOException {
+            while (parameters.hasNext()) {
+                nextGroup();
+            }
+            if (current != null) {
+                endGroup();
+            }
+        }
+
+        private void nextGroup() throws IOException {
+            if (current != null) {
+                endGroup();
+            }
+            current = parameters.next();
+            generator.writeStartObject();
+            generator.writeNumberField("parameterId", current.id());
+            generator.writeStringField("parameterIdentifier", current.identifier());
+            generator.writeArrayFieldStart("measurements");
+        }
+
+        private void endGroup() throws IOException {
+            generator.writeEndArray();
+            generator.writeEndObject();
+        }
+    }
+
+    private record Query(long parameterId, Instant start, Instant end, long afterId, Integer limit) {}
+
+    private static class Progress {
+        private long rows, lastId;
     }
 }
@@ -4,24 +4,46 @@
  */
 package com.productionpilot.api;
 
+import com.productionpilot.db.timescale.entities.Measurement;
 import com.productionpilot.db.timescale.entities.Parameter;
 import com.productionpilot.db.timescale.service.ParameterService;
+import com.productionpilot.service.ParameterRecordingService;
+import com.productionpilot.service.metadata.MetadataSnapshot;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import com.productionpilot.service.metadata.ParameterMetadata;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
 import java.util.List;
+import java.util.Objects;
 import java.util.Optional;
 import lombok.RequiredArgsConstructor;
+import org.springframework.http.CacheControl;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.PathVariable;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
 import org.springframework.web.server.ResponseStatusException;
 
+/**
+ * Besides the parameters themselves, returns their latest values for clients that poll them. These are served from the
+ * last measurements held by {@link ParameterRecordingService} and the parameters of the {@link MetadataSnapshot}, so
+ * they do not query the database. Responses carry an ETag derived from the measurement ids; a request with a matching
+ * If-None-Match header is answered with 304 Not Modified and no body.
+ */
 @RestController
 @RequestMapping("/api/v1/parameters")
 @RequiredArgsConstructor
 public class ParameterApi {
     private final ParameterService parameterService;
+    private final ParameterRecordingService parameterRecordingService;
+    private final MetadataSnapshotService metadataSnapshotService;
 
     @GetMapping(produces = MediaType.APPLICATION_JSON_VALUE)
     public List<Parameter> getParameters() {
@@ -39,4 +61,111 @@ public class ParameterApi {
         return Optional.ofNullable(parameterService.findByIdentifier(identifier))
                 .orElseThrow(() -> new ResponseStatusException(HttpStatus.NOT_FOUND, "Parameter not found"));
     }
+
+    @GetMapping(value = "/latest/id/{id}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<LatestValue> getLatestValueById(@PathVariable long id) {
+        var parameter = metadataSnapshotService.get().getParameter(id);
+        if (parameter == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Parameter not found");
+        }
+        var latestValue = getLatestValue(parameter);
+        return withETag(latestValue, List.of(latestValue));
+    }
+
+    @GetMapping(value = "/latest/identifier/{identifier}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<LatestValue> getLatestValueByIdentifier(@PathVariable String identifier) {
+        var parameter = findByIdentifier(metadataSnapshotService.get(), identifier);
+        var latestValue = getLatestValue(parameter);
+        return withETag(latestValue, List.of(latestValue));
+    }
+
+    /**
+     * Returns the latest values of the parameters with the given ids and identifiers, in that order.
+     */
+    @GetMapping(value = "/latest", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<LatestValue>> getLatestValues(
+            @RequestParam(name = "id", required = false) List<Long> ids,
+            @RequestParam(name = "identifier", required = false) List<String> identifiers) {
+        var metadata = metadataSnapshotService.get();
+        var parameters = new ArrayList<ParameterMetadata>();
+        if (ids != null) {
+            for (var id : ids) {
+                var parameter = metadata.getParameter(id);
+                if (parameter == null) {
+                    throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Parameter not found: " + id);
+                }
+                parameters.add(parameter);
+            }
+        }
+        if (identifiers != null) {
+            for (var identifier : identifiers) {
+                parameters.add(findByIdentifier(metadata, identifier));
+            }
+        }
+        if (parameters.isEmpty()) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "No parameters given");
+        }
+        var latestValues = parameters.stream().map(this::getLatestValue).toList();
+        return withETag(latestValues, latestValues);
+    }
+
+    @GetMapping(value = "/latest/machine/{machineId}", produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<LatestValue>> getLatestValuesOfMachine(@PathVariable long machineId) {
+        var metadata = metadataSnapshotService.get();
+        if (metadata.getMachine(machineId) == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Machine not found");
+        }
+        var latestValues = metadata.getParametersOfMachine(machineId).stream()
+                .map(this::getLatestValue)
+                .toList();
+        return withETag(latestValues, latestValues);
+    }
+
+    private static ParameterMetadata findByIdentifier(MetadataSnapshot metadata, String identifier) {
+        var parameter = metadata.getParameterByIdentifier(identifier);
+        if (parameter == null) {
+            throw new ResponseStatusException(HttpStatus.NOT_FOUND, "Parameter not found: " + identifier);
+        }
+        return parameter;
+    }
+
+    private LatestValue getLatestValue(ParameterMetadata parameter) {
+        return new LatestValue(
+                parameter.id(), parameter.identifier(), parameterRecordingService.getLastMeasurement(parameter.id()));
+    }
+
+    /**
+     * Returns the body with an ETag over the parameters and their measurement ids, which only change when a new
+     * measurement was recorded or a parameter was renamed. The 304 response for a matching If-None-Match header is
+     * sent by Spring. Clients have to revalidate every time, as a new measurement can be recorded at any moment.
+     */
+    private static <T> ResponseEntity<T> withETag(T body, List<LatestValue> latestValues) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        var content = new StringBuilder();
+        for (var latestValue : latestValues) {
+            var measurement = latestValue.measurement();
+            content.append(latestValue.parameterId())
+                    .append(' ')
+                    .append(measurement != null ? measurement.getId() : "-")
+                    .append(' ')
+                    .append(Objects.toString(latestValue.parameterIdentifier(), ""))
+                    .append('\n');
+        }
+        var eTag = HexFormat.of().formatHex(digest.digest(content.toString().getBytes(StandardCharsets.UTF_8)));
+        return ResponseEntity.ok()
+                .eTag(eTag)
+                .cacheControl(CacheControl.noCache())
+                .body(body);
+    }
+
+    /**
+     * The latest value of a parameter. The measurement is null if none was recorded yet or the parameter is not being
+     * recorded.
+     */
+    public record LatestValue(long parameterId, String parameterIdentifier, Measurement measurement) {}
 }
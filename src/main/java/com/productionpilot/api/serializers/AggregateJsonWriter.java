@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.productionpilot.db.store.LttbDownsampler;
+import com.productionpilot.db.store.MeasurementBucket;
+import java.io.IOException;
+import java.util.Set;
+
+/**
+ * Writes aggregated and downsampled measurements to a {@link JsonGenerator}, with timestamps in the same format as
+ * {@link MeasurementJsonWriter}. Not thread-safe.
+ */
+public class AggregateJsonWriter {
+    public enum Aggregate {
+        MIN,
+        MAX,
+        AVG,
+        FIRST,
+        LAST,
+        COUNT
+    }
+
+    private final JsonGenerator generator;
+    private final IsoTimestampFormatter timestampFormatter = new IsoTimestampFormatter();
+    private final char[] buffer = new char[IsoTimestampFormatter.MAX_LENGTH];
+
+    public AggregateJsonWriter(JsonGenerator generator) {
+        this.generator = generator;
+    }
+
+    /**
+     * Writes the bucket with its start time and the given aggregates. The count is that of all measurements, the other
+     * aggregates only cover numeric ones and are null if there are none.
+     */
+    public void writeBucket(MeasurementBucket bucket, long startMicros, Set<Aggregate> aggregates) throws IOException {
+        generator.writeStartObject();
+        writeTimestampField("start", startMicros);
+        for (var aggregate : aggregates) {
+            switch (aggregate) {
+                case MIN -> writeNumberField("min", bucket.min());
+                case MAX -> writeNumberField("max", bucket.max());
+                case AVG -> writeNumberField("avg", bucket.mean());
+                case FIRST -> writeNumberField("first", bucket.first());
+                case LAST -> writeNumberField("last", bucket.last());
+                case COUNT -> generator.writeNumberField("count", bucket.count());
+            }
+        }
+        generator.writeEndObject();
+    }
+
+    public void writePoint(LttbDownsampler.Point point) throws IOException {
+        generator.writeStartObject();
+        writeTimestampField("time", point.timeMicros());
+        generator.writeNumberField("value", point.value());
+        generator.writeEndObject();
+    }
+
+    private void writeNumberField(String name, Double value) throws IOException {
+        generator.writeFieldName(name);
+        if (value == null) {
+            generator.writeNull();
+        } else {
+            generator.writeNumber(value);
+        }
+    }
+
+    private void writeTimestampField(String name, long epochMicros) throws IOException {
+        generator.writeFieldName(name);
+        generator.writeString(buffer, 0, timestampFormatter.format(epochMicros, buffer, 0));
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.time.zone.ZoneRules;
+
+/**
+ * Formats epoch microseconds exactly like {@link ApiFormatters#API_DATETIME_FORMATTER}, but into a char array and
+ * without creating objects for each timestamp. The zone offset and the date, hour and minute are cached, so
+ * consecutive timestamps of an export only cost a few digit writes. Not thread-safe.
+ */
+public class IsoTimestampFormatter {
+    /**
+     * The maximum number of chars written by {@link #format}.
+     */
+    public static final int MAX_LENGTH = 35;
+
+    private final ZoneRules rules;
+    private final DateTimeFormatter fallbackFormatter;
+
+    // The offset is valid for epoch seconds in [offsetValidFrom, offsetValidUntil)
+    private long offsetValidFrom = Long.MAX_VALUE;
+    private long offsetValidUntil = Long.MIN_VALUE;
+    private int offsetSeconds;
+    private char[] offsetChars;
+
+    // "yyyy-MM-ddTHH:mm" of the cached local epoch minute, unless the year has more than 4 digits
+    private final char[] minutePrefix = new char[16];
+    private long cachedMinute = Long.MIN_VALUE;
+    private boolean cachedMinuteSupported;
+
+    public IsoTimestampFormatter() {
+        this(ZoneId.systemDefault());
+    }
+
+    public IsoTimestampFormatter(ZoneId zone) {
+        rules = zone.getRules();
+        fallbackFormatter = DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(zone);
+    }
+
+    /**
+     * Writes the timestamp to the buffer, which must have at least {@link #MAX_LENGTH} chars left after the position.
+     *
+     * @return the position after the last written char
+     */
+    public int format(long epochMicros, char[] buffer, int position) {
+        long epochSecond = Math.floorDiv(epochMicros, 1_000_000L);
+        int micros = (int) Math.floorMod(epochMicros, 1_000_000L);
+        if (epochSecond < offsetValidFrom || epochSecond >= offsetValidUntil) {
+            updateOffset(epochSecond);
+        }
+        long localSecond = epochSecond + offsetSeconds;
+        long localMinute = Math.floorDiv(localSecond, 60);
+        if (localMinute != cachedMinute) {
+            updateMinutePrefix(localMinute);
+        }
+        if (!cachedMinuteSupported) {
+            var formatted = fallbackFormatter.format(Instant.ofEpochSecond(epochSecond, micros * 1000L));
+            formatted.getChars(0, formatted.length(), buffer, position);
+            return position + formatted.length();
+        }
+
+        System.arraycopy(minutePrefix, 0, buffer, position, minutePrefix.length);
+        position += minutePrefix.length;
+        buffer[position++] = ':';
+        position = writeTwoDigits((int) Math.floorMod(localSecond, 60), buffer, position);
+        if (micros != 0) {
+            // Like DateTimeFormatter, write as few digits as possible
+            int digits = 6;
+            while (micros % 10 == 0) {
+                micros /= 10;
+                digits--;
+            }
+            buffer[position++] = '.';
+            for (int i = position + digits - 1; i >= position; i--) {
+                buffer[i] = (char) ('0' + micros % 10);
+                micros /= 10;
+            }
+            position += digits;
+        }
+        System.arraycopy(offsetChars, 0, buffer, position, offsetChars.length);
+        return position + offsetChars.length;
+    }
+
+    private void updateOffset(long epochSecond) {
+        var instant = Instant.ofEpochSecond(epochSecond);
+        var offset = rules.getOffset(instant);
+        var nextTransition = rules.isFixedOffset() ? null : rules.nextTransition(instant);
+        offsetValidFrom = rules.isFixedOffset() ? Long.MIN_VALUE : epochSecond;
+        offsetValidUntil = nextTransition == null ? Long.MAX_VALUE : nextTransition.toEpochSecond();
+        if (offsetChars == null || offset.getTotalSeconds() != offsetSeconds) {
+            offsetSeconds = offset.getTotalSeconds();
+            // Same format as DateTimeFormatter.ISO_OFFSET_DATE_TIME, e.g. "Z" or "+01:00"
+            offsetChars = offset.getId().toCharArray();
+            cachedMinute = Long.MIN_VALUE;
+        }
+    }
+
+    private void updateMinutePrefix(long localMinute) {
+        cachedMinute = localMinute;
+        var dateTime = LocalDateTime.ofEpochSecond(localMinute * 60, 0, ZoneOffset.UTC);
+        int year = dateTime.getYear();
+        // DateTimeFormatter writes a sign for other years
+        cachedMinuteSupported = year >= 0 && year <= 9999;
+        if (!cachedMinuteSupported) {
+            return;
+        }
+        writeTwoDigits(year / 100, minutePrefix, 0);
+        writeTwoDigits(year % 100, minutePrefix, 2);
+        minutePrefix[4] = '-';
+        writeTwoDigits(dateTime.getMonthValue(), minutePrefix, 5);
+        minutePrefix[7] = '-';
+        writeTwoDigits(dateTime.getDayOfMonth(), minutePrefix, 8);
+        minutePrefix[10] = 'T';
+        writeTwoDigits(dateTime.getHour(), minutePrefix, 11);
+        minutePrefix[13] = ':';
+        writeTwoDigits(dateTime.getMinute(), minutePrefix, 14);
+    }
+
+    private static int writeTwoDigits(int value, char[] buffer, int position) {
+        buffer[position] = (char) ('0' + value / 10);
+        buffer[position + 1] = (char) ('0' + value % 10);
+        return position + 2;
+    }
+}
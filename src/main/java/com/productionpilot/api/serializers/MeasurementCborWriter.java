@@ -0,0 +1,43 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import com.fasterxml.jackson.dataformat.cbor.CBORGenerator;
+import com.productionpilot.db.store.MeasurementRow;
+import java.io.IOException;
+
+/**
+ * Writes measurements to a {@link CBORGenerator} (RFC 8949), each as an array of {@value #FIELDS} items: id, OPC status
+ * code, client time, server time, source time and value. The times are integers in epoch microseconds, and the value
+ * keeps its type (float64, integer, boolean, text string, or null if there is none). Without field names and formatted
+ * timestamps, a measurement takes about a quarter of its size in JSON, and clients do not have to parse the timestamps.
+ * Not thread-safe.
+ */
+public class MeasurementCborWriter {
+    public static final int FIELDS = 6;
+
+    private final CBORGenerator generator;
+
+    public MeasurementCborWriter(CBORGenerator generator) {
+        this.generator = generator;
+    }
+
+    public void write(MeasurementRow row) throws IOException {
+        generator.writeStartArray(null, FIELDS);
+        generator.writeNumber(row.getId());
+        generator.writeNumber(row.getOpcStatusCode());
+        generator.writeNumber(row.getClientTimeMicros());
+        generator.writeNumber(row.getServerTimeMicros());
+        generator.writeNumber(row.getSourceTimeMicros());
+        switch (row.getValueType()) {
+            case DOUBLE -> generator.writeNumber(row.getValueDouble());
+            case LONG -> generator.writeNumber(row.getValueLong());
+            case BOOLEAN -> generator.writeBoolean(row.isValueBoolean());
+            case STRING -> generator.writeString(row.getValueString());
+            case NONE -> generator.writeNull();
+        }
+        generator.writeEndArray();
+    }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import com.productionpilot.db.store.MeasurementRow;
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Writes measurements as CSV records with the columns ID, Value, OPC_Status_Code, Source_Time, Server_Time and
+ * Client_Time. The output is identical to printing the records with a {@link org.apache.commons.csv.CSVPrinter} in the
+ * {@link org.apache.commons.csv.CSVFormat#EXCEL} format, but each record is assembled in a reused char array instead
+ * of converting every field to a String first. Not thread-safe.
+ */
+public class MeasurementCsvWriter {
+    private static final char DELIMITER = ',';
+    private static final char QUOTE = '"';
+    private static final String RECORD_SEPARATOR = "\r\n";
+
+    private final Writer out;
+    private final IsoTimestampFormatter timestampFormatter = new IsoTimestampFormatter();
+    private final char[] buffer = new char[3 * IsoTimestampFormatter.MAX_LENGTH + 128];
+
+    public MeasurementCsvWriter(Writer out) {
+        this.out = out;
+    }
+
+    public void write(MeasurementRow row) throws IOException {
+        int position = writeLong(row.getId(), buffer, 0);
+        buffer[position++] = DELIMITER;
+        switch (row.getValueType()) {
+            case DOUBLE -> position = writeString(Double.toString(row.getValueDouble()), position);
+            case LONG -> position = writeLong(row.getValueLong(), buffer, position);
+            case BOOLEAN -> position = writeString(row.isValueBoolean() ? "true" : "false", position);
+            case STRING -> {
+                out.write(buffer, 0, position);
+                writeQuotedIfNeeded(out, row.getValueString());
+                position = 0;
+            }
+            case NONE -> {}
+        }
+        buffer[position++] = DELIMITER;
+        position = writeLong(row.getOpcStatusCode(), buffer, position);
+        buffer[position++] = DELIMITER;
+        position = timestampFormatter.format(row.getSourceTimeMicros(), buffer, position);
+        buffer[position++] = DELIMITER;
+        position = timestampFormatter.format(row.getServerTimeMicros(), buffer, position);
+        buffer[position++] = DELIMITER;
+        position = timestampFormatter.format(row.getClientTimeMicros(), buffer, position);
+        position = writeString(RECORD_SEPARATOR, position);
+        out.write(buffer, 0, position);
+    }
+
+    private int writeString(String value, int position) {
+        value.getChars(0, value.length(), buffer, position);
+        return position + value.length();
+    }
+
+    /**
+     * Quotes the value under the same conditions as {@link org.apache.commons.csv.QuoteMode#MINIMAL}: if it starts with
+     * a char up to '#', ends with a char up to ' ', or contains a line break, quote or delimiter.
+     */
+    static void writeQuotedIfNeeded(Writer out, String value) throws IOException {
+        int length = value.length();
+        boolean quote = length > 0 && (value.charAt(0) <= '#' || value.charAt(length - 1) <= ' ');
+        for (int i = 0; i < length && !quote; i++) {
+            char c = value.charAt(i);
+            quote = c == '\n' || c == '\r' || c == QUOTE || c == DELIMITER;
+        }
+        if (!quote) {
+            out.write(value);
+            return;
+        }
+        out.write(QUOTE);
+        int start = 0;
+        for (int i = 0; i < length; i++) {
+            if (value.charAt(i) == QUOTE) {
+                // Write up to and including the quote, which is then written again as the start of the next segment
+                out.write(value, start, i + 1 - start);
+                start = i;
+            }
+        }
+        out.write(value, start, length - start);
+        out.write(QUOTE);
+    }
+
+    /**
+     * Writes the decimal representation of the value like {@link Long#toString(long)}, without creating a String.
+     */
+    static int writeLong(long value, char[] buffer, int position) {
+        if (value == Long.MIN_VALUE) {
+            var string = Long.toString(value);
+            string.getChars(0, string.length(), buffer, position);
+            return position + string.length();
+        }
+        if (value < 0) {
+            buffer[position++] = '-';
+            value = -value;
+        }
+        int digits = 1;
+        for (long remaining = value / 10; remaining != 0; remaining /= 10) {
+            digits++;
+        }
+        for (int i = position + digits - 1; i >= position; i--) {
+            buffer[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return position + digits;
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.productionpilot.db.store.MeasurementRow;
+import java.io.IOException;
+
+/**
+ * Writes measurements to a {@link JsonGenerator} in the same format as {@link MeasurementSerializer}, for streaming
+ * large numbers of them without creating entities. Not thread-safe.
+ */
+public class MeasurementJsonWriter {
+    private final JsonGenerator generator;
+    private final IsoTimestampFormatter timestampFormatter = new IsoTimestampFormatter();
+    private final char[] buffer = new char[IsoTimestampFormatter.MAX_LENGTH];
+
+    public MeasurementJsonWriter(JsonGenerator generator) {
+        this.generator = generator;
+    }
+
+    public void write(MeasurementRow row) throws IOException {
+        generator.writeStartObject();
+        generator.writeNumberField("id", row.getId());
+        generator.writeNumberField("opcStatusCode", row.getOpcStatusCode());
+        writeTimestampField("clientTime", row.getClientTimeMicros());
+        writeTimestampField("serverTime", row.getServerTimeMicros());
+        writeTimestampField("sourceTime", row.getSourceTimeMicros());
+        generator.writeFieldName("value");
+        switch (row.getValueType()) {
+            case DOUBLE -> generator.writeNumber(row.getValueDouble());
+            case LONG -> generator.writeNumber(row.getValueLong());
+            case BOOLEAN -> generator.writeBoolean(row.isValueBoolean());
+            case STRING -> generator.writeString(row.getValueString());
+            case NONE -> generator.writeNull();
+        }
+        generator.writeEndObject();
+    }
+
+    private void writeTimestampField(String name, long epochMicros) throws IOException {
+        generator.writeFieldName(name);
+        generator.writeString(buffer, 0, timestampFormatter.format(epochMicros, buffer, 0));
+    }
+}
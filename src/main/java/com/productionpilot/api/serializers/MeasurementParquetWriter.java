@@ -0,0 +1,240 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import static org.apache.parquet.schema.LogicalTypeAnnotation.TimeUnit.MICROS;
+import static org.apache.parquet.schema.LogicalTypeAnnotation.stringType;
+import static org.apache.parquet.schema.LogicalTypeAnnotation.timestampType;
+import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.*;
+
+import com.productionpilot.db.store.MeasurementRow;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Map;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.api.WriteSupport;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.OutputFile;
+import org.apache.parquet.io.PositionOutputStream;
+import org.apache.parquet.io.api.Binary;
+import org.apache.parquet.io.api.RecordConsumer;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.Types;
+
+/**
+ * Writes measurements as a Parquet file to a stream, with one typed column per field and times in microseconds. The
+ * file is written in a single pass, so it can be sent to a client while it is being written; only the current row group
+ * is held in memory. Each row also has the ids of the batch and batch machine range it was exported for, which are set
+ * with {@link #setRange}. Not thread-safe.
+ */
+public class MeasurementParquetWriter implements AutoCloseable {
+    public static final MessageType SCHEMA = Types.buildMessage()
+            .required(INT64)
+            .named("batch_id")
+            .required(INT64)
+            .named("batch_machine_id")
+            .required(INT64)
+            .named("parameter_id")
+            .required(INT64)
+            .named("id")
+            .required(INT64)
+            .as(timestampType(true, MICROS))
+            .named("client_time")
+            .required(INT64)
+            .as(timestampType(true, MICROS))
+            .named("source_time")
+            .required(INT64)
+            .as(timestampType(true, MICROS))
+            .named("server_time")
+            .required(INT64)
+            .named("opc_status_code")
+            .optional(DOUBLE)
+            .named("value_double")
+            .optional(INT64)
+            .named("value_long")
+            .optional(BOOLEAN)
+            .named("value_boolean")
+            .optional(BINARY)
+            .as(stringType())
+            .named("value_string")
+            .named("measurement");
+
+    private final RowWriteSupport writeSupport;
+    private final ParquetWriter<MeasurementRow> writer;
+
+    /**
+     * @param keyValueMetadata stored in the footer of the file, e.g. descriptions of the exported parameters
+     * @param rowGroupSize the approximate size in bytes of a row group, which is buffered in memory until it is full
+     */
+    public MeasurementParquetWriter(OutputStream out, Map<String, String> keyValueMetadata, long rowGroupSize)
+            throws IOException {
+        writeSupport = new RowWriteSupport(keyValueMetadata);
+        writer = new Builder(new StreamOutputFile(out), writeSupport)
+                .withRowGroupSize(rowGroupSize)
+                .withCompressionCodec(CompressionCodecName.SNAPPY)
+                .withDictionaryEncoding(true)
+                .build();
+    }
+
+    /**
+     * Sets the batch and batch machine range for the following rows.
+     */
+    public void setRange(long batchId, long batchMachineId) {
+        writeSupport.batchId = batchId;
+        writeSupport.batchMachineId = batchMachineId;
+    }
+
+    public void write(MeasurementRow row) throws IOException {
+        writer.write(row);
+    }
+
+    /**
+     * Writes the last row group and the footer, and flushes the stream without closing it.
+     */
+    @Override
+    public void close() throws IOException {
+        writer.close();
+    }
+
+    private static class RowWriteSupport extends WriteSupport<MeasurementRow> {
+        private final Map<String, String> keyValueMetadata;
+        private RecordConsumer consumer;
+        private long batchId, batchMachineId;
+
+        private RowWriteSupport(Map<String, String> keyValueMetadata) {
+            this.keyValueMetadata = keyValueMetadata;
+        }
+
+        @Override
+        public WriteContext init(Configuration configuration) {
+            return new WriteContext(SCHEMA, keyValueMetadata);
+        }
+
+        @Override
+        public void prepareForWrite(RecordConsumer recordConsumer) {
+            consumer = recordConsumer;
+        }
+
+        @Override
+        public void write(MeasurementRow row) {
+            consumer.startMessage();
+            writeLong("batch_id", 0, batchId);
+            writeLong("batch_machine_id", 1, batchMachineId);
+            writeLong("parameter_id", 2, row.getParameterId());
+            writeLong("id", 3, row.getId());
+            writeLong("client_time", 4, row.getClientTimeMicros());
+            writeLong("source_time", 5, row.getSourceTimeMicros());
+            writeLong("server_time", 6, row.getServerTimeMicros());
+            writeLong("opc_status_code", 7, row.getOpcStatusCode());
+            switch (row.getValueType()) {
+                case DOUBLE -> {
+                    consumer.startField("value_double", 8);
+                    consumer.addDouble(row.getValueDouble());
+                    consumer.endField("value_double", 8);
+                }
+                case LONG -> writeLong("value_long", 9, row.getValueLong());
+                case BOOLEAN -> {
+                    consumer.startField("value_boolean", 10);
+                    consumer.addBoolean(row.isValueBoolean());
+                    consumer.endField("value_boolean", 10);
+                }
+                case STRING -> {
+                    consumer.startField("value_string", 11);
+                    consumer.addBinary(Binary.fromString(row.getValueString()));
+                    consumer.endField("value_string", 11);
+                }
+                case NONE -> {}
+            }
+            consumer.endMessage();
+        }
+
+        private void writeLong(String field, int index, long value) {
+            consumer.startField(field, index);
+            consumer.addLong(value);
+            consumer.endField(field, index);
+        }
+    }
+
+    private static class Builder extends ParquetWriter.Builder<MeasurementRow, Builder> {
+        private final RowWriteSupport writeSupport;
+
+        private Builder(OutputFile file, RowWriteSupport writeSupport) {
+            super(file);
+            this.writeSupport = writeSupport;
+        }
+
+        @Override
+        protected Builder self() {
+            return this;
+        }
+
+        @Override
+        protected WriteSupport<MeasurementRow> getWriteSupport(Configuration configuration) {
+            return writeSupport;
+        }
+    }
+
+    /**
+     * Parquet only needs to know the current position while writing, so any stream can be used as its output. The
+     * stream is left open, like with the other writers.
+     */
+    private static class StreamOutputFile implements OutputFile {
+        private final OutputStream out;
+
+        private StreamOutputFile(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public PositionOutputStream create(long blockSizeHint) {
+            return new PositionOutputStream() {
+                private long position = 0;
+
+                @Override
+                public long getPos() {
+                    return position;
+                }
+
+                @Override
+                public void write(int b) throws IOException {
+                    out.write(b);
+                    position++;
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    out.write(b, off, len);
+                    position += len;
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    out.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    out.flush();
+                }
+            };
+        }
+
+        @Override
+        public PositionOutputStream createOrOverwrite(long blockSizeHint) {
+            return create(blockSizeHint);
+        }
+
+        @Override
+        public boolean supportsBlockSize() {
+            return false;
+        }
+
+        @Override
+        public long defaultBlockSize() {
+            return 0;
+        }
+    }
+}
@@ -0,0 +1,336 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.productionpilot.db.store.MeasurementRow;
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.io.IOException;
+import java.io.Writer;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Writes the measurements of several parameters as one CSV table, with a Client_Time column followed by one column per
+ * parameter. The measurement streams of the parameters are merged by client time, so only the current and the next
+ * measurement of each parameter are held in memory, regardless of the length of the time range.
+ *
+ * The streams are expected in client time order. Streams ordered by id also work, as measurements are recorded in
+ * client time order; if the clock was turned back, a measurement that is out of order is still written, only at its
+ * position in the stream. Alternatively, the measurements of all parameters can be passed as a single stream that is
+ * already merged by client time, see {@link #merged}.
+ *
+ * The output uses the same value and timestamp formats and quoting as {@link MeasurementCsvWriter}. Not thread-safe.
+ */
+public class WideCsvWriter {
+    public enum Alignment {
+        /**
+         * One row per distinct client time of any parameter. Parameters without a measurement at that exact time are
+         * left empty.
+         */
+        EXACT,
+        /**
+         * One row per point of a fixed grid, with the last measurement of each parameter at or before that point (last
+         * observation carried forward).
+         */
+        LOCF,
+        /**
+         * One row per point of a fixed grid, with numeric values linearly interpolated between the measurements before
+         * and after that point. Other values are carried forward. Before the first and after the last measurement of a
+         * numeric parameter, its cell is left empty.
+         */
+        LINEAR
+    }
+
+    private static final char DELIMITER = ',';
+    private static final String RECORD_SEPARATOR = "\r\n";
+
+    private final Writer out;
+    private final Alignment alignment;
+    private final long intervalMicros;
+    private final IsoTimestampFormatter timestampFormatter = new IsoTimestampFormatter();
+    private final char[] buffer = new char[IsoTimestampFormatter.MAX_LENGTH + 32];
+
+    /**
+     * @param interval the distance between grid points, ignored for {@link Alignment#EXACT}
+     */
+    public WideCsvWriter(Writer out, Alignment alignment, Duration interval) {
+        if (alignment != Alignment.EXACT && (interval.isNegative() || interval.toNanos() < 1000)) {
+            throw new IllegalArgumentException("The grid interval must be at least one microsecond");
+        }
+        this.out = out;
+        this.alignment = alignment;
+        this.intervalMicros = interval.toNanos() / 1000;
+    }
+
+    /**
+     * Writes the rows for the given streams, one per column. The grid of {@link Alignment#LOCF} and
+     * {@link Alignment#LINEAR} starts at the start time and ends at or before the end time. The header row is not
+     * written.
+     */
+    public void write(List<Iterator<Measurement>> streams, Instant start, Instant end) throws IOException {
+        var columns = new ArrayList<Column>(streams.size());
+        for (var stream : streams) {
+            var column = new Column(columns.size(), stream);
+            column.advance();
+            columns.add(column);
+        }
+        if (alignment == Alignment.EXACT) {
+            writeExact(columns);
+        } else {
+            writeGrid(columns, toEpochMicros(start), toEpochMicros(end));
+        }
+    }
+
+    /**
+     * Returns a handler that writes the rows for the measurements passed to it, with a column for each of the given
+     * parameters. The measurements must be merged by client time, see
+     * {@link com.productionpilot.db.store.MeasurementStore#forEachByParametersAndTimeRangeOrderedByTime}, so that all
+     * of them can be read with a single query instead of a stream per parameter. Not available for
+     * {@link Alignment#LINEAR}, which needs the next measurement of each parameter. {@link MergedWriter#finish()} must
+     * be called after the last measurement.
+     */
+    public MergedWriter merged(List<Long> parameterIds, Instant start, Instant end) {
+        if (alignment == Alignment.LINEAR) {
+            throw new IllegalArgumentException("Linear interpolation needs a stream per parameter");
+        }
+        return new MergedWriter(parameterIds, toEpochMicros(start), toEpochMicros(end));
+    }
+
+    /**
+     * Writes the same rows as {@link #write} for {@link Alignment#EXACT} and {@link Alignment#LOCF}. Only the
+     * measurements at the current client time, or the last measurement of each parameter, are held in memory.
+     */
+    public class MergedWriter implements MeasurementRow.Handler {
+        // The columns of each parameter, as a parameter may be requested more than once
+        private final Map<Long, int[]> columnsByParameter = new HashMap<>();
+        private final long endMicros;
+        // For EXACT: the measurements at the current client time, per column
+        private final List<ArrayDeque<MeasurementRow>> current = new ArrayList<>();
+        private long currentTime;
+        // For LOCF: the last measurement of each column, and the next grid point to write
+        private final MeasurementRow[] last;
+        private long gridTime;
+
+        private MergedWriter(List<Long> parameterIds, long startMicros, long endMicros) {
+            for (int column = 0; column < parameterIds.size(); column++) {
+                int index = column;
+                columnsByParameter.merge(parameterIds.get(column), new int[] {column}, (columns, added) -> {
+                    var merged = Arrays.copyOf(columns, columns.length + 1);
+                    merged[columns.length] = index;
+                    return merged;
+                });
+                current.add(new ArrayDeque<>());
+            }
+            this.endMicros = endMicros;
+            this.last = new MeasurementRow[parameterIds.size()];
+            this.gridTime = startMicros;
+        }
+
+        @Override
+        public void accept(MeasurementRow row) throws IOException {
+            var columns = columnsByParameter.get(row.getParameterId());
+            if (columns == null) {
+                return;
+            }
+            long time = row.getClientTimeMicros();
+            if (alignment == Alignment.EXACT) {
+                if (time != currentTime) {
+                    writeCurrent();
+                    currentTime = time;
+                }
+                for (int column : columns) {
+                    current.get(column).add(new MeasurementRow().set(row));
+                }
+            } else {
+                writeGridUpTo(Math.min(time - 1, endMicros));
+                for (int column : columns) {
+                    if (last[column] == null) {
+                        last[column] = new MeasurementRow();
+                    }
+                    last[column].set(row);
+                }
+            }
+        }
+
+        /**
+         * Writes the remaining rows.
+         */
+        public void finish() throws IOException {
+            if (alignment == Alignment.EXACT) {
+                writeCurrent();
+            } else {
+                writeGridUpTo(endMicros);
+            }
+        }
+
+        /**
+         * Writes the measurements at the current time, one row per measurement of the parameter with the most of them.
+         */
+        private void writeCurrent() throws IOException {
+            while (current.stream().anyMatch(cell -> !cell.isEmpty())) {
+                writeTime(currentTime);
+                for (var cell : current) {
+                    out.write(DELIMITER);
+                    if (!cell.isEmpty()) {
+                        writeValue(cell.poll());
+                    }
+                }
+                out.write(RECORD_SEPARATOR);
+            }
+        }
+
+        private void writeGridUpTo(long time) throws IOException {
+            for (; gridTime <= time; gridTime += intervalMicros) {
+                writeTime(gridTime);
+                for (var cell : last) {
+                    out.write(DELIMITER);
+                    if (cell != null) {
+                        writeValue(cell);
+                    }
+                }
+                out.write(RECORD_SEPARATOR);
+            }
+        }
+    }
+
+    private void writeExact(List<Column> columns) throws IOException {
+        var queue = new PriorityQueue<Column>(
+                Math.max(1, columns.size()),
+                Comparator.<Column>comparingLong(column -> column.headTime).thenComparingInt(column -> column.index));
+        for (var column : columns) {
+            if (column.head != null) {
+                queue.add(column);
+            }
+        }
+        var cells = new Measurement[columns.size()];
+        var deferred = new ArrayList<Column>();
+        while (!queue.isEmpty()) {
+            long time = queue.peek().headTime;
+            Arrays.fill(cells, null);
+            while (!queue.isEmpty() && queue.peek().headTime == time) {
+                var column = queue.poll();
+                if (cells[column.index] != null) {
+                    // A second measurement of a parameter at the same time goes into the next row
+                    deferred.add(column);
+                } else {
+                    cells[column.index] = column.head;
+                    if (column.advance()) {
+                        queue.add(column);
+                    }
+                }
+            }
+            queue.addAll(deferred);
+            deferred.clear();
+            writeTime(time);
+            for (var cell : cells) {
+                out.write(DELIMITER);
+                if (cell != null) {
+                    writeValue(cell);
+                }
+            }
+            out.write(RECORD_SEPARATOR);
+        }
+    }
+
+    private void writeGrid(List<Column> columns, long startMicros, long endMicros) throws IOException {
+        for (long time = startMicros; time <= endMicros; time += intervalMicros) {
+            writeTime(time);
+            for (var column : columns) {
+                while (column.head != null && column.headTime <= time) {
+                    column.last = column.head;
+                    column.lastTime = column.headTime;
+                    column.advance();
+                }
+                out.write(DELIMITER);
+                if (column.last == null) {
+                    continue;
+                }
+                if (alignment == Alignment.LOCF || column.lastTime == time || !isNumeric(column.last)) {
+                    writeValue(column.last);
+                } else if (column.head != null && isNumeric(column.head)) {
+                    double from = toDouble(column.last), to = toDouble(column.head);
+                    double fraction = (double) (time - column.lastTime) / (column.headTime - column.lastTime);
+                    writeDouble(from + (to - from) * fraction);
+                }
+            }
+            out.write(RECORD_SEPARATOR);
+        }
+    }
+
+    private void writeTime(long epochMicros) throws IOException {
+        out.write(buffer, 0, timestampFormatter.format(epochMicros, buffer, 0));
+    }
+
+    private void writeValue(Measurement measurement) throws IOException {
+        if (measurement.getValueDouble() != null) {
+            writeDouble(measurement.getValueDouble());
+        } else if (measurement.getValueLong() != null) {
+            out.write(buffer, 0, MeasurementCsvWriter.writeLong(measurement.getValueLong(), buffer, 0));
+        } else if (measurement.getValueBoolean() != null) {
+            out.write(measurement.getValueBoolean() ? "true" : "false");
+        } else if (measurement.getValueString() != null) {
+            MeasurementCsvWriter.writeQuotedIfNeeded(out, measurement.getValueString());
+        }
+    }
+
+    private void writeValue(MeasurementRow row) throws IOException {
+        switch (row.getValueType()) {
+            case DOUBLE -> writeDouble(row.getValueDouble());
+            case LONG -> out.write(buffer, 0, MeasurementCsvWriter.writeLong(row.getValueLong(), buffer, 0));
+            case BOOLEAN -> out.write(row.isValueBoolean() ? "true" : "false");
+            case STRING -> MeasurementCsvWriter.writeQuotedIfNeeded(out, row.getValueString());
+            default -> {}
+        }
+    }
+
+    private void writeDouble(double value) throws IOException {
+        out.write(Double.toString(value));
+    }
+
+    private static boolean isNumeric(Measurement measurement) {
+        return measurement.getValueDouble() != null || measurement.getValueLong() != null;
+    }
+
+    private static double toDouble(Measurement measurement) {
+        return measurement.getValueDouble() != null ? measurement.getValueDouble() : measurement.getValueLong();
+    }
+
+    private static class Column {
+        private final int index;
+        private final Iterator<Measurement> stream;
+        // The next measurement that was not consumed yet, or null at the end of the stream
+        private Measurement head;
+        private long headTime;
+        // The last consumed measurement, only used on a grid
+        private Measurement last;
+        private long lastTime;
+
+        private Column(int index, Iterator<Measurement> stream) {
+            this.index = index;
+            this.stream = stream;
+        }
+
+        private boolean advance() {
+            if (!stream.hasNext()) {
+                head = null;
+                return false;
+            }
+            head = stream.next();
+            headTime = toEpochMicros(head.getClientTime());
+            return true;
+        }
+    }
+}
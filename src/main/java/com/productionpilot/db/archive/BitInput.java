@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.archive;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Reads bits written by {@link BitOutput}, from a byte array or e.g. a memory-mapped file.
+ */
+public class BitInput {
+    private final ByteBuffer buffer;
+    private final int end;
+    private int bytePosition;
+    private int bitPosition = 0;
+
+    public BitInput(byte[] buffer) {
+        this(ByteBuffer.wrap(buffer), 0, buffer.length);
+    }
+
+    /**
+     * Reads the given range of the buffer, using absolute reads, so the buffer's position is not changed.
+     */
+    public BitInput(ByteBuffer buffer, int offset, int length) {
+        this.buffer = buffer;
+        this.bytePosition = offset;
+        this.end = offset + length;
+    }
+
+    public boolean readBit() {
+        checkAvailable(1);
+        boolean bit = (buffer.get(bytePosition) & (0x80 >>> bitPosition)) != 0;
+        if (++bitPosition == 8) {
+            bitPosition = 0;
+            bytePosition++;
+        }
+        return bit;
+    }
+
+    public long readBits(int bits) {
+        checkAvailable(bits);
+        long value = 0;
+        while (bits > 0) {
+            int available = 8 - bitPosition;
+            int chunk = Math.min(available, bits);
+            int chunkValue = ((buffer.get(bytePosition) & 0xFF) >>> (available - chunk)) & ((1 << chunk) - 1);
+            value = (value << chunk) | chunkValue;
+            bits -= chunk;
+            bitPosition += chunk;
+            if (bitPosition == 8) {
+                bitPosition = 0;
+                bytePosition++;
+            }
+        }
+        return value;
+    }
+
+    public long readVarLong() {
+        long value = 0;
+        int shift = 0;
+        while (true) {
+            long b = readBits(8);
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+            shift += 7;
+            if (shift > 63) {
+                throw new SegmentFormatException("Malformed variable-length integer");
+            }
+        }
+    }
+
+    public long readZigZagVarLong() {
+        long value = readVarLong();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    public byte[] readBytes(int length) {
+        var bytes = new byte[length];
+        for (int i = 0; i < length; i++) {
+            bytes[i] = (byte) readBits(8);
+        }
+        return bytes;
+    }
+
+    private void checkAvailable(int bits) {
+        if ((long) (end - bytePosition) * 8 - bitPosition < bits) {
+            throw new SegmentFormatException("Unexpected end of segment data");
+        }
+    }
+}
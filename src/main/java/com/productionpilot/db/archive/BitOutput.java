@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.archive;
+
+import java.util.Arrays;
+
+/**
+ * A growable, MSB-first bit buffer. Used by the segment codecs to pack values at bit granularity.
+ */
+public class BitOutput {
+    private byte[] buffer;
+    private int bytePosition = 0;
+    private int bitPosition = 0; // number of bits already used in buffer[bytePosition]
+
+    public BitOutput(int initialCapacity) {
+        buffer = new byte[Math.max(16, initialCapacity)];
+    }
+
+    public void writeBit(boolean bit) {
+        ensureCapacity(1);
+        if (bit) {
+            buffer[bytePosition] |= (byte) (0x80 >>> bitPosition);
+        }
+        if (++bitPosition == 8) {
+            bitPosition = 0;
+            bytePosition++;
+        }
+    }
+
+    /**
+     * Writes the lowest {@code bits} bits of the given value, most significant bit first.
+     */
+    public void writeBits(long value, int bits) {
+        ensureCapacity(bits);
+        while (bits > 0) {
+            int free = 8 - bitPosition;
+            int chunk = Math.min(free, bits);
+            int shift = bits - chunk;
+            int chunkValue = (int) ((value >>> shift) & ((1L << chunk) - 1));
+            buffer[bytePosition] |= (byte) (chunkValue << (free - chunk));
+            bits -= chunk;
+            bitPosition += chunk;
+            if (bitPosition == 8) {
+                bitPosition = 0;
+                bytePosition++;
+            }
+        }
+    }
+
+    /**
+     * Writes an unsigned LEB128 variable-length integer.
+     */
+    public void writeVarLong(long value) {
+        while ((value & ~0x7FL) != 0) {
+            writeBits((value & 0x7F) | 0x80, 8);
+            value >>>= 7;
+        }
+        writeBits(value, 8);
+    }
+
+    public void writeZigZagVarLong(long value) {
+        writeVarLong((value << 1) ^ (value >> 63));
+    }
+
+    public void writeBytes(byte[] bytes) {
+        for (byte b : bytes) {
+            writeBits(b & 0xFF, 8);
+        }
+    }
+
+    /**
+     * Returns the written bits, padded with zero bits to a full byte.
+     */
+    public byte[] toByteArray() {
+        return Arrays.copyOf(buffer, bitPosition == 0 ? bytePosition : bytePosition + 1);
+    }
+
+    private void ensureCapacity(int bits) {
+        int requiredBytes = bytePosition + (bitPosition + bits + 7) / 8 + 1;
+        if (requiredBytes > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(requiredBytes, buffer.length * 2));
+        }
+    }
+}
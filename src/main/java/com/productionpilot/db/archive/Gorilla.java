@@ -0,0 +1,179 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.archive;
+
+/**
+ * Timestamp and floating point compression as described in "Gorilla: A Fast, Scalable, In-Memory Time Series
+ * Database" (Pelkonen et al., 2015).
+ *
+ * Timestamps are stored as delta-of-deltas with a variable-length prefix code. Unlike the paper, which works with
+ * second precision, our timestamps are in microseconds and OPC UA servers add some jitter, so the buckets are wider.
+ * Doubles are XORed with their predecessor and only the meaningful bits are stored.
+ */
+public final class Gorilla {
+    private Gorilla() {}
+
+    // Prefix code buckets for the delta-of-delta: '0' for zero, then '10', '110', '1110', '11110', '11111'
+    private static final int[] DOD_BITS = {7, 12, 20, 32};
+
+    public static class TimestampEncoder {
+        private final BitOutput out;
+        private boolean first = true;
+        private long previous;
+        private long previousDelta = 0;
+
+        public TimestampEncoder(BitOutput out) {
+            this.out = out;
+        }
+
+        public void write(long timestamp) {
+            if (first) {
+                out.writeBits(timestamp, 64);
+                previous = timestamp;
+                first = false;
+                return;
+            }
+            long delta = timestamp - previous;
+            long deltaOfDelta = delta - previousDelta;
+            previous = timestamp;
+            previousDelta = delta;
+            if (deltaOfDelta == 0) {
+                out.writeBit(false);
+                return;
+            }
+            for (int bucket = 0; bucket < DOD_BITS.length; bucket++) {
+                int bits = DOD_BITS[bucket];
+                if (fitsSigned(deltaOfDelta, bits)) {
+                    // bucket + 1 one-bits, followed by a zero-bit
+                    out.writeBits((1L << (bucket + 2)) - 2, bucket + 2);
+                    out.writeBits(deltaOfDelta, bits);
+                    return;
+                }
+            }
+            out.writeBits(0b11111, 5);
+            out.writeBits(deltaOfDelta, 64);
+        }
+    }
+
+    public static class TimestampDecoder {
+        private final BitInput in;
+        private boolean first = true;
+        private long previous;
+        private long previousDelta = 0;
+
+        public TimestampDecoder(BitInput in) {
+            this.in = in;
+        }
+
+        public long read() {
+            if (first) {
+                previous = in.readBits(64);
+                first = false;
+                return previous;
+            }
+            int ones = 0;
+            while (ones < DOD_BITS.length + 1 && in.readBit()) {
+                ones++;
+            }
+            long deltaOfDelta;
+            if (ones == 0) {
+                deltaOfDelta = 0;
+            } else if (ones <= DOD_BITS.length) {
+                int bits = DOD_BITS[ones - 1];
+                deltaOfDelta = signExtend(in.readBits(bits), bits);
+            } else {
+                deltaOfDelta = in.readBits(64);
+            }
+            previousDelta += deltaOfDelta;
+            previous += previousDelta;
+            return previous;
+        }
+    }
+
+    public static class DoubleEncoder {
+        private final BitOutput out;
+        private boolean first = true;
+        private long previous;
+        private int previousLeading = -1;
+        private int previousTrailing = 0;
+
+        public DoubleEncoder(BitOutput out) {
+            this.out = out;
+        }
+
+        public void write(double value) {
+            long bits = Double.doubleToRawLongBits(value);
+            if (first) {
+                out.writeBits(bits, 64);
+                previous = bits;
+                first = false;
+                return;
+            }
+            long xor = bits ^ previous;
+            previous = bits;
+            if (xor == 0) {
+                out.writeBit(false);
+                return;
+            }
+            out.writeBit(true);
+            int leading = Math.min(Long.numberOfLeadingZeros(xor), 31);
+            int trailing = Long.numberOfTrailingZeros(xor);
+            if (previousLeading >= 0 && leading >= previousLeading && trailing >= previousTrailing) {
+                // The meaningful bits fit into the previous window
+                out.writeBit(false);
+                out.writeBits(xor >>> previousTrailing, 64 - previousLeading - previousTrailing);
+            } else {
+                int significant = 64 - leading - trailing;
+                out.writeBit(true);
+                out.writeBits(leading, 5);
+                out.writeBits(significant - 1, 6);
+                out.writeBits(xor >>> trailing, significant);
+                previousLeading = leading;
+                previousTrailing = trailing;
+            }
+        }
+    }
+
+    public static class DoubleDecoder {
+        private final BitInput in;
+        private boolean first = true;
+        private long previous;
+        private int previousLeading = 0;
+        private int previousTrailing = 0;
+
+        public DoubleDecoder(BitInput in) {
+            this.in = in;
+        }
+
+        public double read() {
+            if (first) {
+                previous = in.readBits(64);
+                first = false;
+                return Double.longBitsToDouble(previous);
+            }
+            if (in.readBit()) {
+                if (in.readBit()) {
+                    previousLeading = (int) in.readBits(5);
+                    int significant = (int) in.readBits(6) + 1;
+                    previousTrailing = 64 - previousLeading - significant;
+                }
+                int significant = 64 - previousLeading - previousTrailing;
+                long xor = in.readBits(significant) << previousTrailing;
+                previous ^= xor;
+            }
+            return Double.longBitsToDouble(previous);
+        }
+    }
+
+    private static boolean fitsSigned(long value, int bits) {
+        long limit = 1L << (bits - 1);
+        return value >= -limit && value < limit;
+    }
+
+    private static long signExtend(long value, int bits) {
+        int shift = 64 - bits;
+        return (value << shift) >> shift;
+    }
+}
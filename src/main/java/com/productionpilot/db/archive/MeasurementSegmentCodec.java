@@ -0,0 +1,302 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.archive;
+
+import static com.productionpilot.util.Util.fromEpochMicros;
+
+import com.productionpilot.db.store.MeasurementRow;
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.io.*;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import lombok.Getter;
+
+/**
+ * Encodes the measurements of a single parameter into a compressed, columnar segment.
+ *
+ * Layout: a fixed header (magic, version, parameter id, row count), followed by one length-prefixed block per column.
+ * Timestamps are Gorilla delta-of-delta encoded (in microseconds, which is the precision PostgreSQL stores), double
+ * values are Gorilla XOR encoded, ids and long values are delta + zig-zag varint encoded, and status codes and value
+ * types are run-length encoded, as they rarely change.
+ */
+public final class MeasurementSegmentCodec {
+    private MeasurementSegmentCodec() {}
+
+    private static final int MAGIC = 0x50505347; // "PPSG"
+    private static final byte VERSION = 1;
+
+    private static final int TYPE_DOUBLE = 0, TYPE_LONG = 1, TYPE_BOOLEAN = 2, TYPE_STRING = 3;
+
+    private static final int COLUMN_COUNT = 10;
+
+    public static byte[] encode(long parameterId, List<Measurement> measurements) {
+        var encoder = new Encoder(parameterId);
+        var row = new MeasurementRow();
+        for (var measurement : measurements) {
+            encoder.accept(row.set(measurement));
+        }
+        return encoder.finish();
+    }
+
+    /**
+     * Decodes a segment. The returned measurements are plain, unmanaged objects.
+     */
+    public static List<Measurement> decode(byte[] segment) {
+        var decoder = new Decoder(ByteBuffer.wrap(segment));
+        var measurements = new ArrayList<Measurement>(decoder.getRows());
+        decoder.forEachRemaining(measurements::add);
+        return measurements;
+    }
+
+    /**
+     * Decodes a segment one measurement at a time, so that only the current measurement is held in memory in addition
+     * to the encoded segment, which can be a memory-mapped file. The measurements are plain, unmanaged objects.
+     */
+    public static class Decoder implements Iterator<Measurement> {
+        private final long parameterId;
+
+        @Getter
+        private final int rows;
+
+        private final BitInput ids;
+        private final Gorilla.TimestampDecoder clientTimes, sourceTimes, serverTimes;
+        private final RunLengthDecoder statusCodeRuns, typeRuns;
+        private final Gorilla.DoubleDecoder doubles;
+        private final BitInput longs, booleans, strings;
+
+        private int row = 0;
+        private long id = 0, previousLong = 0;
+
+        public Decoder(ByteBuffer segment) {
+            var columns = new BitInput[COLUMN_COUNT];
+            // Absolute reads only, the segment may be shared
+            var header = segment.duplicate();
+            try {
+                if (header.getInt() != MAGIC) {
+                    throw new SegmentFormatException("Not a measurement segment");
+                }
+                var version = header.get();
+                if (version != VERSION) {
+                    throw new SegmentFormatException("Unsupported segment version " + version);
+                }
+                parameterId = header.getLong();
+                rows = header.getInt();
+                if (header.get() != COLUMN_COUNT) {
+                    throw new SegmentFormatException("Unexpected column count");
+                }
+                for (int i = 0; i < COLUMN_COUNT; i++) {
+                    int length = header.getInt();
+                    int offset = header.position();
+                    if (length < 0 || offset + length > header.limit()) {
+                        throw new SegmentFormatException("Column " + i + " exceeds segment bounds");
+                    }
+                    columns[i] = new BitInput(segment, offset, length);
+                    header.position(offset + length);
+                }
+            } catch (BufferUnderflowException e) {
+                throw new SegmentFormatException("Truncated segment header");
+            }
+            ids = columns[0];
+            clientTimes = new Gorilla.TimestampDecoder(columns[1]);
+            sourceTimes = new Gorilla.TimestampDecoder(columns[2]);
+            serverTimes = new Gorilla.TimestampDecoder(columns[3]);
+            statusCodeRuns = new RunLengthDecoder(columns[4]);
+            typeRuns = new RunLengthDecoder(columns[5]);
+            doubles = new Gorilla.DoubleDecoder(columns[6]);
+            longs = columns[7];
+            booleans = columns[8];
+            strings = columns[9];
+        }
+
+        @Override
+        public boolean hasNext() {
+            return row < rows;
+        }
+
+        @Override
+        public Measurement next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            var measurement = new Measurement();
+            id += ids.readZigZagVarLong();
+            measurement.setId(id);
+            measurement.setParameterId(parameterId);
+            measurement.setClientTime(fromEpochMicros(clientTimes.read()));
+            measurement.setSourceTime(fromEpochMicros(sourceTimes.read()));
+            measurement.setServerTime(fromEpochMicros(serverTimes.read()));
+            measurement.setOpcStatusCode(statusCodeRuns.next());
+            switch ((int) typeRuns.next()) {
+                case TYPE_DOUBLE -> measurement.setValueDouble(doubles.read());
+                case TYPE_LONG -> {
+                    previousLong += longs.readZigZagVarLong();
+                    measurement.setValueLong(previousLong);
+                }
+                case TYPE_BOOLEAN -> measurement.setValueBoolean(booleans.readBit());
+                case TYPE_STRING -> measurement.setValueString(
+                        new String(strings.readBytes((int) strings.readVarLong()), StandardCharsets.UTF_8));
+                default -> throw new SegmentFormatException("Unknown value type in row " + row);
+            }
+            row++;
+            return measurement;
+        }
+    }
+
+    /**
+     * Encodes a segment one measurement at a time, so that the measurements do not have to be held in memory; only the
+     * compressed columns are. The measurements must be passed in ascending id order.
+     */
+    public static class Encoder implements MeasurementRow.Handler {
+        private final long parameterId;
+        private final BitOutput ids = new BitOutput(1024);
+        private final BitOutput clientTimes = new BitOutput(1024);
+        private final BitOutput sourceTimes = new BitOutput(1024);
+        private final BitOutput serverTimes = new BitOutput(1024);
+        private final BitOutput statusCodes = new BitOutput(16);
+        private final BitOutput types = new BitOutput(16);
+        private final BitOutput doubles = new BitOutput(2048);
+        private final BitOutput longs = new BitOutput(16);
+        private final BitOutput booleans = new BitOutput(16);
+        private final BitOutput strings = new BitOutput(16);
+
+        private final Gorilla.TimestampEncoder clientTimeEncoder = new Gorilla.TimestampEncoder(clientTimes);
+        private final Gorilla.TimestampEncoder sourceTimeEncoder = new Gorilla.TimestampEncoder(sourceTimes);
+        private final Gorilla.TimestampEncoder serverTimeEncoder = new Gorilla.TimestampEncoder(serverTimes);
+        private final Gorilla.DoubleEncoder doubleEncoder = new Gorilla.DoubleEncoder(doubles);
+        private final RunLengthEncoder statusCodeRuns = new RunLengthEncoder(statusCodes);
+        private final RunLengthEncoder typeRuns = new RunLengthEncoder(types);
+        private long previousLong = 0;
+
+        @Getter
+        private int rows = 0;
+
+        @Getter
+        private long firstId, lastId;
+
+        public Encoder(long parameterId) {
+            this.parameterId = parameterId;
+        }
+
+        @Override
+        public void accept(MeasurementRow row) {
+            if (row.getParameterId() != parameterId) {
+                throw new IllegalArgumentException("Measurement " + row.getId() + " belongs to parameter "
+                        + row.getParameterId() + ", not " + parameterId);
+            }
+            if (rows == 0) {
+                firstId = row.getId();
+            }
+            ids.writeZigZagVarLong(row.getId() - (rows == 0 ? 0 : lastId));
+            lastId = row.getId();
+            clientTimeEncoder.write(row.getClientTimeMicros());
+            sourceTimeEncoder.write(row.getSourceTimeMicros());
+            serverTimeEncoder.write(row.getServerTimeMicros());
+            statusCodeRuns.add(row.getOpcStatusCode());
+            switch (row.getValueType()) {
+                case DOUBLE -> {
+                    typeRuns.add(TYPE_DOUBLE);
+                    doubleEncoder.write(row.getValueDouble());
+                }
+                case LONG -> {
+                    typeRuns.add(TYPE_LONG);
+                    longs.writeZigZagVarLong(row.getValueLong() - previousLong);
+                    previousLong = row.getValueLong();
+                }
+                case BOOLEAN -> {
+                    typeRuns.add(TYPE_BOOLEAN);
+                    booleans.writeBit(row.isValueBoolean());
+                }
+                case STRING -> {
+                    typeRuns.add(TYPE_STRING);
+                    var bytes = row.getValueString().getBytes(StandardCharsets.UTF_8);
+                    strings.writeVarLong(bytes.length);
+                    strings.writeBytes(bytes);
+                }
+                default -> throw new IllegalArgumentException("Measurement " + row.getId() + " has no value");
+            }
+            rows++;
+        }
+
+        /**
+         * Returns the encoded segment. No measurements may be added afterwards.
+         */
+        public byte[] finish() {
+            statusCodeRuns.finish();
+            typeRuns.finish();
+            try {
+                var bytes = new ByteArrayOutputStream();
+                var out = new DataOutputStream(bytes);
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                out.writeLong(parameterId);
+                out.writeInt(rows);
+                out.writeByte(COLUMN_COUNT);
+                for (var column : new BitOutput[] {
+                    ids, clientTimes, sourceTimes, serverTimes, statusCodes, types, doubles, longs, booleans, strings
+                }) {
+                    var columnBytes = column.toByteArray();
+                    out.writeInt(columnBytes.length);
+                    out.write(columnBytes);
+                }
+                out.flush();
+                return bytes.toByteArray();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e); // cannot happen with a ByteArrayOutputStream
+            }
+        }
+    }
+
+    private static class RunLengthEncoder {
+        private final BitOutput out;
+        private long value;
+        private long runLength = 0;
+
+        private RunLengthEncoder(BitOutput out) {
+            this.out = out;
+        }
+
+        private void add(long next) {
+            if (runLength > 0 && next == value) {
+                runLength++;
+                return;
+            }
+            finish();
+            value = next;
+            runLength = 1;
+        }
+
+        private void finish() {
+            if (runLength > 0) {
+                out.writeVarLong(runLength);
+                out.writeZigZagVarLong(value);
+                runLength = 0;
+            }
+        }
+    }
+
+    private static class RunLengthDecoder {
+        private final BitInput in;
+        private long value;
+        private long remaining = 0;
+
+        private RunLengthDecoder(BitInput in) {
+            this.in = in;
+        }
+
+        private long next() {
+            if (remaining == 0) {
+                remaining = in.readVarLong();
+                value = in.readZigZagVarLong();
+            }
+            remaining--;
+            return value;
+        }
+    }
+}
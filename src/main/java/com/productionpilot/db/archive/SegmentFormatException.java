@@ -0,0 +1,11 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.archive;
+
+public class SegmentFormatException extends RuntimeException {
+    public SegmentFormatException(String message) {
+        super(message);
+    }
+}
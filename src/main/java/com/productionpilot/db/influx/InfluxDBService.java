@@ -7,6 +7,7 @@ package com.productionpilot.db.influx;
 import com.influxdb.client.InfluxDBClient;
 import com.influxdb.client.InfluxDBClientFactory;
 import com.influxdb.client.WriteApi;
+import com.influxdb.client.WriteApiBlocking;
 import com.influxdb.client.WriteOptions;
 import java.time.format.DateTimeFormatter;
 import javax.annotation.PostConstruct;
@@ -48,6 +49,12 @@ public class InfluxDBService {
     @Getter
     private WriteApi writeApi;
 
+    /**
+     * For writes that must be confirmed before continuing, e.g. when advancing a replication checkpoint.
+     */
+    @Getter
+    private WriteApiBlocking writeApiBlocking;
+
     @PostConstruct
     public void init() {
         influxDB = InfluxDBClientFactory.create(url, token.toCharArray(), organization, bucket);
@@ -55,5 +62,6 @@ public class InfluxDBService {
                 .batchSize(batchSize)
                 .flushInterval(batchInterval)
                 .build());
+        writeApiBlocking = influxDB.getWriteApiBlocking();
     }
 }
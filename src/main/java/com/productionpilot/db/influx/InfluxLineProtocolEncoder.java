@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.influx;
+
+import com.productionpilot.db.replication.CompactMeasurement;
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongFunction;
+
+/**
+ * Encodes measurements directly into InfluxDB line protocol, producing the same points as the annotated
+ * {@link InfluxMeasurement} POJO. The tag section of each parameter is escaped once and cached, as are the status code
+ * strings, and every thread reuses one StringBuilder, so encoding a measurement allocates little more than the
+ * resulting String.
+ *
+ * Like the client library, tags and fields are written in key order.
+ */
+public class InfluxLineProtocolEncoder {
+    private static final String MEASUREMENT_PREFIX =
+            escapeKey(InfluxMeasurement.MEASUREMENT_NAME) + "," + InfluxMeasurement.OPC_STATUS_CODE + "=";
+    private static final String CLIENT_TIME_FIELD = " " + InfluxMeasurement.CLIENT_TIME + "=";
+    private static final String MEASUREMENT_ID_FIELD = "i," + InfluxMeasurement.MEASUREMENT_ID + "=";
+    private static final String SERVER_TIME_FIELD = "i," + InfluxMeasurement.SERVER_TIME + "=";
+    private static final String SOURCE_TIME_FIELD = "i," + InfluxMeasurement.SOURCE_TIME + "=";
+    private static final String VALUE_FIELD = "," + InfluxMeasurement.VALUE + "=";
+
+    private final LongFunction<String> parameterIdentifierLookup;
+
+    private final Map<Long, ParameterTags> parameterTags = new ConcurrentHashMap<>();
+    private final Map<Long, String> statusCodes = new ConcurrentHashMap<>();
+
+    private final ThreadLocal<StringBuilder> buffers = ThreadLocal.withInitial(() -> new StringBuilder(256));
+
+    /**
+     * @param parameterIdentifierLookup returns the current identifier of a parameter, or null if it has none. It is
+     *                                  called for every measurement, so it must be cheap.
+     */
+    public InfluxLineProtocolEncoder(LongFunction<String> parameterIdentifierLookup) {
+        this.parameterIdentifierLookup = parameterIdentifierLookup;
+    }
+
+    public String encode(Measurement measurement) {
+        var line = buffers.get();
+        line.setLength(0);
+        appendTo(line, measurement);
+        return line.toString();
+    }
+
+    public List<String> encodeAll(List<Measurement> measurements) {
+        var lines = new ArrayList<String>(measurements.size());
+        var line = buffers.get();
+        for (var measurement : measurements) {
+            line.setLength(0);
+            appendTo(line, measurement);
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    public List<String> encodeAllCompact(List<CompactMeasurement> measurements) {
+        var lines = new ArrayList<String>(measurements.size());
+        var line = buffers.get();
+        for (var measurement : measurements) {
+            line.setLength(0);
+            appendTo(line, measurement);
+            lines.add(line.toString());
+        }
+        return lines;
+    }
+
+    private void appendTo(StringBuilder line, Measurement measurement) {
+        long clientTime = measurement.getClientTime().toEpochMilli();
+        appendTagsAndTimes(
+                line,
+                measurement.getId(),
+                measurement.getParameterId(),
+                measurement.getOpcStatusCode(),
+                clientTime,
+                measurement.getServerTime().toEpochMilli(),
+                measurement.getSourceTime().toEpochMilli());
+        if (measurement.getValueDouble() != null) {
+            appendDouble(line, measurement.getValueDouble());
+        } else if (measurement.getValueLong() != null) {
+            line.append(VALUE_FIELD).append(measurement.getValueLong()).append('i');
+        } else if (measurement.getValueBoolean() != null) {
+            line.append(VALUE_FIELD).append(measurement.getValueBoolean().booleanValue());
+        } else if (measurement.getValueString() != null) {
+            appendString(line, measurement.getValueString());
+        }
+        line.append(' ').append(clientTime);
+    }
+
+    private void appendTo(StringBuilder line, CompactMeasurement measurement) {
+        appendTagsAndTimes(
+                line,
+                measurement.id(),
+                measurement.parameterId(),
+                measurement.opcStatusCode(),
+                Math.floorDiv(measurement.clientTime(), 1000),
+                Math.floorDiv(measurement.serverTime(), 1000),
+                Math.floorDiv(measurement.sourceTime(), 1000));
+        switch (measurement.type()) {
+            case CompactMeasurement.TYPE_DOUBLE -> appendDouble(line, Double.longBitsToDouble(measurement.bits()));
+            case CompactMeasurement.TYPE_LONG -> line.append(VALUE_FIELD).append(measurement.bits()).append('i');
+            case CompactMeasurement.TYPE_BOOLEAN -> line.append(VALUE_FIELD).append(measurement.bits() != 0);
+            case CompactMeasurement.TYPE_STRING -> appendString(line, measurement.text());
+            default -> {}
+        }
+        line.append(' ').append(Math.floorDiv(measurement.clientTime(), 1000));
+    }
+
+    private void appendTagsAndTimes(
+            StringBuilder line,
+            long id,
+            long parameterId,
+            long opcStatusCode,
+            long clientTime,
+            long serverTime,
+            long sourceTime) {
+        line.append(MEASUREMENT_PREFIX)
+                .append(statusCodes.computeIfAbsent(opcStatusCode, code -> escapeTag(code.toString())))
+                .append(getParameterTags(parameterId))
+                .append(CLIENT_TIME_FIELD)
+                .append(clientTime)
+                .append(MEASUREMENT_ID_FIELD)
+                .append(id)
+                .append(SERVER_TIME_FIELD)
+                .append(serverTime)
+                .append(SOURCE_TIME_FIELD)
+                .append(sourceTime)
+                .append('i');
+    }
+
+    private static void appendDouble(StringBuilder line, double value) {
+        // Not representable in line protocol, the client library drops these as well
+        if (Double.isFinite(value)) {
+            line.append(VALUE_FIELD).append(value);
+        }
+    }
+
+    private static void appendString(StringBuilder line, String value) {
+        line.append(VALUE_FIELD).append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                line.append('\\');
+            }
+            line.append(c);
+        }
+        line.append('"');
+    }
+
+    /**
+     * Returns the escaped {@code ,parameter_id=...[,parameter_identifier=...]} section of the given parameter. The
+     * cached section is rebuilt if the parameter's identifier has changed.
+     */
+    private String getParameterTags(long parameterId) {
+        var identifier = parameterIdentifierLookup.apply(parameterId);
+        var tags = parameterTags.get(parameterId);
+        if (tags == null || !Objects.equals(tags.identifier, identifier)) {
+            var section = "," + InfluxMeasurement.PARAMETER_ID + "=" + parameterId;
+            if (identifier != null && !identifier.isEmpty()) {
+                section += "," + InfluxMeasurement.PARAMETER_IDENTIFIER + "=" + escapeTag(identifier);
+            }
+            tags = new ParameterTags(identifier, section);
+            parameterTags.put(parameterId, tags);
+        }
+        return tags.section;
+    }
+
+    private record ParameterTags(String identifier, String section) {}
+
+    private static String escapeKey(String key) {
+        return key.replace(",", "\\,").replace(" ", "\\ ");
+    }
+
+    private static String escapeTag(String value) {
+        return value.replace("\\", "\\\\")
+                .replace(",", "\\,")
+                .replace("=", "\\=")
+                .replace(" ", "\\ ")
+                .replace("\n", "\\n");
+    }
+}
@@ -6,45 +6,98 @@ package com.productionpilot.db.influx;
 
 import com.influxdb.query.dsl.Flux;
 import com.influxdb.query.dsl.functions.restriction.Restrictions;
-import com.productionpilot.db.timescale.entities.Measurement;
-import com.productionpilot.db.timescale.service.ParameterService;
-import java.time.ZonedDateTime;
+import com.productionpilot.db.replication.CompactMeasurement;
+import com.productionpilot.db.replication.MeasurementSink;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
 import javax.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.autoconfigure.condition.ConditionalOnBean;
 import org.springframework.stereotype.Service;
 
+/**
+ * Replicates all measurements to InfluxDB, as a {@link MeasurementSink}.
+ */
 @Slf4j
 @Service
 @RequiredArgsConstructor
 @ConditionalOnBean(InfluxDBService.class)
-public class InfluxMeasurementService {
+public class InfluxMeasurementService implements MeasurementSink {
+    /**
+     * The name of the replication cursor, kept from before there were other sinks.
+     */
+    public static final String SINK_NAME = "influxdb";
+
     private static final Restrictions RESTRICT_IS_MEASUREMENT =
             Restrictions.measurement().equal(InfluxMeasurement.MEASUREMENT_NAME);
     private final InfluxDBService influxDBService;
 
-    private final ParameterService parameterService;
+    private final MetadataSnapshotService metadataSnapshotService;
+
+    @Value("${com.productionpilot.influxdb.backfill.threads:4}")
+    private int backfillThreads;
 
     @Getter
-    private Long lastMeasurementId;
+    private InfluxLineProtocolEncoder encoder;
 
     @PostConstruct
     public void init() {
-        lastMeasurementId = queryLastMeasurementIdFromDb();
+        encoder = new InfluxLineProtocolEncoder(parameterId -> {
+            var parameter = metadataSnapshotService.get().getParameter(parameterId);
+            return parameter != null ? parameter.identifier() : null;
+        });
     }
 
-    public void record(Measurement measurement) {
-        influxDBService.getWriteApi().writeMeasurement(InfluxMeasurement.WRITE_PRECISION, fromMeasurement(measurement));
-        if (lastMeasurementId == null || measurement.getId() > lastMeasurementId) {
-            lastMeasurementId = measurement.getId();
+    @Override
+    public String getName() {
+        return SINK_NAME;
+    }
+
+    /**
+     * Writes the measurements to InfluxDB and returns once InfluxDB has confirmed the write.
+     *
+     * @throws com.influxdb.exceptions.InfluxException if the write failed
+     */
+    @Override
+    public long write(List<CompactMeasurement> measurements) {
+        if (measurements.isEmpty()) {
+            return 0;
         }
+        influxDBService
+                .getWriteApiBlocking()
+                .writeRecords(InfluxMeasurement.WRITE_PRECISION, encoder.encodeAllCompact(measurements));
+        return measurements.get(measurements.size() - 1).id();
+    }
+
+    /**
+     * InfluxDB does not care about the order of writes, and every write is confirmed before returning.
+     */
+    @Override
+    public int getBackfillParallelism() {
+        return backfillThreads;
     }
 
+    /**
+     * Installations that replicated to InfluxDB before the replication cursor existed continue after the highest
+     * measurement id in the bucket.
+     */
+    @Override
+    public Optional<Long> getInitialPosition() {
+        return Optional.ofNullable(queryLastMeasurementIdFromDb());
+    }
+
+    /**
+     * Queries the highest measurement id in the bucket. This scans every measurement_id field in the bucket and is
+     * therefore slow on large buckets; it is only used once to initialize the replication cursor.
+     */
     private Long queryLastMeasurementIdFromDb() {
         var query = Flux.from(influxDBService.getBucket())
-                .range(ZonedDateTime.now().minusYears(5).toInstant())
+                .range(Instant.EPOCH)
                 .filter(RESTRICT_IS_MEASUREMENT)
                 .filter(Restrictions.column("_field").equal(InfluxMeasurement.MEASUREMENT_ID))
                 .max()
@@ -91,23 +144,4 @@ public class InfluxMeasurementService {
         }
         return measurement;
     }*/
-
-    public InfluxMeasurement fromMeasurement(Measurement measurement) {
-        var influxMeasurement = new InfluxMeasurement();
-        influxMeasurement.measurement_id = measurement.getId();
-        influxMeasurement.parameter_id = Long.toString(measurement.getParameterId());
-        var parameter = parameterService.findById(measurement.getParameterId());
-        if (parameter != null) {
-            influxMeasurement.parameter_identifier = parameter.getIdentifier();
-        } else {
-            influxMeasurement.parameter_identifier = null;
-        }
-        influxMeasurement.time = measurement.getClientTime();
-        influxMeasurement.source_time = measurement.getSourceTime().toEpochMilli();
-        influxMeasurement.server_time = measurement.getServerTime().toEpochMilli();
-        influxMeasurement.client_time = measurement.getClientTime().toEpochMilli();
-        influxMeasurement.opc_status_code = Long.toString(measurement.getOpcStatusCode());
-        influxMeasurement.value = measurement.getValue();
-        return influxMeasurement;
-    }
 }
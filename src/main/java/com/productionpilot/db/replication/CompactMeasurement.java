@@ -0,0 +1,141 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.replication;
+
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.productionpilot.db.store.MeasurementRow;
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * The fields of a {@link Measurement} that are replicated to the {@link MeasurementSink}s, without the overhead of a
+ * JPA entity. Times are in epoch microseconds, the precision they are stored with. The value is stored in
+ * {@code bits} (doubles as their raw long bits, booleans as 0 or 1) or, for strings, in {@code text}.
+ */
+public record CompactMeasurement(
+        long id,
+        long parameterId,
+        long clientTime,
+        long sourceTime,
+        long serverTime,
+        long opcStatusCode,
+        byte type,
+        long bits,
+        String text) {
+    private static final int FIXED_SIZE = 6 * 8 + 1;
+
+    public static final byte TYPE_NONE = 0, TYPE_DOUBLE = 1, TYPE_LONG = 2, TYPE_BOOLEAN = 3, TYPE_STRING = 4;
+
+    public static CompactMeasurement of(Measurement measurement) {
+        byte type = TYPE_NONE;
+        long bits = 0;
+        String text = null;
+        if (measurement.getValueDouble() != null) {
+            type = TYPE_DOUBLE;
+            bits = Double.doubleToRawLongBits(measurement.getValueDouble());
+        } else if (measurement.getValueLong() != null) {
+            type = TYPE_LONG;
+            bits = measurement.getValueLong();
+        } else if (measurement.getValueBoolean() != null) {
+            type = TYPE_BOOLEAN;
+            bits = measurement.getValueBoolean() ? 1 : 0;
+        } else if (measurement.getValueString() != null) {
+            type = TYPE_STRING;
+            text = measurement.getValueString();
+        }
+        return new CompactMeasurement(
+                measurement.getId(),
+                measurement.getParameterId(),
+                toEpochMicros(measurement.getClientTime()),
+                toEpochMicros(measurement.getSourceTime()),
+                toEpochMicros(measurement.getServerTime()),
+                measurement.getOpcStatusCode(),
+                type,
+                bits,
+                text);
+    }
+
+    public static CompactMeasurement of(MeasurementRow row) {
+        byte type = TYPE_NONE;
+        long bits = 0;
+        String text = null;
+        switch (row.getValueType()) {
+            case DOUBLE -> {
+                type = TYPE_DOUBLE;
+                bits = Double.doubleToRawLongBits(row.getValueDouble());
+            }
+            case LONG -> {
+                type = TYPE_LONG;
+                bits = row.getValueLong();
+            }
+            case BOOLEAN -> {
+                type = TYPE_BOOLEAN;
+                bits = row.isValueBoolean() ? 1 : 0;
+            }
+            case STRING -> {
+                type = TYPE_STRING;
+                text = row.getValueString();
+            }
+            default -> {}
+        }
+        return new CompactMeasurement(
+                row.getId(),
+                row.getParameterId(),
+                row.getClientTimeMicros(),
+                row.getSourceTimeMicros(),
+                row.getServerTimeMicros(),
+                row.getOpcStatusCode(),
+                type,
+                bits,
+                text);
+    }
+
+    /**
+     * @return the number of bytes written
+     */
+    public int writeTo(DataOutput out) throws IOException {
+        out.writeLong(id);
+        out.writeLong(parameterId);
+        out.writeLong(clientTime);
+        out.writeLong(sourceTime);
+        out.writeLong(serverTime);
+        out.writeLong(opcStatusCode);
+        out.writeByte(type);
+        if (type == TYPE_STRING) {
+            var bytes = text.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            return FIXED_SIZE + 4 + bytes.length;
+        } else {
+            out.writeLong(bits);
+            return FIXED_SIZE + 8;
+        }
+    }
+
+    public static CompactMeasurement readFrom(DataInput in) throws IOException {
+        long id = in.readLong();
+        long parameterId = in.readLong();
+        long clientTime = in.readLong();
+        long sourceTime = in.readLong();
+        long serverTime = in.readLong();
+        long opcStatusCode = in.readLong();
+        byte type = in.readByte();
+        long bits = 0;
+        String text = null;
+        if (type == TYPE_STRING) {
+            var bytes = new byte[in.readInt()];
+            in.readFully(bytes);
+            text = new String(bytes, StandardCharsets.UTF_8);
+        } else {
+            bits = in.readLong();
+        }
+        return new CompactMeasurement(
+                id, parameterId, clientTime, sourceTime, serverTime, opcStatusCode, type, bits, text);
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.replication;
+
+import java.util.List;
+import java.util.Optional;
+
+/**
+ * A target that all measurements are replicated to, e.g. InfluxDB or files for downstream jobs. Every Spring bean that
+ * implements this interface is picked up by the {@link ReplicationService}, which gives each sink its own durable
+ * cursor, queue and worker thread, so that a slow sink holds back neither the other sinks nor the recording.
+ *
+ * Sinks are only ever called from their worker thread (and, if {@link #getBackfillParallelism()} is greater than 1,
+ * from the backfill threads). Delivery is at-least-once: after a crash, measurements that were written but not yet
+ * reported as durable are written again. The same applies when {@link #write(List)} or {@link #flush()} throws: the
+ * sink should discard whatever the failed call left behind, as all measurements after the last durable id are written
+ * again.
+ */
+public interface MeasurementSink {
+    /**
+     * A unique, stable name, used for the cursor in the Replication_Checkpoint table and as the metrics tag.
+     */
+    String getName();
+
+    /**
+     * Writes the measurements, which are ordered by id.
+     *
+     * @return the id up to which all measurements passed to this sink so far are durably stored. Sinks that store
+     *         every batch before returning return the highest id of the batch; sinks that buffer (e.g. in a file that
+     *         only becomes readable when it is closed) return the last id of the data that has been made durable.
+     */
+    long write(List<CompactMeasurement> measurements) throws Exception;
+
+    /**
+     * Called when no new measurements arrived for a while, to make buffered measurements durable.
+     *
+     * @return like {@link #write(List)}, or 0 if nothing was made durable
+     */
+    default long flush() throws Exception {
+        return 0;
+    }
+
+    /**
+     * The number of chunks that are written concurrently during a backfill. Values greater than 1 are only allowed for
+     * sinks that store every batch durably before {@link #write(List)} returns and do not depend on the order of
+     * batches.
+     */
+    default int getBackfillParallelism() {
+        return 1;
+    }
+
+    /**
+     * For sinks that existed before replication cursors were introduced: the position to start from if the sink has no
+     * cursor yet. Only called once.
+     */
+    default Optional<Long> getInitialPosition() {
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.replication;
+
+import com.productionpilot.db.timescale.entities.ReplicationCheckpoint;
+import com.productionpilot.db.timescale.repository.ReplicationCheckpointRepository;
+import java.util.Optional;
+import java.util.function.Supplier;
+import lombok.Getter;
+import lombok.Synchronized;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The durable high-water mark of the replication to one sink: all measurements with an id up to and including the
+ * cursor have been reported as durable by the sink. Stored in the Replication_Checkpoint table, so that reading it on
+ * startup is a single row lookup.
+ */
+@Slf4j
+class ReplicationCursor {
+    @Getter
+    private final String name;
+
+    private final ReplicationCheckpointRepository checkpointRepository;
+    private final Supplier<Optional<Long>> initialPosition;
+
+    private Long position;
+    private boolean loaded = false;
+
+    /**
+     * @param initialPosition queried once if there is no checkpoint row yet, see
+     *                        {@link MeasurementSink#getInitialPosition()}
+     */
+    ReplicationCursor(
+            String name,
+            ReplicationCheckpointRepository checkpointRepository,
+            Supplier<Optional<Long>> initialPosition) {
+        this.name = name;
+        this.checkpointRepository = checkpointRepository;
+        this.initialPosition = initialPosition;
+    }
+
+    /**
+     * Returns the id of the last measurement that is known to be in the sink, or empty if nothing was replicated yet.
+     */
+    @Synchronized
+    public Optional<Long> get() {
+        if (!loaded) {
+            position = checkpointRepository
+                    .findById(name)
+                    .map(ReplicationCheckpoint::getLastMeasurementId)
+                    .orElseGet(this::initialize);
+            loaded = true;
+        }
+        return Optional.ofNullable(position);
+    }
+
+    /**
+     * Moves the cursor forward to the given measurement id. Must only be called after the sink has confirmed that all
+     * measurements up to that id are durable. Has no effect if the cursor is already further ahead.
+     */
+    @Synchronized
+    public void advance(long lastMeasurementId) {
+        var current = get();
+        if (lastMeasurementId <= 0 || current.isPresent() && current.get() >= lastMeasurementId) {
+            return;
+        }
+        save(lastMeasurementId);
+        position = lastMeasurementId;
+    }
+
+    private Long initialize() {
+        var initial = initialPosition.get();
+        if (initial.isPresent()) {
+            log.info("Initializing the replication cursor of {} at measurement id {}", name, initial.get());
+            save(initial.get());
+        }
+        return initial.orElse(null);
+    }
+
+    private void save(long lastMeasurementId) {
+        var checkpoint = checkpointRepository.findById(name).orElseGet(() -> {
+            var newCheckpoint = new ReplicationCheckpoint();
+            newCheckpoint.setName(name);
+            return newCheckpoint;
+        });
+        checkpoint.setLastMeasurementId(lastMeasurementId);
+        checkpointRepository.save(checkpoint);
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.replication;
+
+import com.productionpilot.db.store.MeasurementStore;
+import com.productionpilot.db.timescale.entities.Measurement;
+import com.productionpilot.db.timescale.repository.ReplicationCheckpointRepository;
+import com.productionpilot.db.timescale.service.MeasurementStreamService;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+/**
+ * Replicates all measurements to every configured {@link MeasurementSink}, each with its own {@link SinkReplicator}.
+ * New measurements are received from the {@link MeasurementStreamService} once committed, converted to
+ * {@link CompactMeasurement}s once and handed to all replicators without blocking.
+ */
+@Slf4j
+@Service
+public class ReplicationService {
+    private static final int MAX_BATCH_SIZE = 1000;
+
+    private final ObjectProvider<MeasurementSink> sinks;
+    private final MeasurementStore measurementStore;
+    private final ReplicationCheckpointRepository checkpointRepository;
+    private final MeterRegistry meterRegistry;
+    private final MeasurementStreamService measurementStreamService;
+
+    private final int queueCapacity;
+    private final Path spillDirectory;
+    private final long maxSpillBytes;
+    private final int backfillChunkSize;
+    private final long flushIntervalMillis;
+
+    private final List<SinkReplicator> replicators = new ArrayList<>();
+
+    public ReplicationService(
+            ObjectProvider<MeasurementSink> sinks,
+            MeasurementStore measurementStore,
+            ReplicationCheckpointRepository checkpointRepository,
+            MeterRegistry meterRegistry,
+            MeasurementStreamService measurementStreamService,
+            @Value("${com.productionpilot.replication.queue-capacity:100000}") int queueCapacity,
+            @Value("${com.productionpilot.replication.spill-directory:replication-spill}") String spillDirectory,
+            @Value("${com.productionpilot.replication.max-spill-size-mb:1024}") long maxSpillSizeMb,
+            @Value("${com.productionpilot.replication.backfill.chunk-size:10000}") int backfillChunkSize,
+            @Value("${com.productionpilot.replication.flush-interval-ms:10000}") long flushIntervalMillis) {
+        this.sinks = sinks;
+        this.measurementStore = measurementStore;
+        this.checkpointRepository = checkpointRepository;
+        this.meterRegistry = meterRegistry;
+        this.measurementStreamService = measurementStreamService;
+        this.queueCapacity = queueCapacity;
+        this.spillDirectory = Path.of(spillDirectory).toAbsolutePath();
+        this.maxSpillBytes = maxSpillSizeMb * 1024 * 1024;
+        this.backfillChunkSize = backfillChunkSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    @PostConstruct
+    public void init() throws IOException {
+        var names = new HashSet<String>();
+        for (var sink : sinks.orderedStream().toList()) {
+            if (!names.add(sink.getName())) {
+                throw new IllegalStateException("Duplicate measurement sink name: " + sink.getName());
+            }
+            var cursor = new ReplicationCursor(sink.getName(), checkpointRepository, sink::getInitialPosition);
+            var replicator = new SinkReplicator(
+                    sink,
+                    cursor,
+                    new SinkBackfill(sink, cursor, measurementStore, backfillChunkSize),
+                    new SpillingReplicationQueue(queueCapacity, maxSpillBytes, spillDirectory.resolve(sink.getName())),
+                    MAX_BATCH_SIZE,
+                    flushIntervalMillis);
+            replicator.registerMetrics(meterRegistry);
+            replicators.add(replicator);
+        }
+        if (!replicators.isEmpty()) {
+            log.info("Replicating measurements to {}", names);
+            measurementStreamService.subscribe(this::onMeasurementsCommitted);
+        }
+        replicators.forEach(SinkReplicator::start);
+    }
+
+    /**
+     * Returns the id up to which all measurements are durable in every sink, or {@link Long#MAX_VALUE} if there are no
+     * sinks. Measurements up to this id are no longer needed by any backfill.
+     */
+    public long getReplicatedUpTo() {
+        return replicators.stream()
+                .mapToLong(SinkReplicator::getReplicatedUpTo)
+                .min()
+                .orElse(Long.MAX_VALUE);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        for (var replicator : replicators) {
+            try {
+                replicator.stop();
+            } catch (IOException e) {
+                log.error("Could not stop the replication to {}", replicator.getSink().getName(), e);
+            }
+        }
+    }
+
+    private void onMeasurementsCommitted(List<Measurement> measurements) {
+        for (var entity : measurements) {
+            var measurement = CompactMeasurement.of(entity);
+            for (var replicator : replicators) {
+                replicator.offer(measurement);
+            }
+        }
+    }
+}
@@ -0,0 +1,191 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.replication;
+
+import com.productionpilot.db.store.MeasurementStore;
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Replicates all measurements that are not in a sink yet, e.g. after the sink was configured for an existing
+ * installation or after an outage.
+ *
+ * The {@link MeasurementStore} is read in id order, one chunk per query (keyset pagination), so that no long-running
+ * snapshot is held open. Depending on {@link MeasurementSink#getBackfillParallelism()}, the chunks are
+ * written by several threads in parallel. The {@link ReplicationCursor} is only advanced once a chunk and all chunks
+ * before it have been written, so that a restart continues without gaps.
+ */
+@Slf4j
+class SinkBackfill {
+    private static final Duration PROGRESS_LOG_INTERVAL = Duration.ofSeconds(10);
+
+    private final MeasurementSink sink;
+    private final ReplicationCursor cursor;
+    private final MeasurementStore measurementStore;
+    private final int chunkSize;
+
+    SinkBackfill(MeasurementSink sink, ReplicationCursor cursor, MeasurementStore measurementStore, int chunkSize) {
+        this.sink = sink;
+        this.cursor = cursor;
+        this.measurementStore = measurementStore;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Replicates all measurements after the cursor up to the newest measurement that exists when this method is
+     * called. Blocks until done.
+     *
+     * @return the id of the last measurement that was passed to the sink, or the cursor if nothing was written
+     */
+    long backfill() throws Exception {
+        long startId = cursor.get().orElse(0L);
+        long endId = measurementStore.getLastId();
+        if (startId >= endId) {
+            log.info("Replication to {} is up to date (last measurement id {})", sink.getName(), startId);
+            return startId;
+        }
+        int threads = Math.max(1, sink.getBackfillParallelism());
+        log.info(
+                "Replicating measurements {} to {} to {}, using {} writer threads",
+                startId + 1,
+                endId,
+                sink.getName(),
+                threads);
+        var threadNumber = new AtomicLong();
+        var writers = Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "Backfill-" + sink.getName() + "-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        try {
+            long lastWrittenId = backfill(startId, endId, threads, writers);
+            cursor.advance(sink.flush());
+            return lastWrittenId;
+        } finally {
+            writers.shutdownNow();
+        }
+    }
+
+    private long backfill(long startId, long endId, int threads, ExecutorService writers) throws Exception {
+        var progress = new Progress(startId, endId);
+        // Chunks in the order they were read; the cursor advances over the completed prefix of this queue
+        var pending = new ArrayDeque<Chunk>();
+        // Bounds the number of chunks held in memory
+        var inFlight = new Semaphore(threads * 2);
+        long afterId = startId;
+        while (afterId < endId) {
+            inFlight.acquire();
+            var measurements = new ArrayList<CompactMeasurement>(chunkSize);
+            measurementStore.forEachAfterId(afterId, chunkSize, row -> measurements.add(CompactMeasurement.of(row)));
+            if (measurements.isEmpty()) {
+                inFlight.release();
+                break;
+            }
+            afterId = measurements.get(measurements.size() - 1).id();
+            var chunk = new Chunk(afterId, measurements.size());
+            chunk.future = CompletableFuture.supplyAsync(
+                    () -> {
+                        try {
+                            return writeChunk(measurements);
+                        } finally {
+                            inFlight.release();
+                        }
+                    },
+                    writers);
+            pending.add(chunk);
+            advanceCursor(pending, progress, false);
+        }
+        advanceCursor(pending, progress, true);
+        progress.logNow();
+        return afterId;
+    }
+
+    private long writeChunk(List<CompactMeasurement> measurements) {
+        try {
+            return sink.write(measurements);
+        } catch (Exception e) {
+            throw new CompletionException(e);
+        }
+    }
+
+    /**
+     * Removes the completed chunks from the head of the queue and advances the cursor to the durable position reported
+     * for the last of them. If wait is true, waits for all chunks to complete. A failed chunk aborts the backfill; it
+     * is retried by the caller.
+     */
+    private void advanceCursor(ArrayDeque<Chunk> pending, Progress progress, boolean wait) throws Exception {
+        long durableUpTo = 0;
+        while (!pending.isEmpty() && (wait || pending.peek().future.isDone())) {
+            var chunk = pending.poll();
+            try {
+                durableUpTo = chunk.future.get();
+            } catch (ExecutionException e) {
+                cursor.advance(durableUpTo);
+                pending.forEach(remaining -> remaining.future.cancel(false));
+                var cause = e.getCause() instanceof CompletionException ? e.getCause().getCause() : e.getCause();
+                throw new IllegalStateException(
+                        "Could not write measurements up to id " + chunk.lastId + " to " + sink.getName(), cause);
+            }
+            progress.add(chunk.size, chunk.lastId);
+        }
+        cursor.advance(durableUpTo);
+        progress.logPeriodically();
+    }
+
+    private static class Chunk {
+        private final long lastId;
+        private final int size;
+        private CompletableFuture<Long> future;
+
+        private Chunk(long lastId, int size) {
+            this.lastId = lastId;
+            this.size = size;
+        }
+    }
+
+    private class Progress {
+        private final long startId, endId;
+        private final long startNanos = System.nanoTime();
+        private long rows = 0;
+        private long lastId;
+        private long lastLogNanos = startNanos;
+
+        private Progress(long startId, long endId) {
+            this.startId = startId;
+            this.endId = endId;
+            this.lastId = startId;
+        }
+
+        private void add(int chunkRows, long chunkLastId) {
+            rows += chunkRows;
+            lastId = chunkLastId;
+        }
+
+        private void logPeriodically() {
+            if (System.nanoTime() - lastLogNanos >= PROGRESS_LOG_INTERVAL.toNanos()) {
+                logNow();
+            }
+        }
+
+        private void logNow() {
+            lastLogNanos = System.nanoTime();
+            double seconds = (lastLogNanos - startNanos) / 1e9;
+            double percent = 100.0 * (lastId - startId) / Math.max(1, endId - startId);
+            log.info(
+                    "Backfill of {}: {} measurements written, up to id {} of {} ({}%), {} measurements/s",
+                    sink.getName(),
+                    rows,
+                    lastId,
+                    endId,
+                    String.format("%.1f", percent),
+                    Math.round(rows / Math.max(seconds, 0.001)));
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.replication;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.io.IOException;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * Replicates measurements to a single {@link MeasurementSink} on its own thread: first all measurements after the
+ * sink's cursor (see {@link SinkBackfill}), then every new measurement from its queue.
+ *
+ * New measurements are buffered in a {@link SpillingReplicationQueue}, so that a slow or unavailable sink cannot
+ * exhaust the heap. A failed write or flush may leave the sink without the measurements it had not made durable yet,
+ * so instead of retrying the same batch, everything after the cursor is backfilled from the database again, with
+ * exponential backoff. If the queue overflows, the dropped measurements are backfilled from the database once the queue
+ * has been drained.
+ */
+@Slf4j
+class SinkReplicator {
+    private static final Duration MIN_RETRY_DELAY = Duration.ofSeconds(1), MAX_RETRY_DELAY = Duration.ofMinutes(1);
+
+    @Getter
+    private final MeasurementSink sink;
+
+    private final ReplicationCursor cursor;
+    private final SinkBackfill backfill;
+    private final SpillingReplicationQueue queue;
+    private final int maxBatchSize;
+    private final long flushIntervalMillis;
+
+    private final AtomicLong lastQueuedId = new AtomicLong();
+    // The last id written by the preceding backfill, or 0 if the next batch was not queued during a backfill
+    private long backfilledUpTo;
+    // Client time (epoch milliseconds) of the oldest measurement that is being written, or 0 if the queue is empty
+    private volatile long pendingSince = 0;
+
+    private Thread thread;
+
+    SinkReplicator(
+            MeasurementSink sink,
+            ReplicationCursor cursor,
+            SinkBackfill backfill,
+            SpillingReplicationQueue queue,
+            int maxBatchSize,
+            long flushIntervalMillis) {
+        this.sink = sink;
+        this.cursor = cursor;
+        this.backfill = backfill;
+        this.queue = queue;
+        this.maxBatchSize = maxBatchSize;
+        this.flushIntervalMillis = flushIntervalMillis;
+    }
+
+    /**
+     * Adds a new measurement to the queue. Never blocks.
+     */
+    void offer(CompactMeasurement measurement) {
+        lastQueuedId.accumulateAndGet(measurement.id(), Math::max);
+        queue.offer(measurement);
+    }
+
+    /**
+     * Returns the id up to which all measurements are durable in the sink, or 0 if nothing was replicated yet.
+     */
+    long getReplicatedUpTo() {
+        return cursor.get().orElse(0L);
+    }
+
+    void registerMetrics(MeterRegistry meterRegistry) {
+        registerGauge(meterRegistry, "queue.depth", "Measurements waiting in memory", queue::getMemorySize);
+        registerGauge(
+                meterRegistry, "spill.measurements", "Measurements waiting in the spill file", queue::getSpilledCount);
+        registerGauge(meterRegistry, "spill.bytes", "Size of the spill file", queue::getSpilledBytes);
+        registerGauge(
+                meterRegistry,
+                "lag.measurements",
+                "Measurements not yet confirmed as durable by the sink",
+                () -> Math.max(0, lastQueuedId.get() - cursor.get().orElse(0L)));
+        registerGauge(
+                meterRegistry,
+                "lag.seconds",
+                "Age of the oldest measurement not yet written to the sink",
+                () -> pendingSince == 0 ? 0 : (System.currentTimeMillis() - pendingSince) / 1000.0);
+    }
+
+    void start() {
+        thread = new Thread(this::run);
+        thread.setName("Replication-" + sink.getName());
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    void stop() throws IOException {
+        if (thread != null) {
+            thread.interrupt();
+        }
+        queue.close();
+    }
+
+    private void run() {
+        try {
+            // Replicate previously recorded measurements
+            backfilledUpTo = withRetry("backfill", backfill::backfill);
+            // Replicate new measurements
+            while (true) {
+                var batch = queue.takeBatch(maxBatchSize, flushIntervalMillis);
+                if (!batch.isEmpty()) {
+                    write(batch);
+                } else if (queue.takeOverflow()) {
+                    // The dropped measurements are in the database
+                    backfilledUpTo = withRetry("backfill", backfill::backfill);
+                } else {
+                    writeOrBackfill("flush", sink::flush);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.info("Replication to {} interrupted, stopping replication", sink.getName());
+        } catch (IOException e) {
+            log.error("Could not read the spill file of {}, stopping replication", sink.getName(), e);
+        }
+    }
+
+    private void write(List<CompactMeasurement> batch) throws InterruptedException {
+        // Skip measurements that were queued while the backfill ran and were already written by it. Only the first
+        // batch after a backfill is filtered: ids are not committed in order, so a later batch may contain measurements
+        // with smaller ids that the backfill could not see yet.
+        long skipUpTo = backfilledUpTo;
+        backfilledUpTo = 0;
+        var newMeasurements = batch.stream().filter(m -> m.id() > skipUpTo).toList();
+        if (newMeasurements.isEmpty()) {
+            return;
+        }
+        pendingSince = newMeasurements.get(0).clientTime() / 1000;
+        writeOrBackfill("write", () -> sink.write(newMeasurements));
+        if (queue.isEmpty()) {
+            pendingSince = 0;
+        }
+    }
+
+    /**
+     * Runs a write or flush of the sink and advances the cursor. If it fails, all measurements after the cursor are
+     * written again by a backfill, which also covers the measurements of the failed call.
+     */
+    private void writeOrBackfill(String operation, Callable<Long> action) throws InterruptedException {
+        try {
+            cursor.advance(action.call());
+        } catch (InterruptedException e) {
+            throw e;
+        } catch (Exception e) {
+            log.warn(
+                    "Replication {} to {} failed, writing all measurements after id {} again",
+                    operation,
+                    sink.getName(),
+                    cursor.get().orElse(0L),
+                    e);
+            backfilledUpTo = withRetry("backfill", backfill::backfill);
+        }
+    }
+
+    private long withRetry(String operation, Callable<Long> action) throws InterruptedException {
+        var delay = MIN_RETRY_DELAY;
+        while (true) {
+            try {
+                return action.call();
+            } catch (InterruptedException e) {
+                throw e;
+            } catch (Exception e) {
+                log.warn(
+                        "Replication {} to {} failed, retrying in {} s",
+                        operation,
+                        sink.getName(),
+                        delay.toSeconds(),
+                        e);
+                Thread.sleep(delay.toMillis());
+                var next = delay.multipliedBy(2);
+                delay = next.compareTo(MAX_RETRY_DELAY) > 0 ? MAX_RETRY_DELAY : next;
+            }
+        }
+    }
+
+    private void registerGauge(MeterRegistry meterRegistry, String name, String description, Supplier<Number> value) {
+        Gauge.builder("productionpilot.replication." + name, value)
+                .tag("sink", sink.getName())
+                .description(description)
+                .register(meterRegistry);
+    }
+}
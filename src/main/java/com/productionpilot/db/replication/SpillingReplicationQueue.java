@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.replication;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * A FIFO queue of measurements that are waiting to be replicated, with bounded memory usage. Up to
+ * {@code memoryCapacity} measurements are held in memory; once that is full, further measurements are appended to a
+ * spill file instead, until the consumer has caught up and read the whole file. Once the spill file reaches
+ * {@code maxSpillBytes} as well, measurements are dropped and the queue is marked as overflowed.
+ *
+ * The spill file is only a buffer and is deleted when the queue is created: measurements that were lost from the queue
+ * (by an overflow or a restart) are still in the database and have to be backfilled by the consumer. If the spill file
+ * cannot be written, it may end in a torn record, so it is discarded as a whole and the queue is marked as overflowed
+ * as well.
+ */
+@Slf4j
+public class SpillingReplicationQueue implements Closeable {
+    private final int memoryCapacity;
+    private final long maxSpillBytes;
+    private final Path spillFile;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+
+    private final ArrayDeque<CompactMeasurement> memory = new ArrayDeque<>();
+    private DataOutputStream spillWriter;
+    private DataInputStream spillReader;
+    private long spilledCount = 0, spillReadCount = 0;
+    private long spilledBytes = 0;
+    private boolean overflowed = false;
+    private long droppedCount = 0;
+
+    public SpillingReplicationQueue(int memoryCapacity, long maxSpillBytes, Path spillDirectory) throws IOException {
+        this.memoryCapacity = memoryCapacity;
+        this.maxSpillBytes = maxSpillBytes;
+        Files.createDirectories(spillDirectory);
+        this.spillFile = spillDirectory.resolve("replication-queue.spill");
+        Files.deleteIfExists(spillFile);
+    }
+
+    /**
+     * Adds the measurement to the end of the queue. Never blocks.
+     *
+     * @return false if the queue has overflowed and the measurement was dropped
+     */
+    public boolean offer(CompactMeasurement measurement) {
+        lock.lock();
+        try {
+            if (overflowed) {
+                droppedCount++;
+                return false;
+            }
+            // Once spilling has started, everything goes to the spill file until it is drained, to preserve the order
+            if (spillWriter == null && memory.size() < memoryCapacity) {
+                memory.add(measurement);
+            } else if (!spill(measurement)) {
+                overflowed = true;
+                droppedCount++;
+                return false;
+            }
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Removes up to maxSize measurements from the head of the queue, waiting up to timeoutMillis for at least one to
+     * become available. Returns an empty list on timeout or if the queue has overflowed and all measurements before the
+     * overflow have been taken, see {@link #takeOverflow()}.
+     */
+    public List<CompactMeasurement> takeBatch(int maxSize, long timeoutMillis)
+            throws InterruptedException, IOException {
+        lock.lockInterruptibly();
+        try {
+            long remainingNanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+            while (isEmpty() && !overflowed && remainingNanos > 0) {
+                remainingNanos = notEmpty.awaitNanos(remainingNanos);
+            }
+            if (isEmpty()) {
+                return List.of();
+            }
+            var batch = new ArrayList<CompactMeasurement>((int) Math.min(maxSize, size()));
+            while (batch.size() < maxSize && !memory.isEmpty()) {
+                batch.add(memory.poll());
+            }
+            if (batch.size() < maxSize && spillReadCount < spilledCount) {
+                // Make sure everything that was counted has actually reached the file
+                try {
+                    spillWriter.flush();
+                } catch (IOException e) {
+                    discardSpill(e);
+                }
+            }
+            while (batch.size() < maxSize && spillReadCount < spilledCount) {
+                batch.add(readSpilled());
+            }
+            if (spillWriter != null && spillReadCount == spilledCount) {
+                closeSpill();
+            }
+            return batch;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns true if the queue has overflowed and all measurements before the overflow have been taken. This resets
+     * the overflow mark, so that new measurements are accepted again; the caller is expected to backfill the dropped
+     * measurements.
+     */
+    public boolean takeOverflow() {
+        lock.lock();
+        try {
+            if (!overflowed || !isEmpty()) {
+                return false;
+            }
+            log.warn("Replication queue overflowed, {} measurements were dropped", droppedCount);
+            overflowed = false;
+            droppedCount = 0;
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long size() {
+        lock.lock();
+        try {
+            return memory.size() + spilledCount - spillReadCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public boolean isEmpty() {
+        return size() == 0;
+    }
+
+    public int getMemorySize() {
+        lock.lock();
+        try {
+            return memory.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getSpilledCount() {
+        lock.lock();
+        try {
+            return spilledCount - spillReadCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Returns the size of the spill file, including measurements that have already been read from it.
+     */
+    public long getSpilledBytes() {
+        lock.lock();
+        try {
+            return spilledBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private boolean spill(CompactMeasurement measurement) {
+        if (spilledBytes >= maxSpillBytes) {
+            return false;
+        }
+        try {
+            if (spillWriter == null) {
+                log.info("Replication queue is full, spilling to {}", spillFile);
+                spillWriter = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(spillFile)));
+            }
+            spilledBytes += measurement.writeTo(spillWriter);
+            spilledCount++;
+            return true;
+        } catch (IOException e) {
+            discardSpill(e);
+            return false;
+        }
+    }
+
+    /**
+     * Drops the spill file after a write error and marks the queue as overflowed, so that the spilled measurements are
+     * backfilled. Nothing is appended to the file after an error, as it may end in a partially written record.
+     */
+    private void discardSpill(IOException cause) {
+        log.error(
+                "Could not write to the replication spill file {}, dropping {} spilled measurements",
+                spillFile,
+                spilledCount - spillReadCount,
+                cause);
+        droppedCount += spilledCount - spillReadCount;
+        overflowed = true;
+        for (var stream : new Closeable[] {spillWriter, spillReader}) {
+            try {
+                if (stream != null) {
+                    stream.close();
+                }
+            } catch (IOException e) {
+                log.debug("Could not close the replication spill file {}", spillFile, e);
+            }
+        }
+        spillWriter = null;
+        spillReader = null;
+        spilledCount = spillReadCount = spilledBytes = 0;
+        try {
+            Files.deleteIfExists(spillFile);
+        } catch (IOException e) {
+            log.warn("Could not delete the replication spill file {}", spillFile, e);
+        }
+    }
+
+    private CompactMeasurement readSpilled() throws IOException {
+        if (spillReader == null) {
+            spillReader = new DataInputStream(new BufferedInputStream(Files.newInputStream(spillFile)));
+        }
+        var measurement = CompactMeasurement.readFrom(spillReader);
+        spillReadCount++;
+        return measurement;
+    }
+
+    private void closeSpill() throws IOException {
+        log.info("Replication spill file drained, {} measurements ({} bytes)", spilledCount, spilledBytes);
+        spillWriter.close();
+        if (spillReader != null) {
+            spillReader.close();
+        }
+        spillWriter = null;
+        spillReader = null;
+        spilledCount = spillReadCount = spilledBytes = 0;
+        Files.deleteIfExists(spillFile);
+    }
+
+    @Override
+    public void close() throws IOException {
+        lock.lock();
+        try {
+            memory.clear();
+            if (spillWriter != null) {
+                closeSpill();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+}
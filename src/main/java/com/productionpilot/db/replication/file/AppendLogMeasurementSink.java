@@ -0,0 +1,178 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.replication.file;
+
+import static com.productionpilot.util.Util.fromEpochMicros;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.productionpilot.db.replication.CompactMeasurement;
+import com.productionpilot.db.replication.MeasurementSink;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Appends all measurements as newline-delimited JSON to one file per day (UTC), e.g.
+ * {@code measurements-2023-01-31.ndjson}, for downstream jobs that tail these files. Every batch is forced to disk
+ * before it is reported as durable.
+ *
+ * A line that was only partially written when the application crashed is truncated on startup. Measurements may appear
+ * twice after a crash (see {@link MeasurementSink}), consumers should deduplicate by id.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "com.productionpilot.replication.append-log", name = "directory")
+public class AppendLogMeasurementSink implements MeasurementSink {
+    private final Path directory;
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 * 1024);
+
+    private LocalDate currentDate;
+    private FileChannel currentFile;
+
+    public AppendLogMeasurementSink(@Value("${com.productionpilot.replication.append-log.directory}") String directory)
+            throws IOException {
+        this.directory = Path.of(directory).toAbsolutePath();
+        Files.createDirectories(this.directory);
+    }
+
+    @Override
+    public String getName() {
+        return "append-log";
+    }
+
+    @Override
+    public synchronized long write(List<CompactMeasurement> measurements) throws IOException {
+        if (measurements.isEmpty()) {
+            return 0;
+        }
+        buffer.reset();
+        try (var json = jsonFactory.createGenerator(buffer)) {
+            json.setRootValueSeparator(null);
+            for (var measurement : measurements) {
+                writeLine(json, measurement);
+            }
+        }
+        var file = getFile(LocalDate.now(ZoneOffset.UTC));
+        long start = file.position();
+        try {
+            var bytes = ByteBuffer.wrap(buffer.toByteArray());
+            while (bytes.hasRemaining()) {
+                file.write(bytes);
+            }
+            file.force(false);
+        } catch (IOException | RuntimeException e) {
+            discardFailedWrite(file, start, e);
+            throw e;
+        }
+        return measurements.get(measurements.size() - 1).id();
+    }
+
+    /**
+     * Truncates the file back to where the failed batch started, so that the retry does not append after a partially
+     * written batch. If that fails as well, the file is closed; it is truncated to its last complete line when it is
+     * opened again.
+     */
+    private void discardFailedWrite(FileChannel file, long start, Exception cause) {
+        try {
+            file.truncate(start);
+            file.position(start);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            try {
+                file.close();
+            } catch (IOException closeException) {
+                cause.addSuppressed(closeException);
+            }
+            currentFile = null;
+        }
+    }
+
+    private static void writeLine(JsonGenerator json, CompactMeasurement measurement) throws IOException {
+        json.writeStartObject();
+        json.writeNumberField("id", measurement.id());
+        json.writeNumberField("parameter_id", measurement.parameterId());
+        json.writeStringField("client_time", fromEpochMicros(measurement.clientTime()).toString());
+        json.writeStringField("source_time", fromEpochMicros(measurement.sourceTime()).toString());
+        json.writeStringField("server_time", fromEpochMicros(measurement.serverTime()).toString());
+        json.writeNumberField("opc_status_code", measurement.opcStatusCode());
+        json.writeFieldName("value");
+        switch (measurement.type()) {
+            case CompactMeasurement.TYPE_DOUBLE -> {
+                double value = Double.longBitsToDouble(measurement.bits());
+                if (Double.isFinite(value)) {
+                    json.writeNumber(value);
+                } else {
+                    // Not representable in JSON
+                    json.writeString(Double.toString(value));
+                }
+            }
+            case CompactMeasurement.TYPE_LONG -> json.writeNumber(measurement.bits());
+            case CompactMeasurement.TYPE_BOOLEAN -> json.writeBoolean(measurement.bits() != 0);
+            case CompactMeasurement.TYPE_STRING -> json.writeString(measurement.text());
+            default -> json.writeNull();
+        }
+        json.writeEndObject();
+        json.writeRaw('\n');
+    }
+
+    private FileChannel getFile(LocalDate date) throws IOException {
+        if (currentFile != null && date.equals(currentDate)) {
+            return currentFile;
+        }
+        if (currentFile != null) {
+            currentFile.close();
+        }
+        var path = directory.resolve("measurements-" + date + ".ndjson");
+        currentFile = FileChannel.open(
+                path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.READ);
+        truncateIncompleteLine(currentFile, path);
+        currentFile.position(currentFile.size());
+        currentDate = date;
+        return currentFile;
+    }
+
+    /**
+     * Removes a line that was only partially written before a crash, so that the file ends with a newline.
+     */
+    private static void truncateIncompleteLine(FileChannel file, Path path) throws IOException {
+        long size = file.size();
+        var oneByte = ByteBuffer.allocate(1);
+        long end = size;
+        while (end > 0) {
+            oneByte.clear();
+            file.read(oneByte, end - 1);
+            if (oneByte.get(0) == '\n') {
+                break;
+            }
+            end--;
+        }
+        if (end < size) {
+            log.warn("Truncating an incomplete line ({} bytes) at the end of {}", size - end, path);
+            file.truncate(end);
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (currentFile != null) {
+            currentFile.close();
+            currentFile = null;
+        }
+    }
+}
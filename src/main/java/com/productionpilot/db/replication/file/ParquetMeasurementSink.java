@@ -0,0 +1,224 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.replication.file;
+
+import static org.apache.parquet.schema.LogicalTypeAnnotation.TimeUnit.MICROS;
+import static org.apache.parquet.schema.LogicalTypeAnnotation.stringType;
+import static org.apache.parquet.schema.LogicalTypeAnnotation.timestampType;
+import static org.apache.parquet.schema.PrimitiveType.PrimitiveTypeName.*;
+
+import com.productionpilot.db.replication.CompactMeasurement;
+import com.productionpilot.db.replication.MeasurementSink;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.Duration;
+import java.util.List;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.SimpleGroupFactory;
+import org.apache.parquet.hadoop.ParquetFileWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.example.ExampleParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+import org.apache.parquet.io.LocalOutputFile;
+import org.apache.parquet.schema.MessageType;
+import org.apache.parquet.schema.Types;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Writes all measurements to Parquet files, e.g. for analytics jobs. A file is closed once it contains
+ * {@code rows-per-file} measurements or, when there are no new measurements, once it is older than
+ * {@code max-file-age-minutes}. Only then it is renamed to {@code measurements-<first id>-<last id>.parquet} and its
+ * measurements are reported as durable; a file that was still open when the application stopped is deleted on the
+ * next start, and its measurements are written again. Likewise, a failed write or close deletes the open file, and the
+ * replication writes its measurements again after the last durable id.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "com.productionpilot.replication.parquet", name = "directory")
+public class ParquetMeasurementSink implements MeasurementSink {
+    private static final String TEMP_SUFFIX = ".parquet.tmp";
+
+    private static final MessageType SCHEMA = Types.buildMessage()
+            .required(INT64)
+            .named("id")
+            .required(INT64)
+            .named("parameter_id")
+            .required(INT64)
+            .as(timestampType(true, MICROS))
+            .named("client_time")
+            .required(INT64)
+            .as(timestampType(true, MICROS))
+            .named("source_time")
+            .required(INT64)
+            .as(timestampType(true, MICROS))
+            .named("server_time")
+            .required(INT64)
+            .named("opc_status_code")
+            .optional(DOUBLE)
+            .named("value_double")
+            .optional(INT64)
+            .named("value_long")
+            .optional(BOOLEAN)
+            .named("value_boolean")
+            .optional(BINARY)
+            .as(stringType())
+            .named("value_string")
+            .named("measurement");
+
+    private final Path directory;
+    private final long rowsPerFile;
+    private final Duration maxFileAge;
+    private final SimpleGroupFactory groupFactory = new SimpleGroupFactory(SCHEMA);
+
+    private ParquetWriter<Group> writer;
+    private Path tempFile;
+    private long fileFirstId, fileLastId, fileRows, fileOpenedNanos;
+
+    public ParquetMeasurementSink(
+            @Value("${com.productionpilot.replication.parquet.directory}") String directory,
+            @Value("${com.productionpilot.replication.parquet.rows-per-file:1000000}") long rowsPerFile,
+            @Value("${com.productionpilot.replication.parquet.max-file-age-minutes:60}") long maxFileAgeMinutes)
+            throws IOException {
+        this.directory = Path.of(directory).toAbsolutePath();
+        this.rowsPerFile = rowsPerFile;
+        this.maxFileAge = Duration.ofMinutes(maxFileAgeMinutes);
+        Files.createDirectories(this.directory);
+        try (var files = Files.list(this.directory)) {
+            for (var file : files.filter(f -> f.getFileName().toString().endsWith(TEMP_SUFFIX)).toList()) {
+                log.info("Deleting incomplete Parquet file {}", file);
+                Files.delete(file);
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return "parquet";
+    }
+
+    @Override
+    public synchronized long write(List<CompactMeasurement> measurements) throws IOException {
+        long durableUpTo = 0;
+        try {
+            for (var measurement : measurements) {
+                if (writer == null) {
+                    open(measurement.id());
+                }
+                writer.write(toGroup(measurement));
+                fileLastId = measurement.id();
+                fileRows++;
+                if (fileRows >= rowsPerFile) {
+                    durableUpTo = close();
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            abort(e);
+            throw e;
+        }
+        return durableUpTo;
+    }
+
+    @Override
+    public synchronized long flush() throws IOException {
+        if (writer != null && System.nanoTime() - fileOpenedNanos >= maxFileAge.toNanos()) {
+            try {
+                return close();
+            } catch (IOException | RuntimeException e) {
+                abort(e);
+                throw e;
+            }
+        }
+        return 0;
+    }
+
+    private Group toGroup(CompactMeasurement measurement) {
+        var group = groupFactory
+                .newGroup()
+                .append("id", measurement.id())
+                .append("parameter_id", measurement.parameterId())
+                .append("client_time", measurement.clientTime())
+                .append("source_time", measurement.sourceTime())
+                .append("server_time", measurement.serverTime())
+                .append("opc_status_code", measurement.opcStatusCode());
+        switch (measurement.type()) {
+            case CompactMeasurement.TYPE_DOUBLE -> {
+                group.append("value_double", Double.longBitsToDouble(measurement.bits()));
+            }
+            case CompactMeasurement.TYPE_LONG -> group.append("value_long", measurement.bits());
+            case CompactMeasurement.TYPE_BOOLEAN -> group.append("value_boolean", measurement.bits() != 0);
+            case CompactMeasurement.TYPE_STRING -> group.append("value_string", measurement.text());
+            default -> {}
+        }
+        return group;
+    }
+
+    private void open(long firstId) throws IOException {
+        tempFile = directory.resolve("measurements-" + firstId + TEMP_SUFFIX);
+        writer = ExampleParquetWriter.builder(new LocalOutputFile(tempFile))
+                .withType(SCHEMA)
+                .withWriteMode(ParquetFileWriter.Mode.OVERWRITE)
+                .withCompressionCodec(CompressionCodecName.SNAPPY)
+                .withDictionaryEncoding(true)
+                .build();
+        fileFirstId = firstId;
+        fileRows = 0;
+        fileOpenedNanos = System.nanoTime();
+    }
+
+    /**
+     * @return the last id in the closed file
+     */
+    private long close() throws IOException {
+        writer.close();
+        writer = null;
+        var file = directory.resolve("measurements-" + fileFirstId + "-" + fileLastId + ".parquet");
+        Files.move(tempFile, file, StandardCopyOption.ATOMIC_MOVE);
+        log.debug("Wrote {} measurements to {}", fileRows, file);
+        return fileLastId;
+    }
+
+    /**
+     * Deletes the file that was being written when the given exception occurred. Its rows may be incomplete, so they
+     * are not kept for the retry, which starts again after the last durable id.
+     */
+    private void abort(Exception cause) {
+        log.warn("Discarding Parquet file {} with {} measurements after a failed write", tempFile, fileRows);
+        if (writer != null) {
+            try {
+                writer.close();
+            } catch (IOException | RuntimeException e) {
+                cause.addSuppressed(e);
+            }
+            writer = null;
+        }
+        if (tempFile != null) {
+            try {
+                Files.deleteIfExists(tempFile);
+            } catch (IOException e) {
+                cause.addSuppressed(e);
+            }
+        }
+        fileRows = 0;
+        fileLastId = 0;
+    }
+
+    /**
+     * Discards the open file, its measurements are written again after the next start.
+     */
+    @PreDestroy
+    public synchronized void shutdown() throws IOException {
+        if (writer != null) {
+            writer.close();
+            writer = null;
+            Files.deleteIfExists(tempFile);
+        }
+    }
+}
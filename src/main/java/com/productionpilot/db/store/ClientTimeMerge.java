@@ -0,0 +1,86 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.io.IOException;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Merges measurement streams by client time, then by parameter id, holding only the next measurement of each stream.
+ * The streams are expected in client time order; streams in id order also work, as measurements are recorded in client
+ * time order, and a measurement that is out of order is still passed, only at its position in its stream.
+ */
+class ClientTimeMerge {
+    private final PriorityQueue<Source> queue;
+    private final MeasurementRow row = new MeasurementRow();
+
+    ClientTimeMerge(List<Iterator<Measurement>> streams) {
+        queue = new PriorityQueue<>(
+                Math.max(1, streams.size()),
+                Comparator.<Source>comparingLong(source -> source.headTime)
+                        .thenComparingLong(source -> source.head.getParameterId()));
+        for (var stream : streams) {
+            var source = new Source(stream);
+            if (source.advance()) {
+                queue.add(source);
+            }
+        }
+    }
+
+    /**
+     * Passes the merged measurements up to and including the given client time and parameter id to the handler, so
+     * that the stream can be merged with a further one that is in the same order.
+     */
+    void passUpTo(long clientTimeMicros, long parameterId, MeasurementRow.Handler handler) throws IOException {
+        while (!queue.isEmpty()
+                && (queue.peek().headTime < clientTimeMicros
+                        || (queue.peek().headTime == clientTimeMicros
+                                && queue.peek().head.getParameterId() <= parameterId))) {
+            pass(handler);
+        }
+    }
+
+    /**
+     * Passes all remaining measurements to the handler.
+     */
+    void passAll(MeasurementRow.Handler handler) throws IOException {
+        while (!queue.isEmpty()) {
+            pass(handler);
+        }
+    }
+
+    private void pass(MeasurementRow.Handler handler) throws IOException {
+        var source = queue.poll();
+        handler.accept(row.set(source.head));
+        if (source.advance()) {
+            queue.add(source);
+        }
+    }
+
+    private static class Source {
+        private final Iterator<Measurement> stream;
+        private Measurement head;
+        private long headTime;
+
+        private Source(Iterator<Measurement> stream) {
+            this.stream = stream;
+        }
+
+        private boolean advance() {
+            if (!stream.hasNext()) {
+                return false;
+            }
+            head = stream.next();
+            headTime = toEpochMicros(head.getClientTime());
+            return true;
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Downsamples the numeric measurements of a parameter with the Largest-Triangle-Three-Buckets algorithm (Steinarsson,
+ * 2013), which keeps the shape of the curve better than averaging: one measurement is selected per time bucket, the one
+ * that forms the largest triangle with the measurement selected in the previous bucket and the mean value of the
+ * next bucket at its middle. The first and the last bucket contribute their first and last measurement.
+ *
+ * The buckets and their averages are taken from {@link MeasurementStore#aggregateByParameterAndTimeBuckets}, so the
+ * measurements themselves are passed to this handler in a single pass, without holding on to them. They are expected
+ * in ascending time order, which ascending id order is for measurements recorded as they happen. A measurement whose
+ * bucket was already completed, because it arrived late, is not selected.
+ */
+public class LttbDownsampler implements MeasurementRow.Handler {
+    private final long startMicros;
+    private final long bucketSizeMicros;
+    private final Map<Long, Integer> positions = new HashMap<>();
+    private final List<MeasurementBucket> buckets;
+    private final long[] selectedTimes;
+    private final double[] selectedValues;
+    private final boolean[] selected;
+    private int current, previous;
+    private double currentArea = -1;
+
+    /**
+     * @param buckets the buckets of the measurements, ordered by index
+     */
+    public LttbDownsampler(List<MeasurementBucket> buckets, long startMicros, long bucketSizeMicros) {
+        this.startMicros = startMicros;
+        this.bucketSizeMicros = bucketSizeMicros;
+        this.buckets = buckets.stream()
+                .filter(bucket -> bucket.numericCount() > 0)
+                .toList();
+        selectedTimes = new long[this.buckets.size()];
+        selectedValues = new double[this.buckets.size()];
+        selected = new boolean[this.buckets.size()];
+        for (int i = 0; i < this.buckets.size(); i++) {
+            positions.put(this.buckets.get(i).index(), i);
+        }
+        if (!this.buckets.isEmpty()) {
+            var first = this.buckets.get(0);
+            select(0, first.firstTimeMicros(), first.first());
+        }
+        if (this.buckets.size() > 1) {
+            var last = this.buckets.get(this.buckets.size() - 1);
+            select(this.buckets.size() - 1, last.lastTimeMicros(), last.last());
+        }
+    }
+
+    @Override
+    public void accept(MeasurementRow row) {
+        double value;
+        switch (row.getValueType()) {
+            case DOUBLE -> value = row.getValueDouble();
+            case LONG -> value = row.getValueLong();
+            default -> {
+                return;
+            }
+        }
+        long time = row.getClientTimeMicros();
+        // Null for measurements that were added after the buckets were aggregated
+        var position = positions.get(MeasurementBucket.indexOf(time, startMicros, bucketSizeMicros));
+        if (position == null || position == 0 || position < current || position == buckets.size() - 1) {
+            return;
+        }
+        if (position > current) {
+            completeCurrent();
+            current = position;
+        }
+        // The average of the next bucket, or the measurement of the last bucket, which is already known
+        double nextTime;
+        double nextValue;
+        if (position + 1 == buckets.size() - 1) {
+            nextTime = selectedTimes[position + 1] - startMicros;
+            nextValue = selectedValues[position + 1];
+        } else {
+            var next = buckets.get(position + 1);
+            nextTime = (next.index() + 0.5) * bucketSizeMicros;
+            nextValue = next.mean();
+        }
+        double previousTime = selectedTimes[previous] - startMicros;
+        double previousValue = selectedValues[previous];
+        // Twice the area of the triangle, which does not change the comparison
+        double area = Math.abs((previousTime - nextTime) * (value - previousValue)
+                - (previousTime - (time - startMicros)) * (nextValue - previousValue));
+        if (area > currentArea) {
+            currentArea = area;
+            select(position, time, value);
+        }
+    }
+
+    /**
+     * Returns the selected measurements in time order, at most one per bucket.
+     */
+    public List<Point> getPoints() {
+        var points = new ArrayList<Point>();
+        for (int i = 0; i < buckets.size(); i++) {
+            if (selected[i]) {
+                points.add(new Point(selectedTimes[i], selectedValues[i]));
+            }
+        }
+        // With a single bucket, both its first and last measurement are kept
+        if (buckets.size() == 1 && buckets.get(0).lastTimeMicros() > selectedTimes[0]) {
+            points.add(new Point(buckets.get(0).lastTimeMicros(), buckets.get(0).last()));
+        }
+        return points;
+    }
+
+    private void completeCurrent() {
+        if (selected[current]) {
+            previous = current;
+        }
+        currentArea = -1;
+    }
+
+    private void select(int position, long time, double value) {
+        selectedTimes[position] = time;
+        selectedValues[position] = value;
+        selected[position] = true;
+    }
+
+    public record Point(long timeMicros, double value) {}
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+/**
+ * Aggregates over the measurements of a parameter in one time bucket, see
+ * {@link MeasurementStore#aggregateByParameterAndTimeBuckets}. The bucket with index i starts i bucket sizes after the
+ * start of the aggregated range. As in {@link MeasurementStatistics}, only double and long values are numeric; the
+ * other aggregates are null if there are none. First and last are the numeric values with the lowest and highest
+ * client time, with ties going to the lower and higher id respectively.
+ */
+public record MeasurementBucket(
+        long index,
+        long count,
+        long numericCount,
+        Double min,
+        Double max,
+        Double mean,
+        Long firstTimeMicros,
+        Double first,
+        Long lastTimeMicros,
+        Double last) {
+    /**
+     * Returns the index of the bucket that contains the given client time.
+     */
+    public static long indexOf(long clientTimeMicros, long startMicros, long bucketSizeMicros) {
+        return Math.floorDiv(clientTimeMicros - startMicros, bucketSizeMicros);
+    }
+
+    /**
+     * Combines the aggregates of two disjoint sets of measurements in the same bucket, where the other set has the
+     * higher ids, for example archived and live ones.
+     */
+    public MeasurementBucket merge(MeasurementBucket other) {
+        if (other.numericCount == 0 || numericCount == 0) {
+            var numeric = numericCount == 0 ? other : this;
+            return new MeasurementBucket(
+                    index,
+                    count + other.count,
+                    numeric.numericCount,
+                    numeric.min,
+                    numeric.max,
+                    numeric.mean,
+                    numeric.firstTimeMicros,
+                    numeric.first,
+                    numeric.lastTimeMicros,
+                    numeric.last);
+        }
+        long n = numericCount + other.numericCount;
+        var firstOf = firstTimeMicros <= other.firstTimeMicros ? this : other;
+        var lastOf = other.lastTimeMicros >= lastTimeMicros ? other : this;
+        return new MeasurementBucket(
+                index,
+                count + other.count,
+                n,
+                Math.min(min, other.min),
+                Math.max(max, other.max),
+                mean + (other.mean - mean) * other.numericCount / n,
+                firstOf.firstTimeMicros,
+                firstOf.first,
+                lastOf.lastTimeMicros,
+                lastOf.last);
+    }
+
+    /**
+     * Computes the aggregates of one bucket in a single pass over its measurements, which must be passed in ascending
+     * id order.
+     */
+    public static class Accumulator implements MeasurementRow.Handler {
+        private final long index;
+        private long count, numericCount, firstTimeMicros, lastTimeMicros;
+        private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, sum, first, last;
+
+        public Accumulator(long index) {
+            this.index = index;
+        }
+
+        @Override
+        public void accept(MeasurementRow row) {
+            count++;
+            double value;
+            switch (row.getValueType()) {
+                case DOUBLE -> value = row.getValueDouble();
+                case LONG -> value = row.getValueLong();
+                default -> {
+                    return;
+                }
+            }
+            long time = row.getClientTimeMicros();
+            if (numericCount++ == 0 || time < firstTimeMicros) {
+                firstTimeMicros = time;
+                first = value;
+            }
+            if (numericCount == 1 || time >= lastTimeMicros) {
+                lastTimeMicros = time;
+                last = value;
+            }
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            sum += value;
+        }
+
+        public MeasurementBucket toBucket() {
+            if (numericCount == 0) {
+                return new MeasurementBucket(index, count, 0, null, null, null, null, null, null, null);
+            }
+            return new MeasurementBucket(
+                    index,
+                    count,
+                    numericCount,
+                    min,
+                    max,
+                    sum / numericCount,
+                    firstTimeMicros,
+                    first,
+                    lastTimeMicros,
+                    last);
+        }
+    }
+}
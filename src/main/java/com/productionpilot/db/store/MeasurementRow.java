@@ -0,0 +1,131 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.io.IOException;
+import lombok.Getter;
+
+/**
+ * A measurement as read for exports, with primitive fields and times in epoch microseconds. The same instance is
+ * reused for every row, so handlers must not keep a reference to it.
+ */
+@Getter
+public class MeasurementRow {
+    public enum ValueType {
+        NONE,
+        DOUBLE,
+        LONG,
+        BOOLEAN,
+        STRING
+    }
+
+    @FunctionalInterface
+    public interface Handler {
+        void accept(MeasurementRow row) throws IOException;
+    }
+
+    private long id;
+    private long parameterId;
+    private long sourceTimeMicros;
+    private long serverTimeMicros;
+    private long clientTimeMicros;
+    private long opcStatusCode;
+    private ValueType valueType = ValueType.NONE;
+    private double valueDouble;
+    private long valueLong;
+    private boolean valueBoolean;
+    private String valueString;
+
+    /**
+     * Sets all fields except the value, which must be set with one of the setValue methods afterwards.
+     */
+    public void set(
+            long id,
+            long parameterId,
+            long sourceTimeMicros,
+            long serverTimeMicros,
+            long clientTimeMicros,
+            long opcStatusCode) {
+        this.id = id;
+        this.parameterId = parameterId;
+        this.sourceTimeMicros = sourceTimeMicros;
+        this.serverTimeMicros = serverTimeMicros;
+        this.clientTimeMicros = clientTimeMicros;
+        this.opcStatusCode = opcStatusCode;
+    }
+
+    public MeasurementRow set(Measurement measurement) {
+        set(
+                measurement.getId(),
+                measurement.getParameterId(),
+                toEpochMicros(measurement.getSourceTime()),
+                toEpochMicros(measurement.getServerTime()),
+                toEpochMicros(measurement.getClientTime()),
+                measurement.getOpcStatusCode());
+        // Same precedence as Measurement.getValue()
+        if (measurement.getValueString() != null) {
+            setValueString(measurement.getValueString());
+        } else if (measurement.getValueBoolean() != null) {
+            setValueBoolean(measurement.getValueBoolean());
+        } else if (measurement.getValueLong() != null) {
+            setValueLong(measurement.getValueLong());
+        } else if (measurement.getValueDouble() != null) {
+            setValueDouble(measurement.getValueDouble());
+        } else {
+            setValueNone();
+        }
+        return this;
+    }
+
+    /**
+     * Copies all fields of the given row, e.g. to keep a measurement beyond the handler call that passed it.
+     */
+    public MeasurementRow set(MeasurementRow other) {
+        set(
+                other.id,
+                other.parameterId,
+                other.sourceTimeMicros,
+                other.serverTimeMicros,
+                other.clientTimeMicros,
+                other.opcStatusCode);
+        valueType = other.valueType;
+        valueDouble = other.valueDouble;
+        valueLong = other.valueLong;
+        valueBoolean = other.valueBoolean;
+        valueString = other.valueString;
+        return this;
+    }
+
+    public void setValueDouble(double value) {
+        valueType = ValueType.DOUBLE;
+        valueDouble = value;
+        valueString = null;
+    }
+
+    public void setValueLong(long value) {
+        valueType = ValueType.LONG;
+        valueLong = value;
+        valueString = null;
+    }
+
+    public void setValueBoolean(boolean value) {
+        valueType = ValueType.BOOLEAN;
+        valueBoolean = value;
+        valueString = null;
+    }
+
+    public void setValueString(String value) {
+        valueType = ValueType.STRING;
+        valueString = value;
+    }
+
+    public void setValueNone() {
+        valueType = ValueType.NONE;
+        valueString = null;
+    }
+}
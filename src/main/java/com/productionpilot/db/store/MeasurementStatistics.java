@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+/**
+ * Aggregates over the measurements of a parameter. Only double and long values are numeric; boolean and string values
+ * are counted, but do not contribute to the other aggregates. These are null if there are no numeric values, and the
+ * (sample) standard deviation is null if there are fewer than two.
+ */
+public record MeasurementStatistics(
+        long count, long numericCount, Double min, Double max, Double mean, Double standardDeviation) {
+    public static final MeasurementStatistics EMPTY = new MeasurementStatistics(0, 0, null, null, null, null);
+
+    /**
+     * Combines the statistics of two disjoint sets of measurements, for example archived and live ones.
+     */
+    public MeasurementStatistics merge(MeasurementStatistics other) {
+        if (other.numericCount == 0 || numericCount == 0) {
+            var numeric = numericCount == 0 ? other : this;
+            return new MeasurementStatistics(
+                    count + other.count,
+                    numeric.numericCount,
+                    numeric.min,
+                    numeric.max,
+                    numeric.mean,
+                    numeric.standardDeviation);
+        }
+        // Chan et al.: combine the sums of squared differences from the mean of both sets
+        long n = numericCount + other.numericCount;
+        double delta = other.mean - mean;
+        double m2 = getSquaredDifferences() + other.getSquaredDifferences()
+                + delta * delta * numericCount * other.numericCount / n;
+        return new MeasurementStatistics(
+                count + other.count,
+                n,
+                Math.min(min, other.min),
+                Math.max(max, other.max),
+                mean + delta * other.numericCount / n,
+                Math.sqrt(m2 / (n - 1)));
+    }
+
+    private double getSquaredDifferences() {
+        return standardDeviation == null ? 0 : standardDeviation * standardDeviation * (numericCount - 1);
+    }
+
+    /**
+     * Computes the statistics in a single pass over the measurements, with Welford's algorithm for the variance.
+     */
+    public static class Accumulator implements MeasurementRow.Handler {
+        private long count, numericCount;
+        private double min = Double.POSITIVE_INFINITY, max = Double.NEGATIVE_INFINITY, mean, m2;
+
+        @Override
+        public void accept(MeasurementRow row) {
+            count++;
+            double value;
+            switch (row.getValueType()) {
+                case DOUBLE -> value = row.getValueDouble();
+                case LONG -> value = row.getValueLong();
+                default -> {
+                    return;
+                }
+            }
+            numericCount++;
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+            double delta = value - mean;
+            mean += delta / numericCount;
+            m2 += delta * (value - mean);
+        }
+
+        public MeasurementStatistics toStatistics() {
+            if (numericCount == 0) {
+                return new MeasurementStatistics(count, 0, null, null, null, null);
+            }
+            return new MeasurementStatistics(
+                    count, numericCount, min, max, mean, numericCount > 1 ? Math.sqrt(m2 / (numericCount - 1)) : null);
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+
+/**
+ * Storage backend for recorded measurements. Which implementation is used is selected with the
+ * {@code com.productionpilot.measurements.store} property: {@code postgresql} (default) or {@code embedded}.
+ */
+public interface MeasurementStore {
+    /**
+     * Appends the given measurements, which must not have an id yet. The store assigns the ids, which are unique across
+     * all parameters and increasing in append order.
+     */
+    void appendBatch(List<Measurement> measurements);
+
+    /**
+     * Returns all measurements of the given parameter with a client time in [startTime, endTime], in ascending id
+     * order. The returned stream must be closed.
+     */
+    Stream<Measurement> streamByParameterAndTimeRange(long parameterId, Instant startTime, Instant endTime);
+
+    /**
+     * Passes the same measurements as {@link #streamByParameterAndTimeRange} to the handler, without creating a
+     * {@link Measurement} for each of them where the implementation allows it. Used for exports.
+     */
+    default void forEachByParameterAndTimeRange(
+            long parameterId, Instant startTime, Instant endTime, MeasurementRow.Handler handler) throws IOException {
+        var row = new MeasurementRow();
+        try (var measurements = streamByParameterAndTimeRange(parameterId, startTime, endTime)) {
+            var iterator = measurements.iterator();
+            while (iterator.hasNext()) {
+                handler.accept(row.set(iterator.next()));
+            }
+        }
+    }
+
+    /**
+     * Passes the measurements of all given parameters with a client time in [startTime, endTime] to the handler,
+     * grouped by parameter in ascending parameter id order, and in ascending id order within each parameter. Used to
+     * read many parameters at once, which implementations may do with a single query.
+     */
+    default void forEachByParametersAndTimeRange(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime, MeasurementRow.Handler handler)
+            throws IOException {
+        for (var parameterId : new TreeSet<>(parameterIds)) {
+            forEachByParameterAndTimeRange(parameterId, startTime, endTime, handler);
+        }
+    }
+
+    /**
+     * Passes the measurements of all given parameters with a client time in [startTime, endTime] to the handler, merged
+     * by client time: ordered by client time, then by parameter id. Used for wide exports, which put the parameters
+     * side by side; implementations may let the database merge them with a single query. Must be called within a
+     * transaction.
+     */
+    default void forEachByParametersAndTimeRangeOrderedByTime(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime, MeasurementRow.Handler handler)
+            throws IOException {
+        var streams = streamByParametersAndTimeRange(List.copyOf(new TreeSet<>(parameterIds)), startTime, endTime);
+        try {
+            new ClientTimeMerge(streams.stream().map(Stream::iterator).toList()).passAll(handler);
+        } finally {
+            streams.forEach(Stream::close);
+        }
+    }
+
+    /**
+     * Returns a stream for each of the given parameters, like {@link #streamByParameterAndTimeRange}, for reading them
+     * side by side where they cannot be merged by {@link #forEachByParametersAndTimeRangeOrderedByTime}. As all of them
+     * are open at the same time, implementations should read each in small portions. The returned streams must be
+     * closed.
+     */
+    default List<Stream<Measurement>> streamByParametersAndTimeRange(
+            List<Long> parameterIds, Instant startTime, Instant endTime) {
+        var streams = new ArrayList<Stream<Measurement>>(parameterIds.size());
+        try {
+            for (var parameterId : parameterIds) {
+                streams.add(streamByParameterAndTimeRange(parameterId, startTime, endTime));
+            }
+        } catch (RuntimeException e) {
+            streams.forEach(Stream::close);
+            throw e;
+        }
+        return streams;
+    }
+
+    /**
+     * Like {@link #forEachByParameterAndTimeRange}, but only passes the measurements with an id greater than afterId.
+     * Used for incremental exports, which continue after the last measurement they exported.
+     */
+    default void forEachByParameterAndTimeRangeAfterId(
+            long parameterId, Instant startTime, Instant endTime, long afterId, MeasurementRow.Handler handler)
+            throws IOException {
+        forEachByParameterAndTimeRangeAfterId(parameterId, startTime, endTime, afterId, Long.MAX_VALUE, handler);
+    }
+
+    /**
+     * Like {@link #forEachByParameterAndTimeRangeAfterId(long, Instant, Instant, long, MeasurementRow.Handler)}, but
+     * passes at most limit measurements, for keyset pagination: the next page starts after the id of the last
+     * measurement of the previous one.
+     */
+    default void forEachByParameterAndTimeRangeAfterId(
+            long parameterId,
+            Instant startTime,
+            Instant endTime,
+            long afterId,
+            long limit,
+            MeasurementRow.Handler handler)
+            throws IOException {
+        var row = new MeasurementRow();
+        long count = 0;
+        try (var measurements = streamByParameterAndTimeRange(parameterId, startTime, endTime)) {
+            var iterator = measurements.iterator();
+            while (count < limit && iterator.hasNext()) {
+                var measurement = iterator.next();
+                if (measurement.getId() > afterId) {
+                    handler.accept(row.set(measurement));
+                    count++;
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the statistics of the measurements of each given parameter with a client time in [startTime, endTime].
+     * Parameters without such measurements are mapped to {@link MeasurementStatistics#EMPTY}. The returned map is
+     * mutable.
+     */
+    default Map<Long, MeasurementStatistics> aggregateByParametersAndTimeRange(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime) throws IOException {
+        var statistics = new HashMap<Long, MeasurementStatistics>();
+        for (var parameterId : parameterIds) {
+            var accumulator = new MeasurementStatistics.Accumulator();
+            forEachByParameterAndTimeRange(parameterId, startTime, endTime, accumulator);
+            statistics.put(parameterId, accumulator.toStatistics());
+        }
+        return statistics;
+    }
+
+    /**
+     * Aggregates the measurements of the given parameter with a client time in [startTime, endTime] per time bucket of
+     * the given size (at least a microsecond), starting at startTime. Only buckets that contain measurements are
+     * returned, ordered by index.
+     */
+    default List<MeasurementBucket> aggregateByParameterAndTimeBuckets(
+            long parameterId, Instant startTime, Instant endTime, Duration bucketSize) throws IOException {
+        long startMicros = toEpochMicros(startTime);
+        long bucketSizeMicros = bucketSize.toNanos() / 1000;
+        var buckets = new TreeMap<Long, MeasurementBucket.Accumulator>();
+        forEachByParameterAndTimeRange(parameterId, startTime, endTime, row -> buckets.computeIfAbsent(
+                        MeasurementBucket.indexOf(row.getClientTimeMicros(), startMicros, bucketSizeMicros),
+                        MeasurementBucket.Accumulator::new)
+                .accept(row));
+        return buckets.values().stream().map(MeasurementBucket.Accumulator::toBucket).toList();
+    }
+
+    /**
+     * Passes at most limit measurements of all parameters with an id greater than afterId to the handler, in ascending
+     * id order. Used to replicate the store in chunks, each starting after the last id of the previous one. Does not
+     * need to be called within a transaction.
+     */
+    void forEachAfterId(long afterId, long limit, MeasurementRow.Handler handler) throws IOException;
+
+    /**
+     * Returns the measurement of the given parameter with the highest id.
+     */
+    Optional<Measurement> getLastMeasurement(long parameterId);
+
+    /**
+     * Returns the highest id that was assigned, or 0 if the store is empty.
+     */
+    long getLastId();
+
+    long countByParameter(long parameterId);
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.productionpilot.db.timescale.entities.Measurement;
+import com.productionpilot.db.timescale.repository.MeasurementJdbcRepository;
+import com.productionpilot.db.timescale.repository.MeasurementRepository;
+import com.productionpilot.db.timescale.service.MeasurementArchiveService;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Stream;
+import lombok.RequiredArgsConstructor;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * Stores measurements in the Measurement table. If the measurement archive is enabled, reads also include archived
+ * measurements.
+ */
+@Service
+@RequiredArgsConstructor
+@ConditionalOnProperty(
+        prefix = "com.productionpilot.measurements",
+        name = "store",
+        havingValue = "postgresql",
+        matchIfMissing = true)
+public class PostgresMeasurementStore implements MeasurementStore {
+    private final MeasurementRepository measurementRepository;
+    private final MeasurementJdbcRepository measurementJdbcRepository;
+    private final Optional<MeasurementArchiveService> measurementArchiveService;
+
+    @Override
+    public void appendBatch(List<Measurement> measurements) {
+        measurementRepository.saveAll(measurements);
+    }
+
+    /**
+     * Archived measurements come first, followed by the ones still in the Measurement table. The latter are read with a
+     * cursor through {@link MeasurementJdbcRepository}, so this must be called within a transaction. The returned
+     * measurements are not managed by the persistence context.
+     */
+    @Override
+    public Stream<Measurement> streamByParameterAndTimeRange(long parameterId, Instant startTime, Instant endTime) {
+        var live = measurementJdbcRepository.streamByParameterAndTimeRange(parameterId, startTime, endTime);
+        return measurementArchiveService
+                .map(archive -> Stream.concat(
+                        archive.streamByParameterAndTimeRange(parameterId, startTime, endTime), live))
+                .orElse(live);
+    }
+
+    @Override
+    public void forEachByParameterAndTimeRange(
+            long parameterId, Instant startTime, Instant endTime, MeasurementRow.Handler handler) throws IOException {
+        if (measurementArchiveService.isPresent()) {
+            forEach(
+                    measurementArchiveService.get().streamByParameterAndTimeRange(parameterId, startTime, endTime),
+                    handler);
+        }
+        measurementJdbcRepository.forEachByParameterAndTimeRange(parameterId, startTime, endTime, handler);
+    }
+
+    /**
+     * The measurements in the Measurement table are read with a single query. The archived measurements of each
+     * parameter are passed before its first measurement from the table is.
+     */
+    @Override
+    public void forEachByParametersAndTimeRange(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime, MeasurementRow.Handler handler)
+            throws IOException {
+        if (measurementArchiveService.isEmpty()) {
+            measurementJdbcRepository.forEachByParametersAndTimeRange(parameterIds, startTime, endTime, handler);
+            return;
+        }
+        var archive = measurementArchiveService.get();
+        // The parameters whose archived measurements were not passed yet
+        var pending = new ArrayDeque<>(new TreeSet<>(parameterIds));
+        measurementJdbcRepository.forEachByParametersAndTimeRange(parameterIds, startTime, endTime, row -> {
+            while (!pending.isEmpty() && pending.peekFirst() <= row.getParameterId()) {
+                forEach(archive.streamByParameterAndTimeRange(pending.pollFirst(), startTime, endTime), handler);
+            }
+            handler.accept(row);
+        });
+        while (!pending.isEmpty()) {
+            forEach(archive.streamByParameterAndTimeRange(pending.pollFirst(), startTime, endTime), handler);
+        }
+    }
+
+    /**
+     * The measurements in the Measurement table are read with a single query, ordered by the database. The archived
+     * measurements, one lazily decoded stream per parameter, are merged into them.
+     */
+    @Override
+    public void forEachByParametersAndTimeRangeOrderedByTime(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime, MeasurementRow.Handler handler)
+            throws IOException {
+        if (measurementArchiveService.isEmpty()) {
+            measurementJdbcRepository.forEachByParametersAndTimeRangeOrderedByTime(
+                    parameterIds, startTime, endTime, handler);
+            return;
+        }
+        var archive = measurementArchiveService.get();
+        var archived = new ArrayList<Stream<Measurement>>();
+        try {
+            for (var parameterId : new TreeSet<>(parameterIds)) {
+                archived.add(archive.streamByParameterAndTimeRange(parameterId, startTime, endTime));
+            }
+            var merge = new ClientTimeMerge(archived.stream().map(Stream::iterator).toList());
+            measurementJdbcRepository.forEachByParametersAndTimeRangeOrderedByTime(
+                    parameterIds, startTime, endTime, row -> {
+                        merge.passUpTo(row.getClientTimeMicros(), row.getParameterId(), handler);
+                        handler.accept(row);
+                    });
+            merge.passAll(handler);
+        } finally {
+            archived.forEach(Stream::close);
+        }
+    }
+
+    /**
+     * The streams fetch fewer rows at a time from the Measurement table than
+     * {@link #streamByParameterAndTimeRange(long, Instant, Instant)}.
+     */
+    @Override
+    public List<Stream<Measurement>> streamByParametersAndTimeRange(
+            List<Long> parameterIds, Instant startTime, Instant endTime) {
+        var streams = new ArrayList<Stream<Measurement>>(parameterIds.size());
+        try {
+            for (var parameterId : parameterIds) {
+                // The archived stream first, as it holds no resources until it is read
+                var archived = measurementArchiveService.map(
+                        archive -> archive.streamByParameterAndTimeRange(parameterId, startTime, endTime));
+                var live = measurementJdbcRepository.streamByParameterAndTimeRangeSideBySide(
+                        parameterId, startTime, endTime);
+                streams.add(archived.map(stream -> Stream.concat(stream, live)).orElse(live));
+            }
+        } catch (RuntimeException e) {
+            streams.forEach(Stream::close);
+            throw e;
+        }
+        return streams;
+    }
+
+    /**
+     * Archived segments that only contain ids up to afterId are not read at all, and the Measurement table is queried
+     * with the id and the remaining limit as additional conditions.
+     */
+    @Override
+    public void forEachByParameterAndTimeRangeAfterId(
+            long parameterId,
+            Instant startTime,
+            Instant endTime,
+            long afterId,
+            long limit,
+            MeasurementRow.Handler handler)
+            throws IOException {
+        long archived = 0;
+        if (measurementArchiveService.isPresent()) {
+            archived = forEach(
+                    measurementArchiveService
+                            .get()
+                            .streamByParameterAndTimeRangeAfterId(parameterId, startTime, endTime, afterId)
+                            .limit(limit),
+                    handler);
+        }
+        if (archived < limit) {
+            measurementJdbcRepository.forEachByParameterAndTimeRangeAfterId(
+                    parameterId, startTime, endTime, afterId, limit - archived, handler);
+        }
+    }
+
+    /**
+     * The measurements in the Measurement table are aggregated by the database, in a single query for all parameters.
+     * Archived measurements are aggregated while their segments are read.
+     */
+    @Override
+    public Map<Long, MeasurementStatistics> aggregateByParametersAndTimeRange(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime) throws IOException {
+        var statistics = measurementJdbcRepository.aggregateByParametersAndTimeRange(parameterIds, startTime, endTime);
+        if (measurementArchiveService.isPresent()) {
+            for (var parameterId : parameterIds) {
+                var accumulator = new MeasurementStatistics.Accumulator();
+                forEach(
+                        measurementArchiveService.get().streamByParameterAndTimeRange(parameterId, startTime, endTime),
+                        accumulator);
+                statistics.merge(parameterId, accumulator.toStatistics(), MeasurementStatistics::merge);
+            }
+        }
+        return statistics;
+    }
+
+    /**
+     * The measurements in the Measurement table are aggregated by the database, archived ones while their segments are
+     * read.
+     */
+    @Override
+    public List<MeasurementBucket> aggregateByParameterAndTimeBuckets(
+            long parameterId, Instant startTime, Instant endTime, Duration bucketSize) throws IOException {
+        long bucketSizeMicros = bucketSize.toNanos() / 1000;
+        var live = measurementJdbcRepository.aggregateByParameterAndTimeBuckets(
+                parameterId, startTime, endTime, bucketSizeMicros);
+        if (measurementArchiveService.isEmpty()) {
+            return List.copyOf(live.values());
+        }
+        long startMicros = toEpochMicros(startTime);
+        var archived = new TreeMap<Long, MeasurementBucket.Accumulator>();
+        forEach(
+                measurementArchiveService.get().streamByParameterAndTimeRange(parameterId, startTime, endTime),
+                row -> archived.computeIfAbsent(
+                                MeasurementBucket.indexOf(row.getClientTimeMicros(), startMicros, bucketSizeMicros),
+                                MeasurementBucket.Accumulator::new)
+                        .accept(row));
+        // Archived measurements have lower ids than the ones still in the table
+        for (var accumulator : archived.values()) {
+            var bucket = accumulator.toBucket();
+            live.merge(bucket.index(), bucket, (liveBucket, archivedBucket) -> archivedBucket.merge(liveBucket));
+        }
+        return List.copyOf(live.values());
+    }
+
+    /**
+     * Only reads the Measurement table. Measurements are only archived once they were replicated to every sink, so the
+     * archive holds nothing that a backfill would still need.
+     */
+    @Override
+    public void forEachAfterId(long afterId, long limit, MeasurementRow.Handler handler) throws IOException {
+        measurementJdbcRepository.forEachAfterId(afterId, limit, handler);
+    }
+
+    /**
+     * @return the number of measurements passed to the handler
+     */
+    private static long forEach(Stream<Measurement> measurements, MeasurementRow.Handler handler) throws IOException {
+        var row = new MeasurementRow();
+        long count = 0;
+        try (measurements) {
+            var iterator = measurements.iterator();
+            while (iterator.hasNext()) {
+                handler.accept(row.set(iterator.next()));
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Falls back to the newest archived segment, e.g. for parameters that have not been recorded since their
+     * measurements were archived.
+     */
+    @Override
+    public Optional<Measurement> getLastMeasurement(long parameterId) {
+        var live = measurementRepository.findFirstByParameterIdOrderByIdDesc(parameterId);
+        if (measurementArchiveService.isEmpty()) {
+            return live;
+        }
+        long liveId = live.map(Measurement::getId).orElse(0L);
+        var archived = measurementArchiveService.get().getLastMeasurementAfterId(parameterId, liveId);
+        return archived.isPresent() ? archived : live;
+    }
+
+    @Override
+    public long getLastId() {
+        return Math.max(
+                measurementJdbcRepository.getLastId(),
+                measurementArchiveService.map(MeasurementArchiveService::getLastId).orElse(0L));
+    }
+
+    @Override
+    public long countByParameter(long parameterId) {
+        return measurementRepository.countByParameterId(parameterId)
+                + measurementArchiveService
+                        .map(archive -> archive.countByParameter(parameterId))
+                        .orElse(0L);
+    }
+}
@@ -0,0 +1,212 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store.log;
+
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.productionpilot.db.store.MeasurementRow;
+import com.productionpilot.db.store.MeasurementStore;
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Instant;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Stream;
+import javax.annotation.PreDestroy;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+/**
+ * An embedded measurement store that keeps one append-only, memory-mapped log per parameter (see
+ * {@link ParameterLog}) in a local directory, so that small installations can record measurements without a database
+ * server for them. Ids are assigned from a single counter across all parameters, which is restored from the logs on
+ * startup.
+ *
+ * Written records become visible to readers immediately and are forced to disk every {@code flush-interval-ms}
+ * milliseconds; with an interval of 0, every batch is forced before {@link #appendBatch(List)} returns.
+ */
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "com.productionpilot.measurements", name = "store", havingValue = "embedded")
+public class LogMeasurementStore implements MeasurementStore {
+    private final Path directory;
+    private final int segmentSize;
+    private final long flushIntervalMillis;
+
+    private final Map<Long, ParameterLog> logs = new ConcurrentHashMap<>();
+    private final Object appendLock = new Object();
+    private long nextId = 1;
+
+    private final Thread flusher;
+
+    public LogMeasurementStore(
+            @Value("${com.productionpilot.measurements.embedded.directory:measurements}") String directory,
+            @Value("${com.productionpilot.measurements.embedded.segment-size-mb:64}") int segmentSizeMb,
+            @Value("${com.productionpilot.measurements.embedded.flush-interval-ms:1000}") long flushIntervalMillis)
+            throws IOException {
+        this.directory = Path.of(directory).toAbsolutePath();
+        this.segmentSize = segmentSizeMb * 1024 * 1024;
+        this.flushIntervalMillis = flushIntervalMillis;
+        Files.createDirectories(this.directory);
+        try (var parameterDirectories = Files.list(this.directory)) {
+            for (var parameterDirectory : parameterDirectories
+                    .filter(Files::isDirectory)
+                    .filter(dir -> dir.getFileName().toString().matches("\\d+"))
+                    .toList()) {
+                long parameterId = Long.parseLong(parameterDirectory.getFileName().toString());
+                var log = ParameterLog.open(parameterDirectory, parameterId, segmentSize);
+                logs.put(parameterId, log);
+                log.getLast().ifPresent(last -> nextId = Math.max(nextId, last.getId() + 1));
+            }
+        }
+        log.info("Opened embedded measurement store in {} with {} parameter logs", this.directory, logs.size());
+        if (flushIntervalMillis > 0) {
+            flusher = new Thread(this::flushPeriodically);
+            flusher.setName("MeasurementStoreFlusher");
+            flusher.setDaemon(true);
+            flusher.start();
+        } else {
+            flusher = null;
+        }
+    }
+
+    @Override
+    public void appendBatch(List<Measurement> measurements) {
+        synchronized (appendLock) {
+            try {
+                for (var measurement : measurements) {
+                    var log = getOrOpenLog(measurement.getParameterId());
+                    measurement.setId(nextId);
+                    log.append(measurement);
+                    nextId++;
+                }
+                if (flushIntervalMillis <= 0) {
+                    measurements.stream()
+                            .map(Measurement::getParameterId)
+                            .distinct()
+                            .forEach(parameterId -> logs.get(parameterId).force());
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException("Could not append measurements", e);
+            }
+        }
+    }
+
+    @Override
+    public Stream<Measurement> streamByParameterAndTimeRange(long parameterId, Instant startTime, Instant endTime) {
+        var log = logs.get(parameterId);
+        return log == null ? Stream.empty() : log.stream(toEpochMicros(startTime), toEpochMicros(endTime));
+    }
+
+    /**
+     * Merges the logs of all parameters by id, reading each of them from the block that contains afterId. Only ids up
+     * to the last one assigned when this method is called are passed: the logs are read one after another, so a later
+     * log may already contain ids that an earlier one did not have yet when it was read.
+     */
+    @Override
+    public void forEachAfterId(long afterId, long limit, MeasurementRow.Handler handler) throws IOException {
+        long lastId = getLastId();
+        var heads = new PriorityQueue<LogHead>(Comparator.comparingLong(head -> head.measurement().getId()));
+        for (var log : logs.values()) {
+            var iterator = log.streamAfterId(afterId).iterator();
+            if (iterator.hasNext()) {
+                heads.add(new LogHead(iterator.next(), iterator));
+            }
+        }
+        var row = new MeasurementRow();
+        for (long count = 0; count < limit && !heads.isEmpty(); count++) {
+            var head = heads.poll();
+            if (head.measurement().getId() > lastId) {
+                break;
+            }
+            handler.accept(row.set(head.measurement()));
+            if (head.rest().hasNext()) {
+                heads.add(new LogHead(head.rest().next(), head.rest()));
+            }
+        }
+    }
+
+    @Override
+    public Optional<Measurement> getLastMeasurement(long parameterId) {
+        var log = logs.get(parameterId);
+        return log == null ? Optional.empty() : log.getLast();
+    }
+
+    @Override
+    public long getLastId() {
+        synchronized (appendLock) {
+            return nextId - 1;
+        }
+    }
+
+    @Override
+    public long countByParameter(long parameterId) {
+        var log = logs.get(parameterId);
+        return log == null ? 0 : log.count();
+    }
+
+    /**
+     * Forces all written measurements to disk.
+     */
+    public void flush() {
+        logs.values().forEach(ParameterLog::force);
+    }
+
+    @PreDestroy
+    public void close() {
+        if (flusher != null) {
+            flusher.interrupt();
+        }
+        synchronized (appendLock) {
+            for (var log : logs.values()) {
+                try {
+                    log.close();
+                } catch (IOException e) {
+                    LogMeasurementStore.log.error("Could not close parameter log", e);
+                }
+            }
+            logs.clear();
+        }
+    }
+
+    private ParameterLog getOrOpenLog(long parameterId) throws IOException {
+        var log = logs.get(parameterId);
+        if (log == null) {
+            log = ParameterLog.open(directory.resolve(Long.toString(parameterId)), parameterId, segmentSize);
+            logs.put(parameterId, log);
+        }
+        return log;
+    }
+
+    private void flushPeriodically() {
+        try {
+            while (true) {
+                Thread.sleep(flushIntervalMillis);
+                try {
+                    flush();
+                } catch (Exception e) {
+                    log.error("Error while flushing the measurement store", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            log.debug("Measurement store flusher stopped");
+        }
+    }
+
+    /**
+     * The next measurement of a parameter log, and the ones after it.
+     */
+    private record LogHead(Measurement measurement, Iterator<Measurement> rest) {}
+}
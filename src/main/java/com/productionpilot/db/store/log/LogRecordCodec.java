@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store.log;
+
+import static com.productionpilot.util.Util.fromEpochMicros;
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Binary layout of a single measurement in a parameter log. Every record is framed as
+ * {@code [int bodyLength][int crc32(body)][body]}, the body is:
+ * {@code [long id][long clientTime][long sourceTime][long serverTime][long opcStatusCode][byte type][value]},
+ * with times in epoch microseconds.
+ */
+final class LogRecordCodec {
+    private LogRecordCodec() {}
+
+    static final int FRAME_HEADER_SIZE = 8;
+    static final int ID_OFFSET = 0, CLIENT_TIME_OFFSET = 8;
+    private static final int FIXED_BODY_SIZE = 5 * 8 + 1;
+
+    private static final byte TYPE_DOUBLE = 0, TYPE_LONG = 1, TYPE_BOOLEAN = 2, TYPE_STRING = 3;
+
+    static byte[] encode(Measurement measurement) {
+        byte[] stringBytes = null;
+        int valueSize;
+        byte type;
+        if (measurement.getValueDouble() != null) {
+            type = TYPE_DOUBLE;
+            valueSize = 8;
+        } else if (measurement.getValueLong() != null) {
+            type = TYPE_LONG;
+            valueSize = 8;
+        } else if (measurement.getValueBoolean() != null) {
+            type = TYPE_BOOLEAN;
+            valueSize = 1;
+        } else if (measurement.getValueString() != null) {
+            type = TYPE_STRING;
+            stringBytes = measurement.getValueString().getBytes(StandardCharsets.UTF_8);
+            valueSize = 4 + stringBytes.length;
+        } else {
+            throw new IllegalArgumentException("Measurement has no value");
+        }
+        var body = ByteBuffer.allocate(FIXED_BODY_SIZE + valueSize);
+        body.putLong(measurement.getId());
+        body.putLong(toEpochMicros(measurement.getClientTime()));
+        body.putLong(toEpochMicros(measurement.getSourceTime()));
+        body.putLong(toEpochMicros(measurement.getServerTime()));
+        body.putLong(measurement.getOpcStatusCode());
+        body.put(type);
+        switch (type) {
+            case TYPE_DOUBLE -> body.putDouble(measurement.getValueDouble());
+            case TYPE_LONG -> body.putLong(measurement.getValueLong());
+            case TYPE_BOOLEAN -> body.put((byte) (measurement.getValueBoolean() ? 1 : 0));
+            default -> {
+                body.putInt(stringBytes.length);
+                body.put(stringBytes);
+            }
+        }
+        return body.array();
+    }
+
+    static long clientTimeOf(byte[] body) {
+        return ByteBuffer.wrap(body).getLong(CLIENT_TIME_OFFSET);
+    }
+
+    /**
+     * Decodes the body starting at the given absolute position of the buffer.
+     */
+    static Measurement decode(ByteBuffer buffer, int bodyPosition, long parameterId) {
+        var measurement = new Measurement();
+        measurement.setParameterId(parameterId);
+        measurement.setId(buffer.getLong(bodyPosition));
+        measurement.setClientTime(fromEpochMicros(buffer.getLong(bodyPosition + 8)));
+        measurement.setSourceTime(fromEpochMicros(buffer.getLong(bodyPosition + 16)));
+        measurement.setServerTime(fromEpochMicros(buffer.getLong(bodyPosition + 24)));
+        measurement.setOpcStatusCode(buffer.getLong(bodyPosition + 32));
+        int valuePosition = bodyPosition + FIXED_BODY_SIZE;
+        switch (buffer.get(bodyPosition + 40)) {
+            case TYPE_DOUBLE -> measurement.setValueDouble(buffer.getDouble(valuePosition));
+            case TYPE_LONG -> measurement.setValueLong(buffer.getLong(valuePosition));
+            case TYPE_BOOLEAN -> measurement.setValueBoolean(buffer.get(valuePosition) != 0);
+            case TYPE_STRING -> {
+                var bytes = new byte[buffer.getInt(valuePosition)];
+                buffer.get(valuePosition + 4, bytes);
+                measurement.setValueString(new String(bytes, StandardCharsets.UTF_8));
+            }
+            default -> throw new IllegalStateException("Corrupt record at position " + bodyPosition);
+        }
+        return measurement;
+    }
+}
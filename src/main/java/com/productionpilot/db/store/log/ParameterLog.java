@@ -0,0 +1,371 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store.log;
+
+import static com.productionpilot.db.store.log.LogRecordCodec.FRAME_HEADER_SIZE;
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+import lombok.extern.slf4j.Slf4j;
+
+/**
+ * The append-only log of a single parameter. The log consists of numbered, memory-mapped segment files. The active
+ * segment starts at {@link #INITIAL_SEGMENT_SIZE} and is mapped again with twice the size whenever it is full, up to
+ * the segment size, so that rarely recorded parameters do not take a full segment each. File channels are closed as
+ * soon as a segment is mapped, as the mapping stays valid without them. Every
+ * {@link #BLOCK_SIZE} records, a sparse index entry with the block's client time range is created, so that range
+ * queries only need to read the blocks that overlap with the range. When a segment is full, it is sealed and its index
+ * is written to a sidecar file; the index of the active segment is rebuilt by scanning it when the log is opened.
+ *
+ * Appends are synchronized. Readers take a snapshot of the index under the lock and then read without locking, as
+ * records are never modified after they have been written.
+ */
+@Slf4j
+class ParameterLog implements Closeable {
+    static final int BLOCK_SIZE = 128;
+    static final int INITIAL_SEGMENT_SIZE = 64 * 1024;
+
+    private static final Pattern SEGMENT_FILE_PATTERN = Pattern.compile("(\\d+)\\.log");
+
+    private final Path directory;
+    private final long parameterId;
+    private final int segmentSize;
+
+    private final List<Segment> segments = new ArrayList<>();
+    private final List<Block> blocks = new ArrayList<>();
+    private long count = 0;
+
+    private ParameterLog(Path directory, long parameterId, int segmentSize) {
+        this.directory = directory;
+        this.parameterId = parameterId;
+        this.segmentSize = segmentSize;
+    }
+
+    static ParameterLog open(Path directory, long parameterId, int segmentSize) throws IOException {
+        Files.createDirectories(directory);
+        var log = new ParameterLog(directory, parameterId, segmentSize);
+        int segmentCount;
+        try (var files = Files.list(directory)) {
+            segmentCount = (int) files.filter(file -> SEGMENT_FILE_PATTERN
+                            .matcher(file.getFileName().toString())
+                            .matches())
+                    .count();
+        }
+        for (int number = 0; number < segmentCount; number++) {
+            var segment = Segment.map(log.segmentFile(number), number, -1);
+            log.segments.add(segment);
+            boolean last = number == segmentCount - 1;
+            if (last || !log.loadSealedIndex(segment)) {
+                log.scan(segment, last);
+            }
+        }
+        return log;
+    }
+
+    synchronized void append(Measurement measurement) throws IOException {
+        var body = LogRecordCodec.encode(measurement);
+        int recordSize = FRAME_HEADER_SIZE + body.length;
+        var segment = segments.isEmpty() ? null : segments.get(segments.size() - 1);
+        if (segment != null
+                && segment.writePosition + recordSize > segment.capacity
+                && segment.capacity < segmentSize) {
+            segment = grow(segment, recordSize);
+        }
+        if (segment == null || segment.writePosition + recordSize > segment.capacity) {
+            segment = rollOver(recordSize);
+        }
+        int position = segment.writePosition;
+        var crc = new CRC32();
+        crc.update(body);
+        // The length is written last, so that a partially written record is never considered valid
+        segment.buffer.put(position + FRAME_HEADER_SIZE, body);
+        segment.buffer.putInt(position + 4, (int) crc.getValue());
+        segment.buffer.putInt(position, body.length);
+        segment.writePosition += recordSize;
+        segment.dirty = true;
+        addToIndex(segment.number, position, LogRecordCodec.clientTimeOf(body));
+    }
+
+    /**
+     * Returns the records with a client time in [startMicros, endMicros], in append order.
+     */
+    Stream<Measurement> stream(long startMicros, long endMicros) {
+        Block[] matchingBlocks;
+        Segment[] segmentSnapshot;
+        synchronized (this) {
+            matchingBlocks = blocks.stream()
+                    .filter(block -> block.maxTime >= startMicros && block.minTime <= endMicros)
+                    .map(Block::copy)
+                    .toArray(Block[]::new);
+            segmentSnapshot = segments.toArray(Segment[]::new);
+        }
+        return Arrays.stream(matchingBlocks)
+                .flatMap(block -> readBlock(segmentSnapshot[block.segment], block).stream())
+                .filter(measurement -> {
+                    long time = toEpochMicros(measurement.getClientTime());
+                    return time >= startMicros && time <= endMicros;
+                });
+    }
+
+    /**
+     * Returns the records with an id greater than afterId, in append order. Ids increase in append order, so the first
+     * block to read is found with a binary search over the first id of each block.
+     */
+    Stream<Measurement> streamAfterId(long afterId) {
+        Block[] matchingBlocks;
+        Segment[] segmentSnapshot;
+        synchronized (this) {
+            // The last block that starts at or before afterId may still contain greater ids
+            int first = 0, low = 0, high = blocks.size() - 1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (firstIdOf(blocks.get(middle)) <= afterId) {
+                    first = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+            matchingBlocks = blocks.subList(first, blocks.size()).stream().map(Block::copy).toArray(Block[]::new);
+            segmentSnapshot = segments.toArray(Segment[]::new);
+        }
+        return Arrays.stream(matchingBlocks)
+                .flatMap(block -> readBlock(segmentSnapshot[block.segment], block).stream())
+                .filter(measurement -> measurement.getId() > afterId);
+    }
+
+    Optional<Measurement> getLast() {
+        Block lastBlock;
+        Segment segment;
+        synchronized (this) {
+            if (blocks.isEmpty()) {
+                return Optional.empty();
+            }
+            lastBlock = blocks.get(blocks.size() - 1).copy();
+            segment = segments.get(lastBlock.segment);
+        }
+        var records = readBlock(segment, lastBlock);
+        return Optional.of(records.get(records.size() - 1));
+    }
+
+    synchronized long count() {
+        return count;
+    }
+
+    /**
+     * Writes all modified segments to disk.
+     */
+    synchronized void force() {
+        for (var segment : segments) {
+            if (segment.dirty) {
+                segment.buffer.force();
+                segment.dirty = false;
+            }
+        }
+    }
+
+    /**
+     * Writes all modified segments to disk. The mappings are released when they are garbage collected.
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        force();
+    }
+
+    private List<Measurement> readBlock(Segment segment, Block block) {
+        var buffer = segment.buffer.duplicate();
+        var records = new ArrayList<Measurement>(block.count);
+        int position = block.offset;
+        for (int i = 0; i < block.count; i++) {
+            int length = buffer.getInt(position);
+            records.add(LogRecordCodec.decode(buffer, position + FRAME_HEADER_SIZE, parameterId));
+            position += FRAME_HEADER_SIZE + length;
+        }
+        return records;
+    }
+
+    private long firstIdOf(Block block) {
+        return segments.get(block.segment).buffer.getLong(block.offset + FRAME_HEADER_SIZE + LogRecordCodec.ID_OFFSET);
+    }
+
+    private void addToIndex(int segmentNumber, int offset, long clientTime) {
+        var block = blocks.isEmpty() ? null : blocks.get(blocks.size() - 1);
+        if (block == null || block.count == BLOCK_SIZE || block.segment != segmentNumber) {
+            block = new Block(segmentNumber, offset, 0, clientTime, clientTime);
+            blocks.add(block);
+        }
+        block.count++;
+        block.minTime = Math.min(block.minTime, clientTime);
+        block.maxTime = Math.max(block.maxTime, clientTime);
+        count++;
+    }
+
+    private Segment rollOver(int recordSize) throws IOException {
+        if (!segments.isEmpty()) {
+            seal(segments.get(segments.size() - 1));
+        }
+        int number = segments.size();
+        var segment = Segment.map(
+                segmentFile(number), number, Math.max(Math.min(INITIAL_SEGMENT_SIZE, segmentSize), recordSize));
+        segments.add(segment);
+        return segment;
+    }
+
+    /**
+     * Maps the active segment again with (at least) twice its size, at most the segment size unless the record is
+     * larger. Readers keep using the previous mapping for the records they have already seen.
+     */
+    private Segment grow(Segment segment, int recordSize) throws IOException {
+        if (segment.dirty) {
+            segment.buffer.force();
+        }
+        long size = Math.max(Math.min((long) segment.capacity * 2, segmentSize), segment.writePosition + recordSize);
+        var grown = Segment.map(segmentFile(segment.number), segment.number, (int) size);
+        grown.writePosition = segment.writePosition;
+        segments.set(segment.number, grown);
+        return grown;
+    }
+
+    private void seal(Segment segment) throws IOException {
+        segment.buffer.force();
+        segment.dirty = false;
+        var segmentBlocks =
+                blocks.stream().filter(block -> block.segment == segment.number).toList();
+        var indexFile = indexFile(segment.number);
+        var tempFile = indexFile.resolveSibling(indexFile.getFileName() + ".tmp");
+        try (var out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tempFile)))) {
+            out.writeInt(segmentBlocks.size());
+            for (var block : segmentBlocks) {
+                out.writeInt(block.offset);
+                out.writeInt(block.count);
+                out.writeLong(block.minTime);
+                out.writeLong(block.maxTime);
+            }
+        }
+        Files.move(tempFile, indexFile, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private boolean loadSealedIndex(Segment segment) throws IOException {
+        var indexFile = indexFile(segment.number);
+        if (!Files.exists(indexFile)) {
+            return false;
+        }
+        try (var in = new DataInputStream(new BufferedInputStream(Files.newInputStream(indexFile)))) {
+            int blockCount = in.readInt();
+            for (int i = 0; i < blockCount; i++) {
+                var block = new Block(segment.number, in.readInt(), in.readInt(), in.readLong(), in.readLong());
+                blocks.add(block);
+                count += block.count;
+            }
+        }
+        segment.writePosition = segment.capacity;
+        return true;
+    }
+
+    /**
+     * Rebuilds the index of a segment by reading all of its records. Reading stops at the first record that is
+     * incomplete or fails its checksum; in the active segment, anything after it is cleared.
+     */
+    private void scan(Segment segment, boolean active) {
+        var buffer = segment.buffer;
+        var crc = new CRC32();
+        int position = 0;
+        while (position + FRAME_HEADER_SIZE <= segment.capacity) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + FRAME_HEADER_SIZE + length > segment.capacity) {
+                break;
+            }
+            crc.reset();
+            crc.update(buffer.duplicate()
+                    .position(position + FRAME_HEADER_SIZE)
+                    .limit(position + FRAME_HEADER_SIZE + length));
+            if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                log.warn("Parameter log {} segment {}: checksum mismatch at {}", parameterId, segment.number, position);
+                break;
+            }
+            addToIndex(
+                    segment.number,
+                    position,
+                    buffer.getLong(position + FRAME_HEADER_SIZE + LogRecordCodec.CLIENT_TIME_OFFSET));
+            position += FRAME_HEADER_SIZE + length;
+        }
+        segment.writePosition = position;
+        if (active && position + FRAME_HEADER_SIZE <= segment.capacity && buffer.getInt(position) != 0) {
+            log.warn("Parameter log {} segment {}: discarding torn data after {}", parameterId, segment.number, position);
+            for (int i = position; i < segment.capacity; i++) {
+                buffer.put(i, (byte) 0);
+            }
+            buffer.force();
+        }
+    }
+
+    private Path segmentFile(int number) {
+        return directory.resolve(String.format("%08d.log", number));
+    }
+
+    private Path indexFile(int number) {
+        return directory.resolve(String.format("%08d.idx", number));
+    }
+
+    private static class Segment {
+        private final int number;
+        private final MappedByteBuffer buffer;
+        private final int capacity;
+        private int writePosition = 0;
+        private boolean dirty = false;
+
+        private Segment(int number, MappedByteBuffer buffer) {
+            this.number = number;
+            this.buffer = buffer;
+            this.capacity = buffer.capacity();
+        }
+
+        /**
+         * Maps the given segment file, extending it to the capacity if necessary. If capacity is -1, the existing file
+         * is mapped with its current size.
+         */
+        private static Segment map(Path file, int number, int capacity) throws IOException {
+            try (var channel = FileChannel.open(
+                    file, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                long size = capacity >= 0 ? capacity : channel.size();
+                return new Segment(number, channel.map(FileChannel.MapMode.READ_WRITE, 0, size));
+            }
+        }
+    }
+
+    private static class Block {
+        private final int segment;
+        private final int offset;
+        private int count;
+        private long minTime;
+        private long maxTime;
+
+        private Block(int segment, int offset, int count, long minTime, long maxTime) {
+            this.segment = segment;
+            this.offset = offset;
+            this.count = count;
+            this.minTime = minTime;
+            this.maxTime = maxTime;
+        }
+
+        private Block copy() {
+            return new Block(segment, offset, count, minTime, maxTime);
+        }
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.entities;
+
+import java.time.Instant;
+import javax.persistence.*;
+import javax.validation.constraints.NotNull;
+import lombok.Getter;
+import lombok.Setter;
+import org.hibernate.annotations.CreationTimestamp;
+
+/**
+ * Index entry for a segment file of archived measurements. The segment contains all measurements of one parameter
+ * whose client time lies within [startTime, endTime) and that existed when the segment was written. Not an
+ * {@link AbstractEntity}, like {@link ReplicationCheckpoint}: segments are internal bookkeeping of the archive, and
+ * nothing needs to be notified when they are written.
+ */
+@Getter
+@Setter
+@Entity
+public class ArchivedSegment {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @NotNull
+    @Column(name = "parameter_id")
+    private long parameterId;
+
+    @NotNull
+    private Instant startTime;
+
+    @NotNull
+    private Instant endTime;
+
+    @NotNull
+    private long firstMeasurementId;
+
+    @NotNull
+    private long lastMeasurementId;
+
+    @NotNull
+    private long rowCount;
+
+    /**
+     * Path of the segment file, relative to the archive directory.
+     */
+    @NotNull
+    private String fileName;
+
+    @NotNull
+    private long fileSize;
+
+    @NotNull
+    @CreationTimestamp
+    private Instant creationTime = Instant.now();
+}
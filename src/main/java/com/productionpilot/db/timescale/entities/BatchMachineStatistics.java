@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.entities;
+
+import com.productionpilot.db.store.MeasurementStatistics;
+import java.time.Instant;
+import javax.persistence.*;
+import javax.validation.constraints.NotNull;
+import lombok.Getter;
+import lombok.Setter;
+
+/**
+ * The stored {@link MeasurementStatistics} of a parameter within a batch machine range. Not an {@link AbstractEntity},
+ * like {@link ExportManifest}.
+ */
+@Getter
+@Setter
+@Entity
+public class BatchMachineStatistics {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    @NotNull
+    @Column(name = "batch_machine_id")
+    private long batchMachineId;
+
+    @NotNull
+    @Column(name = "parameter_id")
+    private long parameterId;
+
+    @NotNull
+    private long measurementCount;
+
+    @NotNull
+    private long numericCount;
+
+    private Double minValue;
+
+    private Double maxValue;
+
+    private Double meanValue;
+
+    private Double standardDeviation;
+
+    /**
+     * Modification time of the batch machine range when the statistics were computed. If the range was modified since,
+     * the statistics are outdated.
+     */
+    @NotNull
+    private Instant rangeModificationTime;
+
+    @NotNull
+    private Instant computationTime;
+
+    public MeasurementStatistics getStatistics() {
+        return new MeasurementStatistics(
+                measurementCount, numericCount, minValue, maxValue, meanValue, standardDeviation);
+    }
+
+    public void setStatistics(MeasurementStatistics statistics) {
+        measurementCount = statistics.count();
+        numericCount = statistics.numericCount();
+        minValue = statistics.min();
+        maxValue = statistics.max();
+        meanValue = statistics.mean();
+        standardDeviation = statistics.standardDeviation();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.entities;
+
+import java.time.Instant;
+import javax.persistence.*;
+import javax.validation.constraints.NotNull;
+import lombok.Getter;
+import lombok.Setter;
+import org.hibernate.annotations.UpdateTimestamp;
+
+/**
+ * How far a consumer of incremental exports has exported a parameter within a batch machine range: all measurements
+ * with an id up to and including completeUpToId have been exported, and of those with a higher id, the ones in
+ * pendingIds. Not an {@link AbstractEntity}, like {@link ReplicationCheckpoint}.
+ */
+@Getter
+@Setter
+@Entity
+public class ExportManifest {
+    @Id
+    @GeneratedValue(strategy = GenerationType.IDENTITY)
+    private Long id;
+
+    /**
+     * Name chosen by the client, so that several clients can export the same batch independently.
+     */
+    @NotNull
+    private String consumer;
+
+    @NotNull
+    @Column(name = "batch_machine_id")
+    private long batchMachineId;
+
+    @NotNull
+    @Column(name = "parameter_id")
+    private long parameterId;
+
+    /**
+     * The highest exported id.
+     */
+    @NotNull
+    private long lastMeasurementId;
+
+    /**
+     * Client time of the measurement with lastMeasurementId.
+     */
+    @NotNull
+    private Instant lastClientTime;
+
+    /**
+     * Measurements with an id up to and including this one were committed and exported. Ids are assigned before the
+     * commit, so measurements with higher ids may still be committed with an id lower than an exported one.
+     */
+    @NotNull
+    private long completeUpToId;
+
+    /**
+     * Comma-separated ids above completeUpToId that were exported already.
+     */
+    @NotNull
+    private String pendingIds = "";
+
+    /**
+     * Number of measurements exported so far, over all incremental exports.
+     */
+    @NotNull
+    private long rowCount;
+
+    @NotNull
+    @UpdateTimestamp
+    private Instant modificationTime = Instant.now();
+}
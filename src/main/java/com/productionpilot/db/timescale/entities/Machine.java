@@ -12,6 +12,8 @@ import javax.validation.constraints.Size;
 import lombok.Getter;
 import lombok.Setter;
 import org.apache.commons.lang3.builder.EqualsBuilder;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.SQLDelete;
 import org.hibernate.annotations.Where;
 import org.springframework.data.annotation.ReadOnlyProperty;
@@ -22,7 +24,7 @@ import org.springframework.data.annotation.ReadOnlyProperty;
 // Provide soft delete
 @SQLDelete(sql = "UPDATE Machine SET deleted = true WHERE id=?")
 @Where(clause = "deleted = false")
-// @org.hibernate.annotations.Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Machine extends AbstractEntity {
     @Id
     @GeneratedValue(strategy = GenerationType.IDENTITY)
@@ -41,6 +43,7 @@ public class Machine extends AbstractEntity {
     @NotNull
     @OneToMany(fetch = FetchType.EAGER, mappedBy = "machine", cascade = CascadeType.REMOVE)
     @ReadOnlyProperty
+    @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
     private List<Parameter> parameters = new ArrayList<>();
 
     public String toString() {
@@ -12,9 +12,14 @@ import lombok.Getter;
 import lombok.Setter;
 import lombok.extern.slf4j.Slf4j;
 
+/**
+ * Measurements do not publish {@link com.productionpilot.db.timescale.service.event.EntityEventService} events, see
+ * {@link com.productionpilot.db.timescale.service.MeasurementStreamService} instead.
+ */
 @Getter
 @Setter
 @Entity
+@ExcludeSuperclassListeners
 @Slf4j
 public class Measurement extends AbstractEntity {
     @Id
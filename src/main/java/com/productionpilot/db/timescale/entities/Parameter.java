@@ -14,6 +14,7 @@ import javax.validation.constraints.Size;
 import lombok.Getter;
 import lombok.Setter;
 import org.hibernate.annotations.*;
+import org.hibernate.annotations.Cache;
 import org.hibernate.validator.constraints.time.DurationMin;
 import org.springframework.data.annotation.ReadOnlyProperty;
 
@@ -23,7 +24,7 @@ import org.springframework.data.annotation.ReadOnlyProperty;
 // Provide soft delete
 @SQLDelete(sql = "UPDATE Parameter SET deleted = true WHERE id = ?")
 @Where(clause = "deleted = false")
-// @Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE)
 public class Parameter extends AbstractEntity {
     public static final long MINIMUM_SAMPLING_INTERVAL_MS = 10;
     public static final Duration DEFAULT_SAMPLING_INTERVAL = Duration.ofMillis(1000);
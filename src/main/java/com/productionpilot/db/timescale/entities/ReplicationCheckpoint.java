@@ -0,0 +1,33 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.entities;
+
+import java.time.Instant;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.validation.constraints.NotNull;
+import lombok.Getter;
+import lombok.Setter;
+import org.hibernate.annotations.UpdateTimestamp;
+
+/**
+ * How far the measurements have been replicated to a replication target: all measurements with an id up to and
+ * including lastMeasurementId have been written. Not an {@link AbstractEntity}, as checkpoints are updated frequently
+ * and nothing needs to be notified about that.
+ */
+@Getter
+@Setter
+@Entity
+public class ReplicationCheckpoint {
+    @Id
+    private String name;
+
+    @NotNull
+    private long lastMeasurementId;
+
+    @NotNull
+    @UpdateTimestamp
+    private Instant modificationTime = Instant.now();
+}
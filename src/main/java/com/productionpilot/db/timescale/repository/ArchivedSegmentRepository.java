@@ -0,0 +1,29 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.repository;
+
+import com.productionpilot.db.timescale.entities.ArchivedSegment;
+import java.time.Instant;
+import java.util.List;
+import java.util.Optional;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+
+public interface ArchivedSegmentRepository extends CrudRepository<ArchivedSegment, Long> {
+    /**
+     * Returns all segments of the given parameter that overlap with [start, end], in measurement id order.
+     */
+    @Query("SELECT s FROM ArchivedSegment s WHERE s.parameterId = ?1 AND s.startTime <= ?3 AND s.endTime > ?2"
+            + " ORDER BY s.firstMeasurementId")
+    List<ArchivedSegment> findOverlapping(long parameterId, Instant start, Instant end);
+
+    Optional<ArchivedSegment> findFirstByParameterIdOrderByLastMeasurementIdDesc(long parameterId);
+
+    @Query("SELECT COALESCE(SUM(s.rowCount), 0) FROM ArchivedSegment s WHERE s.parameterId = ?1")
+    long sumRowCountByParameterId(long parameterId);
+
+    @Query("SELECT COALESCE(MAX(s.lastMeasurementId), 0) FROM ArchivedSegment s")
+    long findMaxLastMeasurementId();
+}
@@ -0,0 +1,16 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.repository;
+
+import com.productionpilot.db.timescale.entities.BatchMachineStatistics;
+import java.util.Collection;
+import java.util.List;
+import org.springframework.data.repository.CrudRepository;
+
+public interface BatchMachineStatisticsRepository extends CrudRepository<BatchMachineStatistics, Long> {
+    List<BatchMachineStatistics> findByBatchMachineIdIn(Collection<Long> batchMachineIds);
+
+    List<BatchMachineStatistics> findByBatchMachineId(long batchMachineId);
+}
@@ -16,16 +16,12 @@ public interface BatchRepository extends JpaRepository<Batch, Long> {
 
     List<Batch> findAllByParentBatchOrderByModificationTimeAsc(Batch parentBatch);
 
+    /**
+     * See {@link com.productionpilot.db.timescale.service.BatchService#getFullPath}.
+     */
     @Query(
-            value = "WITH RECURSIVE Batch_Parents_Recursive AS ("
-                    + "        SELECT id cts_child_id, id cts_parent_id, 1 cts_level, parent_batch_id cts_real_parent_id, Batch.*"
-                    + "        FROM Batch"
-                    + "    UNION ALL"
-                    + "        SELECT Batch_Parents_Recursive.cts_child_id, Batch.id parent_id, cts_level + 1, Batch.parent_batch_id, Batch.*"
-                    + "        FROM Batch_Parents_Recursive"
-                    + "                 INNER JOIN Batch ON Batch.id = Batch_Parents_Recursive.cts_real_parent_id"
-                    + " ) "
-                    + " SELECT * FROM Batch_Parents_Recursive WHERE cts_child_id = ?1 ORDER BY cts_level",
+            value = "SELECT Batch.* FROM Batch_Closure INNER JOIN Batch ON Batch.id = Batch_Closure.ancestor_id"
+                    + " WHERE Batch_Closure.descendant_id = ?1 ORDER BY Batch_Closure.depth DESC",
             nativeQuery = true)
     List<Batch> getFullPath(Batch batch);
 }
@@ -0,0 +1,193 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.repository;
+
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import javax.sql.DataSource;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Repository;
+
+/**
+ * Maintains the closure table of the batch hierarchy, and loads a batch with all of its descendants and their batch
+ * machine ranges in a single query, for exports. Walking the tree through {@link BatchRepository} and
+ * {@link BatchMachineRepository} takes two queries per batch, plus one per machine for the eagerly loaded machines.
+ *
+ * Batch_Closure has a row for every batch and each of its ancestors, including the batch itself at depth 0. Ancestor
+ * and subtree lookups are therefore a single index lookup instead of a recursive query. BatchService keeps it up to
+ * date in the same transaction as the Batch table; the rows of deleted batches are removed by the foreign keys.
+ */
+@Repository
+public class BatchTreeJdbcRepository {
+    private static final String SUBTREE_QUERY = "SELECT Batch.id, Batch.parent_batch_id, Batch.name,"
+            + "     Batch.modification_time, Batch_Machine.id, Batch_Machine.machine_id, Machine.name,"
+            + "     Batch_Machine.start_time, Batch_Machine.end_time, Batch_Machine.modification_time"
+            + " FROM Batch_Closure"
+            + "     INNER JOIN Batch ON Batch.id = Batch_Closure.descendant_id"
+            + "     LEFT JOIN Batch_Machine ON Batch_Machine.batch_id = Batch.id"
+            + "     LEFT JOIN Machine ON Machine.id = Batch_Machine.machine_id"
+            + " WHERE Batch_Closure.ancestor_id = ?"
+            + " ORDER BY Batch.id, Batch_Machine.id";
+
+    private final JdbcTemplate jdbcTemplate;
+
+    public BatchTreeJdbcRepository(DataSource dataSource) {
+        jdbcTemplate = new JdbcTemplate(dataSource);
+    }
+
+    /**
+     * Returns the batch with its ranges and child batches, or null if it does not exist. Child batches are ordered by
+     * modification time like {@link BatchRepository#findAllByParentBatchOrderByModificationTimeAsc}, ranges by id.
+     */
+    public BatchNode findSubtree(long batchId) {
+        var nodes = new LinkedHashMap<Long, MutableNode>();
+        jdbcTemplate.query(SUBTREE_QUERY, resultSet -> {
+            long id = resultSet.getLong(1);
+            var node = nodes.get(id);
+            if (node == null) {
+                long parentId = resultSet.getLong(2);
+                node = new MutableNode(
+                        id,
+                        resultSet.wasNull() ? null : parentId,
+                        resultSet.getString(3),
+                        getInstant(resultSet, 4));
+                nodes.put(id, node);
+            }
+            long rangeId = resultSet.getLong(5);
+            if (!resultSet.wasNull()) {
+                node.ranges.add(new RangeNode(
+                        rangeId,
+                        resultSet.getLong(6),
+                        resultSet.getString(7),
+                        getInstant(resultSet, 8),
+                        getInstant(resultSet, 9),
+                        getInstant(resultSet, 10)));
+            }
+        }, batchId);
+        var root = nodes.get(batchId);
+        if (root == null) {
+            return null;
+        }
+        for (var node : nodes.values()) {
+            if (node != root && node.parentId != null) {
+                nodes.get(node.parentId).children.add(node);
+            }
+        }
+        return root.toBatchNode();
+    }
+
+    /**
+     * Adds a new batch below the given parent batch, or as a top layer batch if the parent is null.
+     */
+    public void insertBatch(long batchId, Long parentBatchId) {
+        jdbcTemplate.update(
+                "INSERT INTO Batch_Closure (ancestor_id, descendant_id, depth)"
+                        + " SELECT ancestor_id, ?, depth + 1 FROM Batch_Closure WHERE descendant_id = ?"
+                        + " UNION ALL SELECT ?, ?, 0",
+                batchId,
+                parentBatchId,
+                batchId,
+                batchId);
+    }
+
+    /**
+     * Moves the batch and its subtree below the given parent batch, or to the top layer if the parent is null. The
+     * caller must have checked with {@link #isAncestorOrSelf} that this does not create a cycle.
+     */
+    public void moveBatch(long batchId, Long parentBatchId) {
+        // Detach the subtree from the ancestors of the batch
+        jdbcTemplate.update(
+                "DELETE FROM Batch_Closure"
+                        + " WHERE descendant_id IN (SELECT descendant_id FROM Batch_Closure WHERE ancestor_id = ?)"
+                        + " AND ancestor_id NOT IN (SELECT descendant_id FROM Batch_Closure WHERE ancestor_id = ?)",
+                batchId,
+                batchId);
+        if (parentBatchId != null) {
+            jdbcTemplate.update(
+                    "INSERT INTO Batch_Closure (ancestor_id, descendant_id, depth)"
+                            + " SELECT Above.ancestor_id, Below.descendant_id, Above.depth + Below.depth + 1"
+                            + " FROM Batch_Closure Above CROSS JOIN Batch_Closure Below"
+                            + " WHERE Above.descendant_id = ? AND Below.ancestor_id = ?",
+                    parentBatchId,
+                    batchId);
+        }
+    }
+
+    /**
+     * Returns the parent of the batch as recorded in the closure table, or null for a top layer batch.
+     */
+    public Long findParentId(long batchId) {
+        return jdbcTemplate.query(
+                "SELECT ancestor_id FROM Batch_Closure WHERE descendant_id = ? AND depth = 1",
+                resultSet -> resultSet.next() ? resultSet.getLong(1) : null,
+                batchId);
+    }
+
+    public boolean isAncestorOrSelf(long ancestorId, long batchId) {
+        return Boolean.TRUE.equals(jdbcTemplate.queryForObject(
+                "SELECT EXISTS (SELECT 1 FROM Batch_Closure WHERE ancestor_id = ? AND descendant_id = ?)",
+                Boolean.class,
+                ancestorId,
+                batchId));
+    }
+
+    /**
+     * Blocks other changes to the hierarchy until the end of the transaction, so that the cycle check and the move
+     * happen atomically, also across several instances of the application. Reads are not blocked.
+     */
+    public void lockHierarchy() {
+        jdbcTemplate.execute("LOCK TABLE Batch_Closure IN SHARE ROW EXCLUSIVE MODE");
+    }
+
+    private static Instant getInstant(ResultSet resultSet, int column) throws SQLException {
+        return resultSet.getTimestamp(column).toInstant();
+    }
+
+    /**
+     * A batch of the tree. The ranges are the batch's own batch machine ranges, not those of its children.
+     */
+    public record BatchNode(
+            long id, String name, Instant modificationTime, List<RangeNode> ranges, List<BatchNode> children) {}
+
+    public record RangeNode(
+            long id,
+            long machineId,
+            String machineName,
+            Instant startTime,
+            Instant endTime,
+            Instant modificationTime) {}
+
+    private static class MutableNode {
+        private final long id;
+        private final Long parentId;
+        private final String name;
+        private final Instant modificationTime;
+        private final List<RangeNode> ranges = new ArrayList<>();
+        private final List<MutableNode> children = new ArrayList<>();
+
+        private MutableNode(long id, Long parentId, String name, Instant modificationTime) {
+            this.id = id;
+            this.parentId = parentId;
+            this.name = name;
+            this.modificationTime = modificationTime;
+        }
+
+        private BatchNode toBatchNode() {
+            children.sort(Comparator.<MutableNode, Instant>comparing(child -> child.modificationTime)
+                    .thenComparingLong(child -> child.id));
+            return new BatchNode(
+                    id,
+                    name,
+                    modificationTime,
+                    List.copyOf(ranges),
+                    children.stream().map(MutableNode::toBatchNode).toList());
+        }
+    }
+}
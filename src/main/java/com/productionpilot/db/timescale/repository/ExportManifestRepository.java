@@ -0,0 +1,20 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.repository;
+
+import com.productionpilot.db.timescale.entities.ExportManifest;
+import java.util.Collection;
+import java.util.List;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+
+public interface ExportManifestRepository extends CrudRepository<ExportManifest, Long> {
+    List<ExportManifest> findByConsumerAndBatchMachineIdIn(String consumer, Collection<Long> batchMachineIds);
+
+    @Modifying
+    @Query("DELETE FROM ExportManifest m WHERE m.consumer = ?1 AND m.batchMachineId IN ?2")
+    int deleteByConsumerAndBatchMachineIdIn(String consumer, Collection<Long> batchMachineIds);
+}
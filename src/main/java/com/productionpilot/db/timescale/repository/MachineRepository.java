@@ -6,8 +6,11 @@ package com.productionpilot.db.timescale.repository;
 
 import com.productionpilot.db.timescale.entities.Machine;
 import java.util.List;
+import javax.persistence.QueryHint;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 
 public interface MachineRepository extends CrudRepository<Machine, Long> {
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
     List<Machine> findByOrderByIdAsc();
 }
@@ -0,0 +1,395 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.repository;
+
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.productionpilot.db.store.MeasurementBucket;
+import com.productionpilot.db.store.MeasurementRow;
+import com.productionpilot.db.store.MeasurementStatistics;
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+import javax.sql.DataSource;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.ArgumentPreparedStatementSetter;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.PreparedStatementSetter;
+import org.springframework.stereotype.Repository;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Reads large numbers of measurements with plain JDBC, for exports and API responses.
+ *
+ * Streams from {@link MeasurementRepository} load managed entities, which Hibernate keeps in the persistence context
+ * until the transaction ends. Here, rows are mapped to detached {@link Measurement} objects instead, and the PostgreSQL
+ * driver fetches them through a server-side cursor, fetch-size rows at a time. The memory used is therefore independent
+ * of the number of rows read. Streams that are read side by side, one per parameter, fetch only
+ * {@value #SIDE_BY_SIDE_FETCH_SIZE} rows at a time, as there may be hundreds of them.
+ */
+@Repository
+public class MeasurementJdbcRepository {
+    private static final String COLUMNS = "id, parameter_id, source_time, server_time, client_time, opc_status_code,"
+            + " value_string, value_boolean, value_long, value_double";
+    private static final String ROW_COLUMNS = "id, parameter_id, " + epochMicros("source_time") + ", "
+            + epochMicros("server_time") + ", " + epochMicros("client_time") + ", opc_status_code, value_string,"
+            + " value_boolean, value_long, value_double";
+    private static final String RANGE_CONDITION =
+            " FROM Measurement WHERE parameter_id = ? AND client_time >= ? AND client_time <= ? ORDER BY id";
+    // Exactly one of the value columns is set, see the measurement_nullity constraint
+    private static final String NUMERIC_VALUE = "COALESCE(value_double, value_long)";
+    private static final String RANGE_AFTER_ID_CONDITION = " FROM Measurement WHERE parameter_id = ?"
+            + " AND client_time >= ? AND client_time <= ? AND id > ? ORDER BY id LIMIT ?";
+
+    private static final int SIDE_BY_SIDE_FETCH_SIZE = 50;
+
+    private final JdbcTemplate jdbcTemplate;
+    private final JdbcTemplate sideBySideJdbcTemplate;
+
+    public MeasurementJdbcRepository(
+            DataSource dataSource, @Value("${com.productionpilot.measurements.fetch-size:1000}") int fetchSize) {
+        jdbcTemplate = new JdbcTemplate(dataSource);
+        jdbcTemplate.setFetchSize(fetchSize);
+        sideBySideJdbcTemplate = new JdbcTemplate(dataSource);
+        sideBySideJdbcTemplate.setFetchSize(Math.min(fetchSize, SIDE_BY_SIDE_FETCH_SIZE));
+    }
+
+    /**
+     * Returns the measurements of the given parameter with a client time in [startTime, endTime], in ascending id
+     * order. Must be called within a transaction, as the PostgreSQL driver only uses a cursor if auto-commit is
+     * disabled (otherwise, it would read the entire result set into memory). The returned stream must be closed.
+     */
+    public Stream<Measurement> streamByParameterAndTimeRange(long parameterId, Instant startTime, Instant endTime) {
+        return streamByParameterAndTimeRange(jdbcTemplate, parameterId, startTime, endTime);
+    }
+
+    /**
+     * Like {@link #streamByParameterAndTimeRange(long, Instant, Instant)}, for streams that are read side by side,
+     * which fetch fewer rows at a time.
+     */
+    public Stream<Measurement> streamByParameterAndTimeRangeSideBySide(
+            long parameterId, Instant startTime, Instant endTime) {
+        return streamByParameterAndTimeRange(sideBySideJdbcTemplate, parameterId, startTime, endTime);
+    }
+
+    private static Stream<Measurement> streamByParameterAndTimeRange(
+            JdbcTemplate jdbcTemplate, long parameterId, Instant startTime, Instant endTime) {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException("Measurements can only be streamed within a transaction");
+        }
+        return jdbcTemplate.queryForStream(
+                "SELECT " + COLUMNS + RANGE_CONDITION,
+                (resultSet, rowNumber) -> mapRow(resultSet),
+                parameterId,
+                Timestamp.from(startTime),
+                Timestamp.from(endTime));
+    }
+
+    /**
+     * Passes the same measurements as {@link #streamByParameterAndTimeRange} to the handler, one reused
+     * {@link MeasurementRow} at a time. The times are converted to epoch microseconds by the database, so no objects
+     * are created per row apart from string values. Must be called within a transaction.
+     */
+    public void forEachByParameterAndTimeRange(
+            long parameterId, Instant startTime, Instant endTime, MeasurementRow.Handler handler) throws IOException {
+        forEach(
+                "SELECT " + ROW_COLUMNS + RANGE_CONDITION,
+                handler,
+                parameterId,
+                Timestamp.from(startTime),
+                Timestamp.from(endTime));
+    }
+
+    /**
+     * Like {@link #forEachByParameterAndTimeRange}, but only passes the first limit measurements with an id greater
+     * than afterId, for incremental exports and pagination. Must be called within a transaction.
+     */
+    public void forEachByParameterAndTimeRangeAfterId(
+            long parameterId,
+            Instant startTime,
+            Instant endTime,
+            long afterId,
+            long limit,
+            MeasurementRow.Handler handler)
+            throws IOException {
+        forEach(
+                "SELECT " + ROW_COLUMNS + RANGE_AFTER_ID_CONDITION,
+                handler,
+                parameterId,
+                Timestamp.from(startTime),
+                Timestamp.from(endTime),
+                afterId,
+                limit);
+    }
+
+    /**
+     * Passes the measurements of all given parameters with a client time in [startTime, endTime] to the handler, read
+     * with a single query. They are grouped by parameter in ascending parameter id order, and in ascending id order
+     * within each parameter. Must be called within a transaction.
+     */
+    public void forEachByParametersAndTimeRange(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime, MeasurementRow.Handler handler)
+            throws IOException {
+        if (parameterIds.isEmpty()) {
+            return;
+        }
+        forEach(
+                "SELECT " + ROW_COLUMNS + " FROM Measurement WHERE parameter_id = ANY(?)"
+                        + " AND client_time >= ? AND client_time <= ? ORDER BY parameter_id, id",
+                handler,
+                statement -> {
+                    statement.setArray(
+                            1, statement.getConnection().createArrayOf("bigint", parameterIds.toArray(Long[]::new)));
+                    statement.setTimestamp(2, Timestamp.from(startTime));
+                    statement.setTimestamp(3, Timestamp.from(endTime));
+                });
+    }
+
+    /**
+     * Passes the measurements of all given parameters with a client time in [startTime, endTime] to the handler, read
+     * with a single query and merged by the database: ordered by client time, then by parameter id and id. Must be
+     * called within a transaction.
+     */
+    public void forEachByParametersAndTimeRangeOrderedByTime(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime, MeasurementRow.Handler handler)
+            throws IOException {
+        if (parameterIds.isEmpty()) {
+            return;
+        }
+        forEach(
+                "SELECT " + ROW_COLUMNS + " FROM Measurement WHERE parameter_id = ANY(?)"
+                        + " AND client_time >= ? AND client_time <= ? ORDER BY client_time, parameter_id, id",
+                handler,
+                statement -> {
+                    statement.setArray(
+                            1, statement.getConnection().createArrayOf("bigint", parameterIds.toArray(Long[]::new)));
+                    statement.setTimestamp(2, Timestamp.from(startTime));
+                    statement.setTimestamp(3, Timestamp.from(endTime));
+                });
+    }
+
+    /**
+     * Passes the measurements of the given parameter with a client time in [startTime, endTime) and an id up to maxId
+     * to the handler, in ascending id order, for archiving. Must be called within a transaction.
+     */
+    public void forEachByParameterInHalfOpenRange(
+            long parameterId, Instant startTime, Instant endTime, long maxId, MeasurementRow.Handler handler)
+            throws IOException {
+        forEach(
+                "SELECT " + ROW_COLUMNS + " FROM Measurement WHERE parameter_id = ?"
+                        + " AND client_time >= ? AND client_time < ? AND id <= ? ORDER BY id",
+                handler,
+                parameterId,
+                Timestamp.from(startTime),
+                Timestamp.from(endTime),
+                maxId);
+    }
+
+    /**
+     * Passes at most limit measurements of all parameters with an id greater than afterId to the handler, in ascending
+     * id order. As the number of rows is bounded, this does not need a cursor and may be called outside of a
+     * transaction.
+     */
+    public void forEachAfterId(long afterId, long limit, MeasurementRow.Handler handler) throws IOException {
+        query(
+                "SELECT " + ROW_COLUMNS + " FROM Measurement WHERE id > ? ORDER BY id LIMIT ?",
+                handler,
+                new ArgumentPreparedStatementSetter(new Object[] {afterId, limit}));
+    }
+
+    /**
+     * Returns the highest id in the Measurement table, or 0 if it is empty.
+     */
+    public long getLastId() {
+        return jdbcTemplate.queryForObject("SELECT COALESCE(MAX(id), 0) FROM Measurement", Long.class);
+    }
+
+    /**
+     * Aggregates the measurements of the given parameters with a client time in [startTime, endTime] in a single
+     * query, see {@link com.productionpilot.db.store.MeasurementStore#aggregateByParametersAndTimeRange}.
+     */
+    public Map<Long, MeasurementStatistics> aggregateByParametersAndTimeRange(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime) {
+        var statistics = new HashMap<Long, MeasurementStatistics>();
+        parameterIds.forEach(parameterId -> statistics.put(parameterId, MeasurementStatistics.EMPTY));
+        if (parameterIds.isEmpty()) {
+            return statistics;
+        }
+        jdbcTemplate.query(
+                "SELECT parameter_id, COUNT(*), COUNT(" + NUMERIC_VALUE + "), MIN(" + NUMERIC_VALUE + "), MAX("
+                        + NUMERIC_VALUE + "), AVG(" + NUMERIC_VALUE + "), STDDEV_SAMP(" + NUMERIC_VALUE + ")"
+                        + " FROM Measurement WHERE parameter_id = ANY(?) AND client_time >= ? AND client_time <= ?"
+                        + " GROUP BY parameter_id",
+                statement -> {
+                    statement.setArray(
+                            1, statement.getConnection().createArrayOf("bigint", parameterIds.toArray(Long[]::new)));
+                    statement.setTimestamp(2, Timestamp.from(startTime));
+                    statement.setTimestamp(3, Timestamp.from(endTime));
+                },
+                resultSet -> {
+                    statistics.put(
+                            resultSet.getLong(1),
+                            new MeasurementStatistics(
+                                    resultSet.getLong(2),
+                                    resultSet.getLong(3),
+                                    getDouble(resultSet, 4),
+                                    getDouble(resultSet, 5),
+                                    getDouble(resultSet, 6),
+                                    getDouble(resultSet, 7)));
+                });
+        return statistics;
+    }
+
+    /**
+     * Aggregates the measurements of the given parameter with a client time in [startTime, endTime] per time bucket in
+     * a single query, see {@link com.productionpilot.db.store.MeasurementStore#aggregateByParameterAndTimeBuckets}.
+     * The returned map is ordered by bucket index.
+     */
+    public TreeMap<Long, MeasurementBucket> aggregateByParameterAndTimeBuckets(
+            long parameterId, Instant startTime, Instant endTime, long bucketSizeMicros) {
+        var buckets = new TreeMap<Long, MeasurementBucket>();
+        jdbcTemplate.query(
+                // First and last are taken from arrays ordered by time, as PostgreSQL has no such aggregates
+                "SELECT bucket, COUNT(*), COUNT(value), MIN(value), MAX(value), AVG(value),"
+                        + "     MIN(client_time_micros) FILTER (WHERE value IS NOT NULL),"
+                        + "     (ARRAY_AGG(value ORDER BY client_time_micros, id) FILTER (WHERE value IS NOT NULL))[1],"
+                        + "     MAX(client_time_micros) FILTER (WHERE value IS NOT NULL),"
+                        + "     (ARRAY_AGG(value ORDER BY client_time_micros DESC, id DESC)"
+                        + "         FILTER (WHERE value IS NOT NULL))[1]"
+                        + " FROM (SELECT id, " + epochMicros("client_time") + " AS client_time_micros, "
+                        + NUMERIC_VALUE + " AS value, (" + epochMicros("client_time") + " - ?) / ? AS bucket"
+                        + "     FROM Measurement WHERE parameter_id = ? AND client_time >= ? AND client_time <= ?)"
+                        + " AS Bucketed GROUP BY bucket",
+                resultSet -> {
+                    long index = resultSet.getLong(1);
+                    buckets.put(
+                            index,
+                            new MeasurementBucket(
+                                    index,
+                                    resultSet.getLong(2),
+                                    resultSet.getLong(3),
+                                    getDouble(resultSet, 4),
+                                    getDouble(resultSet, 5),
+                                    getDouble(resultSet, 6),
+                                    getLong(resultSet, 7),
+                                    getDouble(resultSet, 8),
+                                    getLong(resultSet, 9),
+                                    getDouble(resultSet, 10)));
+                },
+                toEpochMicros(startTime),
+                bucketSizeMicros,
+                parameterId,
+                Timestamp.from(startTime),
+                Timestamp.from(endTime));
+        return buckets;
+    }
+
+    private void forEach(String sql, MeasurementRow.Handler handler, Object... args) throws IOException {
+        forEach(sql, handler, new ArgumentPreparedStatementSetter(args));
+    }
+
+    private void forEach(String sql, MeasurementRow.Handler handler, PreparedStatementSetter arguments)
+            throws IOException {
+        if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+            throw new IllegalStateException("Measurements can only be streamed within a transaction");
+        }
+        query(sql, handler, arguments);
+    }
+
+    private void query(String sql, MeasurementRow.Handler handler, PreparedStatementSetter arguments)
+            throws IOException {
+        var row = new MeasurementRow();
+        try {
+            jdbcTemplate.query(sql, arguments, resultSet -> {
+                try {
+                    handler.accept(mapRow(resultSet, row));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private static MeasurementRow mapRow(ResultSet resultSet, MeasurementRow row) throws SQLException {
+        row.set(
+                resultSet.getLong(1),
+                resultSet.getLong(2),
+                resultSet.getLong(3),
+                resultSet.getLong(4),
+                resultSet.getLong(5),
+                resultSet.getLong(6));
+        var valueString = resultSet.getString(7);
+        if (valueString != null) {
+            row.setValueString(valueString);
+            return row;
+        }
+        boolean valueBoolean = resultSet.getBoolean(8);
+        if (!resultSet.wasNull()) {
+            row.setValueBoolean(valueBoolean);
+            return row;
+        }
+        long valueLong = resultSet.getLong(9);
+        if (!resultSet.wasNull()) {
+            row.setValueLong(valueLong);
+            return row;
+        }
+        double valueDouble = resultSet.getDouble(10);
+        if (!resultSet.wasNull()) {
+            row.setValueDouble(valueDouble);
+        } else {
+            row.setValueNone();
+        }
+        return row;
+    }
+
+    private static Double getDouble(ResultSet resultSet, int column) throws SQLException {
+        double value = resultSet.getDouble(column);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    private static Long getLong(ResultSet resultSet, int column) throws SQLException {
+        long value = resultSet.getLong(column);
+        return resultSet.wasNull() ? null : value;
+    }
+
+    private static String epochMicros(String column) {
+        return "(EXTRACT(EPOCH FROM " + column + ") * 1000000)::BIGINT";
+    }
+
+    private static Measurement mapRow(ResultSet resultSet) throws SQLException {
+        var measurement = new Measurement();
+        measurement.setId(resultSet.getLong(1));
+        measurement.setParameterId(resultSet.getLong(2));
+        measurement.setSourceTime(resultSet.getTimestamp(3).toInstant());
+        measurement.setServerTime(resultSet.getTimestamp(4).toInstant());
+        measurement.setClientTime(resultSet.getTimestamp(5).toInstant());
+        measurement.setOpcStatusCode(resultSet.getLong(6));
+        measurement.setValueString(resultSet.getString(7));
+        boolean valueBoolean = resultSet.getBoolean(8);
+        if (!resultSet.wasNull()) {
+            measurement.setValueBoolean(valueBoolean);
+        }
+        long valueLong = resultSet.getLong(9);
+        if (!resultSet.wasNull()) {
+            measurement.setValueLong(valueLong);
+        }
+        double valueDouble = resultSet.getDouble(10);
+        if (!resultSet.wasNull()) {
+            measurement.setValueDouble(valueDouble);
+        }
+        return measurement;
+    }
+}
@@ -6,9 +6,10 @@ package com.productionpilot.db.timescale.repository;
 
 import com.productionpilot.db.timescale.entities.Measurement;
 import java.time.Instant;
+import java.util.List;
 import java.util.Map;
 import java.util.Optional;
-import java.util.stream.Stream;
+import org.springframework.data.jpa.repository.Modifying;
 import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 
@@ -19,18 +20,22 @@ public interface MeasurementRepository extends CrudRepository<Measurement, Long>
     @Query("SELECT m.parameterId, COUNT(m) FROM Measurement m GROUP BY m.parameterId")
     Map<Long, Long> countGroupByParameterId();
 
-    Stream<Measurement> streamAllByOrderByIdAsc();
-
-    Stream<Measurement> streamByParameterIdAndClientTimeBetweenOrderByIdAsc(
-            Long parameterId, Instant startTime, Instant endTime);
-
-    Stream<Measurement> streamByParameterIdAndIdGreaterThanOrderByIdAsc(Long parameterId, Long id);
-
-    Stream<Measurement> streamByParameterIdOrderByIdAsc(Long parameterId);
-
     Optional<Measurement> findFirstByParameterIdOrderByIdDesc(Long parameterId);
 
-    Stream<Measurement> streamByIdGreaterThanOrderByIdAsc(long id);
-
-    Measurement findFirstByOrderByIdDesc();
+    Optional<Measurement> findFirstByParameterIdAndIdLessThanEqualOrderByClientTimeAsc(Long parameterId, long maxId);
+
+    /**
+     * Returns the ids of the parameters that have measurements with a client time before the given time.
+     */
+    @Query("SELECT DISTINCT m.parameterId FROM Measurement m WHERE m.clientTime < ?1")
+    List<Long> findParameterIdsWithMeasurementsBefore(Instant time);
+
+    /**
+     * Deletes measurements that have been moved into an archive segment. Measurements with an id above maxId were
+     * inserted after the segment was written and are kept.
+     */
+    @Modifying
+    @Query("DELETE FROM Measurement m WHERE m.parameterId = ?1 AND m.clientTime >= ?2 AND m.clientTime < ?3"
+            + " AND m.id <= ?4")
+    int deleteArchived(long parameterId, Instant startTime, Instant endTime, long maxId);
 }
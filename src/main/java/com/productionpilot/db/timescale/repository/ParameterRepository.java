@@ -7,12 +7,17 @@ package com.productionpilot.db.timescale.repository;
 import com.productionpilot.db.timescale.entities.Parameter;
 import com.productionpilot.db.timescale.entities.UnitOfMeasurement;
 import java.util.List;
+import javax.persistence.QueryHint;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 
 public interface ParameterRepository extends CrudRepository<Parameter, Long> {
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
     List<Parameter> findByOrderByIdAsc();
 
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
     List<Parameter> findByUnitOfMeasurementOrderByIdAsc(UnitOfMeasurement unitOfMeasurement);
 
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
     Parameter findByIdentifier(String identifier);
 }
@@ -6,8 +6,11 @@ package com.productionpilot.db.timescale.repository;
 
 import com.productionpilot.db.timescale.entities.UnitOfMeasurement;
 import java.util.List;
+import javax.persistence.QueryHint;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.CrudRepository;
 
 public interface UnitOfMeasurementRepository extends CrudRepository<UnitOfMeasurement, Long> {
+    @QueryHints(@QueryHint(name = "org.hibernate.cacheable", value = "true"))
     List<UnitOfMeasurement> findAllByOrderByNameAsc();
 }
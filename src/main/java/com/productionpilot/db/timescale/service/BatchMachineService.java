@@ -45,4 +45,8 @@ public class BatchMachineService {
     public void delete(BatchMachine batchMachine) {
         batchMachineRepository.delete(batchMachine);
     }
+
+    public BatchMachine findById(long batchMachineId) {
+        return batchMachineRepository.findById(batchMachineId).orElse(null);
+    }
 }
@@ -6,7 +6,9 @@ package com.productionpilot.db.timescale.service;
 
 import com.productionpilot.db.timescale.entities.Batch;
 import com.productionpilot.db.timescale.repository.BatchRepository;
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository;
 import java.util.List;
+import java.util.Objects;
 import javax.validation.ValidationException;
 import lombok.RequiredArgsConstructor;
 import lombok.Synchronized;
@@ -17,6 +19,7 @@ import org.springframework.transaction.annotation.Transactional;
 @RequiredArgsConstructor
 public class BatchService {
     private final BatchRepository batchRepository;
+    private final BatchTreeJdbcRepository batchTreeJdbcRepository;
 
     public List<Batch> findAll() {
         return batchRepository.findAllByOrderByModificationTimeDesc();
@@ -26,15 +29,26 @@ public class BatchService {
         return batchRepository.findAllByParentBatchIsNullOrderByModificationTimeDesc();
     }
 
+    /**
+     * Saves the batch and, if its parent batch changed, moves it and its subtree in the batch hierarchy.
+     */
     @Synchronized
+    @Transactional
     public void update(Batch batch) {
-        var parent = batch.getParentBatch();
-        if (parent != null) {
-            if (getFullPath(parent).contains(batch)) {
-                throw new ValidationException("The specified parent batch is already a child of this batch.");
-            }
+        var parentId = batch.getParentBatch() != null ? batch.getParentBatch().getId() : null;
+        if (batch.getId() == null) {
+            batchRepository.save(batch);
+            batchTreeJdbcRepository.insertBatch(batch.getId(), parentId);
+            return;
+        }
+        batchTreeJdbcRepository.lockHierarchy();
+        if (parentId != null && batchTreeJdbcRepository.isAncestorOrSelf(batch.getId(), parentId)) {
+            throw new ValidationException("The specified parent batch is already a child of this batch.");
         }
         batchRepository.save(batch);
+        if (!Objects.equals(parentId, batchTreeJdbcRepository.findParentId(batch.getId()))) {
+            batchTreeJdbcRepository.moveBatch(batch.getId(), parentId);
+        }
     }
 
     public void delete(Batch batch) {
@@ -46,6 +60,7 @@ public class BatchService {
         Batch batch = new Batch();
         batch.setName(name);
         batchRepository.save(batch);
+        batchTreeJdbcRepository.insertBatch(batch.getId(), null);
         return batch;
     }
 
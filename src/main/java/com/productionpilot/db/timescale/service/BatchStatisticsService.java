@@ -0,0 +1,274 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.service;
+
+import com.productionpilot.db.store.MeasurementStatistics;
+import com.productionpilot.db.timescale.entities.BatchMachine;
+import com.productionpilot.db.timescale.entities.BatchMachineStatistics;
+import com.productionpilot.db.timescale.repository.BatchMachineStatisticsRepository;
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository.RangeNode;
+import com.productionpilot.db.timescale.service.event.EntityDeletedEvent;
+import com.productionpilot.db.timescale.service.event.EntityModifiedEvent;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import com.productionpilot.service.metadata.ParameterMetadata;
+import java.io.IOException;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Precomputes the {@link MeasurementStatistics} of the parameters within each batch machine range and stores them as
+ * {@link BatchMachineStatistics}, so that they can be shown without reading the measurements. The statistics of a
+ * range are computed with a single aggregate query, see {@link MeasurementService#aggregateByParametersAndTimeRange}.
+ *
+ * Stored statistics are outdated if the range was modified since, or if the parameters of the machine changed. If the
+ * range had not ended when they were computed, they are also outdated after {@code open-range-refresh-seconds}.
+ * Measurements are recorded with the current client time, so ranges that have ended do not receive new measurements
+ * and their statistics are kept. Ranges are computed in the background when they are created or modified (once the
+ * change is committed), and when outdated statistics are requested. Different ranges are computed concurrently, in the
+ * background by up to {@code threads} threads.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BatchStatisticsService {
+    private final BatchStatisticsServiceTransactional transactional;
+    private final BatchMachineService batchMachineService;
+    private final MetadataSnapshotService metadataSnapshotService;
+
+    @Value("${com.productionpilot.statistics.open-range-refresh-seconds:60}")
+    private long openRangeRefreshSeconds;
+
+    @Value("${com.productionpilot.statistics.threads:2}")
+    private int threads;
+
+    // Ranges that are queued for computation in the background
+    private final Set<Long> scheduled = ConcurrentHashMap.newKeySet();
+    // Held while the statistics of a range are computed, so that different ranges are computed concurrently
+    private final ConcurrentHashMap<Long, Object> refreshLocks = new ConcurrentHashMap<>();
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        var threadNumber = new AtomicLong();
+        executor = Executors.newFixedThreadPool(threads, runnable -> {
+            var thread = new Thread(runnable, "BatchStatistics-" + threadNumber.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Returns the stored statistics of the ranges without reading any measurements, for the UI. Outdated or missing
+     * statistics are computed in the background.
+     */
+    public List<RangeStatistics> getStoredStatistics(Collection<Range> ranges) {
+        var result = load(ranges);
+        result.stream()
+                .filter(statistics -> !statistics.upToDate())
+                .forEach(statistics -> schedule(statistics.range().id()));
+        return result;
+    }
+
+    /**
+     * Returns up-to-date statistics of the ranges, computing outdated or missing ones first.
+     */
+    public List<RangeStatistics> getStatistics(Collection<Range> ranges) throws IOException {
+        var result = new ArrayList<RangeStatistics>();
+        for (var statistics : load(ranges)) {
+            result.add(statistics.upToDate() ? statistics : refresh(statistics.range()));
+        }
+        return result;
+    }
+
+    @EventListener
+    public void onBatchMachineModified(EntityModifiedEvent<BatchMachine> event) {
+        long batchMachineId = event.getEntity().getId();
+        // The statistics of deleted ranges are deleted by the database
+        if (event instanceof EntityDeletedEvent) {
+            refreshLocks.remove(batchMachineId);
+            return;
+        }
+        // Entity events are sent before the commit, when the background thread could not yet see the modification
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    schedule(batchMachineId);
+                }
+            });
+        } else {
+            schedule(batchMachineId);
+        }
+    }
+
+    private void schedule(long batchMachineId) {
+        if (!scheduled.add(batchMachineId)) {
+            return;
+        }
+        executor.execute(() -> {
+            scheduled.remove(batchMachineId);
+            // The range is read again, as it may have been modified or deleted in the meantime
+            var batchMachine = batchMachineService.findById(batchMachineId);
+            if (batchMachine == null) {
+                return;
+            }
+            try {
+                refresh(Range.of(batchMachine));
+            } catch (Exception e) {
+                log.warn("Could not compute the statistics of batch machine range {}", batchMachineId, e);
+            }
+        });
+    }
+
+    /**
+     * Computes the statistics of the range, unless another thread did so in the meantime.
+     */
+    private RangeStatistics refresh(Range range) throws IOException {
+        synchronized (refreshLocks.computeIfAbsent(range.id(), id -> new Object())) {
+            var current = load(List.of(range)).get(0);
+            if (current.upToDate()) {
+                return current;
+            }
+            var parameterIds = getParameterIds(range);
+            log.debug(
+                    "Computing the statistics of {} parameters in batch machine range {}", parameterIds.size(), range);
+            return new RangeStatistics(range, transactional.compute(range, parameterIds), true);
+        }
+    }
+
+    private List<RangeStatistics> load(Collection<Range> ranges) {
+        var rangeIds = ranges.stream().map(Range::id).toList();
+        var stored = transactional.findByBatchMachineIdIn(rangeIds).stream()
+                .collect(Collectors.groupingBy(BatchMachineStatistics::getBatchMachineId));
+        var now = Instant.now();
+        var result = new ArrayList<RangeStatistics>();
+        for (var range : ranges) {
+            var statistics = new ArrayList<>(stored.getOrDefault(range.id(), List.of()));
+            statistics.sort(Comparator.comparingLong(BatchMachineStatistics::getParameterId));
+            result.add(new RangeStatistics(range, statistics, isUpToDate(range, statistics, now)));
+        }
+        return result;
+    }
+
+    private boolean isUpToDate(Range range, List<BatchMachineStatistics> statistics, Instant now) {
+        var parameterIds =
+                statistics.stream().map(BatchMachineStatistics::getParameterId).collect(Collectors.toSet());
+        if (!parameterIds.equals(Set.copyOf(getParameterIds(range)))) {
+            return false;
+        }
+        var refreshAfter = now.minus(Duration.ofSeconds(openRangeRefreshSeconds));
+        for (var parameterStatistics : statistics) {
+            if (!parameterStatistics.getRangeModificationTime().equals(range.modificationTime())) {
+                return false;
+            }
+            var computationTime = parameterStatistics.getComputationTime();
+            if (!computationTime.isAfter(range.endTime()) && computationTime.isBefore(refreshAfter)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private List<Long> getParameterIds(Range range) {
+        return metadataSnapshotService.get().getParametersOfMachine(range.machineId()).stream()
+                .map(ParameterMetadata::id)
+                .toList();
+    }
+
+    /**
+     * The properties of a batch machine range that its statistics depend on.
+     */
+    public record Range(long id, long machineId, Instant startTime, Instant endTime, Instant modificationTime) {
+        public static Range of(BatchMachine batchMachine) {
+            return new Range(
+                    batchMachine.getId(),
+                    batchMachine.getMachine().getId(),
+                    batchMachine.getStartTime(),
+                    batchMachine.getEndTime(),
+                    batchMachine.getModificationTime());
+        }
+
+        public static Range of(RangeNode range) {
+            return new Range(
+                    range.id(), range.machineId(), range.startTime(), range.endTime(), range.modificationTime());
+        }
+    }
+
+    /**
+     * The statistics of the parameters within a range, ordered by parameter id.
+     *
+     * @param upToDate false if the statistics are outdated or missing and have not been computed yet
+     */
+    public record RangeStatistics(Range range, List<BatchMachineStatistics> parameters, boolean upToDate) {}
+
+    @Service
+    @RequiredArgsConstructor
+    public static class BatchStatisticsServiceTransactional {
+        private final BatchMachineStatisticsRepository batchMachineStatisticsRepository;
+        private final MeasurementService measurementService;
+
+        @Transactional(readOnly = true)
+        public List<BatchMachineStatistics> findByBatchMachineIdIn(Collection<Long> batchMachineIds) {
+            return batchMachineStatisticsRepository.findByBatchMachineIdIn(batchMachineIds);
+        }
+
+        /**
+         * Computes and stores the statistics of the given parameters within the range, and deletes those of other
+         * parameters.
+         */
+        @Transactional
+        public List<BatchMachineStatistics> compute(Range range, List<Long> parameterIds) throws IOException {
+            var computationTime = Instant.now();
+            var aggregates = measurementService.aggregateByParametersAndTimeRange(
+                    parameterIds, range.startTime(), range.endTime());
+            var existing = new HashMap<>(batchMachineStatisticsRepository.findByBatchMachineId(range.id()).stream()
+                    .collect(Collectors.toMap(BatchMachineStatistics::getParameterId, Function.identity())));
+            var result = new ArrayList<BatchMachineStatistics>();
+            for (var parameterId : parameterIds) {
+                var statistics = existing.remove(parameterId);
+                if (statistics == null) {
+                    statistics = new BatchMachineStatistics();
+                    statistics.setBatchMachineId(range.id());
+                    statistics.setParameterId(parameterId);
+                }
+                statistics.setStatistics(aggregates.get(parameterId));
+                statistics.setRangeModificationTime(range.modificationTime());
+                statistics.setComputationTime(computationTime);
+                result.add(statistics);
+            }
+            batchMachineStatisticsRepository.deleteAll(existing.values());
+            batchMachineStatisticsRepository.saveAll(result);
+            result.sort(Comparator.comparingLong(BatchMachineStatistics::getParameterId));
+            return result;
+        }
+    }
+}
@@ -0,0 +1,306 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.service;
+
+import com.productionpilot.db.archive.MeasurementSegmentCodec;
+import com.productionpilot.db.replication.ReplicationService;
+import com.productionpilot.db.store.MeasurementRow;
+import com.productionpilot.db.timescale.entities.ArchivedSegment;
+import com.productionpilot.db.timescale.entities.Measurement;
+import com.productionpilot.db.timescale.repository.ArchivedSegmentRepository;
+import com.productionpilot.db.timescale.repository.MeasurementJdbcRepository;
+import com.productionpilot.db.timescale.repository.MeasurementRepository;
+import com.productionpilot.util.DebugPerfTimer;
+import com.productionpilot.util.Util;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+import javax.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.Synchronized;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+/**
+ * Moves old measurements out of the Measurement table into compressed segment files on the local disk, see
+ * {@link MeasurementSegmentCodec}. Each segment holds one parameter and one closed time range; the segments are
+ * indexed in the ArchivedSegment table. Reads through {@link MeasurementService} transparently include archived
+ * measurements.
+ *
+ * Only measurements that were replicated to every sink are archived (see
+ * {@link ReplicationService#getReplicatedUpTo()}), as replication backfills only read the Measurement table.
+ * Measurements that were archived before a sink was added are not replicated to it.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+@ConditionalOnProperty(prefix = "com.productionpilot.archive", name = "directory")
+public class MeasurementArchiveService {
+    @Value("${com.productionpilot.archive.directory}")
+    private String directory;
+
+    /**
+     * Only time ranges that ended at least this many days ago are archived.
+     */
+    @Value("${com.productionpilot.archive.min-age-days:28}")
+    private int minAgeDays;
+
+    @Value("${com.productionpilot.archive.segment-hours:24}")
+    private int segmentHours;
+
+    @Value("${com.productionpilot.archive.interval-minutes:60}")
+    private int intervalMinutes;
+
+    private final MeasurementRepository measurementRepository;
+    private final ArchivedSegmentRepository archivedSegmentRepository;
+    // Not injected directly, as the replication service depends on the measurement store, which depends on this
+    private final ObjectProvider<ReplicationService> replicationService;
+
+    private final MeasurementArchiveServiceTransactional transactional;
+
+    private Path archiveDirectory;
+
+    @PostConstruct
+    public void init() throws IOException {
+        archiveDirectory = Path.of(directory).toAbsolutePath();
+        Files.createDirectories(archiveDirectory);
+        var thread = new Thread(() -> {
+            try {
+                while (true) {
+                    try {
+                        var timer = DebugPerfTimer.start("Measurement archiving");
+                        archiveClosedRanges();
+                        timer.endAndPrint(log);
+                    } catch (Exception e) {
+                        log.error("Error while archiving measurements, retrying in {} minutes", intervalMinutes, e);
+                    }
+                    Thread.sleep(Duration.ofMinutes(intervalMinutes).toMillis());
+                }
+            } catch (InterruptedException e) {
+                log.warn("Measurement archiver thread interrupted, stopping archiving", e);
+            }
+        });
+        thread.setName("MeasurementArchiver");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Archives, for every parameter that has measurements older than the configured minimum age, all complete segment
+     * time ranges before that age.
+     */
+    @Synchronized
+    public void archiveClosedRanges() throws IOException {
+        var segmentDuration = Duration.ofHours(segmentHours);
+        var cutoff = alignDown(Instant.now().minus(Duration.ofDays(minAgeDays)), segmentDuration);
+        long maxId = replicationService.getObject().getReplicatedUpTo();
+        for (var parameterId : measurementRepository.findParameterIdsWithMeasurementsBefore(cutoff)) {
+            while (true) {
+                var oldest = measurementRepository.findFirstByParameterIdAndIdLessThanEqualOrderByClientTimeAsc(
+                        parameterId, maxId);
+                if (oldest.isEmpty()) {
+                    break;
+                }
+                var start = alignDown(oldest.get().getClientTime(), segmentDuration);
+                var end = start.plus(segmentDuration);
+                if (end.isAfter(cutoff) || !archiveRange(parameterId, start, end, maxId)) {
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Encodes the measurements while they are read with a cursor, so only the compressed segment is held in memory.
+     *
+     * @return false if there was nothing to archive
+     */
+    private boolean archiveRange(long parameterId, Instant start, Instant end, long maxId) throws IOException {
+        var encoder = new MeasurementSegmentCodec.Encoder(parameterId);
+        transactional.forEachInRange(parameterId, start, end, maxId, encoder);
+        if (encoder.getRows() == 0) {
+            return false;
+        }
+        var fileName = parameterId + "/" + Util.toEpochMicros(start) + "-" + encoder.getFirstId() + ".seg";
+        var data = encoder.finish();
+        writeDurably(archiveDirectory.resolve(fileName), data);
+
+        var segment = new ArchivedSegment();
+        segment.setParameterId(parameterId);
+        segment.setStartTime(start);
+        segment.setEndTime(end);
+        segment.setFirstMeasurementId(encoder.getFirstId());
+        segment.setLastMeasurementId(encoder.getLastId());
+        segment.setRowCount(encoder.getRows());
+        segment.setFileName(fileName);
+        segment.setFileSize(data.length);
+        transactional.commitSegment(segment);
+        log.debug(
+                "Archived {} measurements of parameter {} from {} to {} into {} ({} bytes)",
+                encoder.getRows(),
+                parameterId,
+                start,
+                end,
+                fileName,
+                data.length);
+        return true;
+    }
+
+    /**
+     * Returns the archived measurements of the given parameter with a client time in [startTime, endTime].
+     */
+    public Stream<Measurement> streamByParameterAndTimeRange(long parameterId, Instant startTime, Instant endTime) {
+        return streamByParameterAndTimeRangeAfterId(parameterId, startTime, endTime, Long.MIN_VALUE);
+    }
+
+    /**
+     * Returns the archived measurements of the given parameter with a client time in [startTime, endTime] and an id
+     * greater than afterId. Segments that only contain smaller ids are not read. The segments are decoded lazily, one
+     * measurement at a time, while the stream is consumed.
+     */
+    public Stream<Measurement> streamByParameterAndTimeRangeAfterId(
+            long parameterId, Instant startTime, Instant endTime, long afterId) {
+        var segments = archivedSegmentRepository.findOverlapping(parameterId, startTime, endTime).stream()
+                .filter(segment -> segment.getLastMeasurementId() > afterId)
+                .iterator();
+        // Not flatMap, as the iterator of a flat-mapped stream buffers each segment's measurements in full
+        var measurements = new Iterator<Measurement>() {
+            private Iterator<Measurement> current = Collections.emptyIterator();
+
+            @Override
+            public boolean hasNext() {
+                while (!current.hasNext() && segments.hasNext()) {
+                    current = readSegment(segments.next());
+                }
+                return current.hasNext();
+            }
+
+            @Override
+            public Measurement next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                return current.next();
+            }
+        };
+        return StreamSupport.stream(
+                        Spliterators.spliteratorUnknownSize(measurements, Spliterator.ORDERED | Spliterator.NONNULL),
+                        false)
+                .filter(m -> m.getId() > afterId
+                        && !m.getClientTime().isBefore(startTime)
+                        && !m.getClientTime().isAfter(endTime));
+    }
+
+    /**
+     * Returns the archived measurement of the given parameter with the highest id, if that id is greater than afterId.
+     * Only the newest segment of the parameter is decoded, and only if it contains such a measurement.
+     */
+    public Optional<Measurement> getLastMeasurementAfterId(long parameterId, long afterId) {
+        var segment = archivedSegmentRepository
+                .findFirstByParameterIdOrderByLastMeasurementIdDesc(parameterId)
+                .filter(s -> s.getLastMeasurementId() > afterId);
+        if (segment.isEmpty()) {
+            return Optional.empty();
+        }
+        var decoder = readSegment(segment.get());
+        Measurement last = null;
+        while (decoder.hasNext()) {
+            last = decoder.next();
+        }
+        return Optional.ofNullable(last);
+    }
+
+    public long countByParameter(long parameterId) {
+        return archivedSegmentRepository.sumRowCountByParameterId(parameterId);
+    }
+
+    /**
+     * Returns the highest archived id, or 0 if nothing was archived yet.
+     */
+    public long getLastId() {
+        return archivedSegmentRepository.findMaxLastMeasurementId();
+    }
+
+    /**
+     * Maps the segment file instead of reading it onto the heap. The mapping stays valid after the channel is closed.
+     */
+    private MeasurementSegmentCodec.Decoder readSegment(ArchivedSegment segment) {
+        try (var channel = FileChannel.open(archiveDirectory.resolve(segment.getFileName()), StandardOpenOption.READ)) {
+            return new MeasurementSegmentCodec.Decoder(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } catch (IOException e) {
+            throw new UncheckedIOException("Could not read archive segment " + segment.getFileName(), e);
+        }
+    }
+
+    private static void writeDurably(Path file, byte[] data) throws IOException {
+        Files.createDirectories(file.getParent());
+        var tempFile = file.resolveSibling(file.getFileName() + ".tmp");
+        try (var channel = FileChannel.open(
+                tempFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            var buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            channel.force(true);
+        }
+        Files.move(tempFile, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static Instant alignDown(Instant instant, Duration alignment) {
+        var seconds = alignment.toSeconds();
+        return Instant.ofEpochSecond(Math.floorDiv(instant.getEpochSecond(), seconds) * seconds);
+    }
+
+    @Service
+    @RequiredArgsConstructor
+    @ConditionalOnProperty(prefix = "com.productionpilot.archive", name = "directory")
+    public static class MeasurementArchiveServiceTransactional {
+        private final MeasurementRepository measurementRepository;
+        private final MeasurementJdbcRepository measurementJdbcRepository;
+        private final ArchivedSegmentRepository archivedSegmentRepository;
+
+        /**
+         * Reads the measurements of a segment, see {@link MeasurementJdbcRepository#forEachByParameterInHalfOpenRange}.
+         */
+        @Transactional(readOnly = true)
+        public void forEachInRange(
+                long parameterId, Instant start, Instant end, long maxId, MeasurementRow.Handler handler)
+                throws IOException {
+            measurementJdbcRepository.forEachByParameterInHalfOpenRange(parameterId, start, end, maxId, handler);
+        }
+
+        /**
+         * Registers the segment and removes the archived measurements from the Measurement table, atomically.
+         */
+        @Transactional
+        public void commitSegment(ArchivedSegment segment) {
+            archivedSegmentRepository.save(segment);
+            measurementRepository.deleteArchived(
+                    segment.getParameterId(),
+                    segment.getStartTime(),
+                    segment.getEndTime(),
+                    segment.getLastMeasurementId());
+        }
+    }
+}
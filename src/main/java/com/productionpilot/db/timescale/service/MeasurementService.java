@@ -4,11 +4,22 @@
  */
 package com.productionpilot.db.timescale.service;
 
+import static com.productionpilot.util.Util.toEpochMicros;
+
+import com.productionpilot.db.store.LttbDownsampler;
+import com.productionpilot.db.store.MeasurementBucket;
+import com.productionpilot.db.store.MeasurementRow;
+import com.productionpilot.db.store.MeasurementStatistics;
+import com.productionpilot.db.store.MeasurementStore;
 import com.productionpilot.db.timescale.entities.Measurement;
 import com.productionpilot.db.timescale.entities.Parameter;
-import com.productionpilot.db.timescale.repository.MeasurementRepository;
 import com.productionpilot.opc.OpcMeasuredValue;
+import java.io.IOException;
+import java.time.Duration;
 import java.time.Instant;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
 import java.util.stream.Stream;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -18,9 +29,29 @@ import org.springframework.stereotype.Service;
 @RequiredArgsConstructor
 @Slf4j
 public class MeasurementService {
-    private final MeasurementRepository measurementRepository;
+    private final MeasurementStore measurementStore;
+    private final MeasurementStreamService measurementStreamService;
 
     public Measurement recordMeasurement(Parameter parameter, OpcMeasuredValue measuredValue) {
+        return recordMeasurements(List.of(parameter), measuredValue).get(0);
+    }
+
+    /**
+     * Records the value for each of the given parameters, e.g. all parameters of an OPC node, with a single append to
+     * the store, and publishes them as a single batch.
+     *
+     * @return the recorded measurements, in the order of the parameters
+     */
+    public List<Measurement> recordMeasurements(List<Parameter> parameters, OpcMeasuredValue measuredValue) {
+        var batch = parameters.stream()
+                .map(parameter -> toMeasurement(parameter, measuredValue))
+                .toList();
+        measurementStore.appendBatch(batch);
+        measurementStreamService.publish(batch);
+        return batch;
+    }
+
+    private static Measurement toMeasurement(Parameter parameter, OpcMeasuredValue measuredValue) {
         var measurement = new Measurement();
         measurement.setParameterId(parameter.getId());
         measurement.setOpcStatusCode(measuredValue.getStatusCode().getCode());
@@ -37,62 +68,126 @@ public class MeasurementService {
         } else {
             measurement.setValueString(measuredValue.getValueAsString());
         }
-        measurementRepository.save(measurement);
         return measurement;
     }
 
     public long countByParameter(Parameter parameter) {
-        return measurementRepository.countByParameterId(parameter.getId());
+        return measurementStore.countByParameter(parameter.getId());
     }
 
-    public Measurement getLastMeasurement() {
-        return measurementRepository.findFirstByOrderByIdDesc();
+    public Measurement getLastMeasurement(Parameter parameter) {
+        return measurementStore.getLastMeasurement(parameter.getId()).orElse(null);
     }
 
-    public Measurement getLastMeasurement(Parameter parameter) {
-        return measurementRepository
-                .findFirstByParameterIdOrderByIdDesc(parameter.getId())
-                .orElse(null);
+    public Stream<Measurement> streamByParameterAndTimeRange(Parameter parameter, Instant startTime, Instant endTime) {
+        return this.streamByParameterAndTimeRange(parameter.getId(), startTime, endTime);
     }
 
-    public Stream<Measurement> streamAll() {
-        return measurementRepository.streamAllByOrderByIdAsc();
+    /**
+     * Returns all measurements for the given parameter with a client time in [startTime, endTime], including archived
+     * ones, in ascending order (by ID).
+     */
+    public Stream<Measurement> streamByParameterAndTimeRange(long parameterId, Instant startTime, Instant endTime) {
+        return measurementStore.streamByParameterAndTimeRange(parameterId, startTime, endTime);
     }
 
-    public Stream<Measurement> streamByIdGreaterThan(long id) {
-        return measurementRepository.streamByIdGreaterThanOrderByIdAsc(id);
+    /**
+     * Like {@link #streamByParameterAndTimeRange(long, Instant, Instant)}, but passes the measurements to the handler
+     * as reused {@link MeasurementRow}s. Faster for exports, as no entities are created.
+     */
+    public void forEachByParameterAndTimeRange(
+            long parameterId, Instant startTime, Instant endTime, MeasurementRow.Handler handler) throws IOException {
+        measurementStore.forEachByParameterAndTimeRange(parameterId, startTime, endTime, handler);
     }
 
-    public Stream<Measurement> streamByParameterAndTimeRange(Parameter parameter, Instant startTime, Instant endTime) {
-        return this.streamByParameterAndTimeRange(parameter.getId(), startTime, endTime);
+    /**
+     * Like {@link #forEachByParameterAndTimeRange}, but only passes the measurements with an id greater than afterId.
+     */
+    public void forEachByParameterAndTimeRangeAfterId(
+            long parameterId, Instant startTime, Instant endTime, long afterId, MeasurementRow.Handler handler)
+            throws IOException {
+        measurementStore.forEachByParameterAndTimeRangeAfterId(parameterId, startTime, endTime, afterId, handler);
     }
 
-    public Stream<Measurement> streamByParameterAndTimeRange(long parameterId, Instant startTime, Instant endTime) {
-        return measurementRepository.streamByParameterIdAndClientTimeBetweenOrderByIdAsc(
-                parameterId, startTime, endTime);
+    /**
+     * Like {@link #forEachByParameterAndTimeRangeAfterId(long, Instant, Instant, long, MeasurementRow.Handler)}, but
+     * passes at most limit measurements.
+     */
+    public void forEachByParameterAndTimeRangeAfterId(
+            long parameterId,
+            Instant startTime,
+            Instant endTime,
+            long afterId,
+            long limit,
+            MeasurementRow.Handler handler)
+            throws IOException {
+        measurementStore.forEachByParameterAndTimeRangeAfterId(
+                parameterId, startTime, endTime, afterId, limit, handler);
     }
 
     /**
-     * Returns all measurements for the given measurement's parameter that follow after the given measurement
-     * (i.e., have a higher id).
+     * Passes the measurements of all given parameters with a client time in [startTime, endTime] to the handler,
+     * grouped by parameter, see {@link MeasurementStore#forEachByParametersAndTimeRange}. Must be called within a
+     * transaction.
      */
-    public Stream<Measurement> streamAfterMeasurement(Measurement measurement) {
-        return measurementRepository.streamByParameterIdAndIdGreaterThanOrderByIdAsc(
-                measurement.getParameterId(), measurement.getId());
+    public void forEachByParametersAndTimeRange(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime, MeasurementRow.Handler handler)
+            throws IOException {
+        measurementStore.forEachByParametersAndTimeRange(parameterIds, startTime, endTime, handler);
     }
 
     /**
-     * Returns all measurements for the given parameter in ascending order (by ID).
+     * Passes the measurements of all given parameters with a client time in [startTime, endTime] to the handler, merged
+     * by client time, see {@link MeasurementStore#forEachByParametersAndTimeRangeOrderedByTime}. Must be called within
+     * a transaction.
      */
-    public Stream<Measurement> streamByParameter(Parameter parameter) {
-        return measurementRepository.streamByParameterIdOrderByIdAsc(parameter.getId());
+    public void forEachByParametersAndTimeRangeOrderedByTime(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime, MeasurementRow.Handler handler)
+            throws IOException {
+        measurementStore.forEachByParametersAndTimeRangeOrderedByTime(parameterIds, startTime, endTime, handler);
     }
 
-    public void update(Measurement measurement) {
-        measurementRepository.save(measurement);
+    /**
+     * Returns a stream for each of the given parameters, for reading them side by side, see
+     * {@link MeasurementStore#streamByParametersAndTimeRange}. The returned streams must be closed.
+     */
+    public List<Stream<Measurement>> streamByParametersAndTimeRange(
+            List<Long> parameterIds, Instant startTime, Instant endTime) {
+        return measurementStore.streamByParametersAndTimeRange(parameterIds, startTime, endTime);
     }
 
-    public void delete(Measurement measurement) {
-        measurementRepository.delete(measurement);
+    /**
+     * Returns the statistics of the measurements of each given parameter with a client time in [startTime, endTime],
+     * including archived ones.
+     */
+    public Map<Long, MeasurementStatistics> aggregateByParametersAndTimeRange(
+            Collection<Long> parameterIds, Instant startTime, Instant endTime) throws IOException {
+        return measurementStore.aggregateByParametersAndTimeRange(parameterIds, startTime, endTime);
+    }
+
+    /**
+     * Aggregates the measurements of the given parameter with a client time in [startTime, endTime] per time bucket,
+     * including archived ones, see {@link MeasurementStore#aggregateByParameterAndTimeBuckets}.
+     */
+    public List<MeasurementBucket> aggregateByParameterAndTimeBuckets(
+            long parameterId, Instant startTime, Instant endTime, Duration bucketSize) throws IOException {
+        return measurementStore.aggregateByParameterAndTimeBuckets(parameterId, startTime, endTime, bucketSize);
+    }
+
+    /**
+     * Selects at most maxPoints of the numeric measurements of the given parameter with a client time in [startTime,
+     * endTime] with {@link LttbDownsampler}, one per time bucket. Reads the range twice, first aggregated per bucket,
+     * then the measurements themselves, so it must be called within a transaction.
+     */
+    public List<LttbDownsampler.Point> downsampleByParameterAndTimeRange(
+            long parameterId, Instant startTime, Instant endTime, int maxPoints) throws IOException {
+        long startMicros = toEpochMicros(startTime);
+        // Rounded up, so that endTime is in the last of the maxPoints buckets
+        long bucketSizeMicros = (toEpochMicros(endTime) - startMicros) / maxPoints + 1;
+        var buckets = measurementStore.aggregateByParameterAndTimeBuckets(
+                parameterId, startTime, endTime, Duration.ofNanos(bucketSizeMicros * 1000));
+        var downsampler = new LttbDownsampler(buckets, startMicros, bucketSizeMicros);
+        measurementStore.forEachByParameterAndTimeRange(parameterId, startTime, endTime, downsampler);
+        return downsampler.getPoints();
     }
 }
@@ -0,0 +1,72 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.service;
+
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Delivers newly recorded measurements to subscribers, in the batches in which they were stored.
+ *
+ * Measurements are not published through the {@link com.productionpilot.db.timescale.service.event.EntityEventService}
+ * events like the other entities, as resolving the generic event listeners for every single insert is too expensive at
+ * high recording rates. Instead, {@link MeasurementService} publishes every stored batch here. If a transaction is
+ * active, the batch is delivered after it commits (and dropped on rollback), otherwise immediately.
+ *
+ * Subscribers are called on the recording thread and must not block.
+ */
+@Slf4j
+@Service
+public class MeasurementStreamService {
+    @FunctionalInterface
+    public interface Subscriber {
+        /**
+         * @param measurements the committed measurements, ordered by id. Must not be modified.
+         */
+        void onMeasurementsCommitted(List<Measurement> measurements);
+    }
+
+    private final List<Subscriber> subscribers = new CopyOnWriteArrayList<>();
+
+    public void subscribe(Subscriber subscriber) {
+        subscribers.add(subscriber);
+    }
+
+    public void unsubscribe(Subscriber subscriber) {
+        subscribers.remove(subscriber);
+    }
+
+    void publish(List<Measurement> measurements) {
+        if (measurements.isEmpty() || subscribers.isEmpty()) {
+            return;
+        }
+        var batch = List.copyOf(measurements);
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    deliver(batch);
+                }
+            });
+        } else {
+            deliver(batch);
+        }
+    }
+
+    private void deliver(List<Measurement> batch) {
+        for (var subscriber : subscribers) {
+            try {
+                subscriber.onMeasurementsCommitted(batch);
+            } catch (RuntimeException e) {
+                log.error("Measurement stream subscriber {} failed", subscriber, e);
+            }
+        }
+    }
+}
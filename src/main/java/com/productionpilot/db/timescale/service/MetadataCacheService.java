@@ -0,0 +1,142 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.service;
+
+import com.productionpilot.db.timescale.entities.Machine;
+import com.productionpilot.db.timescale.entities.Parameter;
+import com.productionpilot.db.timescale.entities.UnitOfMeasurement;
+import com.productionpilot.db.timescale.service.event.EntityModifiedEvent;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.function.Consumer;
+import javax.annotation.PostConstruct;
+import javax.persistence.EntityManagerFactory;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import net.sf.ehcache.CacheManager;
+import org.hibernate.Cache;
+import org.hibernate.SessionFactory;
+import org.hibernate.cache.ehcache.internal.EhcacheRegionFactory;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.stat.Statistics;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Keeps the Hibernate second-level cache of the metadata entities (see ehcache.xml) consistent and publishes its hit
+ * ratios as metrics. The hit ratios are taken from the statistics Ehcache keeps per cache, so Hibernate's global
+ * statistics do not need to be enabled.
+ *
+ * Hibernate already updates cached entities that are changed through it, but it does not know about the soft delete
+ * filter ({@code @Where}) or the inverse side of {@link Machine#getParameters()}, so cached copies of deleted parameters
+ * and stale parameter lists would survive. Therefore, the affected entries are evicted whenever one of the
+ * {@link com.productionpilot.db.timescale.service.event.EntityEventService} events for these entities arrives. The
+ * events are sent before the transaction commits, so the entries are only evicted after the commit; evicting them
+ * earlier would let a concurrent session cache the old state again.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class MetadataCacheService {
+    private static final String MACHINE_PARAMETERS_REGION = Machine.class.getName() + ".parameters";
+    private static final String QUERY_REGION = "default-query-results-region";
+
+    private final EntityManagerFactory entityManagerFactory;
+    private final MeterRegistry meterRegistry;
+
+    private SessionFactory sessionFactory;
+
+    @PostConstruct
+    public void init() {
+        sessionFactory = entityManagerFactory.unwrap(SessionFactory.class);
+        var regionFactory = sessionFactory.unwrap(SessionFactoryImplementor.class).getCache().getRegionFactory();
+        if (!(regionFactory instanceof EhcacheRegionFactory ehcacheRegionFactory)) {
+            log.info("The second-level cache is not provided by Ehcache, no cache metrics are published");
+            return;
+        }
+        var cacheManager = ehcacheRegionFactory.getCacheManager();
+        registerHitRatio(cacheManager, "parameter", Parameter.class.getName());
+        registerHitRatio(cacheManager, "machine", Machine.class.getName());
+        registerHitRatio(cacheManager, "machine-parameters", MACHINE_PARAMETERS_REGION);
+        registerHitRatio(cacheManager, "unit-of-measurement", UnitOfMeasurement.class.getName());
+        registerHitRatio(cacheManager, "query", QUERY_REGION);
+    }
+
+    /**
+     * Returns Hibernate's statistics, which are only collected if
+     * {@code spring.jpa.properties.hibernate.generate_statistics} is enabled.
+     */
+    public Statistics getStatistics() {
+        return sessionFactory.getStatistics();
+    }
+
+    @EventListener
+    public void onParameterModified(EntityModifiedEvent<Parameter> event) {
+        var parameter = event.getEntity();
+        afterCommit(cache -> {
+            log.trace("Evicting {} from the second-level cache", parameter);
+            cache.evictEntityData(Parameter.class, parameter.getId());
+            // The parameter may have moved to a different machine, so we don't know which lists contain it
+            cache.evictCollectionData(MACHINE_PARAMETERS_REGION);
+            cache.evictDefaultQueryRegion();
+        });
+    }
+
+    @EventListener
+    public void onMachineModified(EntityModifiedEvent<Machine> event) {
+        var machineId = event.getEntity().getId();
+        afterCommit(cache -> {
+            cache.evictEntityData(Machine.class, machineId);
+            cache.evictCollectionData(MACHINE_PARAMETERS_REGION, machineId);
+            cache.evictDefaultQueryRegion();
+        });
+    }
+
+    @EventListener
+    public void onUnitOfMeasurementModified(EntityModifiedEvent<UnitOfMeasurement> event) {
+        var unitId = event.getEntity().getId();
+        afterCommit(cache -> {
+            cache.evictEntityData(UnitOfMeasurement.class, unitId);
+            // Parameters reference their unit, and a deleted unit is set to null on them
+            cache.evictEntityData(Parameter.class);
+            cache.evictDefaultQueryRegion();
+        });
+    }
+
+    /**
+     * Runs the eviction once the current transaction has committed, or right away if there is none.
+     */
+    private void afterCommit(Consumer<Cache> eviction) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    eviction.accept(sessionFactory.getCache());
+                }
+            });
+        } else {
+            eviction.accept(sessionFactory.getCache());
+        }
+    }
+
+    private void registerHitRatio(CacheManager cacheManager, String region, String cacheName) {
+        Gauge.builder("productionpilot.cache.hit.ratio", cacheManager, manager -> hitRatio(manager, cacheName))
+                .tag("region", region)
+                .description("Second-level cache hit ratio since startup")
+                .register(meterRegistry);
+    }
+
+    private static double hitRatio(CacheManager cacheManager, String cacheName) {
+        var cache = cacheManager.getEhcache(cacheName);
+        if (cache == null) {
+            return Double.NaN;
+        }
+        long hits = cache.getStatistics().cacheHitCount();
+        long misses = cache.getStatistics().cacheMissCount();
+        return hits + misses == 0 ? Double.NaN : (double) hits / (hits + misses);
+    }
+}
@@ -43,7 +43,8 @@ public class ParameterRecordingService implements OpcSubscriptionListener {
     private final MeasurementService measurementService;
     private final ParameterService parameterService;
 
-    private final Map<Parameter, ParameterRecording> parameterRecordingsMap = new ConcurrentHashMap<>();
+    // Keyed by parameter id, so that lookups don't need a Parameter entity
+    private final Map<Long, ParameterRecording> parameterRecordingsMap = new ConcurrentHashMap<>();
 
     private final Map<OpcNodeId, List<Parameter>> nodeIdParameterMap = new ConcurrentHashMap<>();
 
@@ -69,7 +70,7 @@ public class ParameterRecordingService implements OpcSubscriptionListener {
         var newNodes = new ArrayList<OpcNodeId>(parametersToRecord.size());
         // Iterate through all parameters - ignore the already subscribed ones, and add the new ones to the list
         for (Parameter parameter : parametersToRecord) {
-            if (parameterRecordingsMap.containsKey(parameter)) {
+            if (parameterRecordingsMap.containsKey(parameter.getId())) {
                 continue;
             }
             OpcNodeId nodeId = null;
@@ -90,12 +91,12 @@ public class ParameterRecordingService implements OpcSubscriptionListener {
             var parameter = newParameters.get(i);
             var parameterSubscription = new ParameterRecording(
                     parameter, nodeId, new AtomicLong(measurementService.countByParameter(parameter)));
-            parameterRecordingsMap.put(parameter, parameterSubscription);
+            parameterRecordingsMap.put(parameter.getId(), parameterSubscription);
             nodeIdParameterMap.computeIfAbsent(nodeId, n -> new ArrayList<>()).add(parameter);
             parameterSubscription.lastMeasurement = measurementService.getLastMeasurement(parameter);
         }
         for (Parameter parameter : newParameters) {
-            var parameterSubscription = parameterRecordingsMap.get(parameter);
+            var parameterSubscription = parameterRecordingsMap.get(parameter.getId());
             if (parameterSubscription != null) {
                 log.debug("Subscribing to parameter {}", parameter);
                 parameterSubscription.opcSubscription = opcService
@@ -110,9 +111,8 @@ public class ParameterRecordingService implements OpcSubscriptionListener {
         // then, unsubscribe from all old parameters
         var iterator = parameterRecordingsMap.entrySet().iterator();
         while (iterator.hasNext()) {
-            var entry = iterator.next();
-            var parameter = entry.getKey();
-            var subscription = entry.getValue();
+            var subscription = iterator.next().getValue();
+            var parameter = subscription.parameter;
             if (!parametersToRecord.contains(parameter)) {
                 if (subscription.opcSubscription != null) {
                     subscription.opcSubscription.unsubscribe();
@@ -146,7 +146,7 @@ public class ParameterRecordingService implements OpcSubscriptionListener {
     public void onSubscriptionActive(OpcSubscription subscription) {
         var nodeId = subscription.getSubscribedItems().get(0).getNode().getId();
         var parameterSubscription = nodeIdParameterMap.get(nodeId).stream()
-                .map(parameterRecordingsMap::get)
+                .map(parameter -> parameterRecordingsMap.get(parameter.getId()))
                 .filter(parameterRecordingCandidate -> parameterRecordingCandidate.opcSubscription == subscription)
                 .findFirst()
                 .orElse(null);
@@ -191,8 +191,10 @@ public class ParameterRecordingService implements OpcSubscriptionListener {
             log.warn("Received OPC value for unknown node {}", value.getNode());
             return;
         }
+        var toRecord = new ArrayList<Parameter>(parameters.size());
+        var subscriptions = new ArrayList<ParameterRecording>(parameters.size());
         for (Parameter parameter : parameters) {
-            var subscription = parameterRecordingsMap.get(parameter);
+            var subscription = parameterRecordingsMap.get(parameter.getId());
             if (subscription == null) {
                 log.warn("Missing ParameterSubscription for node: {} and parameter: {}", value.getNode(), parameter);
                 continue;
@@ -207,8 +209,17 @@ public class ParameterRecordingService implements OpcSubscriptionListener {
                 // Ignore values that are too early
                 continue;
             }
-            subscription.lastMeasurement = measurementService.recordMeasurement(parameter, value);
-            subscription.measurementCount.incrementAndGet();
+            toRecord.add(parameter);
+            subscriptions.add(subscription);
+        }
+        if (toRecord.isEmpty()) {
+            return;
+        }
+        // All parameters of the node are recorded with a single append
+        var measurements = measurementService.recordMeasurements(toRecord, value);
+        for (int i = 0; i < subscriptions.size(); i++) {
+            subscriptions.get(i).lastMeasurement = measurements.get(i);
+            subscriptions.get(i).measurementCount.incrementAndGet();
         }
     }
 
@@ -238,7 +249,11 @@ public class ParameterRecordingService implements OpcSubscriptionListener {
     }
 
     public OpcStatusCode getStatusCode(Parameter parameter) {
-        return Optional.ofNullable(getSubscribedItem(parameter))
+        return getStatusCode(parameter.getId());
+    }
+
+    public OpcStatusCode getStatusCode(long parameterId) {
+        return Optional.ofNullable(getSubscribedItem(parameterId))
                 .map(OpcSubscribedItem::getStatusCode)
                 .orElse(OpcStatusCode.BAD_UNEXPECTED_ERROR);
     }
@@ -247,12 +262,16 @@ public class ParameterRecordingService implements OpcSubscriptionListener {
         return parameterRecordingsMap.entrySet().stream()
                 .filter(e -> e.getValue().opcSubscription != null)
                 .collect(Collectors.toMap(
-                        Map.Entry::getKey,
+                        e -> e.getValue().parameter,
                         e -> e.getValue().opcSubscription.getSubscribedItems().get(0)));
     }
 
     public OpcSubscribedItem getSubscribedItem(Parameter parameter) {
-        return Optional.ofNullable(parameterRecordingsMap.get(parameter))
+        return getSubscribedItem(parameter.getId());
+    }
+
+    public OpcSubscribedItem getSubscribedItem(long parameterId) {
+        return Optional.ofNullable(parameterRecordingsMap.get(parameterId))
                 .map(subscription -> subscription.opcSubscription)
                 .map(OpcSubscription::getSubscribedItems)
                 .map(items -> items.get(0))
@@ -260,13 +279,21 @@ public class ParameterRecordingService implements OpcSubscriptionListener {
     }
 
     public long getMeasurementCount(Parameter parameter) {
-        return Optional.ofNullable(parameterRecordingsMap.get(parameter))
+        return getMeasurementCount(parameter.getId());
+    }
+
+    public long getMeasurementCount(long parameterId) {
+        return Optional.ofNullable(parameterRecordingsMap.get(parameterId))
                 .map(subscription -> subscription.measurementCount.get())
                 .orElse(0L);
     }
 
     public Measurement getLastMeasurement(Parameter parameter) {
-        return Optional.ofNullable(parameterRecordingsMap.get(parameter))
+        return getLastMeasurement(parameter.getId());
+    }
+
+    public Measurement getLastMeasurement(long parameterId) {
+        return Optional.ofNullable(parameterRecordingsMap.get(parameterId))
                 .map(subscription -> subscription.lastMeasurement)
                 .orElse(null);
     }
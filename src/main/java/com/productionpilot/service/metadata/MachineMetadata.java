@@ -0,0 +1,13 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.service.metadata;
+
+import com.productionpilot.db.timescale.entities.Machine;
+
+public record MachineMetadata(long id, String name, String description) {
+    static MachineMetadata of(Machine machine) {
+        return new MachineMetadata(machine.getId(), machine.getName(), machine.getDescription());
+    }
+}
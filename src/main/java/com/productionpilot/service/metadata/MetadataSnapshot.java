@@ -0,0 +1,139 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.service.metadata;
+
+import java.util.*;
+import java.util.stream.Collectors;
+import javax.annotation.Nullable;
+
+/**
+ * An immutable view of all machines, parameters and units of measurement at one point in time. Changes create a new
+ * snapshot, see {@link MetadataSnapshotService}. Deleted entities are not included.
+ */
+public final class MetadataSnapshot {
+    static final MetadataSnapshot EMPTY = new MetadataSnapshot(Map.of(), Map.of(), Map.of());
+
+    private final Map<Long, MachineMetadata> machines;
+    private final Map<Long, ParameterMetadata> parameters;
+    private final Map<Long, UnitOfMeasurementMetadata> unitsOfMeasurement;
+    private final Map<Long, List<ParameterMetadata>> parametersByMachine;
+    private final Map<String, ParameterMetadata> parametersByIdentifier;
+
+    MetadataSnapshot(
+            Map<Long, MachineMetadata> machines,
+            Map<Long, ParameterMetadata> parameters,
+            Map<Long, UnitOfMeasurementMetadata> unitsOfMeasurement) {
+        this.machines = Map.copyOf(machines);
+        this.parameters = Map.copyOf(parameters);
+        this.unitsOfMeasurement = Map.copyOf(unitsOfMeasurement);
+        this.parametersByMachine = parameters.values().stream()
+                .sorted(Comparator.comparingLong(ParameterMetadata::id))
+                .collect(Collectors.collectingAndThen(
+                        Collectors.groupingBy(ParameterMetadata::machineId, Collectors.toUnmodifiableList()),
+                        Map::copyOf));
+        this.parametersByIdentifier = parameters.values().stream()
+                .filter(parameter -> parameter.identifier() != null)
+                .collect(Collectors.toUnmodifiableMap(
+                        ParameterMetadata::identifier, parameter -> parameter, (first, second) -> first));
+    }
+
+    @Nullable
+    public MachineMetadata getMachine(long machineId) {
+        return machines.get(machineId);
+    }
+
+    @Nullable
+    public ParameterMetadata getParameter(long parameterId) {
+        return parameters.get(parameterId);
+    }
+
+    @Nullable
+    public ParameterMetadata getParameterByIdentifier(String identifier) {
+        return parametersByIdentifier.get(identifier);
+    }
+
+    @Nullable
+    public UnitOfMeasurementMetadata getUnitOfMeasurement(long unitOfMeasurementId) {
+        return unitsOfMeasurement.get(unitOfMeasurementId);
+    }
+
+    @Nullable
+    public MachineMetadata getMachineOf(ParameterMetadata parameter) {
+        return getMachine(parameter.machineId());
+    }
+
+    @Nullable
+    public UnitOfMeasurementMetadata getUnitOfMeasurementOf(ParameterMetadata parameter) {
+        return parameter.unitOfMeasurementId() != null ? getUnitOfMeasurement(parameter.unitOfMeasurementId()) : null;
+    }
+
+    public Collection<MachineMetadata> getMachines() {
+        return machines.values();
+    }
+
+    public Collection<ParameterMetadata> getParameters() {
+        return parameters.values();
+    }
+
+    public Collection<UnitOfMeasurementMetadata> getUnitsOfMeasurement() {
+        return unitsOfMeasurement.values();
+    }
+
+    /**
+     * Returns the parameters of the given machine, ordered by id.
+     */
+    public List<ParameterMetadata> getParametersOfMachine(long machineId) {
+        return parametersByMachine.getOrDefault(machineId, List.of());
+    }
+
+    MetadataSnapshot withMachine(MachineMetadata machine) {
+        var newMachines = new HashMap<>(machines);
+        newMachines.put(machine.id(), machine);
+        return new MetadataSnapshot(newMachines, parameters, unitsOfMeasurement);
+    }
+
+    /**
+     * Also removes the machine's parameters, which are deleted along with it.
+     */
+    MetadataSnapshot withoutMachine(long machineId) {
+        var newMachines = new HashMap<>(machines);
+        newMachines.remove(machineId);
+        var newParameters = new HashMap<>(parameters);
+        newParameters.values().removeIf(parameter -> parameter.machineId() == machineId);
+        return new MetadataSnapshot(newMachines, newParameters, unitsOfMeasurement);
+    }
+
+    MetadataSnapshot withParameter(ParameterMetadata parameter) {
+        var newParameters = new HashMap<>(parameters);
+        newParameters.put(parameter.id(), parameter);
+        return new MetadataSnapshot(machines, newParameters, unitsOfMeasurement);
+    }
+
+    MetadataSnapshot withoutParameter(long parameterId) {
+        var newParameters = new HashMap<>(parameters);
+        newParameters.remove(parameterId);
+        return new MetadataSnapshot(machines, newParameters, unitsOfMeasurement);
+    }
+
+    MetadataSnapshot withUnitOfMeasurement(UnitOfMeasurementMetadata unitOfMeasurement) {
+        var newUnits = new HashMap<>(unitsOfMeasurement);
+        newUnits.put(unitOfMeasurement.id(), unitOfMeasurement);
+        return new MetadataSnapshot(machines, parameters, newUnits);
+    }
+
+    /**
+     * Also clears the unit on all parameters that used it, as the database does.
+     */
+    MetadataSnapshot withoutUnitOfMeasurement(long unitOfMeasurementId) {
+        var newUnits = new HashMap<>(unitsOfMeasurement);
+        newUnits.remove(unitOfMeasurementId);
+        var newParameters = new HashMap<>(parameters);
+        newParameters.replaceAll(
+                (id, parameter) -> Objects.equals(parameter.unitOfMeasurementId(), unitOfMeasurementId)
+                        ? parameter.withoutUnitOfMeasurement()
+                        : parameter);
+        return new MetadataSnapshot(machines, newParameters, newUnits);
+    }
+}
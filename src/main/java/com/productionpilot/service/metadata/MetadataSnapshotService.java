@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.service.metadata;
+
+import com.productionpilot.db.timescale.entities.Machine;
+import com.productionpilot.db.timescale.entities.Parameter;
+import com.productionpilot.db.timescale.entities.UnitOfMeasurement;
+import com.productionpilot.db.timescale.service.MachineService;
+import com.productionpilot.db.timescale.service.ParameterService;
+import com.productionpilot.db.timescale.service.UnitOfMeasurementService;
+import com.productionpilot.db.timescale.service.event.EntityDeletedEvent;
+import com.productionpilot.db.timescale.service.event.EntityModifiedEvent;
+import java.util.function.Function;
+import java.util.function.UnaryOperator;
+import java.util.stream.Collectors;
+import javax.annotation.PostConstruct;
+import lombok.RequiredArgsConstructor;
+import lombok.Synchronized;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Provides the machines, parameters and units of measurement as an immutable {@link MetadataSnapshot}, so that they can
+ * be read from any thread without locking and without a Hibernate session. The snapshot is loaded once on startup and
+ * then kept up to date from the entity events, once their transaction has committed; every change replaces the whole
+ * snapshot (copy-on-write).
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class MetadataSnapshotService {
+    private final MachineService machineService;
+    private final ParameterService parameterService;
+    private final UnitOfMeasurementService unitOfMeasurementService;
+
+    private volatile MetadataSnapshot snapshot = MetadataSnapshot.EMPTY;
+
+    @PostConstruct
+    public void init() {
+        reload();
+    }
+
+    /**
+     * Returns the current snapshot. Callers that need a consistent view should hold on to the returned snapshot
+     * instead of calling this method repeatedly.
+     */
+    public MetadataSnapshot get() {
+        return snapshot;
+    }
+
+    /**
+     * Rebuilds the snapshot from the database.
+     */
+    @Synchronized
+    public void reload() {
+        snapshot = new MetadataSnapshot(
+                machineService.findAll().stream()
+                        .map(MachineMetadata::of)
+                        .collect(Collectors.toMap(MachineMetadata::id, Function.identity())),
+                parameterService.findAll().stream()
+                        .map(ParameterMetadata::of)
+                        .collect(Collectors.toMap(ParameterMetadata::id, Function.identity())),
+                unitOfMeasurementService.findAll().stream()
+                        .map(UnitOfMeasurementMetadata::of)
+                        .collect(Collectors.toMap(UnitOfMeasurementMetadata::id, Function.identity())));
+        log.debug(
+                "Loaded metadata snapshot: {} machines, {} parameters",
+                snapshot.getMachines().size(),
+                snapshot.getParameters().size());
+    }
+
+    @EventListener
+    public void onMachineModified(EntityModifiedEvent<Machine> event) {
+        var machine = event.getEntity();
+        // Machines and parameters are soft-deleted, i.e. a deletion may also arrive as an update
+        if (event instanceof EntityDeletedEvent || Boolean.TRUE.equals(machine.getDeleted())) {
+            long id = machine.getId();
+            applyAfterCommit(snapshot -> snapshot.withoutMachine(id));
+        } else {
+            var metadata = MachineMetadata.of(machine);
+            applyAfterCommit(snapshot -> snapshot.withMachine(metadata));
+        }
+    }
+
+    @EventListener
+    public void onParameterModified(EntityModifiedEvent<Parameter> event) {
+        var parameter = event.getEntity();
+        if (event instanceof EntityDeletedEvent || Boolean.TRUE.equals(parameter.getDeleted())) {
+            long id = parameter.getId();
+            applyAfterCommit(snapshot -> snapshot.withoutParameter(id));
+        } else {
+            var metadata = ParameterMetadata.of(parameter);
+            applyAfterCommit(snapshot -> snapshot.withParameter(metadata));
+        }
+    }
+
+    @EventListener
+    public void onUnitOfMeasurementModified(EntityModifiedEvent<UnitOfMeasurement> event) {
+        var unitOfMeasurement = event.getEntity();
+        if (event instanceof EntityDeletedEvent) {
+            long id = unitOfMeasurement.getId();
+            applyAfterCommit(snapshot -> snapshot.withoutUnitOfMeasurement(id));
+        } else {
+            var metadata = UnitOfMeasurementMetadata.of(unitOfMeasurement);
+            applyAfterCommit(snapshot -> snapshot.withUnitOfMeasurement(metadata));
+        }
+    }
+
+    /**
+     * Entity events are published before the transaction commits, so the change is only applied to the snapshot once
+     * it has committed, and dropped on rollback. Outside of a transaction, it is applied immediately.
+     */
+    private void applyAfterCommit(UnaryOperator<MetadataSnapshot> change) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    apply(change);
+                }
+            });
+        } else {
+            apply(change);
+        }
+    }
+
+    @Synchronized
+    private void apply(UnaryOperator<MetadataSnapshot> change) {
+        snapshot = change.apply(snapshot);
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.service.metadata;
+
+import com.productionpilot.db.timescale.entities.Parameter;
+import java.time.Duration;
+import javax.annotation.Nullable;
+
+/**
+ * The machine and unit of measurement are referenced by id, use {@link MetadataSnapshot} to resolve them.
+ */
+public record ParameterMetadata(
+        long id,
+        String opcNodeId,
+        String name,
+        String description,
+        long machineId,
+        @Nullable Long unitOfMeasurementId,
+        @Nullable String identifier,
+        Duration samplingInterval) {
+    static ParameterMetadata of(Parameter parameter) {
+        return new ParameterMetadata(
+                parameter.getId(),
+                parameter.getOpcNodeId(),
+                parameter.getName(),
+                parameter.getDescription(),
+                parameter.getMachine().getId(),
+                parameter.getUnitOfMeasurement() != null
+                        ? parameter.getUnitOfMeasurement().getId()
+                        : null,
+                parameter.getIdentifier(),
+                parameter.getSamplingInterval());
+    }
+
+    ParameterMetadata withoutUnitOfMeasurement() {
+        return new ParameterMetadata(
+                id, opcNodeId, name, description, machineId, null, identifier, samplingInterval);
+    }
+}
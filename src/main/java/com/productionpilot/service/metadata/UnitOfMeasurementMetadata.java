@@ -0,0 +1,14 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.service.metadata;
+
+import com.productionpilot.db.timescale.entities.UnitOfMeasurement;
+
+public record UnitOfMeasurementMetadata(long id, String name, String abbreviation) {
+    static UnitOfMeasurementMetadata of(UnitOfMeasurement unitOfMeasurement) {
+        return new UnitOfMeasurementMetadata(
+                unitOfMeasurement.getId(), unitOfMeasurement.getName(), unitOfMeasurement.getAbbreviation());
+    }
+}
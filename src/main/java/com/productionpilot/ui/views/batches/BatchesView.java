@@ -7,8 +7,12 @@ package com.productionpilot.ui.views.batches;
 import com.productionpilot.api.BatchApi;
 import com.productionpilot.db.timescale.entities.Batch;
 import com.productionpilot.db.timescale.entities.BatchMachine;
+import com.productionpilot.db.timescale.entities.BatchMachineStatistics;
 import com.productionpilot.db.timescale.service.BatchMachineService;
 import com.productionpilot.db.timescale.service.BatchService;
+import com.productionpilot.db.timescale.service.BatchStatisticsService;
+import com.productionpilot.service.metadata.MetadataSnapshot;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
 import com.productionpilot.ui.components.StateRetainingTreeGrid;
 import com.productionpilot.ui.util.*;
 import com.productionpilot.ui.views.MainLayout;
@@ -17,6 +21,8 @@ import com.vaadin.flow.component.Text;
 import com.vaadin.flow.component.UI;
 import com.vaadin.flow.component.button.Button;
 import com.vaadin.flow.component.contextmenu.MenuItem;
+import com.vaadin.flow.component.grid.Grid;
+import com.vaadin.flow.component.html.Span;
 import com.vaadin.flow.component.icon.Icon;
 import com.vaadin.flow.component.menubar.MenuBar;
 import com.vaadin.flow.component.menubar.MenuBarVariant;
@@ -26,6 +32,8 @@ import com.vaadin.flow.data.renderer.ComponentRenderer;
 import com.vaadin.flow.router.*;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 import javax.annotation.PostConstruct;
@@ -43,10 +51,14 @@ public class BatchesView extends VerticalLayout {
     private final BatchMachineService batchMachineService;
     private final BatchDialog batchDialog;
     private final BatchMachineDialog batchMachineDialog;
+    private final BatchStatisticsService batchStatisticsService;
+    private final MetadataSnapshotService metadataSnapshotService;
 
     // UI components
     private final HorizontalLayout toolbar = new HorizontalLayout();
     private final StateRetainingTreeGrid<BatchTreeData> grid = new StateRetainingTreeGrid<>();
+    private final Grid<StatisticsRow> statisticsGrid = new Grid<>();
+    private final Span statisticsStatus = new Span("Computing statistics...");
     private final Button exportButton = new Button("Export CSV", new Icon("lumo", "download"));
 
     // State variables
@@ -90,12 +102,14 @@ public class BatchesView extends VerticalLayout {
             } else {
                 exportButton.setEnabled(false);
             }
+            refreshStatistics();
         });
 
         toolbar.add(menuBar, exportButton);
 
         add(toolbar);
         configureGrid();
+        configureStatisticsGrid();
 
         PeriodicUIRefresher.create(this, 1000, this::refresh);
     }
@@ -168,7 +182,53 @@ public class BatchesView extends VerticalLayout {
         add(grid);
     }
 
+    private void configureStatisticsGrid() {
+        statisticsGrid
+                .addColumn(StatisticsRow::parameter)
+                .setHeader("Parameter")
+                .setFlexGrow(1)
+                .setResizable(true);
+        statisticsGrid.addColumn(StatisticsRow::count).setHeader("Count").setFlexGrow(0);
+        statisticsGrid.addColumn(StatisticsRow::min).setHeader("Min").setFlexGrow(0);
+        statisticsGrid.addColumn(StatisticsRow::max).setHeader("Max").setFlexGrow(0);
+        statisticsGrid.addColumn(StatisticsRow::mean).setHeader("Mean").setFlexGrow(0);
+        statisticsGrid.addColumn(StatisticsRow::standardDeviation).setHeader("Std. Dev.").setFlexGrow(0);
+        statisticsGrid.addColumn(StatisticsRow::unit).setHeader("Unit").setFlexGrow(0);
+        statisticsGrid.setHeight("16em");
+        statisticsGrid.setVisible(false);
+        statisticsStatus.setVisible(false);
+        add(statisticsStatus, statisticsGrid);
+    }
+
+    /**
+     * Shows the stored statistics of the selected batch machine range. They are computed in the background if they
+     * are outdated, and shown by one of the next refreshes.
+     */
+    private void refreshStatistics() {
+        var selected = grid.getSelectedItems().stream().findFirst().orElse(null);
+        // The range is read again, as the selected item may be older than the last change of the range
+        var batchMachine = selected != null && !selected.isBatch()
+                ? batchMachineService.findById(selected.batchMachine.getId())
+                : null;
+        if (batchMachine == null) {
+            statisticsGrid.setVisible(false);
+            statisticsStatus.setVisible(false);
+            return;
+        }
+        var statistics = batchStatisticsService
+                .getStoredStatistics(List.of(BatchStatisticsService.Range.of(batchMachine)))
+                .get(0);
+        var metadata = metadataSnapshotService.get();
+        var rows = statistics.parameters().stream()
+                .map(parameterStatistics -> StatisticsRow.of(parameterStatistics, metadata))
+                .toList();
+        lazyUIRefresher.refreshIfNecessary(statisticsGrid, rows, (grid, items) -> grid.setItems(items));
+        statisticsGrid.setVisible(true);
+        statisticsStatus.setVisible(!statistics.upToDate());
+    }
+
     private void refresh() {
+        refreshStatistics();
         if (lazyUIRefresher.refreshIfNecessary(
                 grid, batchService.findAll(), batchMachineService.findAll(), (grid, batches, batchMachines) -> {
                     var batchToChildBatches = batches.stream()
@@ -231,6 +291,26 @@ public class BatchesView extends VerticalLayout {
         UI.getCurrent().getPage().open(BatchApi.getLinkToBatchExport(batch), null);
     }
 
+    private record StatisticsRow(
+            String parameter, long count, String min, String max, String mean, String standardDeviation, String unit) {
+        private static StatisticsRow of(BatchMachineStatistics statistics, MetadataSnapshot metadata) {
+            var parameter = metadata.getParameter(statistics.getParameterId());
+            var unitOfMeasurement = parameter != null ? metadata.getUnitOfMeasurementOf(parameter) : null;
+            return new StatisticsRow(
+                    parameter != null ? parameter.name() : "Parameter " + statistics.getParameterId(),
+                    statistics.getMeasurementCount(),
+                    format(statistics.getMinValue()),
+                    format(statistics.getMaxValue()),
+                    format(statistics.getMeanValue()),
+                    format(statistics.getStandardDeviation()),
+                    unitOfMeasurement != null ? unitOfMeasurement.abbreviation() : "");
+        }
+
+        private static String format(Double value) {
+            return value != null ? String.format(Locale.ENGLISH, "%.6g", value) : "";
+        }
+    }
+
     @EqualsAndHashCode
     private static class BatchTreeData {
         private final Batch batch;
@@ -5,13 +5,15 @@
 package com.productionpilot.ui.views.parameters;
 
 import com.google.common.collect.Streams;
-import com.productionpilot.db.timescale.entities.Machine;
 import com.productionpilot.db.timescale.entities.Measurement;
-import com.productionpilot.db.timescale.entities.Parameter;
-import com.productionpilot.db.timescale.entities.UnitOfMeasurement;
 import com.productionpilot.db.timescale.service.MachineService;
 import com.productionpilot.db.timescale.service.ParameterService;
 import com.productionpilot.service.ParameterRecordingService;
+import com.productionpilot.service.metadata.MachineMetadata;
+import com.productionpilot.service.metadata.MetadataSnapshot;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import com.productionpilot.service.metadata.ParameterMetadata;
+import com.productionpilot.service.metadata.UnitOfMeasurementMetadata;
 import com.productionpilot.ui.components.ImprovedRefreshTreeGrid;
 import com.productionpilot.ui.util.*;
 import com.productionpilot.ui.views.MainLayout;
@@ -30,6 +32,7 @@ import com.vaadin.flow.router.Route;
 import java.util.Comparator;
 import java.util.Objects;
 import java.util.Optional;
+import java.util.stream.Stream;
 import javax.annotation.PostConstruct;
 import lombok.Getter;
 import lombok.RequiredArgsConstructor;
@@ -43,6 +46,7 @@ public class ParametersView extends VerticalLayout {
     private final ParameterService parameterService;
     private final MachineService machineService;
     private final ParameterRecordingService parameterRecordingService;
+    private final MetadataSnapshotService metadataSnapshotService;
     private final ParameterDialog parameterDialog;
     private final MachineDialog machineDialog;
 
@@ -119,13 +123,20 @@ public class ParametersView extends VerticalLayout {
                     anchor.getElement()
                             .addEventListener("click", e -> {
                                 grid.select(dataWrapped);
+                                // The dialogs edit the entities, which are loaded only when needed
                                 if (data.isMachine()) {
-                                    machineDialog.openForUpdate(data.machine, m -> refresh(), m -> refresh());
+                                    var machine = machineService.findById(data.machine.id());
+                                    if (machine != null) {
+                                        machineDialog.openForUpdate(machine, m -> refresh(), m -> refresh());
+                                    }
                                 } else {
-                                    parameterDialog
-                                            .openForUpdate(data.parameter, p -> refresh(), p -> refresh())
-                                            .setSubscribedNode(
-                                                    parameterRecordingService.getSubscribedItem(data.parameter));
+                                    var parameter = parameterService.findById(data.parameter.id());
+                                    if (parameter != null) {
+                                        parameterDialog
+                                                .openForUpdate(parameter, p -> refresh(), p -> refresh())
+                                                .setSubscribedNode(parameterRecordingService.getSubscribedItem(
+                                                        data.parameter.id()));
+                                    }
                                 }
                             })
                             .addEventData("event.preventDefault()");
@@ -139,15 +150,20 @@ public class ParametersView extends VerticalLayout {
     }
 
     private void refresh() {
-        grid.improvedSetValues(() -> Streams.concat(
-                        machineService.findAll().stream().map(ParameterTreeItem::new),
-                        parameterService.findAll().stream().map(ParameterTreeItem::new))
-                .toList());
+        grid.improvedSetValues(() -> {
+            var metadata = metadataSnapshotService.get();
+            return Streams.concat(
+                            metadata.getMachines().stream().map(machine -> new ParameterTreeItem(metadata, machine)),
+                            metadata.getParameters().stream()
+                                    .map(parameter -> new ParameterTreeItem(metadata, parameter)))
+                    .toList();
+        });
     }
 
     private class ParameterTreeItem extends ImprovedRefreshTreeGrid.TreeItem<ParameterTreeItem> {
-        private final Parameter parameter;
-        private final Machine machine;
+        private final MetadataSnapshot metadata;
+        private final ParameterMetadata parameter;
+        private final MachineMetadata machine;
 
         @Getter(lazy = true)
         private final String status = calculateStatus();
@@ -167,14 +183,16 @@ public class ParametersView extends VerticalLayout {
         @Getter(lazy = true)
         private final Optional<Measurement> lastMeasurement = calculateLastMeasurement();
 
-        private ParameterTreeItem(Machine machine) {
+        private ParameterTreeItem(MetadataSnapshot metadata, MachineMetadata machine) {
+            this.metadata = metadata;
             this.parameter = null;
             this.machine = machine;
         }
 
-        private ParameterTreeItem(Parameter parameter) {
+        private ParameterTreeItem(MetadataSnapshot metadata, ParameterMetadata parameter) {
+            this.metadata = metadata;
             this.parameter = parameter;
-            this.machine = parameter.getMachine();
+            this.machine = metadata.getMachineOf(parameter);
         }
 
         private boolean isMachine() {
@@ -182,15 +200,15 @@ public class ParametersView extends VerticalLayout {
         }
 
         private String getName() {
-            return isMachine() ? machine.getName() : parameter.getName();
+            return isMachine() ? machine.name() : parameter.name();
         }
 
         public ParameterTreeItem getParent() {
-            return isMachine() ? null : new ParameterTreeItem(machine);
+            return isMachine() || machine == null ? null : new ParameterTreeItem(metadata, machine);
         }
 
         public String getId() {
-            return isMachine() ? "m" + machine.getId() : "p" + parameter.getId();
+            return isMachine() ? "m" + machine.id() : "p" + parameter.id();
         }
 
         @Override
@@ -207,22 +225,16 @@ public class ParametersView extends VerticalLayout {
                     || !Objects.equals(getLastMeasurement(), other.getLastMeasurement())) {
                 return false;
             }
-            if (machine != null && !machine.deepEquals(other.machine)) {
-                return false;
-            }
-            if (parameter != null && !parameter.deepEquals(other.parameter)) {
-                return false;
-            }
-            return true;
+            return Objects.equals(machine, other.machine) && Objects.equals(parameter, other.parameter);
         }
 
         private long getCount() {
             if (isMachine()) {
-                return machine.getParameters().stream()
-                        .map(parameterRecordingService::getMeasurementCount)
-                        .reduce(0L, Long::sum);
+                return getMachineParameters()
+                        .mapToLong(parameter -> parameterRecordingService.getMeasurementCount(parameter.id()))
+                        .sum();
             } else {
-                return parameterRecordingService.getMeasurementCount(parameter);
+                return parameterRecordingService.getMeasurementCount(parameter.id());
             }
         }
 
@@ -242,8 +254,8 @@ public class ParametersView extends VerticalLayout {
         private String getUnit() {
             return isMachine()
                     ? ""
-                    : Optional.ofNullable(parameter.getUnitOfMeasurement())
-                            .map(UnitOfMeasurement::getAbbreviation)
+                    : Optional.ofNullable(metadata.getUnitOfMeasurementOf(parameter))
+                            .map(UnitOfMeasurementMetadata::abbreviation)
                             .orElse("");
         }
 
@@ -265,7 +277,7 @@ public class ParametersView extends VerticalLayout {
                     }
                 }
             } else {
-                return parameterRecordingService.getStatusCode(parameter).isGood()
+                return parameterRecordingService.getStatusCode(parameter.id()).isGood()
                         ? Emoji.GREEN_CIRCLE
                         : Emoji.RED_CIRCLE;
             }
@@ -274,26 +286,30 @@ public class ParametersView extends VerticalLayout {
         private long calculateOnlineParameters() {
             return !isMachine()
                     ? 0
-                    : machine.getParameters().stream()
+                    : getMachineParameters()
                             .filter(parameter -> parameterRecordingService
-                                    .getStatusCode(parameter)
+                                    .getStatusCode(parameter.id())
                                     .isGood())
                             .count();
         }
 
         private long calculateTotalParameters() {
-            return !isMachine() ? 0 : machine.getParameters().size();
+            return !isMachine() ? 0 : metadata.getParametersOfMachine(machine.id()).size();
         }
 
         private Optional<Measurement> calculateLastMeasurement() {
             if (isMachine()) {
-                return machine.getParameters().stream()
-                        .map(parameterRecordingService::getLastMeasurement)
+                return getMachineParameters()
+                        .map(parameter -> parameterRecordingService.getLastMeasurement(parameter.id()))
                         .filter(Objects::nonNull)
                         .max(Comparator.comparing(Measurement::getClientTime));
             } else {
-                return Optional.ofNullable(parameterRecordingService.getLastMeasurement(parameter));
+                return Optional.ofNullable(parameterRecordingService.getLastMeasurement(parameter.id()));
             }
         }
+
+        private Stream<ParameterMetadata> getMachineParameters() {
+            return metadata.getParametersOfMachine(machine.id()).stream();
+        }
     }
 }
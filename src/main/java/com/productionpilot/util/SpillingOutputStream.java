@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.util;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Buffers written data in memory up to a limit, and in a temporary file beyond that. Once writing is done and the
+ * stream is closed, the data can be read with {@link #openInputStream()}. {@link #delete()} must be called to free the
+ * temporary file.
+ */
+public class SpillingOutputStream extends OutputStream {
+    private final int memoryLimit;
+
+    private MemoryBuffer memory = new MemoryBuffer();
+    private Path file;
+    private OutputStream fileOutputStream;
+    private long size = 0;
+
+    public SpillingOutputStream(int memoryLimit) {
+        this.memoryLimit = memoryLimit;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        getTarget(1).write(b);
+        size++;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        getTarget(len).write(b, off, len);
+        size += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.flush();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (fileOutputStream != null) {
+            fileOutputStream.close();
+        }
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public boolean isInMemory() {
+        return file == null;
+    }
+
+    public InputStream openInputStream() throws IOException {
+        close();
+        return file == null
+                ? new ByteArrayInputStream(memory.getBuffer(), 0, memory.size())
+                : new BufferedInputStream(Files.newInputStream(file));
+    }
+
+    public void delete() throws IOException {
+        close();
+        memory = null;
+        if (file != null) {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    private OutputStream getTarget(int length) throws IOException {
+        if (file == null && memory.size() + length > memoryLimit) {
+            file = Files.createTempFile("productionpilot-", ".tmp");
+            fileOutputStream = new BufferedOutputStream(Files.newOutputStream(file));
+            memory.writeTo(fileOutputStream);
+            memory = new MemoryBuffer();
+        }
+        return file == null ? memory : fileOutputStream;
+    }
+
+    private static class MemoryBuffer extends ByteArrayOutputStream {
+        private byte[] getBuffer() {
+            return buf;
+        }
+    }
+}
@@ -4,6 +4,8 @@
  */
 package com.productionpilot.util;
 
+import java.time.Instant;
+
 public class Util {
     private Util() {}
 
@@ -21,4 +23,15 @@ public class Util {
                 .replace("|", "")
                 .replace(":", "-");
     }
+
+    /**
+     * Converts an instant to microseconds since the epoch, which is the precision PostgreSQL stores timestamps with.
+     */
+    public static long toEpochMicros(Instant instant) {
+        return Math.addExact(Math.multiplyExact(instant.getEpochSecond(), 1_000_000L), instant.getNano() / 1000);
+    }
+
+    public static Instant fromEpochMicros(long micros) {
+        return Instant.ofEpochSecond(Math.floorDiv(micros, 1_000_000L), Math.floorMod(micros, 1_000_000L) * 1000L);
+    }
 }
@@ -94,4 +94,93 @@ UPDATE Parameter SET Opc_Node_Id = Opc_Node_Id::json->>'nodeId';
 
 -- changeset fkirchmann:4
 -- comment: Add index on Measurement.Parameter_Id to speed up queries, improving application startup time
-CREATE INDEX measurement_parameter_id_index ON Measurement (Parameter_Id);
\ No newline at end of file
+CREATE INDEX measurement_parameter_id_index ON Measurement (Parameter_Id);
+
+-- changeset fkirchmann:5
+-- comment: Index for the cold-segment measurement archive, and a (Parameter_Id, Client_Time) index for range scans
+CREATE TABLE Archived_Segment
+(
+    Id BIGSERIAL NOT NULL PRIMARY KEY,
+    Parameter_Id BIGINT NOT NULL REFERENCES Parameter(Id),
+    Start_Time TIMESTAMP WITH TIME ZONE NOT NULL,
+    End_Time TIMESTAMP WITH TIME ZONE NOT NULL,
+    First_Measurement_Id BIGINT NOT NULL,
+    Last_Measurement_Id BIGINT NOT NULL,
+    Row_Count BIGINT NOT NULL,
+    File_Name TEXT NOT NULL,
+    File_Size BIGINT NOT NULL,
+    Creation_Time TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
+    CONSTRAINT archived_segment_file_name_unique UNIQUE (File_Name)
+);
+CREATE INDEX archived_segment_parameter_id_time_index ON Archived_Segment (Parameter_Id, Start_Time, End_Time);
+CREATE INDEX measurement_parameter_id_client_time_index ON Measurement (Parameter_Id, Client_Time);
+
+-- changeset fkirchmann:6
+-- comment: Durable progress of the replication to InfluxDB
+CREATE TABLE Replication_Checkpoint
+(
+    Name TEXT NOT NULL PRIMARY KEY,
+    Last_Measurement_Id BIGINT NOT NULL,
+    Modification_Time TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW()
+);
+
+-- changeset fkirchmann:7
+-- comment: Watermarks of incremental batch exports, and a (Parameter_Id, Id) index to read the measurements after them
+CREATE TABLE Export_Manifest
+(
+    Id BIGSERIAL NOT NULL PRIMARY KEY,
+    Consumer VARCHAR(255) NOT NULL,
+    Batch_Machine_Id BIGINT NOT NULL REFERENCES Batch_Machine(Id) ON DELETE CASCADE,
+    Parameter_Id BIGINT NOT NULL REFERENCES Parameter(Id),
+    Last_Measurement_Id BIGINT NOT NULL,
+    Last_Client_Time TIMESTAMP WITH TIME ZONE NOT NULL,
+    Row_Count BIGINT NOT NULL,
+    Modification_Time TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
+    CONSTRAINT export_manifest_unique UNIQUE (Consumer, Batch_Machine_Id, Parameter_Id)
+);
+CREATE INDEX measurement_parameter_id_id_index ON Measurement (Parameter_Id, Id);
+
+-- changeset fkirchmann:8
+-- comment: Closure table of the batch hierarchy for ancestor and subtree lookups without recursive queries
+CREATE TABLE Batch_Closure
+(
+    Ancestor_Id BIGINT NOT NULL REFERENCES Batch(Id) ON DELETE CASCADE,
+    Descendant_Id BIGINT NOT NULL REFERENCES Batch(Id) ON DELETE CASCADE,
+    Depth INT NOT NULL,
+    PRIMARY KEY (Ancestor_Id, Descendant_Id)
+);
+CREATE INDEX batch_closure_descendant_id_depth_index ON Batch_Closure (Descendant_Id, Depth);
+CREATE INDEX batch_parent_batch_id_index ON Batch (Parent_Batch_Id);
+INSERT INTO Batch_Closure (Ancestor_Id, Descendant_Id, Depth)
+WITH RECURSIVE Paths AS (
+        SELECT Id Ancestor_Id, Id Descendant_Id, 0 Depth FROM Batch
+    UNION ALL
+        SELECT Paths.Ancestor_Id, Batch.Id, Paths.Depth + 1
+        FROM Paths INNER JOIN Batch ON Batch.Parent_Batch_Id = Paths.Descendant_Id
+)
+SELECT Ancestor_Id, Descendant_Id, Depth FROM Paths;
+
+-- changeset fkirchmann:9
+-- comment: Precomputed statistics of the parameters within each batch machine range
+CREATE TABLE Batch_Machine_Statistics
+(
+    Id BIGSERIAL NOT NULL PRIMARY KEY,
+    Batch_Machine_Id BIGINT NOT NULL REFERENCES Batch_Machine(Id) ON DELETE CASCADE,
+    Parameter_Id BIGINT NOT NULL REFERENCES Parameter(Id),
+    Measurement_Count BIGINT NOT NULL,
+    Numeric_Count BIGINT NOT NULL,
+    Min_Value DOUBLE PRECISION,
+    Max_Value DOUBLE PRECISION,
+    Mean_Value DOUBLE PRECISION,
+    Standard_Deviation DOUBLE PRECISION,
+    Range_Modification_Time TIMESTAMP WITH TIME ZONE NOT NULL,
+    Computation_Time TIMESTAMP WITH TIME ZONE NOT NULL,
+    CONSTRAINT batch_machine_statistics_unique UNIQUE (Batch_Machine_Id, Parameter_Id)
+);
+
+-- changeset fkirchmann:10
+-- comment: Incremental exports track the ids that were exported above the range of certainly committed measurements
+ALTER TABLE Export_Manifest ADD COLUMN Complete_Up_To_Id BIGINT;
+UPDATE Export_Manifest SET Complete_Up_To_Id = Last_Measurement_Id;
+ALTER TABLE Export_Manifest ALTER COLUMN Complete_Up_To_Id SET NOT NULL;
+ALTER TABLE Export_Manifest ADD COLUMN Pending_Ids TEXT NOT NULL DEFAULT '';
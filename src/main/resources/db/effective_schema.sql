@@ -1,5 +1,5 @@
 -- This is the effective databse schema used by ProductionPilot.
--- It is current as of changeset fkirchmann:4.
+-- It is current as of changeset fkirchmann:10.
 
 CREATE TABLE Machine
 (
@@ -49,6 +49,8 @@ CREATE TABLE Measurement
     CONSTRAINT measurement_nullity CHECK (num_nonnulls(Value_String, Value_Boolean, Value_Long, Value_Double) = 1)
 );
 CREATE INDEX measurement_parameter_id_index ON Measurement (Parameter_Id);
+CREATE INDEX measurement_parameter_id_client_time_index ON Measurement (Parameter_Id, Client_Time);
+CREATE INDEX measurement_parameter_id_id_index ON Measurement (Parameter_Id, Id);
 
 CREATE TABLE Batch
 (
@@ -60,6 +62,16 @@ CREATE TABLE Batch
     Modification_Time TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
     CONSTRAINT batch_unique UNIQUE (Name, Parent_Batch_Id)
 );
+CREATE INDEX batch_parent_batch_id_index ON Batch (Parent_Batch_Id);
+
+CREATE TABLE Batch_Closure
+(
+    Ancestor_Id BIGINT NOT NULL REFERENCES Batch(Id) ON DELETE CASCADE,
+    Descendant_Id BIGINT NOT NULL REFERENCES Batch(Id) ON DELETE CASCADE,
+    Depth INT NOT NULL,
+    PRIMARY KEY (Ancestor_Id, Descendant_Id)
+);
+CREATE INDEX batch_closure_descendant_id_depth_index ON Batch_Closure (Descendant_Id, Depth);
 
 CREATE TABLE Batch_Machine
 (
@@ -73,3 +85,57 @@ CREATE TABLE Batch_Machine
     CONSTRAINT batch_machine_unique UNIQUE (Batch_Id, Machine_Id, Start_Time, End_Time),
     CONSTRAINT batch_machine_end_time_after_start_time CHECK (End_Time > Start_Time)
 );
+
+CREATE TABLE Archived_Segment
+(
+    Id BIGSERIAL NOT NULL PRIMARY KEY,
+    Parameter_Id BIGINT NOT NULL REFERENCES Parameter(Id),
+    Start_Time TIMESTAMP WITH TIME ZONE NOT NULL,
+    End_Time TIMESTAMP WITH TIME ZONE NOT NULL,
+    First_Measurement_Id BIGINT NOT NULL,
+    Last_Measurement_Id BIGINT NOT NULL,
+    Row_Count BIGINT NOT NULL,
+    File_Name TEXT NOT NULL,
+    File_Size BIGINT NOT NULL,
+    Creation_Time TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
+    CONSTRAINT archived_segment_file_name_unique UNIQUE (File_Name)
+);
+CREATE INDEX archived_segment_parameter_id_time_index ON Archived_Segment (Parameter_Id, Start_Time, End_Time);
+
+CREATE TABLE Replication_Checkpoint
+(
+    Name TEXT NOT NULL PRIMARY KEY,
+    Last_Measurement_Id BIGINT NOT NULL,
+    Modification_Time TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW()
+);
+
+CREATE TABLE Export_Manifest
+(
+    Id BIGSERIAL NOT NULL PRIMARY KEY,
+    Consumer VARCHAR(255) NOT NULL,
+    Batch_Machine_Id BIGINT NOT NULL REFERENCES Batch_Machine(Id) ON DELETE CASCADE,
+    Parameter_Id BIGINT NOT NULL REFERENCES Parameter(Id),
+    Last_Measurement_Id BIGINT NOT NULL,
+    Last_Client_Time TIMESTAMP WITH TIME ZONE NOT NULL,
+    Row_Count BIGINT NOT NULL,
+    Modification_Time TIMESTAMP WITH TIME ZONE NOT NULL DEFAULT NOW(),
+    Complete_Up_To_Id BIGINT NOT NULL,
+    Pending_Ids TEXT NOT NULL DEFAULT '',
+    CONSTRAINT export_manifest_unique UNIQUE (Consumer, Batch_Machine_Id, Parameter_Id)
+);
+
+CREATE TABLE Batch_Machine_Statistics
+(
+    Id BIGSERIAL NOT NULL PRIMARY KEY,
+    Batch_Machine_Id BIGINT NOT NULL REFERENCES Batch_Machine(Id) ON DELETE CASCADE,
+    Parameter_Id BIGINT NOT NULL REFERENCES Parameter(Id),
+    Measurement_Count BIGINT NOT NULL,
+    Numeric_Count BIGINT NOT NULL,
+    Min_Value DOUBLE PRECISION,
+    Max_Value DOUBLE PRECISION,
+    Mean_Value DOUBLE PRECISION,
+    Standard_Deviation DOUBLE PRECISION,
+    Range_Modification_Time TIMESTAMP WITH TIME ZONE NOT NULL,
+    Computation_Time TIMESTAMP WITH TIME ZONE NOT NULL,
+    CONSTRAINT batch_machine_statistics_unique UNIQUE (Batch_Machine_Id, Parameter_Id)
+);
@@ -0,0 +1,163 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.Application;
+import com.productionpilot.db.store.MeasurementStore;
+import com.productionpilot.db.timescale.entities.Batch;
+import com.productionpilot.db.timescale.entities.Machine;
+import com.productionpilot.db.timescale.entities.Measurement;
+import com.productionpilot.db.timescale.entities.Parameter;
+import com.productionpilot.db.timescale.repository.ParameterRepository;
+import com.productionpilot.db.timescale.service.BatchMachineService;
+import com.productionpilot.db.timescale.service.BatchService;
+import com.productionpilot.db.timescale.service.MachineService;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.zip.ZipInputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class)
+public class BatchDeltaExporterTest {
+    private static final Instant START = Instant.parse("2023-01-01T00:00:00Z");
+
+    @Autowired
+    private BatchDeltaExporter batchDeltaExporter;
+
+    @Autowired
+    private BatchService batchService;
+
+    @Autowired
+    private BatchMachineService batchMachineService;
+
+    @Autowired
+    private MachineService machineService;
+
+    @Autowired
+    private ParameterRepository parameterRepository;
+
+    @Autowired
+    private MeasurementStore measurementStore;
+
+    @Autowired
+    private MetadataSnapshotService metadataSnapshotService;
+
+    @Autowired
+    private PlatformTransactionManager transactionManager;
+
+    private Machine machine;
+    private Batch batch;
+    private Parameter parameter;
+
+    @Before
+    public void createBatch() {
+        machine = machineService.create("Delta test " + UUID.randomUUID());
+        parameter = new Parameter();
+        parameter.setOpcNodeId("ns=2;s=DeltaTest" + UUID.randomUUID());
+        parameter.setMachine(machine);
+        parameter.setName("Delta test");
+        parameter = parameterRepository.save(parameter);
+        batch = batchService.create("Delta test " + UUID.randomUUID());
+        batchMachineService.create(batch, machine, START, START.plus(Duration.ofHours(1)));
+        assertNotNull(metadataSnapshotService.get().getParameter(parameter.getId()));
+    }
+
+    @Test
+    public void onlyNewMeasurementsAreExported() throws Exception {
+        append(0, 10);
+        assertEquals(List.of(10), exportedRowsPerPart("nightly"));
+        assertEquals(List.of(), exportedRowsPerPart("nightly"));
+
+        append(10, 5);
+        assertEquals(List.of(5), exportedRowsPerPart("nightly"));
+        // Consumers are independent of each other
+        assertEquals(List.of(15), exportedRowsPerPart("other"));
+
+        batchDeltaExporter.resetManifests(batch, "nightly");
+        assertEquals(List.of(15), exportedRowsPerPart("nightly"));
+    }
+
+    @Test
+    public void measurementsCommittedOutOfIdOrderAreExported() throws Exception {
+        var now = Instant.now();
+        batchMachineService.create(batch, machine, now.minus(Duration.ofHours(1)), now.plus(Duration.ofHours(1)));
+        var inserted = new CountDownLatch(1);
+        var commit = new CountDownLatch(1);
+        // Gets the lower id, but commits after the higher one was exported
+        var slowRecording = CompletableFuture.runAsync(() -> new TransactionTemplate(transactionManager)
+                .executeWithoutResult(status -> {
+                    measurementStore.appendBatch(List.of(measurement(now, 1)));
+                    inserted.countDown();
+                    try {
+                        commit.await();
+                    } catch (InterruptedException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }));
+        inserted.await();
+        measurementStore.appendBatch(List.of(measurement(now, 2)));
+        assertEquals(List.of(1), exportedRowsPerPart("nightly"));
+
+        commit.countDown();
+        slowRecording.get();
+        assertEquals(List.of(1), exportedRowsPerPart("nightly"));
+        assertEquals(List.of(), exportedRowsPerPart("nightly"));
+    }
+
+    private void append(int first, int count) {
+        var measurements = new ArrayList<Measurement>();
+        for (int i = first; i < first + count; i++) {
+            measurements.add(measurement(START.plusSeconds(i), i));
+        }
+        measurementStore.appendBatch(measurements);
+    }
+
+    private Measurement measurement(Instant clientTime, long value) {
+        var measurement = new Measurement();
+        measurement.setParameterId(parameter.getId());
+        measurement.setClientTime(clientTime);
+        measurement.setSourceTime(clientTime);
+        measurement.setServerTime(clientTime);
+        measurement.setOpcStatusCode(0L);
+        measurement.setValueLong(value);
+        return measurement;
+    }
+
+    /**
+     * Returns the number of measurements in each CSV file of an incremental export.
+     */
+    private List<Integer> exportedRowsPerPart(String consumer) throws Exception {
+        var out = new ByteArrayOutputStream();
+        batchDeltaExporter.writeBatchDeltaToZip(out, batch, consumer);
+        var rows = new ArrayList<Integer>();
+        try (var zip = new ZipInputStream(new ByteArrayInputStream(out.toByteArray()))) {
+            for (var entry = zip.getNextEntry(); entry != null; entry = zip.getNextEntry()) {
+                var lines = new String(zip.readAllBytes(), StandardCharsets.UTF_8).split("\r\n");
+                // Without the header
+                rows.add(lines.length - 1);
+            }
+        }
+        return rows;
+    }
+}
@@ -0,0 +1,90 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.Application;
+import com.productionpilot.db.timescale.entities.Batch;
+import com.productionpilot.db.timescale.service.BatchMachineService;
+import com.productionpilot.db.timescale.service.BatchService;
+import com.productionpilot.db.timescale.service.MachineService;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import java.util.function.Predicate;
+import java.util.zip.ZipInputStream;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class)
+public class ExportJobServiceTest {
+    @Autowired
+    private ExportJobService exportJobService;
+
+    @Autowired
+    private BatchService batchService;
+
+    @Autowired
+    private BatchMachineService batchMachineService;
+
+    @Autowired
+    private MachineService machineService;
+
+    @Test
+    public void finishedExportIsReusedUntilTheBatchChanges() throws Exception {
+        var batch = createBatch(Instant.now().minus(Duration.ofHours(1)));
+        var request = new ExportJobService.Request(batch.getId(), ExportJobService.Format.CSV_ZIP, null);
+
+        var job = exportJobService.submit(request);
+        assertSame(job, exportJobService.submit(request));
+        awaitState(job, state -> state == ExportJob.State.DONE);
+        try (var zip = new ZipInputStream(exportJobService.openResult(job))) {
+            assertNotNull(zip.getNextEntry());
+        }
+        assertSame(job, exportJobService.submit(request));
+
+        batch.setDescription("Modified");
+        batchService.update(batch);
+        assertEquals(ExportJob.State.EXPIRED, job.getState());
+        var newJob = exportJobService.submit(request);
+        assertNotSame(job, newJob);
+        awaitState(newJob, state -> state == ExportJob.State.DONE);
+    }
+
+    @Test
+    public void exportOfRunningBatchIsNotCached() throws Exception {
+        var batch = createBatch(Instant.now().plus(Duration.ofHours(1)));
+        var request = new ExportJobService.Request(batch.getId(), ExportJobService.Format.PARQUET, null);
+
+        var job = exportJobService.submit(request);
+        awaitState(job, state -> state == ExportJob.State.DONE);
+        assertNotSame(job, exportJobService.submit(request));
+    }
+
+    @Test
+    public void unknownBatchIsRejected() {
+        assertNull(exportJobService.submit(
+                new ExportJobService.Request(Long.MAX_VALUE, ExportJobService.Format.CSV_ZIP, null)));
+    }
+
+    private Batch createBatch(Instant end) {
+        var batch = batchService.create("Export job test " + UUID.randomUUID());
+        var machine = machineService.create("Export job test " + UUID.randomUUID());
+        batchMachineService.create(batch, machine, end.minus(Duration.ofHours(1)), end);
+        return batch;
+    }
+
+    private static void awaitState(ExportJob job, Predicate<ExportJob.State> condition) throws InterruptedException {
+        for (int i = 0; i < 100 && !condition.test(job.getState()); i++) {
+            Thread.sleep(100);
+        }
+        assertTrue("Unexpected state " + job.getState(), condition.test(job.getState()));
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.productionpilot.Application;
+import com.productionpilot.db.store.MeasurementStore;
+import com.productionpilot.db.timescale.entities.Measurement;
+import com.productionpilot.db.timescale.entities.Parameter;
+import com.productionpilot.db.timescale.repository.ParameterRepository;
+import com.productionpilot.db.timescale.service.MachineService;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.request.MockHttpServletRequestBuilder;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class)
+@AutoConfigureMockMvc
+public class MeasurementApiTest {
+    private static final Instant START = Instant.parse("2023-01-01T00:00:00Z");
+    private static final int MEASUREMENTS = 5;
+
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    @Autowired
+    private MachineService machineService;
+
+    @Autowired
+    private ParameterRepository parameterRepository;
+
+    @Autowired
+    private MeasurementStore measurementStore;
+
+    @Autowired
+    private MetadataSnapshotService metadataSnapshotService;
+
+    private Parameter parameter;
+
+    @Before
+    public void createParameter() {
+        parameter = createParameter(MEASUREMENTS);
+    }
+
+    private Parameter createParameter(int measurementCount) {
+        var parameter = new Parameter();
+        parameter.setOpcNodeId("ns=2;s=MeasurementApiTest" + UUID.randomUUID());
+        parameter.setMachine(machineService.create("Measurement API test " + UUID.randomUUID()));
+        parameter.setName("Measurement API test");
+        parameter.setIdentifier("MeasurementApiTest." + UUID.randomUUID());
+        parameter = parameterRepository.save(parameter);
+        assertNotNull(metadataSnapshotService.get().getParameter(parameter.getId()));
+        var measurements = new ArrayList<Measurement>();
+        for (int i = 0; i < measurementCount; i++) {
+            var measurement = new Measurement();
+            measurement.setParameterId(parameter.getId());
+            measurement.setClientTime(START.plusSeconds(i));
+            measurement.setSourceTime(START.plusSeconds(i));
+            measurement.setServerTime(START.plusSeconds(i));
+            measurement.setOpcStatusCode(0L);
+            measurement.setValueLong((long) i);
+            measurements.add(measurement);
+        }
+        if (!measurements.isEmpty()) {
+            measurementStore.appendBatch(measurements);
+        }
+        return parameter;
+    }
+
+    @Test
+    public void jsonIsTheDefaultFormat() throws Exception {
+        for (var accept : new String[] {null, MediaType.ALL_VALUE, "application/*", "text/html, */*;q=0.8"}) {
+            var request = measurements();
+            if (accept != null) {
+                request.header(HttpHeaders.ACCEPT, accept);
+            }
+            mockMvc.perform(request)
+                    .andExpect(status().isOk())
+                    .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_JSON))
+                    .andExpect(jsonPath("$.length()").value(MEASUREMENTS))
+                    .andExpect(jsonPath("$[4].value").value(4));
+        }
+    }
+
+    @Test
+    public void ndjsonAndCborAreReturnedWhenRequested() throws Exception {
+        var ndjson = mockMvc.perform(measurements().accept(MediaType.APPLICATION_NDJSON))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_NDJSON))
+                .andReturn()
+                .getResponse()
+                .getContentAsString(StandardCharsets.UTF_8);
+        var lines = ndjson.split("\n");
+        assertEquals(MEASUREMENTS, lines.length);
+        assertEquals(4, mapper.readTree(lines[4]).get("value").asLong());
+
+        var cbor = mockMvc.perform(measurements().accept(MediaType.APPLICATION_CBOR))
+                .andExpect(status().isOk())
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_CBOR))
+                .andReturn()
+                .getResponse()
+                .getContentAsByteArray();
+        var rows = new ObjectMapper(new CBORFactory()).readTree(cbor);
+        assertEquals(MEASUREMENTS, rows.size());
+        assertEquals(4, rows.get(4).get(5).asLong());
+
+        // The quality values decide, not the order
+        mockMvc.perform(measurements().header(HttpHeaders.ACCEPT, "application/json;q=0.5, application/cbor"))
+                .andExpect(content().contentTypeCompatibleWith(MediaType.APPLICATION_CBOR));
+        mockMvc.perform(measurements().accept(MediaType.TEXT_HTML)).andExpect(status().isNotAcceptable());
+    }
+
+    @Test
+    public void ndjsonIsWrittenOneMeasurementPerLineAcrossFlushes() throws Exception {
+        // More measurements than are written between two flushes
+        int count = 2500;
+        var large = createParameter(count);
+        var response = mockMvc.perform(get("/api/v1/measurements/parameter_id/{id}", large.getId())
+                        .param("start", START.toString())
+                        .accept(MediaType.APPLICATION_NDJSON))
+                .andExpect(status().isOk())
+                .andExpect(header().doesNotExist(HttpHeaders.CONTENT_LENGTH))
+                .andReturn()
+                .getResponse()
+                .getContentAsString(StandardCharsets.UTF_8);
+        assertTrue(response.endsWith("\n"));
+        var lines = response.split("\n");
+        assertEquals(count, lines.length);
+        long lastId = 0;
+        for (int i = 0; i < count; i++) {
+            var measurement = mapper.readTree(lines[i]);
+            assertEquals(i, measurement.get("value").asLong());
+            assertTrue(measurement.get("id").asLong() > lastId);
+            lastId = measurement.get("id").asLong();
+        }
+    }
+
+    @Test
+    public void pagesAreFollowedByTheirCursor() throws Exception {
+        var values = new ArrayList<Long>();
+        String cursor = "0";
+        int pages = 0;
+        while (cursor != null) {
+            var response = mockMvc.perform(measurements().param("after_id", cursor).param("limit", "2"))
+                    .andExpect(status().isOk())
+                    .andExpect(header().exists(HttpHeaders.CONTENT_LENGTH))
+                    .andReturn()
+                    .getResponse();
+            var page = mapper.readTree(response.getContentAsString(StandardCharsets.UTF_8));
+            page.forEach(measurement -> values.add(measurement.get("value").asLong()));
+            cursor = response.getHeader(MeasurementApi.NEXT_CURSOR_HEADER);
+            if (cursor != null) {
+                assertEquals(page.get(page.size() - 1).get("id").asText(), cursor);
+            }
+            pages++;
+        }
+        assertEquals(3, pages);
+        assertEquals(List.of(0L, 1L, 2L, 3L, 4L), values);
+    }
+
+    @Test
+    public void aFullLastPageIsFollowedByAnEmptyPage() throws Exception {
+        var cursor = mockMvc.perform(measurements().param("limit", String.valueOf(MEASUREMENTS)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(MEASUREMENTS))
+                .andReturn()
+                .getResponse()
+                .getHeader(MeasurementApi.NEXT_CURSOR_HEADER);
+        // A full page cannot tell whether more measurements follow, so it always has a cursor
+        assertNotNull(cursor);
+        mockMvc.perform(measurements().param("after_id", cursor).param("limit", String.valueOf(MEASUREMENTS)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(0))
+                .andExpect(header().doesNotExist(MeasurementApi.NEXT_CURSOR_HEADER));
+
+        mockMvc.perform(measurements().param("limit", "0")).andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void aggregatesAreValidated() throws Exception {
+        mockMvc.perform(aggregates().param("bucket", "PT2S"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3))
+                .andExpect(jsonPath("$[0].count").value(2))
+                .andExpect(jsonPath("$[1].min").value(2.0))
+                .andExpect(jsonPath("$[2].count").value(1));
+        mockMvc.perform(aggregates().param("maxPoints", "3"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(3));
+
+        // Exactly one of bucket and maxPoints
+        mockMvc.perform(aggregates()).andExpect(status().isBadRequest());
+        mockMvc.perform(aggregates().param("bucket", "PT2S").param("maxPoints", "3"))
+                .andExpect(status().isBadRequest());
+        // A day in buckets of a millisecond is more than the maximum number of buckets
+        mockMvc.perform(aggregates()
+                        .param("end", START.plus(Duration.ofDays(1)).toString())
+                        .param("bucket", "PT0.001S"))
+                .andExpect(status().isBadRequest());
+        mockMvc.perform(aggregates().param("bucket", "PT2S").param("aggregates", "median"))
+                .andExpect(status().isBadRequest());
+    }
+
+    @Test
+    public void bulkQueryHasAGroupForEveryParameter() throws Exception {
+        var empty = createParameter(0);
+        var query = Map.of(
+                "parameterIds", List.of(empty.getId()),
+                "parameterIdentifiers", List.of(parameter.getIdentifier()),
+                "start", START.toString());
+        var first = parameter.getId() < empty.getId() ? "$[0]" : "$[1]";
+        var second = parameter.getId() < empty.getId() ? "$[1]" : "$[0]";
+        mockMvc.perform(post("/api/v1/measurements/query")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(query)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andExpect(jsonPath(first + ".parameterId").value(parameter.getId()))
+                .andExpect(jsonPath(first + ".measurements.length()").value(MEASUREMENTS))
+                .andExpect(jsonPath(first + ".measurements[4].value").value(4))
+                .andExpect(jsonPath(second + ".parameterId").value(empty.getId()))
+                .andExpect(jsonPath(second + ".measurements.length()").value(0));
+
+        mockMvc.perform(post("/api/v1/measurements/query")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(mapper.writeValueAsString(
+                                Map.of("parameterIds", List.of(-1), "start", START.toString()))))
+                .andExpect(status().isNotFound());
+    }
+
+    private MockHttpServletRequestBuilder aggregates() {
+        return get("/api/v1/measurements/parameter_id/{id}/aggregate", parameter.getId())
+                .param("start", START.toString())
+                .param("end", START.plusSeconds(MEASUREMENTS).toString());
+    }
+
+    private MockHttpServletRequestBuilder measurements() {
+        return get("/api/v1/measurements/parameter_identifier/{identifier}", parameter.getIdentifier())
+                .param("start", START.toString());
+    }
+}
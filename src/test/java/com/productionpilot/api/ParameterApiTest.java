@@ -0,0 +1,128 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api;
+
+import static org.junit.Assert.*;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.*;
+
+import com.productionpilot.Application;
+import com.productionpilot.db.timescale.entities.Parameter;
+import com.productionpilot.db.timescale.repository.ParameterRepository;
+import com.productionpilot.db.timescale.service.MachineService;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import java.util.UUID;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.HttpHeaders;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class)
+@AutoConfigureMockMvc
+public class ParameterApiTest {
+    @Autowired
+    private MockMvc mockMvc;
+
+    @Autowired
+    private MachineService machineService;
+
+    @Autowired
+    private ParameterRepository parameterRepository;
+
+    @Autowired
+    private MetadataSnapshotService metadataSnapshotService;
+
+    private Parameter parameter;
+
+    @Before
+    public void createParameter() {
+        parameter = new Parameter();
+        parameter.setOpcNodeId("ns=2;s=ParameterApiTest" + UUID.randomUUID());
+        parameter.setMachine(machineService.create("Parameter API test " + UUID.randomUUID()));
+        parameter.setName("Parameter API test");
+        parameter.setIdentifier("ParameterApiTest." + UUID.randomUUID());
+        parameter = parameterRepository.save(parameter);
+        assertNotNull(metadataSnapshotService.get().getParameter(parameter.getId()));
+    }
+
+    @Test
+    public void matchingIfNoneMatchIsAnsweredWithNotModified() throws Exception {
+        var eTag = mockMvc.perform(get("/api/v1/parameters/latest/id/{id}", parameter.getId()))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.CACHE_CONTROL, "no-cache"))
+                .andExpect(jsonPath("$.parameterId").value(parameter.getId()))
+                .andExpect(jsonPath("$.parameterIdentifier").value(parameter.getIdentifier()))
+                .andReturn()
+                .getResponse()
+                .getHeader(HttpHeaders.ETAG);
+        assertNotNull(eTag);
+
+        // The same parameter by identifier has the same ETag
+        mockMvc.perform(get("/api/v1/parameters/latest/identifier/{identifier}", parameter.getIdentifier()))
+                .andExpect(status().isOk())
+                .andExpect(header().string(HttpHeaders.ETAG, eTag));
+
+        mockMvc.perform(get("/api/v1/parameters/latest/id/{id}", parameter.getId())
+                        .header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isNotModified())
+                .andExpect(content().string(""));
+        mockMvc.perform(get("/api/v1/parameters/latest/id/{id}", parameter.getId())
+                        .header(HttpHeaders.IF_NONE_MATCH, "\"outdated\""))
+                .andExpect(status().isOk());
+
+        // Renaming the parameter changes the ETag
+        parameter.setIdentifier("ParameterApiTest." + UUID.randomUUID());
+        parameter = parameterRepository.save(parameter);
+        mockMvc.perform(get("/api/v1/parameters/latest/id/{id}", parameter.getId())
+                        .header(HttpHeaders.IF_NONE_MATCH, eTag))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.parameterIdentifier").value(parameter.getIdentifier()));
+    }
+
+    @Test
+    public void etagCoversAllRequestedParameters() throws Exception {
+        var single = mockMvc.perform(get("/api/v1/parameters/latest").param("id", String.valueOf(parameter.getId())))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1))
+                .andReturn()
+                .getResponse()
+                .getHeader(HttpHeaders.ETAG);
+        var twice = mockMvc.perform(get("/api/v1/parameters/latest")
+                        .param("id", String.valueOf(parameter.getId()))
+                        .param("identifier", parameter.getIdentifier()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(2))
+                .andReturn()
+                .getResponse()
+                .getHeader(HttpHeaders.ETAG);
+        assertNotNull(single);
+        assertNotEquals(single, twice);
+
+        mockMvc.perform(get("/api/v1/parameters/latest/machine/{machineId}", parameter.getMachine().getId()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.length()").value(1))
+                .andExpect(header().string(HttpHeaders.ETAG, single));
+    }
+
+    @Test
+    public void unknownParametersAreNotFound() throws Exception {
+        mockMvc.perform(get("/api/v1/parameters/latest/id/{id}", -1)).andExpect(status().isNotFound());
+        mockMvc.perform(get("/api/v1/parameters/latest/identifier/{identifier}", "Unknown." + UUID.randomUUID()))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/api/v1/parameters/latest")
+                        .param("id", String.valueOf(parameter.getId()))
+                        .param("identifier", "Unknown." + UUID.randomUUID()))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/api/v1/parameters/latest/machine/{machineId}", -1))
+                .andExpect(status().isNotFound());
+        mockMvc.perform(get("/api/v1/parameters/latest")).andExpect(status().isBadRequest());
+    }
+}
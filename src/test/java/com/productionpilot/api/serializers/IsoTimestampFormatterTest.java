@@ -0,0 +1,79 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.util.Util;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.List;
+import java.util.Random;
+import org.junit.Test;
+
+public class IsoTimestampFormatterTest {
+    private static final List<ZoneId> ZONES = List.of(
+            ZoneId.of("UTC"),
+            ZoneId.of("Europe/Berlin"),
+            ZoneId.of("America/St_Johns"),
+            ZoneId.of("Asia/Kathmandu"),
+            ZoneId.of("Australia/Lord_Howe"),
+            ZoneId.of("+05:30"));
+
+    @Test
+    public void matchesDateTimeFormatterForRandomTimes() {
+        var random = new Random(42);
+        long min = Util.toEpochMicros(Instant.parse("1850-01-01T00:00:00Z"));
+        long max = Util.toEpochMicros(Instant.parse("2200-01-01T00:00:00Z"));
+        for (var zone : ZONES) {
+            var formatter = new IsoTimestampFormatter(zone);
+            for (int i = 0; i < 50_000; i++) {
+                long micros = min + (long) (random.nextDouble() * (max - min));
+                if (i % 3 == 0) {
+                    micros -= micros % 1_000_000;
+                } else if (i % 3 == 1) {
+                    micros -= micros % 1000;
+                }
+                assertFormat(zone, formatter, micros);
+            }
+        }
+    }
+
+    @Test
+    public void matchesDateTimeFormatterAcrossOffsetTransitions() {
+        long start = Util.toEpochMicros(Instant.parse("2023-03-25T00:00:00Z"));
+        for (var zone : ZONES) {
+            var formatter = new IsoTimestampFormatter(zone);
+            // Ascending in steps of 73 seconds, each followed by an earlier time, like the source time of a measurement
+            for (long micros = start; micros < start + 86_400_000_000L * 220; micros += 73_000_001) {
+                assertFormat(zone, formatter, micros);
+                assertFormat(zone, formatter, micros - 65_000_000);
+            }
+        }
+    }
+
+    @Test
+    public void matchesDateTimeFormatterForExtremeYears() {
+        var zone = ZoneId.of("Europe/Berlin");
+        var formatter = new IsoTimestampFormatter(zone);
+        for (var instant : List.of(
+                "0000-01-01T00:00:00Z",
+                "-0001-12-31T23:59:59.5Z",
+                "9999-12-31T22:59:59.999999Z",
+                "9999-12-31T23:00:00Z",
+                "+12345-06-01T12:00:00.000001Z",
+                "1970-01-01T00:00:00Z")) {
+            assertFormat(zone, formatter, Util.toEpochMicros(Instant.parse(instant)));
+        }
+    }
+
+    private static void assertFormat(ZoneId zone, IsoTimestampFormatter formatter, long micros) {
+        var buffer = new char[IsoTimestampFormatter.MAX_LENGTH + 2];
+        int end = formatter.format(micros, buffer, 1);
+        var expected = DateTimeFormatter.ISO_OFFSET_DATE_TIME.withZone(zone).format(Util.fromEpochMicros(micros));
+        assertEquals(zone + " " + micros, expected, new String(buffer, 1, end - 1));
+    }
+}
@@ -0,0 +1,63 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import static org.junit.Assert.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.productionpilot.db.store.MeasurementRow;
+import com.productionpilot.util.Util;
+import java.io.ByteArrayOutputStream;
+import java.time.Instant;
+import org.junit.Test;
+
+public class MeasurementCborWriterTest {
+    private static final long TIME = Util.toEpochMicros(Instant.parse("2023-06-01T12:34:56.789012Z"));
+
+    @Test
+    public void writesTypedValuesAndEpochMicros() throws Exception {
+        var factory = new CBORFactory();
+        var out = new ByteArrayOutputStream();
+        try (var generator = factory.createGenerator(out)) {
+            var writer = new MeasurementCborWriter(generator);
+            var row = new MeasurementRow();
+            generator.writeStartArray();
+            row.set(1, 7, TIME - 5, TIME - 2, TIME, 0x80000000L);
+            row.setValueDouble(-1.5);
+            writer.write(row);
+            row.set(2, 7, TIME, TIME, TIME + 1, 0);
+            row.setValueLong(Long.MIN_VALUE);
+            writer.write(row);
+            row.set(3, 7, TIME, TIME, TIME + 2, 0);
+            row.setValueBoolean(true);
+            writer.write(row);
+            row.set(4, 7, TIME, TIME, TIME + 3, 0);
+            row.setValueString("ümlaut ✓");
+            writer.write(row);
+            row.set(5, 7, TIME, TIME, TIME + 4, 0);
+            row.setValueNone();
+            writer.write(row);
+            generator.writeEndArray();
+        }
+
+        var rows = new ObjectMapper(factory).readTree(out.toByteArray());
+        assertEquals(5, rows.size());
+        var first = rows.get(0);
+        assertEquals(MeasurementCborWriter.FIELDS, first.size());
+        assertEquals(1, first.get(0).asLong());
+        assertEquals(0x80000000L, first.get(1).asLong());
+        assertEquals(TIME, first.get(2).asLong());
+        assertEquals(TIME - 2, first.get(3).asLong());
+        assertEquals(TIME - 5, first.get(4).asLong());
+        assertTrue(first.get(5).isDouble());
+        assertEquals(-1.5, first.get(5).asDouble(), 0);
+        assertTrue(rows.get(1).get(5).canConvertToLong());
+        assertEquals(Long.MIN_VALUE, rows.get(1).get(5).asLong());
+        assertTrue(rows.get(2).get(5).asBoolean());
+        assertEquals("ümlaut ✓", rows.get(3).get(5).asText());
+        assertTrue(rows.get(4).get(5).isNull());
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.db.store.MeasurementRow;
+import com.productionpilot.util.Util;
+import java.io.StringWriter;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.commons.csv.CSVFormat;
+import org.apache.commons.csv.CSVPrinter;
+import org.junit.Test;
+
+public class MeasurementCsvWriterTest {
+    private static final long TIME = Util.toEpochMicros(Instant.parse("2023-06-01T12:34:56.789012Z"));
+
+    @Test
+    public void matchesCsvPrinter() throws Exception {
+        var rows = new ArrayList<MeasurementRow>();
+        for (double value : new double[] {0, -1.5, 1e-10, 12345678912345.0, Double.NaN, Double.NEGATIVE_INFINITY}) {
+            var row = row(rows.size());
+            row.setValueDouble(value);
+            rows.add(row);
+        }
+        for (long value : new long[] {0, 7, -42, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            var row = row(rows.size());
+            row.setValueLong(value);
+            rows.add(row);
+        }
+        for (boolean value : new boolean[] {true, false}) {
+            var row = row(rows.size());
+            row.setValueBoolean(value);
+            rows.add(row);
+        }
+        for (var value : List.of(
+                "", "plain", " leading", "trailing ", "#hash", "!bang", "a,b", "say \"hi\"", "\"", "line\nbreak",
+                "cr\r", "tab\tinside", "ümlaut ✓", "-dash", "a\"\"b\"")) {
+            var row = row(rows.size());
+            row.setValueString(value);
+            rows.add(row);
+        }
+        var noValue = row(rows.size());
+        noValue.setValueNone();
+        rows.add(noValue);
+
+        var expected = new StringWriter();
+        var printer = new CSVPrinter(expected, CSVFormat.EXCEL);
+        var actual = new StringWriter();
+        var writer = new MeasurementCsvWriter(actual);
+        for (var row : rows) {
+            printer.printRecord(
+                    row.getId(),
+                    value(row),
+                    row.getOpcStatusCode(),
+                    ApiFormatters.API_DATETIME_FORMATTER.format(Util.fromEpochMicros(row.getSourceTimeMicros())),
+                    ApiFormatters.API_DATETIME_FORMATTER.format(Util.fromEpochMicros(row.getServerTimeMicros())),
+                    ApiFormatters.API_DATETIME_FORMATTER.format(Util.fromEpochMicros(row.getClientTimeMicros())));
+            writer.write(row);
+        }
+        printer.flush();
+        assertEquals(expected.toString(), actual.toString());
+    }
+
+    @Test
+    public void writesLongsLikeLongToString() {
+        var buffer = new char[21];
+        for (long value : new long[] {0, 9, 10, -1, 99, 100, 1234567890123L, Long.MAX_VALUE, Long.MIN_VALUE}) {
+            int end = MeasurementCsvWriter.writeLong(value, buffer, 1);
+            assertEquals(Long.toString(value), new String(buffer, 1, end - 1));
+        }
+    }
+
+    private static MeasurementRow row(long id) {
+        var row = new MeasurementRow();
+        row.set(id + 1, 3, TIME - 3000 - id, TIME - id * 1_000_000, TIME + id * 1001, id * 1_000_003);
+        return row;
+    }
+
+    private static Object value(MeasurementRow row) {
+        return switch (row.getValueType()) {
+            case DOUBLE -> row.getValueDouble();
+            case LONG -> row.getValueLong();
+            case BOOLEAN -> row.isValueBoolean();
+            case STRING -> row.getValueString();
+            case NONE -> null;
+        };
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.productionpilot.db.store.MeasurementRow;
+import com.productionpilot.util.Util;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the JSON and CBOR encodings of the measurement API in rows per second, from reused {@link MeasurementRow}s
+ * as they are read from the JDBC cursor. The main method first prints the size of both encodings in bytes per row.
+ * Run it from the IDE, or after {@code mvn test-compile}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MeasurementEncodingBenchmark {
+    private static final int BATCH_SIZE = 1000;
+
+    private final JsonFactory jsonFactory = new JsonFactory();
+    private final CBORFactory cborFactory = new CBORFactory();
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024 * 1024);
+    private List<MeasurementRow> rows;
+
+    @Setup
+    public void setup() {
+        rows = new ArrayList<>(BATCH_SIZE);
+        long start = Util.toEpochMicros(Instant.parse("2023-01-01T00:00:00Z"));
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            var row = new MeasurementRow();
+            long time = start + i * 100_000L;
+            row.set(1_000_000L + i, 42, time - 5_000, time - 2_000, time, 0);
+            if (i % 10 == 0) {
+                row.setValueLong(i);
+            } else {
+                row.setValueDouble(20 + Math.sin(i / 10.0));
+            }
+            rows.add(row);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int json() throws IOException {
+        out.reset();
+        try (var generator = jsonFactory.createGenerator(out, JsonEncoding.UTF8)) {
+            var writer = new MeasurementJsonWriter(generator);
+            generator.writeStartArray();
+            for (var row : rows) {
+                writer.write(row);
+            }
+            generator.writeEndArray();
+        }
+        return out.size();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public int cbor() throws IOException {
+        out.reset();
+        try (var generator = cborFactory.createGenerator(out)) {
+            var writer = new MeasurementCborWriter(generator);
+            generator.writeStartArray();
+            for (var row : rows) {
+                writer.write(row);
+            }
+            generator.writeEndArray();
+        }
+        return out.size();
+    }
+
+    public static void main(String[] args) throws RunnerException, IOException {
+        var benchmark = new MeasurementEncodingBenchmark();
+        benchmark.setup();
+        System.out.printf("JSON: %.1f bytes per row%n", (double) benchmark.json() / BATCH_SIZE);
+        System.out.printf("CBOR: %.1f bytes per row%n", (double) benchmark.cbor() / BATCH_SIZE);
+        new Runner(new OptionsBuilder()
+                        .include(MeasurementEncodingBenchmark.class.getSimpleName())
+                        .build())
+                .run();
+    }
+}
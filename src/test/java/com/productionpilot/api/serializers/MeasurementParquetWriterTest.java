@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.db.store.MeasurementRow;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import org.apache.parquet.example.data.Group;
+import org.apache.parquet.example.data.simple.convert.GroupRecordConverter;
+import org.apache.parquet.hadoop.ParquetFileReader;
+import org.apache.parquet.io.ColumnIOFactory;
+import org.apache.parquet.io.LocalInputFile;
+import org.junit.Test;
+
+public class MeasurementParquetWriterTest {
+    @Test
+    public void writesRowsAndMetadata() throws Exception {
+        var file = Files.createTempFile("measurements", ".parquet");
+        try {
+            try (OutputStream out = Files.newOutputStream(file);
+                    var writer = new MeasurementParquetWriter(out, Map.of("productionpilot.test", "value"), 1024)) {
+                var row = new MeasurementRow();
+                writer.setRange(7, 8);
+                row.set(1, 2, 1_000_001, 1_000_002, 1_000_003, 0);
+                row.setValueDouble(1.5);
+                writer.write(row);
+                row.set(2, 2, 2_000_001, 2_000_002, 2_000_003, 0x80000000L);
+                row.setValueString("text");
+                writer.write(row);
+                writer.setRange(9, 10);
+                for (int i = 0; i < 1000; i++) {
+                    row.set(3 + i, 3, i, i, i, 0);
+                    row.setValueLong(i);
+                    writer.write(row);
+                }
+                row.set(1003, 4, 0, 0, 0, 0);
+                row.setValueBoolean(true);
+                writer.write(row);
+            }
+
+            var groups = new ArrayList<Group>();
+            try (var reader = ParquetFileReader.open(new LocalInputFile(file))) {
+                var fileMetadata = reader.getFooter().getFileMetaData();
+                assertEquals(MeasurementParquetWriter.SCHEMA, fileMetadata.getSchema());
+                assertEquals("value", fileMetadata.getKeyValueMetaData().get("productionpilot.test"));
+                // The small row group size splits the rows
+                assertTrue(reader.getRowGroups().size() > 1);
+                var columnIO = new ColumnIOFactory().getColumnIO(MeasurementParquetWriter.SCHEMA);
+                for (var pages = reader.readNextRowGroup(); pages != null; pages = reader.readNextRowGroup()) {
+                    var recordReader =
+                            columnIO.getRecordReader(pages, new GroupRecordConverter(MeasurementParquetWriter.SCHEMA));
+                    for (long i = 0; i < pages.getRowCount(); i++) {
+                        groups.add(recordReader.read());
+                    }
+                }
+            }
+            assertEquals(1003, groups.size());
+
+            var first = groups.get(0);
+            assertEquals(7, first.getLong("batch_id", 0));
+            assertEquals(8, first.getLong("batch_machine_id", 0));
+            assertEquals(2, first.getLong("parameter_id", 0));
+            assertEquals(1, first.getLong("id", 0));
+            assertEquals(1_000_001, first.getLong("source_time", 0));
+            assertEquals(1_000_002, first.getLong("server_time", 0));
+            assertEquals(1_000_003, first.getLong("client_time", 0));
+            assertEquals(1.5, first.getDouble("value_double", 0), 0);
+            assertValueFields(first, "value_double");
+
+            var second = groups.get(1);
+            assertEquals(0x80000000L, second.getLong("opc_status_code", 0));
+            assertEquals("text", second.getString("value_string", 0));
+            assertValueFields(second, "value_string");
+
+            var longRow = groups.get(500);
+            assertEquals(9, longRow.getLong("batch_id", 0));
+            assertEquals(10, longRow.getLong("batch_machine_id", 0));
+            assertEquals(498, longRow.getLong("value_long", 0));
+            assertValueFields(longRow, "value_long");
+
+            var last = groups.get(1002);
+            assertTrue(last.getBoolean("value_boolean", 0));
+            assertValueFields(last, "value_boolean");
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    private static void assertValueFields(Group group, String expectedField) {
+        for (var field : List.of("value_double", "value_long", "value_boolean", "value_string")) {
+            assertEquals(field, field.equals(expectedField) ? 1 : 0, group.getFieldRepetitionCount(field));
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.api.serializers;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.db.store.MeasurementRow;
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.io.StringWriter;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.stream.LongStream;
+import org.junit.Test;
+
+public class WideCsvWriterTest {
+    private static final Instant START = Instant.parse("2023-01-01T00:00:00Z");
+
+    @Test
+    public void exactAlignmentMergesByClientTime() throws Exception {
+        var a = List.of(doubleAt(0, 1.5), doubleAt(2, 2.5), doubleAt(2, 3.5), doubleAt(5, 4.5));
+        var b = List.of(stringAt(1, "x,y"), stringAt(2, "z"));
+        assertEquals(
+                row(0, "1.5", "", "")
+                        + row(1, "", "\"x,y\"", "")
+                        + row(2, "2.5", "z", "")
+                        + row(2, "3.5", "", "")
+                        + row(5, "4.5", "", ""),
+                write(WideCsvWriter.Alignment.EXACT, 1, 5, a, b, List.of()));
+    }
+
+    @Test
+    public void locfCarriesLastValueForward() throws Exception {
+        var a = List.of(doubleAt(1, 1.0), doubleAt(2, 2.0), doubleAt(3, 3.0), doubleAt(7, 7.0));
+        var b = List.of(booleanAt(4, true));
+        assertEquals(
+                row(0, "", "") + row(2, "2.0", "") + row(4, "3.0", "true") + row(6, "3.0", "true")
+                        + row(8, "7.0", "true"),
+                write(WideCsvWriter.Alignment.LOCF, 2, 9, a, b));
+    }
+
+    @Test
+    public void linearInterpolatesNumericValues() throws Exception {
+        var a = List.of(doubleAt(2, 10.0), longAt(6, 30), doubleAt(8, -1.0));
+        var b = List.of(stringAt(1, "on"), stringAt(5, "off"));
+        assertEquals(
+                row(0, "", "") + row(2, "10.0", "on") + row(4, "20.0", "on") + row(6, "30", "off")
+                        + row(8, "-1.0", "off") + row(10, "", "off"),
+                write(WideCsvWriter.Alignment.LINEAR, 2, 10, a, b));
+    }
+
+    @Test
+    public void mergedMeasurementsGiveTheSameRows() throws Exception {
+        var a = List.of(doubleAt(0, 1.5), doubleAt(2, 2.5), doubleAt(2, 3.5), longAt(5, 4), doubleAt(9, 5.5));
+        var b = List.of(stringAt(1, "x,y"), stringAt(2, "z"), booleanAt(6, false));
+        for (var alignment : List.of(WideCsvWriter.Alignment.EXACT, WideCsvWriter.Alignment.LOCF)) {
+            assertEquals(write(alignment, 2, 7, a, b, List.of()), writeMerged(alignment, 2, 7, a, b, List.of()));
+        }
+    }
+
+    /**
+     * Passes the columns to {@link WideCsvWriter#merged}, as parameters 1, 2, ..., merged by client time.
+     */
+    @SafeVarargs
+    private static String writeMerged(
+            WideCsvWriter.Alignment alignment, int intervalSeconds, int endSecond, List<Measurement>... columns)
+            throws Exception {
+        var merged = new ArrayList<Measurement>();
+        for (int column = 0; column < columns.length; column++) {
+            for (var measurement : columns[column]) {
+                measurement.setId((long) merged.size());
+                measurement.setParameterId(column + 1L);
+                measurement.setSourceTime(measurement.getClientTime());
+                measurement.setServerTime(measurement.getClientTime());
+                merged.add(measurement);
+            }
+        }
+        merged.sort(Comparator.comparing(Measurement::getClientTime).thenComparing(Measurement::getParameterId));
+        var out = new StringWriter();
+        var writer = new WideCsvWriter(out, alignment, Duration.ofSeconds(intervalSeconds))
+                .merged(
+                        LongStream.rangeClosed(1, columns.length).boxed().toList(),
+                        START,
+                        START.plusSeconds(endSecond));
+        var row = new MeasurementRow();
+        for (var measurement : merged) {
+            writer.accept(row.set(measurement));
+        }
+        writer.finish();
+        return out.toString();
+    }
+
+    @SafeVarargs
+    private static String write(
+            WideCsvWriter.Alignment alignment, int intervalSeconds, int endSecond, List<Measurement>... columns)
+            throws Exception {
+        var out = new StringWriter();
+        var iterators = List.of(columns).stream().map(List::iterator).toList();
+        new WideCsvWriter(out, alignment, Duration.ofSeconds(intervalSeconds))
+                .write(List.<Iterator<Measurement>>copyOf(iterators), START, START.plusSeconds(endSecond));
+        return out.toString();
+    }
+
+    private static String row(int second, String... cells) {
+        return ApiFormatters.API_DATETIME_FORMATTER.format(START.plusSeconds(second)) + "," + String.join(",", cells)
+                + "\r\n";
+    }
+
+    private static Measurement at(int second) {
+        var measurement = new Measurement();
+        measurement.setClientTime(START.plusSeconds(second));
+        return measurement;
+    }
+
+    private static Measurement doubleAt(int second, double value) {
+        var measurement = at(second);
+        measurement.setValueDouble(value);
+        return measurement;
+    }
+
+    private static Measurement longAt(int second, long value) {
+        var measurement = at(second);
+        measurement.setValueLong(value);
+        return measurement;
+    }
+
+    private static Measurement booleanAt(int second, boolean value) {
+        var measurement = at(second);
+        measurement.setValueBoolean(value);
+        return measurement;
+    }
+
+    private static Measurement stringAt(int second, String value) {
+        var measurement = at(second);
+        measurement.setValueString(value);
+        return measurement;
+    }
+}
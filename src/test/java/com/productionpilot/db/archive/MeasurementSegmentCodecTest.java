@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.archive;
+
+import static org.junit.Assert.assertEquals;
+
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Random;
+import org.junit.Test;
+
+public class MeasurementSegmentCodecTest {
+    @Test
+    public void roundTrip() {
+        var random = new Random(42);
+        var measurements = new ArrayList<Measurement>();
+        var time = Instant.parse("2023-01-01T00:00:00.123456Z");
+        long id = 1000;
+        for (int i = 0; i < 10_000; i++) {
+            var measurement = new Measurement();
+            measurement.setId(id += 1 + random.nextInt(3));
+            measurement.setParameterId(7);
+            time = time.plusNanos(1_000_000_000L + random.nextInt(3000) * 1000L);
+            measurement.setClientTime(time);
+            measurement.setSourceTime(time.minusMillis(5));
+            measurement.setServerTime(time.minusMillis(2));
+            measurement.setOpcStatusCode(random.nextInt(50) == 0 ? 0x80000000L : 0L);
+            switch (random.nextInt(4)) {
+                case 0 -> measurement.setValueDouble(random.nextGaussian());
+                case 1 -> measurement.setValueLong(random.nextLong() % 1000);
+                case 2 -> measurement.setValueBoolean(random.nextBoolean());
+                default -> measurement.setValueString("value " + random.nextInt(100) + " ä");
+            }
+            measurements.add(measurement);
+        }
+
+        var decoded = MeasurementSegmentCodec.decode(MeasurementSegmentCodec.encode(7, measurements));
+
+        assertEquals(measurements.size(), decoded.size());
+        for (int i = 0; i < measurements.size(); i++) {
+            var expected = measurements.get(i);
+            var actual = decoded.get(i);
+            assertEquals(expected.getId(), actual.getId());
+            assertEquals(expected.getParameterId(), actual.getParameterId());
+            assertEquals(expected.getClientTime(), actual.getClientTime());
+            assertEquals(expected.getSourceTime(), actual.getSourceTime());
+            assertEquals(expected.getServerTime(), actual.getServerTime());
+            assertEquals(expected.getOpcStatusCode(), actual.getOpcStatusCode());
+            assertEquals(expected.getValue(), actual.getValue());
+        }
+    }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.influx;
+
+import com.influxdb.client.internal.MeasurementMapper;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares the line protocol encoder with the previous conversion through the annotated {@link InfluxMeasurement} POJO,
+ * in measurements per second. Run the main method from the IDE, or after {@code mvn test-compile}; the GC profiler
+ * reports the allocation rate (gc.alloc.rate.norm is the number of bytes allocated per batch).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class InfluxLineProtocolBenchmark {
+    private static final int BATCH_SIZE = 1000;
+    private static final int PARAMETERS = 50;
+
+    private final MeasurementMapper mapper = new MeasurementMapper();
+    private final InfluxLineProtocolEncoder encoder =
+            new InfluxLineProtocolEncoder(parameterId -> parameterId % 2 == 0 ? "Machine1.Param" + parameterId : null);
+
+    private List<com.productionpilot.db.timescale.entities.Measurement> batch;
+
+    @Setup
+    public void setup() {
+        batch = new ArrayList<>(BATCH_SIZE);
+        var start = Instant.parse("2023-01-01T00:00:00Z");
+        for (int i = 0; i < BATCH_SIZE; i++) {
+            var measurement = new com.productionpilot.db.timescale.entities.Measurement();
+            measurement.setId(1_000_000L + i);
+            measurement.setParameterId(i % PARAMETERS);
+            measurement.setOpcStatusCode(0L);
+            var time = start.plusMillis(i * 100L);
+            measurement.setClientTime(time);
+            measurement.setServerTime(time.minusMillis(2));
+            measurement.setSourceTime(time.minusMillis(5));
+            measurement.setValueDouble(20 + Math.sin(i / 10.0));
+            batch.add(measurement);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void pojo(Blackhole blackhole) {
+        for (var measurement : batch) {
+            blackhole.consume(mapper.toPoint(toPojo(measurement), InfluxMeasurement.WRITE_PRECISION)
+                    .toLineProtocol());
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH_SIZE)
+    public void encoder(Blackhole blackhole) {
+        blackhole.consume(encoder.encodeAll(batch));
+    }
+
+    /**
+     * The previous, reflection-based conversion that InfluxMeasurementService used before the line protocol encoder.
+     */
+    static InfluxMeasurement toPojo(com.productionpilot.db.timescale.entities.Measurement measurement) {
+        var pojo = new InfluxMeasurement();
+        pojo.measurement_id = measurement.getId();
+        pojo.parameter_id = Long.toString(measurement.getParameterId());
+        pojo.parameter_identifier =
+                measurement.getParameterId() % 2 == 0 ? "Machine1.Param" + measurement.getParameterId() : null;
+        pojo.time = measurement.getClientTime();
+        pojo.source_time = measurement.getSourceTime().toEpochMilli();
+        pojo.server_time = measurement.getServerTime().toEpochMilli();
+        pojo.client_time = measurement.getClientTime().toEpochMilli();
+        pojo.opc_status_code = Long.toString(measurement.getOpcStatusCode());
+        pojo.value = measurement.getValue();
+        return pojo;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                        .include(InfluxLineProtocolBenchmark.class.getSimpleName())
+                        .addProfiler(GCProfiler.class)
+                        .build())
+                .run();
+    }
+}
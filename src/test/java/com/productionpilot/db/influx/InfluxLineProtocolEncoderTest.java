@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.influx;
+
+import static org.junit.Assert.assertEquals;
+
+import com.influxdb.client.internal.MeasurementMapper;
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.time.Instant;
+import java.util.function.Consumer;
+import org.junit.Test;
+
+public class InfluxLineProtocolEncoderTest {
+    private final InfluxLineProtocolEncoder encoder =
+            new InfluxLineProtocolEncoder(parameterId -> parameterId % 2 == 0 ? "Machine1.Param" + parameterId : null);
+
+    @Test
+    public void matchesPojoMapping() {
+        assertSameAsPojo(3, m -> m.setValueDouble(21.5));
+        assertSameAsPojo(4, m -> m.setValueDouble(-0.125));
+        assertSameAsPojo(5, m -> m.setValueLong(-42L));
+        assertSameAsPojo(6, m -> m.setValueBoolean(true));
+        assertSameAsPojo(7, m -> m.setValueString("say \"hi\" \\ bye"));
+    }
+
+    @Test
+    public void escapesTags() {
+        var spaced = new InfluxLineProtocolEncoder(parameterId -> "Line 1,Oven=2");
+        var measurement = measurement(1, m -> m.setValueLong(1L));
+        assertEquals(
+                "measurement,opc_status_code=2147483648,parameter_id=1,parameter_identifier=Line\\ 1\\,Oven\\=2"
+                        + " client_time=1672531200000i,measurement_id=17i,server_time=1672531199998i,"
+                        + "source_time=1672531199995i,value=1i 1672531200000",
+                spaced.encode(measurement));
+    }
+
+    private void assertSameAsPojo(long parameterId, Consumer<Measurement> value) {
+        var measurement = measurement(parameterId, value);
+        var expected = new MeasurementMapper()
+                .toPoint(InfluxLineProtocolBenchmark.toPojo(measurement), InfluxMeasurement.WRITE_PRECISION)
+                .toLineProtocol();
+        assertEquals(expected, encoder.encode(measurement));
+    }
+
+    private static Measurement measurement(long parameterId, Consumer<Measurement> value) {
+        var measurement = new Measurement();
+        measurement.setId(17L);
+        measurement.setParameterId(parameterId);
+        measurement.setOpcStatusCode(2147483648L);
+        var time = Instant.parse("2023-01-01T00:00:00Z");
+        measurement.setClientTime(time);
+        measurement.setServerTime(time.minusMillis(2));
+        measurement.setSourceTime(time.minusMillis(5));
+        value.accept(measurement);
+        return measurement;
+    }
+}
@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.replication;
+
+import static org.junit.Assert.*;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SpillingReplicationQueueTest {
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("replication-queue");
+    }
+
+    @After
+    public void deleteDirectory() throws Exception {
+        try (var files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void keepsOrderAcrossSpillFile() throws Exception {
+        try (var queue = new SpillingReplicationQueue(10, 1024 * 1024, directory)) {
+            for (long id = 1; id <= 25; id++) {
+                assertTrue(queue.offer(measurement(id)));
+            }
+            assertEquals(10, queue.getMemorySize());
+            assertEquals(15, queue.getSpilledCount());
+            assertTrue(queue.getSpilledBytes() > 0);
+
+            var taken = new ArrayList<CompactMeasurement>();
+            taken.addAll(queue.takeBatch(7, 0));
+            // Still spilling until the spill file is drained, even though there is space in memory again
+            assertTrue(queue.offer(measurement(26)));
+            assertEquals(3, queue.getMemorySize());
+            while (!queue.isEmpty()) {
+                taken.addAll(queue.takeBatch(7, 0));
+            }
+            assertEquals(26, taken.size());
+            for (int i = 0; i < taken.size(); i++) {
+                assertEquals(i + 1, taken.get(i).id());
+            }
+            assertEquals("value 3", taken.get(2).text());
+            assertEquals(0, queue.getSpilledBytes());
+            assertFalse(Files.exists(directory.resolve("replication-queue.spill")));
+
+            // Back to memory
+            assertTrue(queue.offer(measurement(27)));
+            assertEquals(1, queue.getMemorySize());
+        }
+    }
+
+    @Test
+    public void reportsOverflowAfterDraining() throws Exception {
+        try (var queue = new SpillingReplicationQueue(2, 1, directory)) {
+            assertTrue(queue.offer(measurement(1)));
+            assertTrue(queue.offer(measurement(2)));
+            // The first spilled measurement exceeds the spill limit, the next one is dropped
+            assertTrue(queue.offer(measurement(3)));
+            assertFalse(queue.offer(measurement(4)));
+            assertFalse(queue.offer(measurement(5)));
+
+            assertFalse(queue.takeOverflow());
+            assertEquals(List.of(1L, 2L, 3L), ids(queue.takeBatch(10, 0)));
+            assertEquals(List.of(), queue.takeBatch(10, 1000));
+            assertTrue(queue.takeOverflow());
+            assertFalse(queue.takeOverflow());
+            assertTrue(queue.offer(measurement(6)));
+            assertEquals(List.of(6L), ids(queue.takeBatch(10, 0)));
+        }
+    }
+
+    @Test
+    public void failedSpillIsReportedAsOverflow() throws Exception {
+        try (var queue = new SpillingReplicationQueue(1, 1024 * 1024, directory)) {
+            assertTrue(queue.offer(measurement(1)));
+            // The spill file cannot be created
+            Files.delete(directory);
+            assertFalse(queue.offer(measurement(2)));
+            assertFalse(queue.offer(measurement(3)));
+            Files.createDirectories(directory);
+
+            assertEquals(List.of(1L), ids(queue.takeBatch(10, 0)));
+            assertEquals(0, queue.getSpilledCount());
+            assertTrue(queue.takeOverflow());
+            assertTrue(queue.offer(measurement(4)));
+            assertEquals(List.of(4L), ids(queue.takeBatch(10, 0)));
+        }
+    }
+
+    private static List<Long> ids(List<CompactMeasurement> measurements) {
+        return measurements.stream().map(CompactMeasurement::id).toList();
+    }
+
+    private static CompactMeasurement measurement(long id) {
+        if (id % 3 == 0) {
+            return new CompactMeasurement(
+                    id, 1, id * 1000, id * 1000, id * 1000, 0, CompactMeasurement.TYPE_STRING, 0, "value " + id);
+        }
+        return new CompactMeasurement(
+                id,
+                1,
+                id * 1000,
+                id * 1000,
+                id * 1000,
+                0,
+                CompactMeasurement.TYPE_DOUBLE,
+                Double.doubleToRawLongBits(id),
+                null);
+    }
+}
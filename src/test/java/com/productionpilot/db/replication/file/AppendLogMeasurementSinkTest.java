@@ -0,0 +1,82 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.replication.file;
+
+import static org.junit.Assert.*;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.productionpilot.db.replication.CompactMeasurement;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class AppendLogMeasurementSinkTest {
+    private Path directory;
+
+    @Before
+    public void createDirectory() throws Exception {
+        directory = Files.createTempDirectory("append-log");
+    }
+
+    @After
+    public void deleteDirectory() throws Exception {
+        try (var files = Files.walk(directory)) {
+            files.sorted((a, b) -> b.compareTo(a)).forEach(path -> path.toFile().delete());
+        }
+    }
+
+    @Test
+    public void appendsOneJsonObjectPerLine() throws Exception {
+        var sink = new AppendLogMeasurementSink(directory.toString());
+        long doubleBits = Double.doubleToRawLongBits(1.5);
+        assertEquals(
+                2,
+                sink.write(List.of(
+                        new CompactMeasurement(1, 7, 0, 0, 0, 0, CompactMeasurement.TYPE_DOUBLE, doubleBits, null),
+                        new CompactMeasurement(
+                                2, 7, 1_000_001, 0, 0, 0, CompactMeasurement.TYPE_STRING, 0, "a\n\"b\""))));
+        sink.close();
+
+        var lines = Files.readAllLines(logFile());
+        assertEquals(2, lines.size());
+        var mapper = new ObjectMapper();
+        var first = mapper.readTree(lines.get(0));
+        assertEquals(1, first.get("id").asLong());
+        assertEquals(7, first.get("parameter_id").asLong());
+        assertEquals(1.5, first.get("value").asDouble(), 0);
+        var second = mapper.readTree(lines.get(1));
+        assertEquals("1970-01-01T00:00:01.000001Z", second.get("client_time").asText());
+        assertEquals("a\n\"b\"", second.get("value").asText());
+    }
+
+    @Test
+    public void truncatesIncompleteLineOnReopen() throws Exception {
+        var sink = new AppendLogMeasurementSink(directory.toString());
+        sink.write(List.of(new CompactMeasurement(1, 7, 0, 0, 0, 0, CompactMeasurement.TYPE_LONG, 42, null)));
+        sink.close();
+        Files.writeString(logFile(), "{\"id\":2,\"param", StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+
+        sink = new AppendLogMeasurementSink(directory.toString());
+        sink.write(List.of(new CompactMeasurement(2, 7, 0, 0, 0, 0, CompactMeasurement.TYPE_BOOLEAN, 1, null)));
+        sink.close();
+
+        var lines = Files.readAllLines(logFile());
+        assertEquals(2, lines.size());
+        var mapper = new ObjectMapper();
+        assertEquals(42, mapper.readTree(lines.get(0)).get("value").asLong());
+        assertTrue(mapper.readTree(lines.get(1)).get("value").asBoolean());
+    }
+
+    private Path logFile() {
+        return directory.resolve("measurements-" + LocalDate.now(ZoneOffset.UTC) + ".ndjson");
+    }
+}
@@ -0,0 +1,70 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.db.store.log.LogMeasurementStore;
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class LogMeasurementStoreTest extends MeasurementStoreContractTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private LogMeasurementStore store;
+    private long nextParameterId = 1;
+
+    @Before
+    public void open() throws IOException {
+        store = new LogMeasurementStore(folder.getRoot().getPath(), 1, 0);
+    }
+
+    @After
+    public void close() {
+        store.close();
+    }
+
+    @Override
+    protected MeasurementStore store() {
+        return store;
+    }
+
+    @Override
+    protected long[] freshParameterIds() {
+        return new long[] {nextParameterId++, nextParameterId++};
+    }
+
+    @Test
+    public void recoversAfterReopenAcrossSegments() throws IOException {
+        var start = Instant.parse("2023-01-01T00:00:00Z");
+        // ~60 bytes per record, so this spills over several 1 MB segments
+        var batch = new ArrayList<Measurement>();
+        for (int i = 0; i < 50_000; i++) {
+            batch.add(measurement(7, start.plusMillis(i * 100L), (double) i));
+        }
+        store.appendBatch(batch);
+        long lastId = batch.get(batch.size() - 1).getId();
+        store.close();
+
+        store = new LogMeasurementStore(folder.getRoot().getPath(), 1, 0);
+        assertEquals(50_000, store.countByParameter(7));
+        assertEquals(lastId, (long) store.getLastMeasurement(7).orElseThrow().getId());
+        try (var stream = store.streamByParameterAndTimeRange(7, start.plusSeconds(1000), start.plusSeconds(1001))) {
+            assertEquals(11, stream.count());
+        }
+        var next = measurement(8, start, 1.0);
+        store.appendBatch(List.of(next));
+        assertEquals(lastId + 1, (long) next.getId());
+    }
+}
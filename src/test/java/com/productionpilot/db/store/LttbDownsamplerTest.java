@@ -0,0 +1,97 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+import static org.junit.Assert.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TreeMap;
+import org.junit.Test;
+
+public class LttbDownsamplerTest {
+    private static final long START_MICROS = 1_000_000;
+    private static final long BUCKET_SIZE_MICROS = 100;
+
+    @Test
+    public void keepsEndpointsAndPeaks() {
+        var values = new double[1000];
+        values[250] = 100;
+        values[640] = -50;
+        values[999] = 7;
+        var points = downsample(values);
+
+        assertEquals(10, points.size());
+        assertEquals(new LttbDownsampler.Point(START_MICROS, 0), points.get(0));
+        assertEquals(new LttbDownsampler.Point(START_MICROS + 999, 7), points.get(9));
+        assertTrue(points.contains(new LttbDownsampler.Point(START_MICROS + 250, 100)));
+        assertTrue(points.contains(new LttbDownsampler.Point(START_MICROS + 640, -50)));
+        for (int i = 1; i < points.size(); i++) {
+            assertTrue(points.get(i).timeMicros() > points.get(i - 1).timeMicros());
+        }
+    }
+
+    @Test
+    public void singleBucketKeepsFirstAndLast() {
+        var points = downsample(new double[] {1, 5, 2});
+        assertEquals(
+                List.of(new LttbDownsampler.Point(START_MICROS, 1), new LttbDownsampler.Point(START_MICROS + 2, 2)),
+                points);
+    }
+
+    @Test
+    public void mergedBucketsEqualAccumulatingAll() {
+        var all = new MeasurementBucket.Accumulator(0);
+        var archived = new MeasurementBucket.Accumulator(0);
+        var live = new MeasurementBucket.Accumulator(0);
+        var row = new MeasurementRow();
+        long[] times = {5, 3, 9, 3, 1, 9, 4};
+        for (int i = 0; i < times.length; i++) {
+            row.set(i + 1, 1, times[i], times[i], times[i], 0);
+            row.setValueLong(i);
+            all.accept(row);
+            (i < 3 ? archived : live).accept(row);
+        }
+        var merged = archived.toBucket().merge(live.toBucket());
+        var expected = all.toBucket();
+        assertEquals(expected.count(), merged.count());
+        assertEquals(expected.mean(), merged.mean(), 1e-12);
+        assertEquals(expected.first(), merged.first());
+        assertEquals(expected.last(), merged.last());
+        // Ties go to the lower id for the first and the higher id for the last value
+        assertEquals(Double.valueOf(4), merged.first());
+        assertEquals(Double.valueOf(5), merged.last());
+        assertEquals(expected.min(), merged.min());
+        assertEquals(expected.max(), merged.max());
+        assertEquals(expected.firstTimeMicros(), merged.firstTimeMicros());
+        assertEquals(expected.lastTimeMicros(), merged.lastTimeMicros());
+    }
+
+    private static List<LttbDownsampler.Point> downsample(double[] values) {
+        var row = new MeasurementRow();
+        var accumulators = new TreeMap<Long, MeasurementBucket.Accumulator>();
+        for (int i = 0; i < values.length; i++) {
+            setRow(row, i, values[i]);
+            accumulators
+                    .computeIfAbsent(
+                            MeasurementBucket.indexOf(row.getClientTimeMicros(), START_MICROS, BUCKET_SIZE_MICROS),
+                            MeasurementBucket.Accumulator::new)
+                    .accept(row);
+        }
+        var buckets = new ArrayList<MeasurementBucket>();
+        accumulators.values().forEach(accumulator -> buckets.add(accumulator.toBucket()));
+        var downsampler = new LttbDownsampler(buckets, START_MICROS, BUCKET_SIZE_MICROS);
+        for (int i = 0; i < values.length; i++) {
+            setRow(row, i, values[i]);
+            downsampler.accept(row);
+        }
+        return downsampler.getPoints();
+    }
+
+    private static void setRow(MeasurementRow row, int i, double value) {
+        row.set(i + 1, 1, START_MICROS + i, START_MICROS + i, START_MICROS + i, 0);
+        row.setValueDouble(value);
+    }
+}
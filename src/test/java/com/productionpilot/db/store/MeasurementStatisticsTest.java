@@ -0,0 +1,55 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+import static org.junit.Assert.*;
+
+import java.util.Random;
+import org.junit.Test;
+
+public class MeasurementStatisticsTest {
+    @Test
+    public void mergingPartsEqualsAccumulatingAll() {
+        var random = new Random(42);
+        var all = new MeasurementStatistics.Accumulator();
+        var first = new MeasurementStatistics.Accumulator();
+        var second = new MeasurementStatistics.Accumulator();
+        var row = new MeasurementRow();
+        for (int i = 0; i < 1000; i++) {
+            if (i % 10 == 0) {
+                row.setValueString("not numeric");
+            } else if (i % 3 == 0) {
+                row.setValueLong(random.nextInt(1000));
+            } else {
+                row.setValueDouble(1e6 + random.nextGaussian());
+            }
+            all.accept(row);
+            (i < 300 ? first : second).accept(row);
+        }
+        var expected = all.toStatistics();
+        var merged = first.toStatistics().merge(second.toStatistics());
+        assertEquals(expected.count(), merged.count());
+        assertEquals(expected.numericCount(), merged.numericCount());
+        assertEquals(expected.min(), merged.min());
+        assertEquals(expected.max(), merged.max());
+        assertEquals(expected.mean(), merged.mean(), 1e-6);
+        assertEquals(expected.standardDeviation(), merged.standardDeviation(), 1e-6);
+    }
+
+    @Test
+    public void emptyAndSingleValues() {
+        var accumulator = new MeasurementStatistics.Accumulator();
+        assertEquals(MeasurementStatistics.EMPTY, accumulator.toStatistics());
+        var row = new MeasurementRow();
+        row.setValueDouble(2.5);
+        accumulator.accept(row);
+        var single = accumulator.toStatistics();
+        assertEquals(new MeasurementStatistics(1, 1, 2.5, 2.5, 2.5, null), single);
+        assertEquals(single, MeasurementStatistics.EMPTY.merge(single));
+        var pair = single.merge(new MeasurementStatistics(1, 1, 3.5, 3.5, 3.5, null));
+        assertEquals(3.0, pair.mean(), 1e-12);
+        assertEquals(Math.sqrt(0.5), pair.standardDeviation(), 1e-12);
+    }
+}
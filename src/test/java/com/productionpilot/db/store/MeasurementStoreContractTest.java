@@ -0,0 +1,316 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+import static com.productionpilot.util.Util.toEpochMicros;
+import static org.junit.Assert.*;
+
+import com.productionpilot.db.timescale.entities.Measurement;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+import org.junit.Test;
+
+/**
+ * Behaviour that every {@link MeasurementStore} implementation must provide.
+ */
+public abstract class MeasurementStoreContractTest {
+    private static final Instant START = Instant.parse("2023-01-01T00:00:00Z");
+
+    protected abstract MeasurementStore store();
+
+    /**
+     * Returns the ids of two distinct parameters that have no measurements yet.
+     */
+    protected abstract long[] freshParameterIds();
+
+    @Test
+    public void appendAssignsIncreasingIds() {
+        var parameterIds = freshParameterIds();
+        var batch = new ArrayList<Measurement>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(measurement(parameterIds[i % 2], START.plusSeconds(i), (double) i));
+        }
+        store().appendBatch(batch);
+        for (int i = 1; i < batch.size(); i++) {
+            assertNotNull(batch.get(i).getId());
+            assertTrue(batch.get(i).getId() > batch.get(i - 1).getId());
+        }
+    }
+
+    @Test
+    public void rangeIsInclusiveAndOrderedById() {
+        long parameterId = freshParameterIds()[0];
+        var batch = new ArrayList<Measurement>();
+        for (int i = 0; i < 1000; i++) {
+            batch.add(measurement(parameterId, START.plusSeconds(i), (double) i));
+        }
+        store().appendBatch(batch);
+
+        List<Measurement> range;
+        try (var stream =
+                store().streamByParameterAndTimeRange(parameterId, START.plusSeconds(100), START.plusSeconds(199))) {
+            range = stream.collect(Collectors.toList());
+        }
+        assertEquals(100, range.size());
+        assertEquals(100.0, range.get(0).getValueDouble(), 0);
+        assertEquals(199.0, range.get(99).getValueDouble(), 0);
+        for (int i = 1; i < range.size(); i++) {
+            assertTrue(range.get(i).getId() > range.get(i - 1).getId());
+        }
+        try (var stream = store().streamByParameterAndTimeRange(
+                parameterId, START.minusSeconds(10), START.minusSeconds(1))) {
+            assertEquals(0, stream.count());
+        }
+    }
+
+    @Test
+    public void rangeAfterIdOnlyReturnsNewerMeasurements() throws Exception {
+        long parameterId = freshParameterIds()[0];
+        var batch = new ArrayList<Measurement>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(measurement(parameterId, START.plusSeconds(i), (double) i));
+        }
+        store().appendBatch(batch);
+
+        long afterId = batch.get(49).getId();
+        var ids = new ArrayList<Long>();
+        store().forEachByParameterAndTimeRangeAfterId(
+                parameterId, START, START.plusSeconds(89), afterId, row -> ids.add(row.getId()));
+        assertEquals(batch.subList(50, 90).stream().map(Measurement::getId).toList(), ids);
+
+        ids.clear();
+        store().forEachByParameterAndTimeRangeAfterId(
+                parameterId, START, START.plusSeconds(99), batch.get(99).getId(), row -> ids.add(row.getId()));
+        assertTrue(ids.isEmpty());
+    }
+
+    @Test
+    public void pagesContinueAfterTheLastId() throws Exception {
+        long parameterId = freshParameterIds()[0];
+        var batch = new ArrayList<Measurement>();
+        for (int i = 0; i < 100; i++) {
+            batch.add(measurement(parameterId, START.plusSeconds(i), (double) i));
+        }
+        store().appendBatch(batch);
+
+        var ids = new ArrayList<Long>();
+        long afterId = 0;
+        int pages = 0;
+        while (true) {
+            var page = new ArrayList<Long>();
+            store().forEachByParameterAndTimeRangeAfterId(
+                    parameterId, START, START.plusSeconds(99), afterId, 30, row -> page.add(row.getId()));
+            assertTrue(page.size() <= 30);
+            ids.addAll(page);
+            pages++;
+            if (page.size() < 30) {
+                break;
+            }
+            afterId = page.get(page.size() - 1);
+        }
+        assertEquals(4, pages);
+        assertEquals(batch.stream().map(Measurement::getId).toList(), ids);
+    }
+
+    @Test
+    public void allParametersAreReadInIdOrderAfterId() throws Exception {
+        var parameterIds = freshParameterIds();
+        var batch = new ArrayList<Measurement>();
+        for (int i = 0; i < 10; i++) {
+            batch.add(measurement(parameterIds[i % 2], START.plusSeconds(i), (double) i));
+        }
+        store().appendBatch(batch);
+        assertEquals((long) batch.get(9).getId(), store().getLastId());
+
+        var ids = new ArrayList<Long>();
+        store().forEachAfterId(batch.get(4).getId(), 3, row -> ids.add(row.getId()));
+        assertEquals(batch.subList(5, 8).stream().map(Measurement::getId).toList(), ids);
+
+        ids.clear();
+        store().forEachAfterId(batch.get(7).getId(), 10, row -> ids.add(row.getId()));
+        assertEquals(batch.subList(8, 10).stream().map(Measurement::getId).toList(), ids);
+    }
+
+    @Test
+    public void bulkRangeIsGroupedByParameter() throws Exception {
+        var parameterIds = freshParameterIds();
+        var batch = new ArrayList<Measurement>();
+        for (int i = 0; i < 20; i++) {
+            batch.add(measurement(parameterIds[i % 2], START.plusSeconds(i), (double) i));
+        }
+        store().appendBatch(batch);
+
+        var rows = new ArrayList<long[]>();
+        store().forEachByParametersAndTimeRange(
+                List.of(parameterIds[1], parameterIds[0]),
+                START.plusSeconds(2),
+                START.plusSeconds(17),
+                row -> rows.add(new long[] {row.getParameterId(), row.getId()}));
+        assertEquals(16, rows.size());
+        long firstParameterId = Math.min(parameterIds[0], parameterIds[1]);
+        long secondParameterId = Math.max(parameterIds[0], parameterIds[1]);
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(i < 8 ? firstParameterId : secondParameterId, rows.get(i)[0]);
+            if (i % 8 != 0) {
+                assertTrue(rows.get(i)[1] > rows.get(i - 1)[1]);
+            }
+        }
+    }
+
+    @Test
+    public void bulkRangeIsMergedByClientTime() throws Exception {
+        var parameterIds = freshParameterIds();
+        long firstParameterId = Math.min(parameterIds[0], parameterIds[1]);
+        long secondParameterId = Math.max(parameterIds[0], parameterIds[1]);
+        var batch = new ArrayList<Measurement>();
+        for (int i = 0; i < 10; i++) {
+            // Both parameters at every second, the second parameter appended first
+            batch.add(measurement(secondParameterId, START.plusSeconds(i), (double) i));
+            batch.add(measurement(firstParameterId, START.plusSeconds(i), (double) i));
+        }
+        store().appendBatch(batch);
+
+        var rows = new ArrayList<long[]>();
+        store().forEachByParametersAndTimeRangeOrderedByTime(
+                List.of(parameterIds[1], parameterIds[0]),
+                START.plusSeconds(2),
+                START.plusSeconds(7),
+                row -> rows.add(new long[] {row.getClientTimeMicros(), row.getParameterId()}));
+        assertEquals(12, rows.size());
+        for (int i = 0; i < rows.size(); i++) {
+            assertEquals(toEpochMicros(START.plusSeconds(2 + i / 2)), rows.get(i)[0]);
+            assertEquals(i % 2 == 0 ? firstParameterId : secondParameterId, rows.get(i)[1]);
+        }
+    }
+
+    @Test
+    public void rangeOnlyReturnsRequestedParameter() {
+        var parameterIds = freshParameterIds();
+        store().appendBatch(List.of(
+                measurement(parameterIds[0], START, 1.0),
+                measurement(parameterIds[1], START, 2.0),
+                measurement(parameterIds[0], START.plusSeconds(1), 3.0)));
+        try (var stream = store().streamByParameterAndTimeRange(parameterIds[1], START, START.plusSeconds(1))) {
+            var range = stream.toList();
+            assertEquals(1, range.size());
+            assertEquals(parameterIds[1], range.get(0).getParameterId());
+        }
+    }
+
+    @Test
+    public void lastMeasurementAndCount() {
+        var parameterIds = freshParameterIds();
+        assertTrue(store().getLastMeasurement(parameterIds[0]).isEmpty());
+        assertEquals(0, store().countByParameter(parameterIds[0]));
+
+        var last = measurement(parameterIds[0], START.plusSeconds(5), 0.0);
+        last.setValueDouble(null);
+        last.setValueString("last ✓");
+        store().appendBatch(List.of(
+                measurement(parameterIds[0], START, 1.0), measurement(parameterIds[1], START, 2.0), last));
+
+        var stored = store().getLastMeasurement(parameterIds[0]).orElseThrow();
+        assertEquals(last.getId(), stored.getId());
+        assertEquals("last ✓", stored.getValueString());
+        assertEquals(last.getClientTime(), stored.getClientTime());
+        assertEquals(2, store().countByParameter(parameterIds[0]));
+        assertEquals(1, store().countByParameter(parameterIds[1]));
+    }
+
+    @Test
+    public void valueTypesRoundTrip() {
+        long parameterId = freshParameterIds()[0];
+        var values = List.of(
+                measurement(parameterId, START, 1.5),
+                measurement(parameterId, START.plusSeconds(1), null),
+                measurement(parameterId, START.plusSeconds(2), null));
+        values.get(1).setValueLong(-42L);
+        values.get(2).setValueBoolean(true);
+        store().appendBatch(values);
+        try (var stream = store().streamByParameterAndTimeRange(parameterId, START, START.plusSeconds(2))) {
+            var stored = stream.toList();
+            assertEquals(1.5, stored.get(0).getValueDouble(), 0);
+            assertEquals(Long.valueOf(-42), stored.get(1).getValueLong());
+            assertEquals(Boolean.TRUE, stored.get(2).getValueBoolean());
+            assertEquals(Long.valueOf(0), stored.get(0).getOpcStatusCode());
+        }
+    }
+
+    @Test
+    public void aggregatesNumericValuesInRange() throws Exception {
+        var parameterIds = freshParameterIds();
+        var values = new ArrayList<Measurement>();
+        for (int i = 1; i <= 4; i++) {
+            values.add(measurement(parameterIds[0], START.plusSeconds(i), (double) i));
+        }
+        var longValue = measurement(parameterIds[0], START.plusSeconds(5), null);
+        longValue.setValueLong(10L);
+        var booleanValue = measurement(parameterIds[0], START.plusSeconds(6), null);
+        booleanValue.setValueBoolean(true);
+        values.add(longValue);
+        values.add(booleanValue);
+        // Outside of the range
+        values.add(measurement(parameterIds[0], START.plusSeconds(7), 1000.0));
+        store().appendBatch(values);
+
+        var statistics = store().aggregateByParametersAndTimeRange(
+                List.of(parameterIds[0], parameterIds[1]), START, START.plusSeconds(6));
+        var numeric = statistics.get(parameterIds[0]);
+        assertEquals(6, numeric.count());
+        assertEquals(5, numeric.numericCount());
+        assertEquals(1.0, numeric.min(), 0);
+        assertEquals(10.0, numeric.max(), 0);
+        assertEquals(4.0, numeric.mean(), 1e-9);
+        // Sample standard deviation of 1, 2, 3, 4 and 10
+        assertEquals(Math.sqrt(12.5), numeric.standardDeviation(), 1e-9);
+        assertEquals(MeasurementStatistics.EMPTY, statistics.get(parameterIds[1]));
+    }
+
+    @Test
+    public void aggregatesPerTimeBucket() throws Exception {
+        long parameterId = freshParameterIds()[0];
+        var values = new ArrayList<Measurement>();
+        for (int i = 0; i < 30; i++) {
+            values.add(measurement(parameterId, START.plusSeconds(i), (double) i));
+        }
+        var booleanValue = measurement(parameterId, START.plusSeconds(35), null);
+        booleanValue.setValueBoolean(true);
+        values.add(booleanValue);
+        store().appendBatch(values);
+
+        var buckets = store().aggregateByParameterAndTimeBuckets(
+                parameterId, START.plusSeconds(5), START.plusSeconds(39), Duration.ofSeconds(10));
+        assertEquals(List.of(0L, 1L, 2L, 3L), buckets.stream().map(MeasurementBucket::index).toList());
+        var first = buckets.get(0);
+        assertEquals(10, first.count());
+        assertEquals(5.0, first.min(), 0);
+        assertEquals(14.0, first.max(), 0);
+        assertEquals(9.5, first.mean(), 1e-9);
+        assertEquals(5.0, first.first(), 0);
+        assertEquals(14.0, first.last(), 0);
+        assertEquals(Long.valueOf(toEpochMicros(START.plusSeconds(14))), first.lastTimeMicros());
+        assertEquals(5, buckets.get(2).count());
+        var nonNumeric = buckets.get(3);
+        assertEquals(1, nonNumeric.count());
+        assertEquals(0, nonNumeric.numericCount());
+        assertNull(nonNumeric.mean());
+        assertNull(nonNumeric.first());
+    }
+
+    protected static Measurement measurement(long parameterId, Instant clientTime, Double value) {
+        var measurement = new Measurement();
+        measurement.setParameterId(parameterId);
+        measurement.setClientTime(clientTime);
+        measurement.setSourceTime(clientTime.minus(3, ChronoUnit.MILLIS));
+        measurement.setServerTime(clientTime.minus(1, ChronoUnit.MILLIS));
+        measurement.setOpcStatusCode(0L);
+        measurement.setValueDouble(value);
+        return measurement;
+    }
+}
@@ -0,0 +1,49 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.store;
+
+import com.productionpilot.Application;
+import com.productionpilot.db.timescale.entities.Parameter;
+import com.productionpilot.db.timescale.repository.ParameterRepository;
+import com.productionpilot.db.timescale.service.MachineService;
+import java.util.UUID;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Transactional;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class, properties = "com.productionpilot.measurements.store=postgresql")
+@Transactional
+public class PostgresMeasurementStoreTest extends MeasurementStoreContractTest {
+    @Autowired
+    private MeasurementStore store;
+
+    @Autowired
+    private MachineService machineService;
+
+    @Autowired
+    private ParameterRepository parameterRepository;
+
+    @Override
+    protected MeasurementStore store() {
+        return store;
+    }
+
+    @Override
+    protected long[] freshParameterIds() {
+        var machine = machineService.create("Store test " + UUID.randomUUID());
+        var ids = new long[2];
+        for (int i = 0; i < ids.length; i++) {
+            var parameter = new Parameter();
+            parameter.setOpcNodeId("ns=2;s=StoreTest" + UUID.randomUUID());
+            parameter.setMachine(machine);
+            parameter.setName("Store test " + i);
+            ids[i] = parameterRepository.save(parameter).getId();
+        }
+        return ids;
+    }
+}
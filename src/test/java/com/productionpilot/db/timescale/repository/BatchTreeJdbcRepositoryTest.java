@@ -0,0 +1,112 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.repository;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.Application;
+import com.productionpilot.db.timescale.entities.Batch;
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository.BatchNode;
+import com.productionpilot.db.timescale.service.BatchMachineService;
+import com.productionpilot.db.timescale.service.BatchService;
+import com.productionpilot.db.timescale.service.MachineService;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Transactional;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class)
+@Transactional
+public class BatchTreeJdbcRepositoryTest {
+    private static final Instant START = Instant.parse("2023-01-01T00:00:00Z");
+
+    @Autowired
+    private BatchTreeJdbcRepository batchTreeJdbcRepository;
+
+    @Autowired
+    private BatchService batchService;
+
+    @Autowired
+    private BatchMachineService batchMachineService;
+
+    @Autowired
+    private MachineService machineService;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Test
+    public void subtreeMatchesTheEntities() {
+        var machine = machineService.create("Tree test " + UUID.randomUUID());
+        var root = batchService.create("Tree test " + UUID.randomUUID());
+        var first = createChild(root, "First");
+        createChild(root, "Second");
+        var grandchild = createChild(first, "Grandchild");
+        batchMachineService.create(root, machine, START, START.plus(Duration.ofHours(1)));
+        batchMachineService.create(root, machine, START.plus(Duration.ofHours(2)), START.plus(Duration.ofHours(3)));
+        batchMachineService.create(grandchild, machine, START, START.plus(Duration.ofHours(4)));
+        // Not part of the tree
+        batchService.create("Tree test " + UUID.randomUUID());
+        entityManager.flush();
+
+        var tree = batchTreeJdbcRepository.findSubtree(root.getId());
+        assertTree(root, tree);
+        assertEquals(2, tree.ranges().size());
+        assertEquals(machine.getName(), tree.ranges().get(0).machineName());
+        assertEquals(2, tree.children().size());
+        var firstNode = tree.children().stream()
+                .filter(child -> child.id() == first.getId())
+                .findFirst()
+                .orElseThrow();
+        assertEquals((long) grandchild.getId(), firstNode.children().get(0).id());
+        assertEquals(1, firstNode.children().get(0).ranges().size());
+    }
+
+    @Test
+    public void missingBatchReturnsNull() {
+        assertNull(batchTreeJdbcRepository.findSubtree(-1));
+    }
+
+    private Batch createChild(Batch parent, String name) {
+        var batch = batchService.create(name + " " + UUID.randomUUID());
+        batch.setParentBatch(parent);
+        batchService.update(batch);
+        return batch;
+    }
+
+    /**
+     * Compares the node with the batch, its batch machine ranges and its child batches, as loaded through JPA.
+     */
+    private void assertTree(Batch batch, BatchNode node) {
+        assertEquals((long) batch.getId(), node.id());
+        assertEquals(batch.getName(), node.name());
+        var ranges = batchMachineService.findAllByBatch(batch);
+        assertEquals(
+                ranges.stream().map(range -> range.getId()).sorted().toList(),
+                node.ranges().stream().map(range -> range.id()).toList());
+        for (var range : node.ranges()) {
+            var entity = ranges.stream()
+                    .filter(candidate -> candidate.getId() == range.id())
+                    .findFirst()
+                    .orElseThrow();
+            assertEquals(entity.getStartTime(), range.startTime());
+            assertEquals(entity.getEndTime(), range.endTime());
+            assertEquals((long) entity.getMachine().getId(), range.machineId());
+        }
+        var children = batchService.findAllByParentBatch(batch);
+        assertEquals(children.size(), node.children().size());
+        for (int i = 0; i < children.size(); i++) {
+            assertTree(children.get(i), node.children().get(i));
+        }
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.repository;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.Application;
+import com.productionpilot.db.timescale.entities.Parameter;
+import com.productionpilot.db.timescale.service.MachineService;
+import java.lang.management.ManagementFactory;
+import java.sql.Timestamp;
+import java.time.Instant;
+import java.util.UUID;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import org.hibernate.Session;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Transactional;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class)
+@Transactional
+public class MeasurementJdbcRepositoryTest {
+    private static final Instant START = Instant.parse("2023-01-01T00:00:00Z");
+    private static final int ROWS = 1_000_000;
+    // Buffering the whole result set (or keeping the entities) would take several hundred MB
+    private static final long MAX_HEAP_GROWTH_BYTES = 32 * 1024 * 1024;
+
+    @Autowired
+    private MeasurementJdbcRepository measurementJdbcRepository;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private MachineService machineService;
+
+    @Autowired
+    private ParameterRepository parameterRepository;
+
+    @PersistenceContext
+    private EntityManager entityManager;
+
+    @Test
+    public void streamingUsesConstantMemory() {
+        long parameterId = createParameter();
+        insertSeries(parameterId, ROWS, "value_double");
+
+        long baseline = usedHeapAfterGc();
+        long maxGrowth = 0;
+        long count = 0;
+        long lastId = 0;
+        try (var stream = measurementJdbcRepository.streamByParameterAndTimeRange(
+                parameterId, START, START.plusSeconds(ROWS))) {
+            var iterator = stream.iterator();
+            while (iterator.hasNext()) {
+                var measurement = iterator.next();
+                assertTrue(measurement.getId() > lastId);
+                assertEquals((double) count, measurement.getValueDouble(), 0);
+                assertNull(measurement.getValueLong());
+                lastId = measurement.getId();
+                if (++count % (ROWS / 10) == 0) {
+                    maxGrowth = Math.max(maxGrowth, usedHeapAfterGc() - baseline);
+                }
+            }
+        }
+        assertEquals(ROWS, count);
+        assertTrue("Heap grew by " + maxGrowth + " bytes while streaming", maxGrowth < MAX_HEAP_GROWTH_BYTES);
+        assertEquals(
+                0,
+                entityManager
+                        .unwrap(Session.class)
+                        .getStatistics()
+                        .getEntityKeys()
+                        .stream()
+                        .filter(key -> key.getEntityName().endsWith(".Measurement"))
+                        .count());
+    }
+
+    @Test
+    public void rangeIsInclusive() {
+        long parameterId = createParameter();
+        insertSeries(parameterId, 10, "value_long");
+        try (var stream = measurementJdbcRepository.streamByParameterAndTimeRange(
+                parameterId, START.plusSeconds(2), START.plusSeconds(5))) {
+            var measurements = stream.toList();
+            assertEquals(4, measurements.size());
+            assertEquals(Long.valueOf(2), measurements.get(0).getValueLong());
+            assertEquals(START.plusSeconds(5), measurements.get(3).getClientTime());
+            assertNull(measurements.get(0).getValueDouble());
+            assertFalse(entityManager.contains(measurements.get(0)));
+        }
+    }
+
+    private long createParameter() {
+        var parameter = new Parameter();
+        parameter.setOpcNodeId("ns=2;s=JdbcTest" + UUID.randomUUID());
+        parameter.setMachine(machineService.create("JDBC test " + UUID.randomUUID()));
+        parameter.setName("JDBC test");
+        parameterRepository.save(parameter);
+        entityManager.flush();
+        return parameter.getId();
+    }
+
+    /**
+     * Inserts count measurements with the values 0, 1, ... in the given value column, one second apart from START.
+     */
+    private void insertSeries(long parameterId, int count, String valueColumn) {
+        jdbcTemplate.update(
+                "INSERT INTO Measurement (parameter_id, source_time, server_time, client_time, opc_status_code, "
+                        + valueColumn + ") SELECT ?, t, t, t, 0, i FROM (SELECT i, ?::timestamptz + i * INTERVAL"
+                        + " '1 second' AS t FROM generate_series(0, ?) AS i) AS series",
+                parameterId,
+                Timestamp.from(START),
+                count - 1);
+    }
+
+    private static long usedHeapAfterGc() {
+        var memory = ManagementFactory.getMemoryMXBean();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+}
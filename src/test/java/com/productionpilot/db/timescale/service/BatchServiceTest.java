@@ -0,0 +1,71 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.service;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.Application;
+import com.productionpilot.db.timescale.entities.Batch;
+import com.productionpilot.db.timescale.repository.BatchTreeJdbcRepository;
+import java.util.List;
+import java.util.UUID;
+import javax.validation.ValidationException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Transactional;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class)
+@Transactional
+public class BatchServiceTest {
+    @Autowired
+    private BatchService batchService;
+
+    @Autowired
+    private BatchTreeJdbcRepository batchTreeJdbcRepository;
+
+    @Test
+    public void movingABatchMovesItsSubtree() {
+        var a = create(null);
+        var b = create(null);
+        var child = create(a);
+        var grandchild = create(child);
+        assertEquals(List.of(a, child, grandchild), batchService.getFullPath(grandchild));
+
+        child.setParentBatch(b);
+        batchService.update(child);
+        assertEquals(List.of(b, child, grandchild), batchService.getFullPath(grandchild));
+        assertTrue(batchTreeJdbcRepository.isAncestorOrSelf(b.getId(), grandchild.getId()));
+        assertFalse(batchTreeJdbcRepository.isAncestorOrSelf(a.getId(), grandchild.getId()));
+
+        child.setParentBatch(null);
+        batchService.update(child);
+        assertEquals(List.of(child, grandchild), batchService.getFullPath(grandchild));
+        assertNull(batchTreeJdbcRepository.findParentId(child.getId()));
+    }
+
+    @Test
+    public void cyclesAreRejected() {
+        var parent = create(null);
+        var child = create(parent);
+        var grandchild = create(child);
+        parent.setParentBatch(grandchild);
+        assertThrows(ValidationException.class, () -> batchService.update(parent));
+        parent.setParentBatch(parent);
+        assertThrows(ValidationException.class, () -> batchService.update(parent));
+    }
+
+    private Batch create(Batch parent) {
+        var batch = batchService.create("Closure test " + UUID.randomUUID());
+        if (parent != null) {
+            batch.setParentBatch(parent);
+            batchService.update(batch);
+        }
+        return batch;
+    }
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.service;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.Application;
+import com.productionpilot.db.store.MeasurementStore;
+import com.productionpilot.db.timescale.entities.BatchMachine;
+import com.productionpilot.db.timescale.entities.BatchMachineStatistics;
+import com.productionpilot.db.timescale.entities.Measurement;
+import com.productionpilot.db.timescale.entities.Parameter;
+import com.productionpilot.db.timescale.repository.BatchMachineStatisticsRepository;
+import com.productionpilot.db.timescale.repository.ParameterRepository;
+import com.productionpilot.db.timescale.service.BatchStatisticsService.Range;
+import com.productionpilot.service.metadata.MetadataSnapshotService;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executors;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class)
+public class BatchStatisticsServiceTest {
+    private static final Instant START = Instant.parse("2023-01-01T00:00:00Z");
+
+    @Autowired
+    private BatchStatisticsService batchStatisticsService;
+
+    @Autowired
+    private BatchMachineStatisticsRepository batchMachineStatisticsRepository;
+
+    @Autowired
+    private BatchService batchService;
+
+    @Autowired
+    private BatchMachineService batchMachineService;
+
+    @Autowired
+    private MachineService machineService;
+
+    @Autowired
+    private ParameterRepository parameterRepository;
+
+    @Autowired
+    private MeasurementStore measurementStore;
+
+    @Autowired
+    private MetadataSnapshotService metadataSnapshotService;
+
+    private Parameter parameter;
+    private BatchMachine batchMachine;
+
+    @Before
+    public void createRange() {
+        var machine = machineService.create("Statistics test " + UUID.randomUUID());
+        parameter = new Parameter();
+        parameter.setOpcNodeId("ns=2;s=StatisticsTest" + UUID.randomUUID());
+        parameter.setMachine(machine);
+        parameter.setName("Statistics test");
+        parameter = parameterRepository.save(parameter);
+        assertNotNull(metadataSnapshotService.get().getParameter(parameter.getId()));
+        // One measurement every 10 minutes, with the values 0 to 5
+        var measurements = new ArrayList<Measurement>();
+        for (int i = 0; i < 6; i++) {
+            var measurement = new Measurement();
+            measurement.setParameterId(parameter.getId());
+            measurement.setClientTime(START.plus(Duration.ofMinutes(10L * i)));
+            measurement.setSourceTime(measurement.getClientTime());
+            measurement.setServerTime(measurement.getClientTime());
+            measurement.setOpcStatusCode(0L);
+            measurement.setValueLong((long) i);
+            measurements.add(measurement);
+        }
+        measurementStore.appendBatch(measurements);
+        // Created after the measurements, as the statistics of ended ranges are only computed again when they change
+        var batch = batchService.create("Statistics test " + UUID.randomUUID());
+        batchMachine = batchMachineService.create(batch, machine, START, START.plus(Duration.ofHours(1)));
+    }
+
+    @Test
+    public void statisticsAreRecomputedAfterTheRangeWasModified() throws Exception {
+        var statistics = getStatistics();
+        assertTrue(statistics.upToDate());
+        var parameterStatistics = single(statistics);
+        assertEquals(parameter.getId().longValue(), parameterStatistics.getParameterId());
+        assertEquals(6, parameterStatistics.getMeasurementCount());
+        assertEquals(0, parameterStatistics.getMinValue(), 0);
+        assertEquals(5, parameterStatistics.getMaxValue(), 0);
+        assertEquals(2.5, parameterStatistics.getMeanValue(), 1e-9);
+
+        var stored = batchStatisticsService.getStoredStatistics(List.of(range())).get(0);
+        assertTrue(stored.upToDate());
+        assertEquals(6, single(stored).getMeasurementCount());
+
+        batchMachine = batchMachineService.findById(batchMachine.getId());
+        batchMachine.setEndTime(START.plus(Duration.ofMinutes(25)));
+        batchMachineService.update(batchMachine);
+        statistics = getStatistics();
+        assertTrue(statistics.upToDate());
+        assertEquals(3, single(statistics).getMeasurementCount());
+        assertEquals(2, single(statistics).getMaxValue(), 0);
+    }
+
+    @Test
+    public void concurrentRequestsComputeTheRangeOnce() throws Exception {
+        var executor = Executors.newFixedThreadPool(4);
+        try {
+            var tasks = new ArrayList<Callable<BatchStatisticsService.RangeStatistics>>();
+            for (int i = 0; i < 4; i++) {
+                tasks.add(this::getStatistics);
+            }
+            for (var future : executor.invokeAll(tasks)) {
+                var statistics = future.get();
+                assertTrue(statistics.upToDate());
+                assertEquals(6, single(statistics).getMeasurementCount());
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+        // Requests that waited for the computation used its result instead of storing the statistics again
+        assertEquals(1, batchMachineStatisticsRepository.findByBatchMachineId(batchMachine.getId()).size());
+    }
+
+    private BatchStatisticsService.RangeStatistics getStatistics() throws Exception {
+        return batchStatisticsService.getStatistics(List.of(range())).get(0);
+    }
+
+    private Range range() {
+        return Range.of(batchMachineService.findById(batchMachine.getId()));
+    }
+
+    private static BatchMachineStatistics single(BatchStatisticsService.RangeStatistics statistics) {
+        assertEquals(1, statistics.parameters().size());
+        return statistics.parameters().get(0);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.service;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.Application;
+import com.productionpilot.db.store.MeasurementStore;
+import com.productionpilot.db.timescale.entities.Measurement;
+import com.productionpilot.db.timescale.entities.Parameter;
+import com.productionpilot.db.timescale.repository.MeasurementRepository;
+import com.productionpilot.db.timescale.repository.ParameterRepository;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.annotation.Transactional;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(
+        classes = Application.class,
+        properties = {
+            "com.productionpilot.measurements.store=postgresql",
+            "com.productionpilot.archive.directory=${java.io.tmpdir}/productionpilot-archive-test",
+            "com.productionpilot.archive.min-age-days=28",
+            "com.productionpilot.archive.segment-hours=24"
+        })
+@Transactional
+public class MeasurementArchiveServiceTest {
+    @Autowired
+    private MeasurementArchiveService measurementArchiveService;
+
+    @Autowired
+    private MeasurementStore measurementStore;
+
+    @Autowired
+    private MeasurementRepository measurementRepository;
+
+    @Autowired
+    private MachineService machineService;
+
+    @Autowired
+    private ParameterRepository parameterRepository;
+
+    @Test
+    public void oldMeasurementsAreArchivedReadThroughAndDeleted() throws Exception {
+        long parameterId = createParameter();
+        var start = Instant.now().minus(Duration.ofDays(60)).truncatedTo(ChronoUnit.DAYS);
+        var batch = new ArrayList<Measurement>();
+        // Two days of old measurements, i.e. two segments
+        for (int hour = 0; hour < 48; hour++) {
+            batch.add(measurement(parameterId, start.plus(Duration.ofHours(hour)), (double) hour));
+        }
+        var recent = measurement(parameterId, Instant.now().truncatedTo(ChronoUnit.SECONDS), 48.0);
+        batch.add(recent);
+        measurementStore.appendBatch(batch);
+
+        measurementArchiveService.archiveClosedRanges();
+
+        // Only the recent measurement is left in the Measurement table
+        assertEquals(1, measurementRepository.countByParameterId(parameterId));
+        assertEquals(48, measurementArchiveService.countByParameter(parameterId));
+        assertEquals(49, measurementStore.countByParameter(parameterId));
+        try (var stream = measurementStore.streamByParameterAndTimeRange(parameterId, start, recent.getClientTime())) {
+            var read = stream.toList();
+            assertEquals(49, read.size());
+            for (int i = 0; i < read.size(); i++) {
+                assertEquals(batch.get(i).getId(), read.get(i).getId());
+                assertEquals(batch.get(i).getClientTime(), read.get(i).getClientTime());
+                assertEquals((double) i, read.get(i).getValueDouble(), 0);
+            }
+        }
+
+        // Nothing is left to archive
+        measurementArchiveService.archiveClosedRanges();
+        assertEquals(48, measurementArchiveService.countByParameter(parameterId));
+    }
+
+    @Test
+    public void lastMeasurementFallsBackToTheArchive() throws Exception {
+        long parameterId = createParameter();
+        var start = Instant.now().minus(Duration.ofDays(60)).truncatedTo(ChronoUnit.DAYS);
+        var batch = new ArrayList<Measurement>();
+        for (int hour = 0; hour < 48; hour++) {
+            batch.add(measurement(parameterId, start.plus(Duration.ofHours(hour)), (double) hour));
+        }
+        measurementStore.appendBatch(batch);
+
+        measurementArchiveService.archiveClosedRanges();
+
+        assertEquals(0, measurementRepository.countByParameterId(parameterId));
+        var last = measurementStore.getLastMeasurement(parameterId).orElseThrow();
+        assertEquals(batch.get(47).getId(), last.getId());
+        assertEquals(47.0, last.getValueDouble(), 0);
+
+        // A newer measurement in the table takes precedence
+        var recent = measurement(parameterId, Instant.now().truncatedTo(ChronoUnit.SECONDS), 48.0);
+        measurementStore.appendBatch(List.of(recent));
+        assertEquals(recent.getId(), measurementStore.getLastMeasurement(parameterId).orElseThrow().getId());
+    }
+
+    private long createParameter() {
+        var parameter = new Parameter();
+        parameter.setOpcNodeId("ns=2;s=ArchiveTest" + UUID.randomUUID());
+        parameter.setMachine(machineService.create("Archive test " + UUID.randomUUID()));
+        parameter.setName("Archive test");
+        return parameterRepository.save(parameter).getId();
+    }
+
+    private static Measurement measurement(long parameterId, Instant clientTime, double value) {
+        var measurement = new Measurement();
+        measurement.setParameterId(parameterId);
+        measurement.setClientTime(clientTime);
+        measurement.setSourceTime(clientTime.minus(3, ChronoUnit.MILLIS));
+        measurement.setServerTime(clientTime.minus(1, ChronoUnit.MILLIS));
+        measurement.setOpcStatusCode(0L);
+        measurement.setValueDouble(value);
+        return measurement;
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2022-2023 Felix Kirchmann.
+ * Distributed under the MIT License (license terms are at http://opensource.org/licenses/MIT).
+ */
+package com.productionpilot.db.timescale.service;
+
+import static org.junit.Assert.*;
+
+import com.productionpilot.Application;
+import com.productionpilot.db.timescale.entities.Parameter;
+import com.productionpilot.db.timescale.repository.ParameterRepository;
+import io.micrometer.core.instrument.MeterRegistry;
+import java.util.UUID;
+import lombok.extern.slf4j.Slf4j;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest(classes = Application.class, properties = "spring.jpa.properties.hibernate.generate_statistics=true")
+@Slf4j
+public class MetadataCacheServiceTest {
+    private static final int REPLICATED_ROWS = 100_000;
+
+    @Autowired
+    private MetadataCacheService metadataCacheService;
+
+    @Autowired
+    private ParameterService parameterService;
+
+    @Autowired
+    private MachineService machineService;
+
+    @Autowired
+    private ParameterRepository parameterRepository;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    /**
+     * The InfluxDB replication resolves the parameter of every replicated measurement by id; with the second-level
+     * cache, this must not cause a query per row.
+     */
+    @Test
+    public void replicationLookupsHitTheCache() {
+        var parameters = new Parameter[] {createParameter(), createParameter()};
+        var statistics = metadataCacheService.getStatistics();
+        statistics.clear();
+        for (int row = 0; row < REPLICATED_ROWS; row++) {
+            var parameter = parameterService.findById(parameters[row % parameters.length].getId());
+            assertNotNull(parameter);
+        }
+        log.info(
+                "{} lookups: {} statements, {} cache hits, {} cache misses",
+                REPLICATED_ROWS,
+                statistics.getPrepareStatementCount(),
+                statistics.getSecondLevelCacheHitCount(),
+                statistics.getSecondLevelCacheMissCount());
+        assertTrue(statistics.getPrepareStatementCount() <= parameters.length);
+    }
+
+    @Test
+    public void hitRatioIsPublished() {
+        var parameter = createParameter();
+        for (int i = 0; i < 10; i++) {
+            assertNotNull(parameterService.findById(parameter.getId()));
+        }
+        var hitRatio = meterRegistry
+                .get("productionpilot.cache.hit.ratio")
+                .tag("region", "parameter")
+                .gauge()
+                .value();
+        assertTrue("Hit ratio " + hitRatio, hitRatio > 0 && hitRatio <= 1);
+    }
+
+    @Test
+    public void deletedParameterIsEvicted() {
+        var parameter = createParameter();
+        assertNotNull(parameterService.findById(parameter.getId()));
+        parameterService.delete(parameter);
+        assertNull(parameterService.findById(parameter.getId()));
+    }
+
+    private Parameter createParameter() {
+        var parameter = new Parameter();
+        parameter.setOpcNodeId("ns=2;s=CacheTest" + UUID.randomUUID());
+        parameter.setMachine(machineService.create("Cache test " + UUID.randomUUID()));
+        parameter.setName("Cache test");
+        return parameterRepository.save(parameter);
+    }
+}